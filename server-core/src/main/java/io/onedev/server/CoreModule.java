@@ -15,12 +15,10 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -77,7 +75,6 @@ import io.onedev.agent.ExecutorUtils;
 import io.onedev.commons.bootstrap.Bootstrap;
 import io.onedev.commons.loader.AbstractPlugin;
 import io.onedev.commons.loader.AbstractPluginModule;
-import io.onedev.commons.utils.ExceptionUtils;
 import io.onedev.commons.utils.StringUtils;
 import io.onedev.k8shelper.OsInfo;
 import io.onedev.server.buildspec.job.DefaultJobManager;
@@ -193,10 +190,12 @@ import io.onedev.server.entitymanager.impl.DefaultUserManager;
 import io.onedev.server.entityreference.DefaultEntityReferenceManager;
 import io.onedev.server.entityreference.EntityReferenceManager;
 import io.onedev.server.exception.ExceptionHandler;
+import io.onedev.server.git.DefaultRepositoryCacheManager;
 import io.onedev.server.git.GitFilter;
 import io.onedev.server.git.GitLfsFilter;
 import io.onedev.server.git.GitSshCommandCreator;
 import io.onedev.server.git.GoGetFilter;
+import io.onedev.server.git.RepositoryCacheManager;
 import io.onedev.server.git.config.GitConfig;
 import io.onedev.server.git.exception.GitException;
 import io.onedev.server.git.hookcallback.GitPostReceiveCallback;
@@ -207,9 +206,11 @@ import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.infomanager.DefaultCommitInfoManager;
 import io.onedev.server.infomanager.DefaultIssueInfoManager;
 import io.onedev.server.infomanager.DefaultPullRequestInfoManager;
+import io.onedev.server.infomanager.DefaultRefInfoManager;
 import io.onedev.server.infomanager.DefaultUserInfoManager;
 import io.onedev.server.infomanager.IssueInfoManager;
 import io.onedev.server.infomanager.PullRequestInfoManager;
+import io.onedev.server.infomanager.RefInfoManager;
 import io.onedev.server.infomanager.UserInfoManager;
 import io.onedev.server.job.resource.DefaultResourceManager;
 import io.onedev.server.job.resource.ResourceManager;
@@ -276,9 +277,11 @@ import io.onedev.server.security.BearerAuthenticationFilter;
 import io.onedev.server.security.CodePullAuthorizationSource;
 import io.onedev.server.security.DefaultFilterChainResolver;
 import io.onedev.server.security.DefaultPasswordService;
+import io.onedev.server.security.DefaultPermissionManager;
 import io.onedev.server.security.DefaultRememberMeManager;
 import io.onedev.server.security.DefaultWebSecurityManager;
 import io.onedev.server.security.FilterChainConfigurator;
+import io.onedev.server.security.PermissionManager;
 import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.security.realm.AbstractAuthorizingRealm;
 import io.onedev.server.ssh.DefaultKeyPairProvider;
@@ -292,9 +295,11 @@ import io.onedev.server.storage.DefaultStorageManager;
 import io.onedev.server.storage.StorageManager;
 import io.onedev.server.tasklog.DefaultJobLogManager;
 import io.onedev.server.tasklog.JobLogManager;
+import io.onedev.server.util.ServerConfig;
 import io.onedev.server.util.concurrent.BatchWorkManager;
 import io.onedev.server.util.concurrent.DefaultBatchWorkManager;
 import io.onedev.server.util.concurrent.DefaultWorkExecutor;
+import io.onedev.server.util.concurrent.ManagedExecutorService;
 import io.onedev.server.util.concurrent.WorkExecutor;
 import io.onedev.server.util.jackson.ObjectMapperConfigurator;
 import io.onedev.server.util.jackson.ObjectMapperProvider;
@@ -416,7 +421,10 @@ public class CoreModule extends AbstractPluginModule {
 		bind(GroupAuthorizationManager.class).to(DefaultGroupAuthorizationManager.class);
 		bind(PullRequestWatchManager.class).to(DefaultPullRequestWatchManager.class);
 		bind(RoleManager.class).to(DefaultRoleManager.class);
+		bind(PermissionManager.class).to(DefaultPermissionManager.class);
 		bind(CommitInfoManager.class).to(DefaultCommitInfoManager.class);
+		bind(RefInfoManager.class).to(DefaultRefInfoManager.class);
+		bind(RepositoryCacheManager.class).to(DefaultRepositoryCacheManager.class);
 		bind(IssueInfoManager.class).to(DefaultIssueInfoManager.class);
 		bind(UserInfoManager.class).to(DefaultUserInfoManager.class);
 		bind(BatchWorkManager.class).to(DefaultBatchWorkManager.class);
@@ -478,27 +486,18 @@ public class CoreModule extends AbstractPluginModule {
 		
 		bind(EntityValidator.class).to(DefaultEntityValidator.class);
 		
-	    bind(ExecutorService.class).toProvider(new Provider<ExecutorService>() {
+	    bind(ManagedExecutorService.class).toProvider(new Provider<ManagedExecutorService>() {
 
+	    	@Inject
+	    	private ServerConfig serverConfig;
+	    	
 			@Override
-			public ExecutorService get() {
-		        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, 
-		        		new SynchronousQueue<Runnable>()) {
-
-					@Override
-					public void execute(Runnable command) {
-						try {
-							super.execute(SecurityUtils.inheritSubject(command));
-						} catch (RejectedExecutionException e) {
-							if (!isShutdown())
-								throw ExceptionUtils.unchecked(e);
-						}
-					}
-
-		        };
+			public ManagedExecutorService get() {
+				return new ManagedExecutorService(serverConfig.getExecutorMaxThreads());
 			}
 	    	
 	    }).in(Singleton.class);
+	    bind(ExecutorService.class).to(ManagedExecutorService.class);
 	    
 	    bind(OsInfo.class).toProvider(new Provider<OsInfo>() {
 
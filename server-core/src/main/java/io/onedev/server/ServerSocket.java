@@ -3,6 +3,8 @@ package io.onedev.server;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.lang3.SerializationUtils;
@@ -29,7 +31,9 @@ import io.onedev.server.buildspec.job.JobManager;
 import io.onedev.server.entitymanager.AgentManager;
 import io.onedev.server.exception.SystemNotReadyException;
 import io.onedev.server.job.resource.ResourceManager;
+import io.onedev.server.tasklog.JobLogFrame;
 import io.onedev.server.tasklog.JobLogManager;
+import io.onedev.server.tasklog.JobLogger;
 
 @WebSocket
 public class ServerSocket {
@@ -40,6 +44,10 @@ public class ServerSocket {
 	
 	private Long agentId;
 	
+	// Job tokens bound to handles by job log frames sent over this connection. Tokens of 
+	// finished jobs are removed, so that only running jobs of the agent are kept 
+	private final Map<Integer, String> jobTokens = new ConcurrentHashMap<>();
+	
 	@OnWebSocketClose
     public void onClose(int statusCode, String reason) {
 		try {
@@ -106,6 +114,8 @@ public class ServerSocket {
 	    		}
 	    		break;
 	    	case REQUEST:
+	    		// Agent requests may block until jobs of the agent are finished, and are not 
+	    		// categorized so that they are not limited by concurrency of any category
 	    		OneDev.getInstance(ExecutorService.class).execute(new Runnable() {
 
 					@Override
@@ -126,16 +136,21 @@ public class ServerSocket {
 	    		break;
 	    	case JOB_LOG:
 	    		try {
-	    		String dataString = new String(messageData, StandardCharsets.UTF_8);
-	    		String jobToken = StringUtils.substringBefore(dataString, ":");
-	    		String remaining = StringUtils.substringAfter(dataString, ":");
-	    		String sessionId = StringUtils.substringBefore(remaining, ":");
-	    		if (sessionId.length() == 0)
-	    			sessionId = null;
-	    		String logMessage = StringUtils.substringAfter(remaining, ":");
-	    		TaskLogger logger = OneDev.getInstance(JobLogManager.class).getLogger(jobToken);
-	    		if (logger != null)
-	    			logger.log(logMessage, sessionId);
+	    			if (JobLogFrame.isFrame(messageData)) {
+	    				log(JobLogFrame.decode(messageData));
+	    			} else {
+	    				// Legacy agents send one line per message
+			    		String dataString = new String(messageData, StandardCharsets.UTF_8);
+			    		String jobToken = StringUtils.substringBefore(dataString, ":");
+			    		String remaining = StringUtils.substringAfter(dataString, ":");
+			    		String sessionId = StringUtils.substringBefore(remaining, ":");
+			    		if (sessionId.length() == 0)
+			    			sessionId = null;
+			    		String logMessage = StringUtils.substringAfter(remaining, ":");
+			    		TaskLogger logger = OneDev.getInstance(JobLogManager.class).getLogger(jobToken);
+			    		if (logger != null)
+			    			logger.log(logMessage, sessionId);
+	    			}
 	    		} catch (Exception e) {
 	    			logger.error("Error processing job log", e);
 	    		}
@@ -159,6 +174,28 @@ public class ServerSocket {
     	}
     }
     
+    private void log(JobLogFrame frame) {
+    	JobLogManager jobLogManager = OneDev.getInstance(JobLogManager.class);
+    	String jobToken = frame.getJobToken();
+    	if (jobToken != null) {
+    		jobTokens.values().removeIf(it -> jobLogManager.getLogger(it) == null);
+    		jobTokens.put(frame.getJobTokenHandle(), jobToken);
+    	} else {
+    		jobToken = jobTokens.get(frame.getJobTokenHandle());
+    	}
+    	if (jobToken != null) {
+    		TaskLogger logger = jobLogManager.getLogger(jobToken);
+    		if (logger instanceof JobLogger) {
+    			((JobLogger) logger).log(frame.getMessages(), frame.getSessionId());
+    		} else if (logger != null) {
+    			for (String message: frame.getMessages())
+    				logger.log(message, frame.getSessionId());
+    		} else {
+    			jobTokens.remove(frame.getJobTokenHandle(), jobToken);
+    		}
+    	}
+    }
+    
     private Serializable service(Serializable request) {
 		try {
 			if (request instanceof WaitingForAgentResourceToBeReleased) {
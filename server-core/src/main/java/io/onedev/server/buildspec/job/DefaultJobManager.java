@@ -11,16 +11,21 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -125,6 +130,7 @@ import io.onedev.server.util.CommitAware;
 import io.onedev.server.util.JobSecretAuthorizationContext;
 import io.onedev.server.util.MatrixRunner;
 import io.onedev.server.util.ProjectAndBranch;
+import io.onedev.server.util.concurrent.TimerWheel;
 import io.onedev.server.util.interpolative.VariableInterpolator;
 import io.onedev.server.util.patternset.PatternSet;
 import io.onedev.server.util.schedule.SchedulableTask;
@@ -138,7 +144,11 @@ import io.onedev.server.web.editable.annotation.Interpolative;
 @Singleton
 public class DefaultJobManager implements JobManager, Runnable, CodePullAuthorizationSource {
 
-	private static final int CHECK_INTERVAL = 1000; // check internal in milli-seconds
+	private static final long RECONCILE_INTERVAL = 60000; // reconcile interval in milli-seconds
+	
+	private static final long TIMER_TICK = 1000; // timer tick in milli-seconds
+	
+	private static final int TIMER_WHEEL_SIZE = 512;
 	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultJobManager.class);
 	
@@ -148,6 +158,18 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 	
 	private final Map<Long, Collection<String>> scheduledTasks = new ConcurrentHashMap<>();
 	
+	private final BlockingQueue<Long> buildsToCheck = new LinkedBlockingQueue<>();
+	
+	// Below fields are only accessed from dispatcher thread
+	
+	private final TimerWheel<Long> executionTimers = new TimerWheel<>(TIMER_TICK, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+	
+	// Map of waiting build id to ids of its unfinished dependencies
+	private final Map<Long, Set<Long>> unfinishedDependencies = new HashMap<>();
+	
+	// Map of build id to ids of waiting builds depending on it
+	private final Map<Long, Set<Long>> waitingDependents = new HashMap<>();
+	
 	private final ProjectManager projectManager;
 	
 	private final BuildManager buildManager;
@@ -468,7 +490,7 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 		}
 		
 		AtomicReference<JobExecution> executionRef = new AtomicReference<>(null);
-		executionRef.set(new JobExecution(executorService.submit(new Runnable() {
+		FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
 
 			@Override
 			public void run() {
@@ -759,8 +781,17 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 				}
 			}
 			
-		}), job.getTimeout() * 1000L));
+		}, null) {
+
+			@Override
+			protected void done() {
+				buildsToCheck.offer(buildId);
+			}
+			
+		};
 		
+		executionRef.set(new JobExecution(future, job.getTimeout() * 1000L));
+		executorService.execute(future);
 		return executionRef.get();
 	}
 	
@@ -981,7 +1012,17 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 	@Transactional
 	@Listen
 	public void on(EntityRemoved event) {
-		if (event.getEntity() instanceof Project) {
+		if (event.getEntity() instanceof Build) {
+			Long buildId = event.getEntity().getId();
+			transactionManager.runAfterCommit(new Runnable() {
+
+				@Override
+				public void run() {
+					buildsToCheck.offer(buildId);
+				}
+				
+			});
+		} else if (event.getEntity() instanceof Project) {
 			Long projectId = ((Project) event.getEntity()).getId();
 			transactionManager.runAfterCommit(new Runnable() {
 
@@ -1117,105 +1158,227 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 	@Override
 	public void run() {
 		boolean waitingForJobFinishLogged = false;
+		long nextReconcileTime = 0;
 		while (!jobExecutions.isEmpty() || thread != null) {
 			if (thread == null && !waitingForJobFinishLogged) {
 				logger.info("Waiting for running jobs to finish...");
 				waitingForJobFinishLogged = true;
 			}
 			try {
-				synchronized (this) {
-					transactionManager.run(new Runnable() {
-		
-						@Override
-						public void run() {
-							for (Build build: buildManager.queryUnfinished()) {
-								if (build.getStatus() == Build.Status.RUNNING || build.getStatus() == Build.Status.PENDING) {
-									JobExecution execution = jobExecutions.get(build.getId());
-									if (execution != null) {
-										if (execution.isTimedout())
-											execution.cancel(null);
-									} else if (thread != null) {
-										build.setStatus(Build.Status.PENDING);
-										try {
-											jobExecutions.put(build.getId(), execute(build));
-										} catch (Throwable t) {
-											if (t instanceof ExplicitException)
-												markBuildError(build, t.getMessage());
-											else
-												markBuildError(build, Throwables.getStackTraceAsString(t));
-										}
-									}
-								} else if (build.getStatus() == Build.Status.WAITING) {
-									if (build.getRetryDate() != null) {
-										JobExecution execution = jobExecutions.get(build.getId());
-										if (execution == null && thread != null) {
-											build.setStatus(Build.Status.PENDING);
-											build.setPendingDate(new Date());
-											listenerRegistry.post(new BuildPending(build));
-										}
-									} else if (build.getDependencies().stream().anyMatch(it -> it.isRequireSuccessful() 
-											&& it.getDependency().isFinished() 
-											&& it.getDependency().getStatus() != Build.Status.SUCCESSFUL)) {
-										markBuildError(build, "Some dependencies are required to be successful but failed");
-									} else if (build.getDependencies().stream().allMatch(it->it.getDependency().isFinished())) {
-										build.setStatus(Build.Status.PENDING);
-										build.setPendingDate(new Date());
-										listenerRegistry.post(new BuildPending(build));
-									}
-								} 
-							}
-							for (Iterator<Map.Entry<Long, JobExecution>> it = jobExecutions.entrySet().iterator(); it.hasNext();) {
-								Map.Entry<Long, JobExecution> entry = it.next();
-								Build build = buildManager.get(entry.getKey());
-								JobExecution execution = entry.getValue();
-								if (build == null || build.isFinished()) {
-									it.remove();
-									execution.cancel(null);
-								} else if (execution.isDone()) {
-									it.remove();
-									TaskLogger jobLogger = logManager.newLogger(build);
-									try {
-										execution.check();
-										build.setStatus(Build.Status.SUCCESSFUL);
-										jobLogger.log("Job finished");
-									} catch (TimeoutException e) {
-										build.setStatus(Build.Status.TIMED_OUT);
-									} catch (CancellationException e) {
-										if (e instanceof CancellerAwareCancellationException) {
-											Long cancellerId = ((CancellerAwareCancellationException) e).getCancellerId();
-											if (cancellerId != null)
-												build.setCanceller(userManager.load(cancellerId));
-										}
-										build.setStatus(Build.Status.CANCELLED);
-									} catch (ExecutionException e) {
-										build.setStatus(Build.Status.FAILED);
-										ExplicitException explicitException = ExceptionUtils.find(e, ExplicitException.class);
-										if (explicitException != null)
-											jobLogger.error(explicitException.getMessage());
-										else if (ExceptionUtils.find(e, FailedException.class) == null)
-											jobLogger.error("Error running job", e);
-									} catch (InterruptedException e) {
-									} finally {
-										build.setFinishDate(new Date());
-										listenerRegistry.post(new BuildFinished(build));
-									}
-								}
-							}
-						}
-						
-					});
+				Set<Long> buildIds = new LinkedHashSet<>();
+				if (System.currentTimeMillis() >= nextReconcileTime) {
+					buildIds.addAll(getBuildsToReconcile());
+					nextReconcileTime = System.currentTimeMillis() + RECONCILE_INTERVAL;
+				}
+				
+				/*
+				 * Wait at most one tick so that timers are fired in time, and that system 
+				 * stopping is noticed
+				 */
+				Long buildId;
+				if (buildIds.isEmpty())
+					buildId = buildsToCheck.poll(executionTimers.getTickMillis(), TimeUnit.MILLISECONDS);
+				else
+					buildId = buildsToCheck.poll();
+				if (buildId != null) {
+					buildIds.add(buildId);
+					buildsToCheck.drainTo(buildIds);
+				}
+				buildIds.addAll(executionTimers.advance(System.currentTimeMillis()));
+				
+				for (Long each: buildIds) {
+					try {
+						checkBuild(each);
+					} catch (Throwable e) {
+						logger.error("Error checking build (id: " + each + ")", e);
+					}
 				}
-				Thread.sleep(CHECK_INTERVAL);
 			} catch (Throwable e) {
-				logger.error("Error checking unfinished builds", e);
+				logger.error("Error dispatching builds", e);
 			} 
 		}	
 	}
 	
+	/*
+	 * Reconciliation is a safety net in case some build events are missed, for instance 
+	 * builds left unfinished by last server run, or builds removed without notification 
+	 */
+	private Collection<Long> getBuildsToReconcile() {
+		Collection<Long> buildIds = new HashSet<>(jobExecutions.keySet());
+		sessionManager.run(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Build build: buildManager.queryUnfinished())
+					buildIds.add(build.getId());
+			}
+			
+		});
+		return buildIds;
+	}
+	
+	private void checkBuild(Long buildId) {
+		synchronized (this) {
+			transactionManager.run(new Runnable() {
+
+				@Override
+				public void run() {
+					Build build = buildManager.get(buildId);
+					JobExecution execution = jobExecutions.get(buildId);
+					if (build == null || build.isFinished()) {
+						if (execution != null) {
+							jobExecutions.remove(buildId);
+							execution.cancel(null);
+						}
+						executionTimers.cancel(buildId);
+						unregisterDependent(buildId);
+						onDependencyFinished(buildId, build != null && build.isSuccessful());
+					} else if (execution != null) {
+						if (execution.isDone()) {
+							jobExecutions.remove(buildId);
+							executionTimers.cancel(buildId);
+							onExecutionDone(build, execution);
+						} else if ((build.getStatus() == Build.Status.RUNNING || build.getStatus() == Build.Status.PENDING) 
+								&& execution.isTimedout()) {
+							// Build will be checked again when execution is done
+							execution.cancel(null);
+						} else {
+							/* 
+							 * Begin time of execution is updated when job is retried, so we 
+							 * check again at deadline instead of cancelling directly
+							 */
+							executionTimers.schedule(buildId, Math.max(execution.getDeadline(), 
+									System.currentTimeMillis() + executionTimers.getTickMillis()));
+						}
+					} else if (build.getStatus() == Build.Status.RUNNING || build.getStatus() == Build.Status.PENDING) {
+						if (thread != null) {
+							build.setStatus(Build.Status.PENDING);
+							try {
+								execution = execute(build);
+								jobExecutions.put(buildId, execution);
+								executionTimers.schedule(buildId, execution.getDeadline());
+							} catch (Throwable t) {
+								if (t instanceof ExplicitException)
+									markBuildError(build, t.getMessage());
+								else
+									markBuildError(build, Throwables.getStackTraceAsString(t));
+							}
+						}
+					} else if (build.getStatus() == Build.Status.WAITING) {
+						unregisterDependent(buildId);
+						if (build.getRetryDate() != null) {
+							if (thread != null) {
+								build.setStatus(Build.Status.PENDING);
+								build.setPendingDate(new Date());
+								listenerRegistry.post(new BuildPending(build));
+								buildsToCheck.offer(buildId);
+							}
+						} else if (build.getDependencies().stream().anyMatch(it -> it.isRequireSuccessful() 
+								&& it.getDependency().isFinished() 
+								&& it.getDependency().getStatus() != Build.Status.SUCCESSFUL)) {
+							markBuildError(build, "Some dependencies are required to be successful but failed");
+						} else if (build.getDependencies().stream().allMatch(it->it.getDependency().isFinished())) {
+							build.setStatus(Build.Status.PENDING);
+							build.setPendingDate(new Date());
+							listenerRegistry.post(new BuildPending(build));
+							buildsToCheck.offer(buildId);
+						} else {
+							registerDependent(build);
+						}
+					}
+				}
+				
+			});
+		}
+	}
+	
+	private void onExecutionDone(Build build, JobExecution execution) {
+		TaskLogger jobLogger = logManager.newLogger(build);
+		try {
+			execution.check();
+			build.setStatus(Build.Status.SUCCESSFUL);
+			jobLogger.log("Job finished");
+		} catch (TimeoutException e) {
+			build.setStatus(Build.Status.TIMED_OUT);
+		} catch (CancellationException e) {
+			if (e instanceof CancellerAwareCancellationException) {
+				Long cancellerId = ((CancellerAwareCancellationException) e).getCancellerId();
+				if (cancellerId != null)
+					build.setCanceller(userManager.load(cancellerId));
+			}
+			build.setStatus(Build.Status.CANCELLED);
+		} catch (ExecutionException e) {
+			build.setStatus(Build.Status.FAILED);
+			ExplicitException explicitException = ExceptionUtils.find(e, ExplicitException.class);
+			if (explicitException != null)
+				jobLogger.error(explicitException.getMessage());
+			else if (ExceptionUtils.find(e, FailedException.class) == null)
+				jobLogger.error("Error running job", e);
+		} catch (InterruptedException e) {
+		} finally {
+			build.setFinishDate(new Date());
+			listenerRegistry.post(new BuildFinished(build));
+		}
+	}
+	
+	private void registerDependent(Build build) {
+		Set<Long> dependencyIds = new HashSet<>();
+		for (BuildDependence dependence: build.getDependencies()) {
+			Build dependency = dependence.getDependency();
+			if (!dependency.isFinished()) {
+				dependencyIds.add(dependency.getId());
+				waitingDependents.computeIfAbsent(dependency.getId(), k->new HashSet<>()).add(build.getId());
+			}
+		}
+		unfinishedDependencies.put(build.getId(), dependencyIds);
+	}
+	
+	private void unregisterDependent(Long buildId) {
+		Set<Long> dependencyIds = unfinishedDependencies.remove(buildId);
+		if (dependencyIds != null) {
+			for (Long dependencyId: dependencyIds) {
+				Set<Long> dependents = waitingDependents.get(dependencyId);
+				if (dependents != null) {
+					dependents.remove(buildId);
+					if (dependents.isEmpty())
+						waitingDependents.remove(dependencyId);
+				}
+			}
+		}
+	}
+	
+	private void onDependencyFinished(Long dependencyId, boolean successful) {
+		Set<Long> dependents = waitingDependents.remove(dependencyId);
+		if (dependents != null) {
+			for (Long dependentId: dependents) {
+				Set<Long> dependencyIds = unfinishedDependencies.get(dependentId);
+				if (dependencyIds != null) {
+					dependencyIds.remove(dependencyId);
+					/* 
+					 * Check dependent once its last dependency finishes, or some dependency 
+					 * fails as it might be required to be successful
+					 */
+					if (dependencyIds.isEmpty() || !successful)
+						buildsToCheck.offer(dependentId);
+				}
+			}
+		}
+	}
+	
 	@Listen
 	public void on(BuildSubmitted event) {
 		Build build = event.getBuild();
 		FileUtils.deleteDir(build.getPublishDir());
+		
+		Long buildId = build.getId();
+		transactionManager.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				buildsToCheck.offer(buildId);
+			}
+			
+		});
 	}
 
 	@Transactional
@@ -1224,6 +1387,15 @@ public class DefaultJobManager implements JobManager, Runnable, CodePullAuthoriz
 		Build build = event.getBuild();
 		Long buildId = build.getId();
 
+		transactionManager.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				buildsToCheck.offer(buildId);
+			}
+			
+		});
+
 		sessionManager.runAsyncAfterCommit(new Runnable() {
 
 			@Override
@@ -35,6 +35,10 @@ public class JobExecution {
 		return System.currentTimeMillis() - beginTime > timeout;
 	}
 	
+	public long getDeadline() {
+		return beginTime + timeout;
+	}
+	
 	public void updateBeginTime() {
 		beginTime = System.currentTimeMillis();
 	}
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -228,7 +229,7 @@ public class PullRepository extends SyncRepository {
 	
 	private Map<String, ObjectId> getCommitIds(Project project) {
 		Map<String, ObjectId> commitIds = new HashMap<>();
-		for (RefInfo refInfo: project.getBranchRefInfos()) {
+		for (RefInfo refInfo: project.readRefInfos(Constants.R_HEADS)) {
 			boolean matches = false;
 			for (String pattern: Splitter.on(" ").omitEmptyStrings().trimResults().split(getRefs())) {
 				if (WildcardUtils.matchString(pattern, refInfo.getRef().getName())) {
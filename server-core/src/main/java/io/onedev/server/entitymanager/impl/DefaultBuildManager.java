@@ -32,6 +32,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.MatchMode;
@@ -85,6 +87,7 @@ import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.security.permission.AccessBuild;
 import io.onedev.server.security.permission.JobPermission;
 import io.onedev.server.storage.StorageManager;
+import io.onedev.server.util.BuildIndex;
 import io.onedev.server.util.ProjectBuildStats;
 import io.onedev.server.util.ProjectScopedNumber;
 import io.onedev.server.util.StatusInfo;
@@ -100,6 +103,8 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	
 	private static final int CLEANUP_BATCH = 5000;
 	
+	private static final int LOAD_FETCH_SIZE = 10000;
+	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultBuildManager.class);
 	
 	private final BuildParamManager buildParamManager;
@@ -118,7 +123,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	
 	private final SettingManager settingManager;
 	
-	private final Map<Long, BuildFacade> builds = new HashMap<>();
+	private final BuildIndex builds = new BuildIndex();
 	
 	private final ReadWriteLock buildsLock = new ReentrantReadWriteLock();
 	
@@ -213,7 +218,8 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 			public void run() {
 				buildsLock.writeLock().lock();
 				try {
-					builds.put(facade.getId(), facade);
+					builds.put(facade.getId(), facade.getProjectId(), facade.getNumber(), 
+							ObjectId.fromString(facade.getCommitHash()));
 				} finally {
 					buildsLock.writeLock().unlock();
 				}
@@ -239,11 +245,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 				public void run() {
 					buildsLock.writeLock().lock();
 					try {
-						for (Iterator<Map.Entry<Long, BuildFacade>> it = builds.entrySet().iterator(); it.hasNext();) {
-							BuildFacade build = it.next().getValue();
-							if (build.getProjectId().equals(projectId))
-								it.remove();
-						}
+						builds.removeProject(projectId);
 					} finally {
 						buildsLock.writeLock().unlock();
 					}
@@ -737,18 +739,22 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 		return CronScheduleBuilder.dailyAtHourAndMinute(0, 0);
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Listen
 	public void on(SystemStarted event) {
 		logger.info("Caching build info...");
 		
+		// Scroll the result so that all builds do not need to be held in memory as entity rows
 		Query<?> query = dao.getSession().createQuery("select id, project.id, number, commitHash, jobName from Build");
-		for (Object[] fields: (List<Object[]>)query.list()) {
-			Long buildId = (Long) fields[0];
-			Long projectId = (Long)fields[1];
-			Long buildNumber = (Long) fields[2];
-			builds.put(buildId, new BuildFacade(buildId, projectId, buildNumber, (String)fields[3]));
-			populateJobNames(projectId, (String)fields[4]);
+		query.setFetchSize(LOAD_FETCH_SIZE);
+		try (ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY)) {
+			while (results.next()) {
+				Object[] fields = results.get();
+				Long buildId = (Long) fields[0];
+				Long projectId = (Long)fields[1];
+				Long buildNumber = (Long) fields[2];
+				builds.put(buildId, projectId, buildNumber, ObjectId.fromString((String)fields[3]));
+				populateJobNames(projectId, (String)fields[4]);
+			}
 		}
 		taskId = taskScheduler.schedule(this);
 	}
@@ -835,12 +841,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	public Collection<Long> getNumbersByProject(Long projectId) {
 		buildsLock.readLock().lock();
 		try {
-			Collection<Long> buildNumbers = new HashSet<>();
-			for (BuildFacade build: builds.values()) {
-				if (build.getProjectId().equals(projectId))
-					buildNumbers.add(build.getNumber());
-			}
-			return buildNumbers;
+			return builds.getNumbers(projectId);
 		} finally {
 			buildsLock.readLock().unlock();
 		}
@@ -850,14 +851,7 @@ public class DefaultBuildManager extends BaseEntityManager<Build> implements Bui
 	public Collection<Long> filterNumbers(Long projectId, Collection<String> commitHashes) {
 		buildsLock.readLock().lock();
 		try {
-			Collection<Long> buildNumbers = new HashSet<>();
-			for (BuildFacade build: builds.values()) {
-				if (build.getProjectId().equals(projectId) 
-						&& commitHashes.contains(build.getCommitHash())) {
-					buildNumbers.add(build.getNumber());
-				}
-			}
-			return buildNumbers;
+			return builds.getNumbers(projectId, commitHashes);
 		} finally {
 			buildsLock.readLock().unlock();
 		}
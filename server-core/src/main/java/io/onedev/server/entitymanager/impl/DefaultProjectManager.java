@@ -20,6 +20,7 @@ import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -37,6 +38,7 @@ import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
@@ -100,6 +102,7 @@ import io.onedev.server.search.entity.EntitySort;
 import io.onedev.server.search.entity.EntitySort.Direction;
 import io.onedev.server.search.entity.issue.IssueQueryUpdater;
 import io.onedev.server.search.entity.project.ProjectQuery;
+import io.onedev.server.security.PermissionManager;
 import io.onedev.server.security.SecurityUtils;
 import io.onedev.server.security.permission.AccessProject;
 import io.onedev.server.util.criteria.Criteria;
@@ -143,6 +146,9 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
     
     private final UserAuthorizationManager userAuthorizationManager;
     
+    // Permission manager depends on project manager, use provider to avoid circular dependency
+    private final Provider<PermissionManager> permissionManagerProvider;
+    
     private final String gitReceiveHook;
     
 	private final Map<Long, Repository> repositoryCache = new ConcurrentHashMap<>();
@@ -162,7 +168,7 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
     		SessionManager sessionManager, ListenerRegistry listenerRegistry, 
     		TaskScheduler taskScheduler, UserAuthorizationManager userAuthorizationManager, 
     		RoleManager roleManager, JobManager jobManager, IssueManager issueManager, 
-    		LinkSpecManager linkSpecManager) {
+    		LinkSpecManager linkSpecManager, Provider<PermissionManager> permissionManagerProvider) {
     	super(dao);
     	
         this.commitInfoManager = commitInfoManager;
@@ -178,6 +184,7 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
         this.jobManager = jobManager;
         this.issueManager = issueManager;
         this.linkSpecManager = linkSpecManager;
+        this.permissionManagerProvider = permissionManagerProvider;
         
         try (InputStream is = getClass().getClassLoader().getResourceAsStream("git-receive-hook")) {
         	Preconditions.checkNotNull(is);
@@ -526,11 +533,11 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
         
         List<ImmutableTriple<String, ObjectId, ObjectId>> refUpdatedEventData = new ArrayList<>();
         
-        for (RefInfo refInfo: project.getBranchRefInfos()) {
+        for (RefInfo refInfo: project.readRefInfos(Constants.R_HEADS)) {
         	refUpdatedEventData.add(new ImmutableTriple<>(refInfo.getRef().getName(), 
         			ObjectId.zeroId(), refInfo.getObj().getId().copy()));
         }
-        for (RefInfo refInfo: project.getTagRefInfos()) {
+        for (RefInfo refInfo: project.readRefInfos(Constants.R_TAGS)) {
         	refUpdatedEventData.add(new ImmutableTriple<>(refInfo.getRef().getName(), 
         			ObjectId.zeroId(), refInfo.getPeeledObj().getId().copy()));
         }
@@ -769,6 +776,14 @@ public class DefaultProjectManager extends BaseEntityManager<Project>
 	
 	@Override
 	public Collection<Project> getPermittedProjects(Permission permission) {
+		PermissionManager permissionManager = permissionManagerProvider.get();
+		if (permissionManager.isIndexed(permission)) {
+			User user = SecurityUtils.getUser();
+			Long userId = user != null? user.getId(): 0L;
+			return permissionManager.getPermittedProjectIds(userId, permission).stream()
+					.map(it->load(it)).collect(Collectors.toSet());
+		}
+		
 		ProjectCache cacheClone;
 		cacheLock.readLock().lock();
 		try {
@@ -1,4 +1,4 @@
-package io.onedev.server.web.page.project.branches;
+package io.onedev.server.git;
 
 import java.io.Serializable;
 
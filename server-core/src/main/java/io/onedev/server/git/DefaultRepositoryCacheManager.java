@@ -0,0 +1,238 @@
+package io.onedev.server.git;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import io.onedev.commons.loader.Listen;
+import io.onedev.server.event.RefUpdated;
+
+@Singleton
+public class DefaultRepositoryCacheManager implements RepositoryCacheManager {
+
+	private static final int ENTRY_OVERHEAD = 256;
+
+	// Use at most 1/16 of max heap for cached objects
+	private static final long MAX_WEIGHT = Runtime.getRuntime().maxMemory() / 16;
+
+	private final Cache<Object, Optional<?>> cache = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_WEIGHT)
+			.weigher((Object key, Optional<?> value) -> weigh(value))
+			.recordStats()
+			.build();
+
+	/*
+	 * Ref keyed entries include current ref generation of the project in their keys.
+	 * Increasing the generation invalidates all of them at once, and stale entries
+	 * will be evicted eventually
+	 */
+	private final Map<Long, Long> refGenerations = new ConcurrentHashMap<>();
+
+	@Listen
+	public void on(RefUpdated event) {
+		refGenerations.merge(event.getProject().getId(), 1L, Long::sum);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Optional<ObjectId> getObjectId(Long projectId, String revision,
+			Supplier<Repository> repositorySupplier) {
+		if (ObjectId.isId(revision)) {
+			RevisionKey key = new RevisionKey(projectId, -1, revision);
+			Optional<ObjectId> objectId = (Optional<ObjectId>) cache.getIfPresent(key);
+			if (objectId == null) {
+				objectId = Optional.fromNullable(GitUtils.resolve(repositorySupplier.get(), revision));
+				// Object of specified id may be pushed later
+				if (objectId.isPresent())
+					cache.put(key, objectId);
+			}
+			return objectId;
+		} else if (isRefName(revision)) {
+			// Get generation before resolving so that concurrent ref updates invalidate the entry
+			RevisionKey key = new RevisionKey(projectId, refGenerations.getOrDefault(projectId, 0L), revision);
+			Optional<ObjectId> objectId = (Optional<ObjectId>) cache.getIfPresent(key);
+			if (objectId != null)
+				return objectId;
+			Ref ref = findRef(repositorySupplier.get(), revision);
+			if (ref != null && ref.getObjectId() != null 
+					&& (ref.getName().startsWith(Constants.R_HEADS) || ref.getName().startsWith(Constants.R_TAGS))) {
+				objectId = Optional.of(ref.getObjectId());
+				cache.put(key, objectId);
+				return objectId;
+			}
+		} 
+		return Optional.fromNullable(GitUtils.resolve(repositorySupplier.get(), revision));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Optional<RevCommit> getCommit(Long projectId, ObjectId commitId,
+			Supplier<Optional<RevCommit>> parser) {
+		CommitKey key = new CommitKey(projectId, commitId.copy());
+		Optional<RevCommit> commit = (Optional<RevCommit>) cache.getIfPresent(key);
+		if (commit == null) {
+			commit = parser.get();
+			if (commit.isPresent())
+				cache.put(key, commit);
+		}
+		return commit;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Optional<Blob> getBlob(Long projectId, ObjectId commitId, BlobIdent blobIdent,
+			Supplier<Optional<Blob>> reader) {
+		BlobKey key = new BlobKey(projectId, commitId.copy(), new BlobIdent(blobIdent));
+		Optional<Blob> blob = (Optional<Blob>) cache.getIfPresent(key);
+		if (blob == null) {
+			blob = reader.get();
+			cache.put(key, blob);
+		}
+		return blob;
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/*
+	 * Updates of other refs such as pull request refs are not notified via RefUpdated,
+	 * and revision expressions may depend on them. So only revisions being plain ref 
+	 * names are considered, and they are cached only if resolved to a branch or tag
+	 */
+	private static boolean isRefName(String revision) {
+		if (revision.startsWith(Constants.HEAD) || revision.startsWith(Constants.R_REFS)
+				&& !revision.startsWith(Constants.R_HEADS) && !revision.startsWith(Constants.R_TAGS)) {
+			return false;
+		}
+		for (char ch: revision.toCharArray()) {
+			if (ch == '~' || ch == '^' || ch == ':' || ch == '@' || ch == '{')
+				return false;
+		}
+		return true;
+	}
+
+	@Nullable
+	private static Ref findRef(Repository repository, String revision) {
+		try {
+			return repository.getRefDatabase().findRef(revision);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int weigh(Optional<?> value) {
+		if (value.isPresent()) {
+			Object object = value.get();
+			if (object instanceof Blob)
+				return ENTRY_OVERHEAD + ((Blob) object).getBytes().length;
+			else if (object instanceof RevCommit && ((RevCommit) object).getRawBuffer() != null)
+				return ENTRY_OVERHEAD + ((RevCommit) object).getRawBuffer().length;
+		}
+		return ENTRY_OVERHEAD;
+	}
+
+	private static class RevisionKey {
+
+		final Long projectId;
+
+		final long refGeneration;
+
+		final String revision;
+
+		RevisionKey(Long projectId, long refGeneration, String revision) {
+			this.projectId = projectId;
+			this.refGeneration = refGeneration;
+			this.revision = revision;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RevisionKey))
+				return false;
+			RevisionKey other = (RevisionKey) obj;
+			return projectId.equals(other.projectId) && refGeneration == other.refGeneration
+					&& revision.equals(other.revision);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(projectId, refGeneration, revision);
+		}
+
+	}
+
+	private static class CommitKey {
+
+		final Long projectId;
+
+		final ObjectId commitId;
+
+		CommitKey(Long projectId, ObjectId commitId) {
+			this.projectId = projectId;
+			this.commitId = commitId;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CommitKey))
+				return false;
+			CommitKey other = (CommitKey) obj;
+			return projectId.equals(other.projectId) && commitId.equals(other.commitId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(projectId, commitId);
+		}
+
+	}
+
+	private static class BlobKey {
+
+		final Long projectId;
+
+		final ObjectId commitId;
+
+		final BlobIdent blobIdent;
+
+		BlobKey(Long projectId, ObjectId commitId, BlobIdent blobIdent) {
+			this.projectId = projectId;
+			this.commitId = commitId;
+			this.blobIdent = blobIdent;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BlobKey))
+				return false;
+			BlobKey other = (BlobKey) obj;
+			return projectId.equals(other.projectId) && commitId.equals(other.commitId)
+					&& blobIdent.equals(other.blobIdent);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(projectId, commitId, blobIdent);
+		}
+
+	}
+
+}
@@ -51,6 +51,7 @@ import io.onedev.server.util.OutputStreamWrapper;
 import io.onedev.server.util.ServerConfig;
 import io.onedev.server.util.concurrent.PrioritizedRunnable;
 import io.onedev.server.util.concurrent.WorkExecutor;
+import io.onedev.server.util.concurrent.WorkloadClass;
 
 @Singleton
 public class GitFilter implements Filter {
@@ -184,7 +185,7 @@ public class GitFilter implements Filter {
 		String protocol = request.getHeader("Git-Protocol");		
 		
 		if (upload) {
-			workExecutor.submit(new PrioritizedRunnable(PRIORITY) {
+			workExecutor.submit(WorkloadClass.INTERACTIVE_GIT, new PrioritizedRunnable(PRIORITY) {
 				
 				@Override
 				public void run() {
@@ -217,7 +218,7 @@ public class GitFilter implements Filter {
 				
 			}).get();
 		} else {
-			workExecutor.submit(new PrioritizedRunnable(PRIORITY) {
+			workExecutor.submit(WorkloadClass.INTERACTIVE_GIT, new PrioritizedRunnable(PRIORITY) {
 				
 				@Override
 				public void run() {
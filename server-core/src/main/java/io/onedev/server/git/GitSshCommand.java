@@ -36,6 +36,7 @@ import io.onedev.server.util.InputStreamWrapper;
 import io.onedev.server.util.OutputStreamWrapper;
 import io.onedev.server.util.ServerConfig;
 import io.onedev.server.util.concurrent.WorkExecutor;
+import io.onedev.server.util.concurrent.WorkloadClass;
 import io.onedev.server.util.concurrent.PrioritizedRunnable;
 
 abstract class GitSshCommand implements Command, ServerSessionAware {
@@ -122,7 +123,7 @@ abstract class GitSshCommand implements Command, ServerSessionAware {
         		+ "-" + address.getAddress().getHostAddress();
         
         WorkExecutor workExecutor = OneDev.getInstance(WorkExecutor.class);
-		future = workExecutor.submit(groupId, new PrioritizedRunnable(PRIORITY) {
+		future = workExecutor.submit(WorkloadClass.INTERACTIVE_GIT, groupId, new PrioritizedRunnable(PRIORITY) {
 			
 			@Override
 			public void run() {
@@ -0,0 +1,41 @@
+package io.onedev.server.git;
+
+import java.util.function.Supplier;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Size bounded cache of repository lookups shared by all sessions. Entries keyed by
+ * commit id never become stale, while entries keyed by ref names are invalidated when
+ * refs of the project are updated.
+ */
+public interface RepositoryCacheManager {
+
+	/**
+	 * Get object id of specified revision from cache, or resolve it against specified repository
+	 * if not cached. Revisions other than commit ids, branch names and tag names are always 
+	 * resolved against the repository
+	 */
+	Optional<ObjectId> getObjectId(Long projectId, String revision, Supplier<Repository> repositorySupplier);
+
+	/**
+	 * Get commit of specified id from cache, or parse it with specified parser if not cached
+	 */
+	Optional<RevCommit> getCommit(Long projectId, ObjectId commitId, Supplier<Optional<RevCommit>> parser);
+
+	/**
+	 * Get blob of specified ident from cache, or read it with specified reader if not cached
+	 *
+	 * @param commitId
+	 * 			commit id resolved from revision of the blob ident
+	 */
+	Optional<Blob> getBlob(Long projectId, ObjectId commitId, BlobIdent blobIdent, Supplier<Optional<Blob>> reader);
+
+	CacheStats getStats();
+
+}
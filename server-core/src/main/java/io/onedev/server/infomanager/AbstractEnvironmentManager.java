@@ -45,11 +45,27 @@ public abstract class AbstractEnvironmentManager {
 			versionFromFile = 0;
 		}
 		if (versionFromFile != getEnvVersion()) {
-			FileUtils.cleanDir(versionFile.getParentFile());
+			if (versionFromFile == 0 || !migrate(envDir, versionFromFile))
+				FileUtils.cleanDir(versionFile.getParentFile());
 			FileUtils.writeFile(versionFile, String.valueOf(getEnvVersion()));
 		} 
 	}
 	
+	/**
+	 * Migrate data of specified environment directory in place to current version
+	 * 
+	 * @param envDir
+	 * 			environment directory to migrate
+	 * @param fromVersion
+	 * 			version of the data in environment directory
+	 * @return
+	 * 			<tt>true</tt> if data is migrated successfully, or <tt>false</tt> if data can 
+	 * 			not be migrated and should be cleared
+	 */
+	protected boolean migrate(File envDir, int fromVersion) {
+		return false;
+	}
+	
 	protected void writeVersion(File envDir) {
 		File versionFile = new File(envDir, VERSION_FILE);
 		FileUtils.writeFile(versionFile, String.valueOf(getEnvVersion()));
@@ -63,6 +79,10 @@ public abstract class AbstractEnvironmentManager {
 	
 	protected Environment newEnv(File envDir) {
 		checkVersion(envDir);
+		return openEnv(envDir);
+	}
+	
+	protected Environment openEnv(File envDir) {
 		EnvironmentConfig config = new EnvironmentConfig();
 		config.setEnvCloseForcedly(true);
 		config.setLogAllowRamDisk(true);
@@ -0,0 +1,998 @@
+package io.onedev.server.infomanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Immutable in-memory commit graph of a project. Commits are identified by int index.
+ * Commits of the base graph are indexed by position in the sorted raw commit id array,
+ * and their children and parents are stored in compressed sparse row layout, that is,
+ * children of commit <tt>i</tt> are <tt>children[childOffsets[i]]</tt> to
+ * <tt>children[childOffsets[i+1]-1]</tt>.
+ *
+ * Commits added via {@link #extend(Builder)} are appended after the base graph and indexed
+ * in order of addition, as long as they only add new commits as children of known commits,
+ * which is the case when new commits are pushed. This way extending a graph takes time
+ * proportional to number of added commits. The base graph is rebuilt with all commits once
+ * appended commits exceed a portion of it, or if parents of known commits are changed.
+ *
+ * Each commit is also assigned a generation number, which is 1 for commits without known
+ * parents, and one plus maximum generation of parents otherwise. A commit can not be
+ * ancestor of another commit with lower or equal generation, which is used to prune
+ * ancestor walks.
+ *
+ * To answer reachability queries quickly, commits of the base graph are also labeled with
+ * intervals of a depth first traversal along children: if interval of a commit is nested in
+ * the spanning tree interval of another commit, it is reachable from that commit; and if it
+ * is not nested in the interval covering all descendants of another commit, it is not
+ * reachable from that commit. Appended commits are not labeled, and as they are never
+ * parents of base commits, labels of the base graph remain valid.
+ *
+ * Parents of a commit are only known after the commit is collected. Answers depending on
+ * absence of a path are only reliable for commits with all ancestors collected, see
+ * {@link #isComplete(int)}.
+ */
+public class CommitGraph {
+
+	private static final int ID_LENGTH = Constants.OBJECT_ID_LENGTH;
+
+	private static final byte FLAG_FIRST = 1;
+
+	private static final byte FLAG_SECOND = 2;
+
+	private static final byte FLAG_BOTH = FLAG_FIRST | FLAG_SECOND;
+
+	private static final byte FLAG_QUEUED = 4;
+
+	private static final byte STATE_COLLECTED = 1;
+
+	private static final byte STATE_COMPLETE = 2;
+
+	private static final int MIN_APPEND_CAPACITY = 1024;
+
+	private static final int APPEND_CAPACITY_RATIO = 8;
+
+	public static final CommitGraph EMPTY = new CommitGraph(new byte[0], new BitSet(), new int[0], new int[0]);
+
+	private final byte[] ids;
+
+	private final int baseSize;
+
+	private final BitSet collected;
+
+	private final BitSet complete;
+
+	private final int[] childOffsets;
+
+	private final int[] children;
+
+	private final int[] parentOffsets;
+
+	private final int[] parents;
+
+	private final int[] generations;
+
+	private final int[] preOrders;
+
+	private final int[] postOrders;
+
+	private final int[] lowOrders;
+
+	@Nullable
+	private final Appendix appendix;
+
+	private final int size;
+
+	private final int appendedEdgeCount;
+
+	private final AtomicBoolean extended = new AtomicBoolean(false);
+
+	/**
+	 * @param ids
+	 * 			sorted raw commit ids without duplicates
+	 * @param collected
+	 * 			indexes of commits with parents known
+	 * @param edgeParents
+	 * 			parent indexes of edges
+	 * @param edgeChildren
+	 * 			child indexes of edges. Duplicate edges are allowed and will be removed
+	 */
+	private CommitGraph(byte[] ids, BitSet collected, int[] edgeParents, int[] edgeChildren) {
+		this.ids = ids;
+		this.collected = collected;
+		baseSize = ids.length / ID_LENGTH;
+		size = baseSize;
+		appendix = null;
+		appendedEdgeCount = 0;
+
+		childOffsets = new int[baseSize+1];
+		int[] edgeTargets = new int[edgeParents.length];
+		fill(edgeParents, edgeChildren, childOffsets, edgeTargets);
+		children = dedupe(childOffsets, edgeTargets);
+
+		parentOffsets = new int[baseSize+1];
+		edgeTargets = new int[children.length];
+		int[] dedupedParents = new int[children.length];
+		int[] dedupedChildren = new int[children.length];
+		for (int i=0; i<baseSize; i++) {
+			for (int j=childOffsets[i]; j<childOffsets[i+1]; j++) {
+				dedupedParents[j] = i;
+				dedupedChildren[j] = children[j];
+			}
+		}
+		fill(dedupedChildren, dedupedParents, parentOffsets, edgeTargets);
+		parents = edgeTargets;
+
+		// Calculate generations in topological order
+		generations = new int[baseSize];
+		int[] pendingParents = new int[baseSize];
+		int[] order = new int[baseSize];
+		int head = 0, tail = 0;
+		for (int i=0; i<baseSize; i++) {
+			pendingParents[i] = parentOffsets[i+1] - parentOffsets[i];
+			if (pendingParents[i] == 0) {
+				generations[i] = 1;
+				order[tail++] = i;
+			}
+		}
+		while (head < tail) {
+			int current = order[head++];
+			for (int j=childOffsets[current]; j<childOffsets[current+1]; j++) {
+				int child = children[j];
+				generations[child] = Math.max(generations[child], generations[current]+1);
+				if (--pendingParents[child] == 0)
+					order[tail++] = child;
+			}
+		}
+
+		complete = new BitSet(baseSize);
+		for (int i=0; i<baseSize; i++) {
+			int current = order[i];
+			if (collected.get(current)) {
+				boolean parentsComplete = true;
+				for (int j=parentOffsets[current]; j<parentOffsets[current+1]; j++) {
+					if (!complete.get(parents[j])) {
+						parentsComplete = false;
+						break;
+					}
+				}
+				if (parentsComplete)
+					complete.set(current);
+			}
+		}
+
+		// Label commits via depth first traversal from commits without parents
+		preOrders = new int[baseSize];
+		postOrders = new int[baseSize];
+		int[] cursors = new int[baseSize];
+		int[] stack = new int[16];
+		int preOrder = 0, postOrder = 0;
+		Arrays.fill(preOrders, -1);
+		for (int root=0; root<baseSize; root++) {
+			if (parentOffsets[root] != parentOffsets[root+1])
+				continue;
+			int top = 0;
+			stack[top++] = root;
+			preOrders[root] = preOrder++;
+			cursors[root] = childOffsets[root];
+			while (top != 0) {
+				int current = stack[top-1];
+				if (cursors[current] < childOffsets[current+1]) {
+					int child = children[cursors[current]++];
+					if (preOrders[child] == -1) {
+						preOrders[child] = preOrder++;
+						cursors[child] = childOffsets[child];
+						if (top == stack.length)
+							stack = Arrays.copyOf(stack, top*2);
+						stack[top++] = child;
+					}
+				} else {
+					postOrders[current] = postOrder++;
+					top--;
+				}
+			}
+		}
+
+		lowOrders = new int[baseSize];
+		for (int i=baseSize-1; i>=0; i--) {
+			int current = order[i];
+			int lowOrder = postOrders[current];
+			for (int j=childOffsets[current]; j<childOffsets[current+1]; j++)
+				lowOrder = Math.min(lowOrder, lowOrders[children[j]]);
+			lowOrders[current] = lowOrder;
+		}
+	}
+
+	/*
+	 * Create a new version of specified graph with more appended commits and edges
+	 */
+	private CommitGraph(CommitGraph graph, Appendix appendix, int size, int appendedEdgeCount) {
+		ids = graph.ids;
+		baseSize = graph.baseSize;
+		collected = graph.collected;
+		complete = graph.complete;
+		childOffsets = graph.childOffsets;
+		children = graph.children;
+		parentOffsets = graph.parentOffsets;
+		parents = graph.parents;
+		generations = graph.generations;
+		preOrders = graph.preOrders;
+		postOrders = graph.postOrders;
+		lowOrders = graph.lowOrders;
+		this.appendix = appendix;
+		this.size = size;
+		this.appendedEdgeCount = appendedEdgeCount;
+	}
+
+	/*
+	 * Fill edges into compressed sparse row layout, with edges grouped by their sources
+	 */
+	private void fill(int[] edgeSources, int[] edgeTargets, int[] offsets, int[] targets) {
+		for (int source: edgeSources)
+			offsets[source+1]++;
+		for (int i=0; i<baseSize; i++)
+			offsets[i+1] += offsets[i];
+		int[] positions = Arrays.copyOf(offsets, baseSize);
+		for (int i=0; i<edgeSources.length; i++)
+			targets[positions[edgeSources[i]]++] = edgeTargets[i];
+	}
+
+	private int[] dedupe(int[] offsets, int[] targets) {
+		int count = 0;
+		int from = 0;
+		for (int i=0; i<baseSize; i++) {
+			int to = offsets[i+1];
+			Arrays.sort(targets, from, to);
+			offsets[i] = count;
+			for (int j=from; j<to; j++) {
+				if (j == from || targets[j] != targets[j-1])
+					targets[count++] = targets[j];
+			}
+			from = to;
+		}
+		offsets[baseSize] = count;
+		return count != targets.length? Arrays.copyOf(targets, count): targets;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return
+	 * 			index of specified commit, or <tt>-1</tt> if commit is not in this graph
+	 */
+	public int indexOf(AnyObjectId commitId) {
+		int index = indexOf(ids, commitId);
+		if (index == -1 && appendix != null) {
+			Integer appendedIndex = appendix.indexes.get(commitId);
+			if (appendedIndex != null && appendedIndex < size)
+				index = appendedIndex;
+		}
+		return index;
+	}
+
+	private static int indexOf(byte[] ids, AnyObjectId commitId) {
+		int low = 0;
+		int high = ids.length/ID_LENGTH - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int result = commitId.compareTo(ids, mid*ID_LENGTH);
+			if (result > 0)
+				low = mid + 1;
+			else if (result < 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	public ObjectId getCommitId(int index) {
+		if (index < baseSize)
+			return ObjectId.fromRaw(ids, index*ID_LENGTH);
+		else
+			return ObjectId.fromRaw(appendix.ids, (index-baseSize)*ID_LENGTH);
+	}
+
+	public int getGeneration(int index) {
+		return index < baseSize? generations[index]: appendix.generations[index-baseSize];
+	}
+
+	/**
+	 * @return
+	 * 			<tt>true</tt> if specified commit and all its ancestors are collected, that
+	 * 			is, all ancestors of the commit are known to this graph
+	 */
+	public boolean isComplete(int index) {
+		if (index < baseSize)
+			return complete.get(index);
+		else
+			return (appendix.states[index-baseSize] & STATE_COMPLETE) != 0;
+	}
+
+	private boolean isCollected(int index) {
+		if (index < baseSize)
+			return collected.get(index);
+		else
+			return (appendix.states[index-baseSize] & STATE_COLLECTED) != 0;
+	}
+
+	/*
+	 * Parents of a commit are at positions from parentStart(commit) (inclusive) to
+	 * parentEnd(commit) (exclusive), and can be read via parentAt(commit, position)
+	 */
+	private int parentStart(int commit) {
+		return commit < baseSize? parentOffsets[commit]: appendix.parentOffsets[commit-baseSize];
+	}
+
+	private int parentEnd(int commit) {
+		return commit < baseSize? parentOffsets[commit+1]: appendix.parentOffsets[commit-baseSize+1];
+	}
+
+	private int parentAt(int commit, int position) {
+		return commit < baseSize? parents[position]: appendix.parents[position];
+	}
+
+	private boolean hasParent(int commit, int parent) {
+		for (int j=parentStart(commit); j<parentEnd(commit); j++) {
+			if (parentAt(commit, j) == parent)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Get first appended edge with specified commit as parent, or -1 if there is no such
+	 * edge. Appended edges with same parent are chained via Appendix.nextEdges
+	 */
+	private int firstAppendedChildEdge(int commit) {
+		if (appendix != null) {
+			int head = commit < baseSize? appendix.baseChildHeads.get(commit): appendix.childHeads.get(commit-baseSize);
+			return skipUnknownEdges(head-1);
+		} else {
+			return -1;
+		}
+	}
+
+	private int nextAppendedChildEdge(int edge) {
+		return skipUnknownEdges(appendix.nextEdges[edge]-1);
+	}
+
+	/*
+	 * Chain heads are shared with graphs extended from this graph, skip edges appended
+	 * after this graph is created
+	 */
+	private int skipUnknownEdges(int edge) {
+		while (edge >= appendedEdgeCount)
+			edge = appendix.nextEdges[edge]-1;
+		return edge;
+	}
+
+	/**
+	 * Get indexes of specified commits and all their descendants
+	 */
+	public BitSet getDescendants(BitSet commits) {
+		BitSet visited = (BitSet) commits.clone();
+		int[] stack = new int[Math.max(16, visited.cardinality())];
+		int top = 0;
+		for (int i = visited.nextSetBit(0); i >= 0; i = visited.nextSetBit(i+1))
+			stack[top++] = i;
+		while (top != 0) {
+			int current = stack[--top];
+			if (current < baseSize) {
+				for (int j=childOffsets[current]; j<childOffsets[current+1]; j++) {
+					int child = children[j];
+					if (!visited.get(child)) {
+						visited.set(child);
+						if (top == stack.length)
+							stack = Arrays.copyOf(stack, stack.length*2);
+						stack[top++] = child;
+					}
+				}
+			}
+			for (int edge=firstAppendedChildEdge(current); edge!=-1; edge=nextAppendedChildEdge(edge)) {
+				int child = appendix.edgeChildren[edge];
+				if (!visited.get(child)) {
+					visited.set(child);
+					if (top == stack.length)
+						stack = Arrays.copyOf(stack, stack.length*2);
+					stack[top++] = child;
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Get indexes of specified commits and all their ancestors
+	 */
+	public BitSet getAncestors(BitSet commits) {
+		BitSet visited = (BitSet) commits.clone();
+		int[] stack = new int[Math.max(16, visited.cardinality())];
+		int top = 0;
+		for (int i = visited.nextSetBit(0); i >= 0; i = visited.nextSetBit(i+1))
+			stack[top++] = i;
+		while (top != 0) {
+			int current = stack[--top];
+			for (int j=parentStart(current); j<parentEnd(current); j++) {
+				int parent = parentAt(current, j);
+				if (!visited.get(parent)) {
+					visited.set(parent);
+					if (top == stack.length)
+						stack = Arrays.copyOf(stack, stack.length*2);
+					stack[top++] = parent;
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Check whether or not a commit is ancestor of another commit based on known edges.
+	 * A commit is considered ancestor of itself. Result <tt>false</tt> is only reliable
+	 * if the descendant is {@link #isComplete(int) complete}
+	 */
+	public boolean isAncestor(int ancestor, int descendant) {
+		if (ancestor == descendant)
+			return true;
+		if (!mayReach(ancestor, descendant))
+			return false;
+		if (descendant < baseSize
+				&& preOrders[ancestor] <= preOrders[descendant]
+				&& postOrders[descendant] <= postOrders[ancestor]) {
+			return true;
+		}
+
+		Paints visited = new Paints();
+		visited.set(descendant, FLAG_FIRST);
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = descendant;
+		while (top != 0) {
+			int current = stack[--top];
+			for (int j=parentStart(current); j<parentEnd(current); j++) {
+				int parent = parentAt(current, j);
+				if (parent == ancestor)
+					return true;
+				if (visited.get(parent) == 0 && mayReach(ancestor, parent)) {
+					visited.set(parent, FLAG_FIRST);
+					if (top == stack.length)
+						stack = Arrays.copyOf(stack, top*2);
+					stack[top++] = parent;
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Appended commits are never ancestors of base commits, and intervals are only
+	 * available for base commits
+	 */
+	private boolean mayReach(int from, int to) {
+		if (getGeneration(from) >= getGeneration(to))
+			return false;
+		else if (to < baseSize)
+			return from < baseSize && lowOrders[from] <= lowOrders[to] && postOrders[to] <= postOrders[from];
+		else
+			return true;
+	}
+
+	/**
+	 * Get best common ancestor of specified commits. Result is only reliable if both
+	 * commits are {@link #isComplete(int) complete}
+	 *
+	 * @return
+	 * 			index of common ancestor with highest generation, or <tt>-1</tt> if
+	 * 			specified commits do not have common ancestor
+	 */
+	public int getMergeBase(int commit1, int commit2) {
+		if (isAncestor(commit1, commit2))
+			return commit1;
+		if (isAncestor(commit2, commit1))
+			return commit2;
+
+		Paints paints = new Paints();
+		GenerationQueue queue = new GenerationQueue();
+		paints.set(commit1, FLAG_FIRST);
+		paints.set(commit2, FLAG_SECOND);
+		queue.add(commit1);
+		queue.add(commit2);
+		while (!queue.isEmpty()) {
+			int current = queue.remove();
+			byte paint = paints.get(current);
+			if (paint == FLAG_BOTH)
+				return current;
+			for (int j=parentStart(current); j<parentEnd(current); j++) {
+				int parent = parentAt(current, j);
+				byte parentPaint = paints.get(parent);
+				if (parentPaint == 0)
+					queue.add(parent);
+				paints.set(parent, (byte) (parentPaint | paint));
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Count commits reachable from one commit but not the other. Result is only reliable
+	 * if both commits are {@link #isComplete(int) complete}
+	 *
+	 * @return
+	 * 			array of two elements, first being number of ancestors of <tt>commit1</tt>
+	 * 			not reachable from <tt>commit2</tt>, and second being number of ancestors
+	 * 			of <tt>commit2</tt> not reachable from <tt>commit1</tt>
+	 */
+	public int[] countExclusiveAncestors(int commit1, int commit2) {
+		int[] counts = new int[2];
+		if (commit1 == commit2)
+			return counts;
+
+		/*
+		 * Paint ancestors of both commits in order of descending generation, so that
+		 * paint of a commit is final when it is removed from the queue. Walking stops
+		 * once all queued commits are reachable from both sides
+		 */
+		Paints flags = new Paints();
+		GenerationQueue queue = new GenerationQueue();
+		flags.set(commit1, (byte) (FLAG_FIRST | FLAG_QUEUED));
+		flags.set(commit2, (byte) (FLAG_SECOND | FLAG_QUEUED));
+		queue.add(commit1);
+		queue.add(commit2);
+		int exclusiveQueued = 2;
+		while (exclusiveQueued != 0) {
+			int current = queue.remove();
+			int paint = flags.get(current) & FLAG_BOTH;
+			flags.set(current, (byte) paint);
+			if (paint == FLAG_FIRST) {
+				counts[0]++;
+				exclusiveQueued--;
+			} else if (paint == FLAG_SECOND) {
+				counts[1]++;
+				exclusiveQueued--;
+			}
+			for (int j=parentStart(current); j<parentEnd(current); j++) {
+				int parent = parentAt(current, j);
+				int parentFlags = flags.get(parent);
+				if ((parentFlags & FLAG_QUEUED) == 0) {
+					flags.set(parent, (byte) (paint | FLAG_QUEUED));
+					queue.add(parent);
+					if (paint != FLAG_BOTH)
+						exclusiveQueued++;
+				} else if ((parentFlags & FLAG_BOTH) != FLAG_BOTH) {
+					parentFlags |= paint;
+					flags.set(parent, (byte) parentFlags);
+					if ((parentFlags & FLAG_BOTH) == FLAG_BOTH)
+						exclusiveQueued--;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Create a new graph containing commits and edges of this graph as well as those
+	 * recorded in specified builder. New commits are appended if possible, and the
+	 * graph is rebuilt otherwise
+	 */
+	public CommitGraph extend(Builder builder) {
+		Set<ObjectId> newCommits = new HashSet<>();
+		for (ObjectId commitId: builder.commits) {
+			if (indexOf(commitId) == -1)
+				newCommits.add(commitId);
+		}
+
+		/*
+		 * Known commits should neither be newly collected nor get new parents to append
+		 * new commits, as otherwise generations and labels of known commits change
+		 */
+		boolean appendable = true;
+		for (ObjectId commitId: builder.collectedCommits) {
+			int index = indexOf(commitId);
+			if (index != -1 && !isCollected(index)) {
+				appendable = false;
+				break;
+			}
+		}
+		for (int k=0; appendable && k<builder.edgeCount; k++) {
+			int child = indexOf(builder.edgeChildren[k]);
+			if (child != -1) {
+				int parent = indexOf(builder.edgeParents[k]);
+				if (parent == -1 || !hasParent(child, parent))
+					appendable = false;
+			}
+		}
+
+		if (appendable) {
+			if (newCommits.isEmpty())
+				return this;
+			/*
+			 * Arrays of appended commits are shared with the new graph, so only the
+			 * first extension of a graph can append to them
+			 */
+			if (extended.compareAndSet(false, true)) {
+				CommitGraph graph = append(newCommits, builder);
+				if (graph != null)
+					return graph;
+			}
+		}
+		return rebuild(newCommits, builder);
+	}
+
+	/*
+	 * Append specified new commits in topological order, or return null if there is no
+	 * enough capacity to hold them
+	 */
+	@Nullable
+	private CommitGraph append(Set<ObjectId> newCommits, Builder builder) {
+		Map<ObjectId, Set<ObjectId>> newParents = new HashMap<>();
+		int newEdgeCount = 0;
+		for (int k=0; k<builder.edgeCount; k++) {
+			ObjectId child = builder.edgeChildren[k];
+			if (newCommits.contains(child)) {
+				if (newParents.computeIfAbsent(child, key -> new LinkedHashSet<>()).add(builder.edgeParents[k]))
+					newEdgeCount++;
+			}
+		}
+
+		Appendix appendix = this.appendix;
+		if (appendix == null) {
+			int capacity = Math.max(MIN_APPEND_CAPACITY, baseSize / APPEND_CAPACITY_RATIO);
+			appendix = new Appendix(baseSize, capacity);
+		}
+		int appendedCount = size - baseSize;
+		if (appendedCount + newCommits.size() > appendix.states.length
+				|| appendedEdgeCount + newEdgeCount > appendix.parents.length) {
+			return null;
+		}
+
+		// Order new commits so that new parents come before their children
+		Map<ObjectId, Integer> pendingParents = new HashMap<>();
+		Map<ObjectId, List<ObjectId>> newChildren = new HashMap<>();
+		List<ObjectId> order = new ArrayList<>();
+		for (ObjectId commitId: newCommits) {
+			int pending = 0;
+			for (ObjectId parentId: newParents.getOrDefault(commitId, Collections.emptySet())) {
+				if (newCommits.contains(parentId)) {
+					newChildren.computeIfAbsent(parentId, key -> new ArrayList<>()).add(commitId);
+					pending++;
+				}
+			}
+			if (pending != 0)
+				pendingParents.put(commitId, pending);
+			else
+				order.add(commitId);
+		}
+		for (int i=0; i<order.size(); i++) {
+			for (ObjectId childId: newChildren.getOrDefault(order.get(i), Collections.emptyList())) {
+				if (pendingParents.merge(childId, -1, Integer::sum) == 0)
+					order.add(childId);
+			}
+		}
+		if (order.size() != newCommits.size())
+			return null;
+
+		int edgeCount = appendedEdgeCount;
+		for (ObjectId commitId: order) {
+			int offset = appendedCount++;
+			int index = baseSize + offset;
+			commitId.copyRawTo(appendix.ids, offset*ID_LENGTH);
+
+			boolean collected = builder.collectedCommits.contains(commitId);
+			boolean complete = collected;
+			int generation = 1;
+			for (ObjectId parentId: newParents.getOrDefault(commitId, Collections.emptySet())) {
+				int parent = indexOf(parentId);
+				if (parent == -1)
+					parent = appendix.indexes.get(parentId);
+				generation = Math.max(generation, getGeneration(appendix, parent)+1);
+				complete &= isComplete(appendix, parent);
+
+				int edge = edgeCount++;
+				appendix.parents[edge] = parent;
+				appendix.edgeChildren[edge] = index;
+				if (parent < baseSize) {
+					appendix.nextEdges[edge] = appendix.baseChildHeads.get(parent);
+					appendix.baseChildHeads.set(parent, edge+1);
+				} else {
+					appendix.nextEdges[edge] = appendix.childHeads.get(parent-baseSize);
+					appendix.childHeads.set(parent-baseSize, edge+1);
+				}
+			}
+			appendix.parentOffsets[offset+1] = edgeCount;
+			appendix.generations[offset] = generation;
+			appendix.states[offset] = (byte) ((collected? STATE_COLLECTED: 0) | (complete? STATE_COMPLETE: 0));
+			appendix.indexes.put(commitId, index);
+		}
+		return new CommitGraph(this, appendix, baseSize + appendedCount, edgeCount);
+	}
+
+	/*
+	 * Variants of getGeneration and isComplete also covering commits being appended to
+	 * specified appendix
+	 */
+	private int getGeneration(Appendix appendix, int index) {
+		return index < baseSize? generations[index]: appendix.generations[index-baseSize];
+	}
+
+	private boolean isComplete(Appendix appendix, int index) {
+		if (index < baseSize)
+			return complete.get(index);
+		else
+			return (appendix.states[index-baseSize] & STATE_COMPLETE) != 0;
+	}
+
+	private CommitGraph rebuild(Set<ObjectId> newCommits, Builder builder) {
+		Set<ObjectId> commitsToMerge = new HashSet<>(newCommits);
+		for (int i=baseSize; i<size; i++)
+			commitsToMerge.add(getCommitId(i));
+		ObjectId[] sortedCommitsToMerge = commitsToMerge.toArray(new ObjectId[0]);
+		Arrays.sort(sortedCommitsToMerge);
+
+		// Merge sorted commit ids of base graph and other commits
+		byte[] mergedIds = new byte[ids.length + sortedCommitsToMerge.length*ID_LENGTH];
+		BitSet mergedCollected = new BitSet();
+		int[] remap = new int[size];
+		int i = 0, j = 0, count = 0;
+		while (i < baseSize || j < sortedCommitsToMerge.length) {
+			if (j == sortedCommitsToMerge.length
+					|| i < baseSize && sortedCommitsToMerge[j].compareTo(ids, i*ID_LENGTH) > 0) {
+				System.arraycopy(ids, i*ID_LENGTH, mergedIds, count*ID_LENGTH, ID_LENGTH);
+				if (collected.get(i))
+					mergedCollected.set(count);
+				remap[i++] = count++;
+			} else {
+				sortedCommitsToMerge[j++].copyRawTo(mergedIds, count*ID_LENGTH);
+				count++;
+			}
+		}
+		for (int k=baseSize; k<size; k++) {
+			remap[k] = indexOf(mergedIds, getCommitId(k));
+			if (isCollected(k))
+				mergedCollected.set(remap[k]);
+		}
+		for (ObjectId commitId: builder.collectedCommits)
+			mergedCollected.set(indexOf(mergedIds, commitId));
+
+		int[] edgeParents = new int[children.length + appendedEdgeCount + builder.edgeCount];
+		int[] edgeChildren = new int[edgeParents.length];
+		int edgeIndex = 0;
+		for (int parent=0; parent<baseSize; parent++) {
+			for (int k=childOffsets[parent]; k<childOffsets[parent+1]; k++) {
+				edgeParents[edgeIndex] = remap[parent];
+				edgeChildren[edgeIndex++] = remap[children[k]];
+			}
+		}
+		for (int k=0; k<appendedEdgeCount; k++) {
+			edgeParents[edgeIndex] = remap[appendix.parents[k]];
+			edgeChildren[edgeIndex++] = remap[appendix.edgeChildren[k]];
+		}
+		for (int k=0; k<builder.edgeCount; k++) {
+			edgeParents[edgeIndex] = indexOf(mergedIds, builder.edgeParents[k]);
+			edgeChildren[edgeIndex++] = indexOf(mergedIds, builder.edgeChildren[k]);
+		}
+		return new CommitGraph(mergedIds, mergedCollected, edgeParents, edgeChildren);
+	}
+
+	/*
+	 * Storage of commits appended to a base graph, shared by all graphs extended from the
+	 * base graph. Arrays are allocated with fixed capacity and are only written beyond
+	 * commits and edges of existing graphs, so that existing graphs can read them safely.
+	 * Parents of appended commits are stored in compressed sparse row layout. Appended
+	 * edges with same parent are also chained from the parent, with chain heads updated
+	 * atomically so that existing graphs following the chains see fully written edges
+	 */
+	private static class Appendix {
+
+		final byte[] ids;
+
+		final Map<ObjectId, Integer> indexes = new ConcurrentHashMap<>();
+
+		final byte[] states;
+
+		final int[] generations;
+
+		final int[] parentOffsets;
+
+		final int[] parents;
+
+		final int[] edgeChildren;
+
+		// next edge with same parent plus one, or 0 if there is no next edge
+		final int[] nextEdges;
+
+		// last appended edge with base commit as parent plus one, or 0 if there is no such edge
+		final AtomicIntegerArray baseChildHeads;
+
+		// last appended edge with appended commit as parent plus one, or 0 if there is no such edge
+		final AtomicIntegerArray childHeads;
+
+		Appendix(int baseSize, int capacity) {
+			ids = new byte[capacity*ID_LENGTH];
+			states = new byte[capacity];
+			generations = new int[capacity];
+			parentOffsets = new int[capacity+1];
+			parents = new int[capacity*2];
+			edgeChildren = new int[capacity*2];
+			nextEdges = new int[capacity*2];
+			baseChildHeads = new AtomicIntegerArray(baseSize);
+			childHeads = new AtomicIntegerArray(capacity);
+		}
+
+	}
+
+	/*
+	 * Flags of commits visited by a walk, kept in an open addressing hash table so that
+	 * memory allocated is proportional to number of visited commits instead of graph size
+	 */
+	private static class Paints {
+
+		// commit index plus one, or 0 for empty slot
+		private int[] commits = new int[64];
+
+		private byte[] flags = new byte[64];
+
+		private int count;
+
+		byte get(int commit) {
+			int mask = commits.length - 1;
+			for (int slot = hash(commit) & mask; commits[slot] != 0; slot = (slot+1) & mask) {
+				if (commits[slot] == commit+1)
+					return flags[slot];
+			}
+			return 0;
+		}
+
+		void set(int commit, byte flag) {
+			int mask = commits.length - 1;
+			int slot = hash(commit) & mask;
+			while (commits[slot] != 0) {
+				if (commits[slot] == commit+1) {
+					flags[slot] = flag;
+					return;
+				}
+				slot = (slot+1) & mask;
+			}
+			commits[slot] = commit+1;
+			flags[slot] = flag;
+			if (++count*2 > commits.length)
+				rehash();
+		}
+
+		private void rehash() {
+			int[] oldCommits = commits;
+			byte[] oldFlags = flags;
+			commits = new int[oldCommits.length*2];
+			flags = new byte[oldFlags.length*2];
+			int mask = commits.length - 1;
+			for (int i=0; i<oldCommits.length; i++) {
+				if (oldCommits[i] != 0) {
+					int slot = hash(oldCommits[i]-1) & mask;
+					while (commits[slot] != 0)
+						slot = (slot+1) & mask;
+					commits[slot] = oldCommits[i];
+					flags[slot] = oldFlags[i];
+				}
+			}
+		}
+
+		private static int hash(int commit) {
+			int hash = commit * 0x9E3779B9;
+			return hash ^ (hash >>> 16);
+		}
+
+	}
+
+	/*
+	 * Max heap of commit indexes ordered by generation
+	 */
+	private class GenerationQueue {
+
+		private int[] heap = new int[16];
+
+		private int count;
+
+		void add(int commit) {
+			if (count == heap.length)
+				heap = Arrays.copyOf(heap, count*2);
+			int pos = count++;
+			while (pos != 0) {
+				int parentPos = (pos-1) >>> 1;
+				if (getGeneration(heap[parentPos]) >= getGeneration(commit))
+					break;
+				heap[pos] = heap[parentPos];
+				pos = parentPos;
+			}
+			heap[pos] = commit;
+		}
+
+		int remove() {
+			int result = heap[0];
+			int last = heap[--count];
+			int pos = 0;
+			while (true) {
+				int childPos = pos*2 + 1;
+				if (childPos >= count)
+					break;
+				if (childPos+1 < count && getGeneration(heap[childPos+1]) > getGeneration(heap[childPos]))
+					childPos++;
+				if (getGeneration(heap[childPos]) <= getGeneration(last))
+					break;
+				heap[pos] = heap[childPos];
+				pos = childPos;
+			}
+			heap[pos] = last;
+			return result;
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+	}
+
+	/**
+	 * Record commits and parent/child relations to create or extend a commit graph
+	 */
+	public static class Builder {
+
+		private final Set<ObjectId> commits = new HashSet<>();
+
+		private final Set<ObjectId> collectedCommits = new HashSet<>();
+
+		private ObjectId[] edgeParents = new ObjectId[16];
+
+		private ObjectId[] edgeChildren = new ObjectId[16];
+
+		private int edgeCount;
+
+		/**
+		 * Add a collected commit, that is, a commit with all its parent edges added
+		 */
+		public Builder addCommit(ObjectId commitId) {
+			commits.add(commitId);
+			collectedCommits.add(commitId);
+			return this;
+		}
+
+		public Builder addEdge(ObjectId parentId, ObjectId childId) {
+			commits.add(parentId);
+			commits.add(childId);
+			if (edgeCount == edgeParents.length) {
+				edgeParents = Arrays.copyOf(edgeParents, edgeCount*2);
+				edgeChildren = Arrays.copyOf(edgeChildren, edgeCount*2);
+			}
+			edgeParents[edgeCount] = parentId;
+			edgeChildren[edgeCount++] = childId;
+			return this;
+		}
+
+		public boolean isEmpty() {
+			return commits.isEmpty();
+		}
+
+		public CommitGraph build() {
+			return EMPTY.rebuild(commits, this);
+		}
+
+	}
+
+}
@@ -0,0 +1,319 @@
+package io.onedev.server.infomanager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.LastCommitsOfChildren.Value;
+
+import io.onedev.server.util.NameAndEmail;
+
+/**
+ * Compact binary codec for values stored in commit info environment. Integers are stored
+ * as varints (signed values zigzag encoded), strings are stored as varint length followed
+ * by UTF-8 bytes, and sorted string lists are front coded, that is, each string only
+ * stores its suffix after the prefix shared with previous string.
+ *
+ * First byte of each encoded value is format version of the codec to allow future changes.
+ */
+class CommitInfoCodec {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private CommitInfoCodec() {
+	}
+
+	public static byte[] encodeUser(NameAndEmail user) {
+		Output output = new Output();
+		output.writeString(user.getName());
+		output.writeString(user.getEmailAddress());
+		return output.toByteArray();
+	}
+
+	public static NameAndEmail decodeUser(byte[] bytes) {
+		Input input = new Input(bytes);
+		return new NameAndEmail(input.readString(), input.readString());
+	}
+
+	public static byte[] encodeUsers(Collection<NameAndEmail> users) {
+		Output output = new Output();
+		output.writeVarInt(users.size());
+		for (NameAndEmail user: users) {
+			output.writeString(user.getName());
+			output.writeString(user.getEmailAddress());
+		}
+		return output.toByteArray();
+	}
+
+	public static Set<NameAndEmail> decodeUsers(byte[] bytes) {
+		Input input = new Input(bytes);
+		int count = input.readVarInt();
+		Set<NameAndEmail> users = new HashSet<>();
+		for (int i=0; i<count; i++)
+			users.add(new NameAndEmail(input.readString(), input.readString()));
+		return users;
+	}
+
+	/**
+	 * Encode specified paths with front coding. Paths will be sorted first
+	 */
+	public static byte[] encodePaths(Collection<String> paths) {
+		List<String> sortedPaths = new ArrayList<>(paths);
+		sortedPaths.sort(null);
+		Output output = new Output();
+		output.writeVarInt(sortedPaths.size());
+		byte[] prevBytes = new byte[0];
+		for (String path: sortedPaths) {
+			byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+			int shared = 0;
+			int maxShared = Math.min(prevBytes.length, bytes.length);
+			while (shared < maxShared && prevBytes[shared] == bytes[shared])
+				shared++;
+			output.writeVarInt(shared);
+			output.writeVarInt(bytes.length - shared);
+			output.write(bytes, shared, bytes.length - shared);
+			prevBytes = bytes;
+		}
+		return output.toByteArray();
+	}
+
+	public static Set<String> decodePaths(byte[] bytes) {
+		Input input = new Input(bytes);
+		int count = input.readVarInt();
+		Set<String> paths = new HashSet<>();
+		byte[] prevBytes = new byte[0];
+		for (int i=0; i<count; i++) {
+			int shared = input.readVarInt();
+			int suffixLength = input.readVarInt();
+			byte[] pathBytes = new byte[shared + suffixLength];
+			System.arraycopy(prevBytes, 0, pathBytes, 0, shared);
+			input.read(pathBytes, shared, suffixLength);
+			paths.add(new String(pathBytes, StandardCharsets.UTF_8));
+			prevBytes = pathBytes;
+		}
+		return paths;
+	}
+
+	public static byte[] encodeStrings(List<String> strings) {
+		Output output = new Output();
+		output.writeVarInt(strings.size());
+		for (String string: strings)
+			output.writeString(string);
+		return output.toByteArray();
+	}
+
+	public static List<String> decodeStrings(byte[] bytes) {
+		Input input = new Input(bytes);
+		int count = input.readVarInt();
+		List<String> strings = new ArrayList<>(count);
+		for (int i=0; i<count; i++)
+			strings.add(input.readString());
+		return strings;
+	}
+
+	/**
+	 * Encode line increments of languages on a day
+	 *
+	 * @param lineStatsOnDay
+	 * 			map of language to line increments
+	 * @param languages
+	 * 			language dictionary. Languages not in dictionary will be appended to it
+	 */
+	public static byte[] encodeLineStats(Map<String, Integer> lineStatsOnDay, List<String> languages) {
+		Output output = new Output();
+		output.writeVarInt(lineStatsOnDay.size());
+		for (Map.Entry<String, Integer> entry: lineStatsOnDay.entrySet()) {
+			int languageIndex = languages.indexOf(entry.getKey());
+			if (languageIndex == -1) {
+				languageIndex = languages.size();
+				languages.add(entry.getKey());
+			}
+			output.writeVarInt(languageIndex);
+			output.writeSignedVarInt(entry.getValue());
+		}
+		return output.toByteArray();
+	}
+
+	public static Map<String, Integer> decodeLineStats(byte[] bytes, List<String> languages) {
+		Input input = new Input(bytes);
+		int count = input.readVarInt();
+		Map<String, Integer> lineStatsOnDay = new HashMap<>();
+		for (int i=0; i<count; i++) {
+			String language = languages.get(input.readVarInt());
+			lineStatsOnDay.put(language, input.readSignedVarInt());
+		}
+		return lineStatsOnDay;
+	}
+
+	/**
+	 * Encode last commits of children. Children modified by same commit share a single
+	 * encoded commit value
+	 */
+	public static byte[] encodeLastCommits(Map<String, Value> lastCommits) {
+		Map<ObjectId, Integer> valueIndexes = new HashMap<>();
+		List<Value> values = new ArrayList<>();
+		for (Value value: lastCommits.values()) {
+			if (!valueIndexes.containsKey(value.getId())) {
+				valueIndexes.put(value.getId(), values.size());
+				values.add(value);
+			}
+		}
+
+		Output output = new Output();
+		output.writeVarInt(values.size());
+		byte[] idBytes = new byte[Constants.OBJECT_ID_LENGTH];
+		for (Value value: values) {
+			value.getId().copyRawTo(idBytes, 0);
+			output.write(idBytes, 0, idBytes.length);
+			PersonIdent author = value.getAuthor();
+			output.writeString(author.getName());
+			output.writeString(author.getEmailAddress());
+			output.writeVarLong(author.getWhen().getTime());
+			output.writeSignedVarInt(author.getTimeZoneOffset());
+			output.writeVarLong(value.getCommitDate().getTime());
+			output.writeString(value.getSummary());
+		}
+		output.writeVarInt(lastCommits.size());
+		for (Map.Entry<String, Value> entry: lastCommits.entrySet()) {
+			output.writeString(entry.getKey());
+			output.writeVarInt(valueIndexes.get(entry.getValue().getId()));
+		}
+		return output.toByteArray();
+	}
+
+	public static Map<String, Value> decodeLastCommits(byte[] bytes) {
+		Input input = new Input(bytes);
+		int valueCount = input.readVarInt();
+		List<Value> values = new ArrayList<>(valueCount);
+		byte[] idBytes = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i=0; i<valueCount; i++) {
+			input.read(idBytes, 0, idBytes.length);
+			ObjectId id = ObjectId.fromRaw(idBytes);
+			String name = input.readString();
+			String emailAddress = input.readString();
+			long when = input.readVarLong();
+			int timeZoneOffset = input.readSignedVarInt();
+			PersonIdent author = new PersonIdent(name, emailAddress, when, timeZoneOffset);
+			Date commitDate = new Date(input.readVarLong());
+			values.add(new Value(id, author, commitDate, input.readString()));
+		}
+		int count = input.readVarInt();
+		Map<String, Value> lastCommits = new HashMap<>();
+		for (int i=0; i<count; i++) {
+			String child = input.readString();
+			lastCommits.put(child, values.get(input.readVarInt()));
+		}
+		return lastCommits;
+	}
+
+	static class Output {
+
+		private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		Output() {
+			baos.write(FORMAT_VERSION);
+		}
+
+		void writeVarInt(int value) {
+			while ((value & ~0x7F) != 0) {
+				baos.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			baos.write(value);
+		}
+
+		void writeSignedVarInt(int value) {
+			writeVarInt((value << 1) ^ (value >> 31));
+		}
+
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				baos.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			baos.write((int) value);
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		void write(byte[] bytes, int offset, int length) {
+			baos.write(bytes, offset, length);
+		}
+
+		byte[] toByteArray() {
+			return baos.toByteArray();
+		}
+
+	}
+
+	static class Input {
+
+		private final byte[] bytes;
+
+		private int pos;
+
+		Input(byte[] bytes) {
+			this.bytes = bytes;
+			int version = bytes[pos++];
+			if (version != FORMAT_VERSION)
+				throw new IllegalStateException("Unexpected codec format version: " + version);
+		}
+
+		int readVarInt() {
+			int value = 0;
+			int shift = 0;
+			while (true) {
+				int b = bytes[pos++] & 0xFF;
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+				shift += 7;
+			}
+		}
+
+		int readSignedVarInt() {
+			int value = readVarInt();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			while (true) {
+				int b = bytes[pos++] & 0xFF;
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+				shift += 7;
+			}
+		}
+
+		String readString() {
+			int length = readVarInt();
+			String value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return value;
+		}
+
+		void read(byte[] buffer, int offset, int length) {
+			System.arraycopy(bytes, pos, buffer, offset, length);
+			pos += length;
+		}
+
+	}
+
+}
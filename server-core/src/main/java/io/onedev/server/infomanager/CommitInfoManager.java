@@ -4,8 +4,12 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.LastCommitsOfChildren;
 
+import io.onedev.server.git.AheadBehind;
 import io.onedev.server.git.GitContribution;
 import io.onedev.server.git.GitContributor;
 import io.onedev.server.model.Project;
@@ -38,10 +42,64 @@ public interface CommitInfoManager {
 	 */
 	Collection<ObjectId> getDescendants(Project project, Collection<ObjectId> ancestors);
 	
+	/**
+	 * Check whether or not a commit is merged into another commit. Collected commit graph 
+	 * will be used if possible, and git will be consulted otherwise
+	 * 
+	 * @param project
+	 * 			project containing specified commits
+	 * @param base
+	 * 			base commit
+	 * @param tip
+	 * 			tip commit
+	 * @return
+	 * 			<tt>true</tt> if base commit is ancestor of tip commit or equals to tip commit
+	 */
+	boolean isMergedInto(Project project, ObjectId base, ObjectId tip);
+	
+	/**
+	 * Get merge base of specified commits. Collected commit graph will be used if possible, 
+	 * and git will be consulted otherwise
+	 * 
+	 * @return
+	 * 			merge base of specified commits, or <tt>null</tt> if two commits do not 
+	 * 			have related history
+	 */
+	@Nullable
+	ObjectId getMergeBase(Project project, ObjectId commitId1, ObjectId commitId2);
+	
+	/**
+	 * Get number of commits ahead and behind base commit from collected commit graph
+	 * 
+	 * @return
+	 * 			ahead and behind counts of compare commit against base commit, or <tt>null</tt> 
+	 * 			if commit graph is not able to answer, for instance, when some ancestors 
+	 * 			of specified commits are not collected yet
+	 */
+	@Nullable
+	AheadBehind getAheadBehind(Project project, ObjectId baseCommitId, ObjectId compareCommitId);
+	
 	void cloneInfo(Project from, Project to);
 	
 	Collection<String> getHistoryPaths(Project project, String path);
 	
+	/**
+	 * Get last commits of children under specified directory. Result is answered from index 
+	 * if available, and is calculated and added to index otherwise. Index of recently viewed 
+	 * directories is refreshed in background when default branch is updated
+	 * 
+	 * @param project
+	 * 			project to get last commits for
+	 * @param commitId
+	 * 			get last commits no newer than this commit
+	 * @param path
+	 * 			directory to get last commits of children for, use <tt>null</tt> or empty 
+	 * 			string to refer to repository root
+	 * @return
+	 * 			map of child name to its last commit
+	 */
+	LastCommitsOfChildren getLastCommitsOfChildren(Project project, ObjectId commitId, @Nullable String path);
+	
 	/**
 	 * Get overall contributions
 	 * 
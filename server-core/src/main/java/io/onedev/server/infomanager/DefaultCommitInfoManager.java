@@ -2,10 +2,11 @@ package io.onedev.server.infomanager;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -18,7 +19,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -29,12 +29,16 @@ import javax.inject.Singleton;
 
 import org.apache.commons.lang3.SerializationUtils;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.LastCommitsOfChildren;
+import org.eclipse.jgit.revwalk.LastCommitsOfChildren.Value;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +54,7 @@ import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.event.RefUpdated;
 import io.onedev.server.event.entity.EntityRemoved;
 import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.git.AheadBehind;
 import io.onedev.server.git.GitContribution;
 import io.onedev.server.git.GitContributor;
 import io.onedev.server.git.GitUtils;
@@ -74,12 +79,14 @@ import io.onedev.server.util.Pair;
 import io.onedev.server.util.ProgrammingLanguageDetector;
 import io.onedev.server.util.concurrent.BatchWorkManager;
 import io.onedev.server.util.concurrent.BatchWorker;
+import io.onedev.server.util.concurrent.CoalescableWork;
 import io.onedev.server.util.concurrent.Prioritized;
 import jetbrains.exodus.ArrayByteIterable;
 import jetbrains.exodus.ByteIterable;
 import jetbrains.exodus.backup.BackupStrategy;
 import jetbrains.exodus.backup.BackupStrategy.FileDescriptor;
 import jetbrains.exodus.backup.VirtualFileDescriptor;
+import jetbrains.exodus.env.Cursor;
 import jetbrains.exodus.env.Environment;
 import jetbrains.exodus.env.Store;
 import jetbrains.exodus.env.Transaction;
@@ -91,7 +98,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 
 	private static final Logger logger = LoggerFactory.getLogger(DefaultCommitInfoManager.class);
 	
-	private static final int INFO_VERSION = 15;
+	private static final int INFO_VERSION = 16;
 	
 	private static final long LOG_FILE_SIZE = 256*1024;
 	
@@ -101,6 +108,12 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	
 	private static final int MAX_COMMIT_FILES = 100;
 	
+	private static final int MAX_LAST_COMMITS = 5000;
+	
+	private static final int MAX_REFRESHED_LAST_COMMITS = 100;
+	
+	private static final String LEGACY_LAST_COMMITS_DIR = "last_commits";
+	
 	private static final String INFO_DIR = "commit";
 	
 	private static final String DEFAULT_STORE = "default";
@@ -125,6 +138,12 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	
 	private static final String DAILY_CONTRIBUTIONS_STORE = "dailyContributions";
 	
+	private static final String DAILY_LINE_STATS_STORE = "dailyLineStats";
+	
+	private static final String LAST_COMMITS_STORE = "lastCommits";
+	
+	private static final String LAST_COMMITS_ACCESSES_STORE = "lastCommitsAccesses";
+	
 	private static final ByteIterable NEXT_PATH_INDEX_KEY = new StringByteIterable("nextPathIndex");
 	
 	private static final ByteIterable NEXT_USER_INDEX_KEY = new StringByteIterable("nextUserIndex");
@@ -139,7 +158,11 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	
 	private static final ByteIterable LAST_COMMIT_OF_FILES_KEY = new StringByteIterable("lastCommitOfFiles");
 	
-	private static final ByteIterable LINE_STATS_KEY = new StringByteIterable("lineStats");
+	private static final ByteIterable LAST_COMMIT_OF_LAST_COMMITS_KEY = new StringByteIterable("lastCommitOfLastCommits");
+	
+	private static final ByteIterable LEGACY_LINE_STATS_KEY = new StringByteIterable("lineStats");
+	
+	private static final ByteIterable LANGUAGES_KEY = new StringByteIterable("languages");
 	
 	private static final ByteIterable USERS_KEY = new StringByteIterable("users");
 	
@@ -152,6 +175,9 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	private static final ByteIterable COMMIT_COUNT_KEY = new StringByteIterable("commitCount");
 	
 	private static final int PRIORITY = 100;
+	
+	// Refreshing last commits only speeds up later views, so do it after collecting
+	private static final int REFRESH_LAST_COMMITS_PRIORITY = 200;
 		
 	private final StorageManager storageManager;
 	
@@ -171,6 +197,14 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	
 	private final Map<Long, List<NameAndEmail>> usersCache = new ConcurrentHashMap<>();
 	
+	private final Map<Long, CommitGraph> commitGraphs = new ConcurrentHashMap<>();
+	
+	/*
+	 * Access times of last commits entries are recorded in memory and flushed to 
+	 * store on next prune or refresh, so that index hits do not need write transactions
+	 */
+	private final Map<Long, Map<Pair<ObjectId, String>, Long>> lastCommitsAccesses = new ConcurrentHashMap<>();
+	
 	@Inject
 	public DefaultCommitInfoManager(ProjectManager projectManager, StorageManager storageManager, 
 			BatchWorkManager batchWorkManager, SessionManager sessionManager, 
@@ -237,9 +271,9 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 
 				@Override
 				public void process(ObjectId untilCommitId, ObjectId sinceCommitId) {
+					CommitGraph.Builder graphBuilder = new CommitGraph.Builder();
 					env.executeInTransaction(new TransactionalExecutable() {
 						
-						@SuppressWarnings("unchecked")
 						@Override
 						public void execute(Transaction txn) {
 							AtomicInteger totalCommitCount = new AtomicInteger(readInt(defaultStore, txn, COMMIT_COUNT_KEY, 0));
@@ -254,7 +288,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 							Set<NameAndEmail> users;
 							byte[] userBytes = readBytes(defaultStore, txn, USERS_KEY);
 							if (userBytes != null)
-								users = (Set<NameAndEmail>) SerializationUtils.deserialize(userBytes);
+								users = CommitInfoCodec.decodeUsers(userBytes);
 							else
 								users = new HashSet<>();
 
@@ -298,9 +332,12 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 										}
 										
 										commitsStore.put(txn, currentCommitKey, new ArrayByteIterable(newCurrentCommitBytes));
+										graphBuilder.addCommit(currentCommitId);
 										
 										for (String parentCommitHash: currentCommit.getParentHashes()) {
-											ByteIterable parentCommitKey = new CommitByteIterable(ObjectId.fromString(parentCommitHash));
+											ObjectId parentCommitId = ObjectId.fromString(parentCommitHash);
+											graphBuilder.addEdge(parentCommitId, currentCommitId);
+											ByteIterable parentCommitKey = new CommitByteIterable(parentCommitId);
 											byte[] parentCommitBytes = readBytes(commitsStore, txn, parentCommitKey);
 											byte[] newParentCommitBytes;
 											if (parentCommitBytes != null) {
@@ -343,7 +380,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 											NameAndEmail nameAndEmail = new NameAndEmail(currentCommit.getAuthor());
 											users.add(nameAndEmail);
 											
-											ByteIterable authorKey = new ArrayByteIterable(SerializationUtils.serialize(nameAndEmail));											
+											ByteIterable authorKey = new ArrayByteIterable(CommitInfoCodec.encodeUser(nameAndEmail));
 											int userIndex = readInt(userToIndexStore, txn, authorKey, -1);
 											if (userIndex == -1) {
 												userIndex = nextIndex.user++;
@@ -424,7 +461,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 							writeInt(defaultStore, txn, NEXT_EMAIL_INDEX_KEY, nextIndex.email);
 							writeInt(defaultStore, txn, NEXT_PATH_INDEX_KEY, nextIndex.path);
 							
-							userBytes = SerializationUtils.serialize((Serializable) users);
+							userBytes = CommitInfoCodec.encodeUsers(users);
 							defaultStore.put(txn, USERS_KEY, new ArrayByteIterable(userBytes));
 							usersCache.remove(project.getId());
 							
@@ -434,6 +471,14 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 							defaultStore.put(txn, LAST_COMMIT_KEY, new CommitByteIterable(untilCommitId));
 						}
 					});
+					
+					/*
+					 * Extend loaded commit graph after transaction is committed. Graph loaded 
+					 * concurrently either sees the committed data, or is extended here as 
+					 * loading and extending are serialized via the map 
+					 */
+					if (!graphBuilder.isEmpty())
+						commitGraphs.computeIfPresent(project.getId(), (key, value) -> value.extend(graphBuilder));
 				}
 				
 			});
@@ -443,6 +488,8 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 			collectLineStats(project, commitId);
 			collectContribs(project, commitId);
 			collectFiles(project, commitId);
+			batchWorkManager.submit(getLastCommitsRefresher(project.getId()), 
+					new RefreshingWork(REFRESH_LAST_COMMITS_PRIORITY, commitId));
 		}		
 		
 		logger.debug("Collected commit information (project: {}, ref: {})", project.getPath(), refName);
@@ -524,7 +571,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 
 									if (currentCommit.getAuthor() != null) {
 										NameAndEmail author = new NameAndEmail(currentCommit.getAuthor());
-										ByteIterable authorKey = new ArrayByteIterable(SerializationUtils.serialize(author));											
+										ByteIterable authorKey = new ArrayByteIterable(CommitInfoCodec.encodeUser(author));
 										int userIndex = readInt(userToIndexStore, txn, authorKey, -1);
 										Preconditions.checkState(userIndex != -1);
 
@@ -593,7 +640,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 					ListFilesCommand command = new ListFilesCommand(project.getGitDir());
 					Collection<String> files = command.revision(commitId.name()).call();
 					
-					byte[] bytesOfFiles = SerializationUtils.serialize((Serializable) files);
+					byte[] bytesOfFiles = CommitInfoCodec.encodePaths(files);
 					defaultStore.put(txn, FILES_KEY, new ArrayByteIterable(bytesOfFiles));
 					writeInt(defaultStore, txn, FILE_COUNT_KEY, files.size());
 					defaultStore.put(txn, LAST_COMMIT_OF_FILES_KEY, new CommitByteIterable(commitId));
@@ -604,13 +651,12 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		} else {
 			env.executeInTransaction(new TransactionalExecutable() {
 				
-				@SuppressWarnings("unchecked")
 				@Override
 				public void execute(Transaction txn) {
 					Collection<String> files;
 					byte[] bytesOfFiles = readBytes(defaultStore, txn, FILES_KEY);
 					if (bytesOfFiles != null) 
-						files = (Set<String>) SerializationUtils.deserialize(bytesOfFiles);
+						files = CommitInfoCodec.decodePaths(bytesOfFiles);
 					else 
 						files = new HashSet<>();
 					
@@ -627,7 +673,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 					}
 
 					if (filesChanged) {
-						bytesOfFiles = SerializationUtils.serialize((Serializable) files);
+						bytesOfFiles = CommitInfoCodec.encodePaths(files);
 						defaultStore.put(txn, FILES_KEY, new ArrayByteIterable(bytesOfFiles));
 						writeInt(defaultStore, txn, FILE_COUNT_KEY, files.size());
 						defaultStore.put(txn, LAST_COMMIT_OF_FILES_KEY, new CommitByteIterable(commitId));
@@ -642,6 +688,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	private void collectLineStats(Project project, ObjectId commitId) {
 		Environment env = getEnv(project.getId().toString());
 		Store defaultStore = getStore(env, DEFAULT_STORE);
+		Store dailyLineStatsStore = getStore(env, DAILY_LINE_STATS_STORE);
 		
 		Repository repository = project.getRepository();
 		
@@ -654,7 +701,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 					try {
 						ObjectId lastCommitId = ObjectId.fromRaw(lastCommitBytes);
 						if (repository.getObjectDatabase().has(lastCommitId) 
-								&& GitUtils.isMergedInto(repository, null, lastCommitId, commitId)) {
+								&& isMergedInto(project, lastCommitId, commitId)) {
 							return lastCommitId;
 						}
 					} catch (IOException e) {
@@ -701,8 +748,11 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 						
 					}.pump();
 					
-					byte[] bytesOfLineStats = SerializationUtils.serialize((Serializable) lineStats);
-					defaultStore.put(txn, LINE_STATS_KEY, new ArrayByteIterable(bytesOfLineStats));
+					try (Cursor cursor = dailyLineStatsStore.openCursor(txn)) {
+						while (cursor.getNext())
+							cursor.deleteCurrent();
+					}
+					writeLineStats(defaultStore, dailyLineStatsStore, txn, lineStats, new ArrayList<>());
 					
 					defaultStore.put(txn, LAST_COMMIT_OF_LINE_STATS_KEY, new CommitByteIterable(commitId));
 				}
@@ -711,28 +761,24 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		} else {
 			env.executeInTransaction(new TransactionalExecutable() {
 				
-				@SuppressWarnings("unchecked")
 				@Override
 				public void execute(Transaction txn) {
-					Map<Integer, Map<String, Integer>> lineStats;
-					byte[] bytesOfLineStats = readBytes(defaultStore, txn, LINE_STATS_KEY);
-					if (bytesOfLineStats != null) {
-						lineStats = (Map<Integer, Map<String, Integer>>) SerializationUtils.deserialize(
-								bytesOfLineStats);
-					} else {
-						lineStats = new HashMap<>();
-					}
-					
 					ListNumStatsCommand command = new ListNumStatsCommand(project.getGitDir());
 					List<FileChange> fileChanges = command.fromRev(lastCommitId.name()).toRev(commitId.name()).call();
 					RevCommit revCommit = project.getRevCommit(commitId, true);
 					GitCommit gitCommit = new GitCommit(revCommit.name(), null, null, revCommit.getAuthorIdent(), 
 							revCommit.getCommitterIdent().getWhen(), null, null, fileChanges);
 					
+					// Only load and write back line stats of the day affected by this commit
+					List<String> languages = readLanguages(defaultStore, txn);
+					Map<Integer, Map<String, Integer>> lineStats = new HashMap<>();
+					int dayValue = new Day(gitCommit.getCommitDate()).getValue();
+					byte[] bytesOfLineStats = readBytes(dailyLineStatsStore, txn, new IntByteIterable(dayValue));
+					if (bytesOfLineStats != null) 
+						lineStats.put(dayValue, CommitInfoCodec.decodeLineStats(bytesOfLineStats, languages));
+					
 					updateLineStats(txn, gitCommit, lineStats);
-
-					bytesOfLineStats = SerializationUtils.serialize((Serializable) lineStats);
-					defaultStore.put(txn, LINE_STATS_KEY, new ArrayByteIterable(bytesOfLineStats));
+					writeLineStats(defaultStore, dailyLineStatsStore, txn, lineStats, languages);
 					
 					defaultStore.put(txn, LAST_COMMIT_OF_LINE_STATS_KEY, new CommitByteIterable(commitId));
 				}
@@ -794,6 +840,26 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		}		
 	}
 		
+	private List<String> readLanguages(Store defaultStore, Transaction txn) {
+		byte[] bytes = readBytes(defaultStore, txn, LANGUAGES_KEY);
+		if (bytes != null)
+			return CommitInfoCodec.decodeStrings(bytes);
+		else
+			return new ArrayList<>();
+	}
+	
+	private void writeLineStats(Store defaultStore, Store dailyLineStatsStore, Transaction txn, 
+			Map<Integer, Map<String, Integer>> lineStats, List<String> languages) {
+		int languageCount = languages.size();
+		for (Map.Entry<Integer, Map<String, Integer>> entry: lineStats.entrySet()) {
+			byte[] bytesOfLineStatsOnDay = CommitInfoCodec.encodeLineStats(entry.getValue(), languages);
+			dailyLineStatsStore.put(txn, new IntByteIterable(entry.getKey()), 
+					new ArrayByteIterable(bytesOfLineStatsOnDay));
+		}
+		if (languages.size() != languageCount || readBytes(defaultStore, txn, LANGUAGES_KEY) == null) 
+			defaultStore.put(txn, LANGUAGES_KEY, new ArrayByteIterable(CommitInfoCodec.encodeStrings(languages)));
+	}
+	
 	private void updateLineStats(Transaction txn, GitCommit currentCommit, Map<Integer, Map<String, Integer>> lineStats) {		
 		int dayValue = new Day(currentCommit.getCommitDate()).getValue();
 		
@@ -858,13 +924,11 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 
 			users = env.computeInReadonlyTransaction(new TransactionalComputable<List<NameAndEmail>>() {
 
-				@SuppressWarnings("unchecked")
 				@Override
 				public List<NameAndEmail> compute(Transaction txn) {
 					byte[] bytes = readBytes(store, txn, USERS_KEY);
 					if (bytes != null) { 
-						List<NameAndEmail> users = 
-								new ArrayList<>((Set<NameAndEmail>) SerializationUtils.deserialize(bytes));
+						List<NameAndEmail> users = new ArrayList<>(CommitInfoCodec.decodeUsers(bytes));
 						Collections.sort(users);
 						return users;
 					} else { 
@@ -887,12 +951,11 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 
 			files = env.computeInReadonlyTransaction(new TransactionalComputable<List<String>>() {
 
-				@SuppressWarnings("unchecked")
 				@Override
 				public List<String> compute(Transaction txn) {
 					byte[] bytes = readBytes(store, txn, FILES_KEY);
 					if (bytes != null) {
-						List<String> files = new ArrayList<>((Collection<String>)SerializationUtils.deserialize(bytes));
+						List<String> files = new ArrayList<>(CommitInfoCodec.decodePaths(bytes));
 						Map<String, List<String>> segmentsMap = new HashMap<>();
 						Splitter splitter = Splitter.on("/");
 						for (String file: files) 
@@ -919,21 +982,24 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 	@Override
 	public Map<Day, Map<String, Integer>> getLineIncrements(Project project) {
 		Environment env = getEnv(project.getId().toString());
-		Store store = getStore(env, DEFAULT_STORE);
+		Store defaultStore = getStore(env, DEFAULT_STORE);
+		Store dailyLineStatsStore = getStore(env, DAILY_LINE_STATS_STORE);
 
 		return env.computeInReadonlyTransaction(new TransactionalComputable<Map<Day, Map<String, Integer>>>() {
 
 			@Override
 			public Map<Day, Map<String, Integer>> compute(Transaction txn) {
 				Map<Day, Map<String, Integer>> lineIncrements = new HashMap<>();
-				byte[] bytes = readBytes(store, txn, LINE_STATS_KEY);
-				if (bytes != null) {
-					@SuppressWarnings("unchecked")
-					Map<Integer, Map<String, Integer>> storedMap = 
-							(Map<Integer, Map<String, Integer>>) SerializationUtils.deserialize(bytes);
-					for (Map.Entry<Integer, Map<String, Integer>> entry: storedMap.entrySet())
-						lineIncrements.put(new Day(entry.getKey()), entry.getValue());
-				} 
+				List<String> languages = readLanguages(defaultStore, txn);
+				try (Cursor cursor = dailyLineStatsStore.openCursor(txn)) {
+					while (cursor.getNext()) {
+						ByteIterable key = cursor.getKey();
+						int dayValue = ByteBuffer.wrap(key.getBytesUnsafe(), 0, key.getLength()).getInt();
+						ByteIterable value = cursor.getValue();
+						byte[] bytes = Arrays.copyOf(value.getBytesUnsafe(), value.getLength());
+						lineIncrements.put(new Day(dayValue), CommitInfoCodec.decodeLineStats(bytes, languages));
+					}
+				}
 				return lineIncrements;
 			}
 			
@@ -980,51 +1046,98 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		});
 	}
 	
-	@Override
-	public Collection<ObjectId> getDescendants(Project project, Collection<ObjectId> ancestors) {
-		Environment env = getEnv(project.getId().toString());
-		final Store store = getStore(env, COMMITS_STORE);
-
-		return env.computeInReadonlyTransaction(new TransactionalComputable<Set<ObjectId>>() {
+	private CommitGraph getCommitGraph(Project project) {
+		return commitGraphs.computeIfAbsent(project.getId(), key -> loadCommitGraph(key));
+	}
+	
+	private CommitGraph loadCommitGraph(Long projectId) {
+		Environment env = getEnv(projectId.toString());
+		Store store = getStore(env, COMMITS_STORE);
+		
+		return env.computeInReadonlyTransaction(new TransactionalComputable<CommitGraph>() {
 
 			@Override
-			public Set<ObjectId> compute(Transaction txn) {
-				Set<ObjectId> descendants = new HashSet<>();
-				
-				// Use stack instead of recursion to avoid StackOverflowException
-				Stack<ObjectId> stack = new Stack<>();
-				descendants.addAll(ancestors);
-				stack.addAll(ancestors);
-				while (!stack.isEmpty()) {
-					ObjectId current = stack.pop();
-					byte[] valueBytes = readBytes(store, txn, new CommitByteIterable(current));
-					if (valueBytes != null) {
-						if (valueBytes.length % 20 == 0) {
-							for (int i=0; i<valueBytes.length/20; i++) {
-								ObjectId child = ObjectId.fromRaw(valueBytes, i*20);
-								if (!descendants.contains(child)) {
-									descendants.add(child);
-									stack.push(child);
-								}
-							}
-						} else { 
-							for (int i=0; i<(valueBytes.length-1)/20; i++) {
-								ObjectId child = ObjectId.fromRaw(valueBytes, i*20+1);
-								if (!descendants.contains(child)) {
-									descendants.add(child);
-									stack.push(child);
-								}
-							}
-						}
+			public CommitGraph compute(Transaction txn) {
+				CommitGraph.Builder builder = new CommitGraph.Builder();
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						ByteIterable key = cursor.getKey();
+						ObjectId commitId = ObjectId.fromRaw(key.getBytesUnsafe());
+						
+						ByteIterable value = cursor.getValue();
+						byte[] valueBytes = value.getBytesUnsafe();
+						int length = value.getLength();
+						if (length % 20 != 0)
+							builder.addCommit(commitId);
+						for (int pos = length % 20; pos < length; pos += 20)
+							builder.addEdge(commitId, ObjectId.fromRaw(valueBytes, pos));
 					}
 				}
-				
-				return descendants;
+				return builder.build();
 			}
 			
 		});
 	}
+	
+	@Override
+	public Collection<ObjectId> getDescendants(Project project, Collection<ObjectId> ancestors) {
+		CommitGraph graph = getCommitGraph(project);
+		
+		Set<ObjectId> descendants = new HashSet<>(ancestors);
+		BitSet ancestorIndexes = new BitSet();
+		for (ObjectId ancestor: ancestors) {
+			int index = graph.indexOf(ancestor);
+			if (index != -1)
+				ancestorIndexes.set(index);
+		}
+		BitSet descendantIndexes = graph.getDescendants(ancestorIndexes);
+		for (int i = descendantIndexes.nextSetBit(0); i >= 0; i = descendantIndexes.nextSetBit(i+1))
+			descendants.add(graph.getCommitId(i));
+		return descendants;
+	}
+
+	@Override
+	public boolean isMergedInto(Project project, ObjectId base, ObjectId tip) {
+		CommitGraph graph = getCommitGraph(project);
+		int baseIndex = graph.indexOf(base);
+		int tipIndex = graph.indexOf(tip);
+		if (baseIndex != -1 && tipIndex != -1) {
+			if (graph.isAncestor(baseIndex, tipIndex))
+				return true;
+			else if (graph.isComplete(tipIndex))
+				return false;
+		}
+		return GitUtils.isMergedInto(project.getRepository(), null, base, tip);
+	}
 
+	@Nullable
+	@Override
+	public ObjectId getMergeBase(Project project, ObjectId commitId1, ObjectId commitId2) {
+		CommitGraph graph = getCommitGraph(project);
+		int index1 = graph.indexOf(commitId1);
+		int index2 = graph.indexOf(commitId2);
+		if (index1 != -1 && index2 != -1 && graph.isComplete(index1) && graph.isComplete(index2)) {
+			int mergeBaseIndex = graph.getMergeBase(index1, index2);
+			return mergeBaseIndex != -1? graph.getCommitId(mergeBaseIndex): null;
+		} else {
+			return GitUtils.getMergeBase(project.getRepository(), commitId1, commitId2);
+		}
+	}
+
+	@Nullable
+	@Override
+	public AheadBehind getAheadBehind(Project project, ObjectId baseCommitId, ObjectId compareCommitId) {
+		CommitGraph graph = getCommitGraph(project);
+		int baseIndex = graph.indexOf(baseCommitId);
+		int compareIndex = graph.indexOf(compareCommitId);
+		if (baseIndex != -1 && compareIndex != -1 && graph.isComplete(baseIndex) && graph.isComplete(compareIndex)) {
+			int[] counts = graph.countExclusiveAncestors(compareIndex, baseIndex);
+			return new AheadBehind(counts[0], counts[1]);
+		} else {
+			return null;
+		}
+	}
+	
 	@Listen
 	public void on(EntityRemoved event) {
 		if (event.getEntity() instanceof Project) {
@@ -1033,6 +1146,8 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 			filesCache.remove(projectId);
 			totalCommitCountCache.remove(projectId);
 			usersCache.remove(projectId);
+			commitGraphs.remove(projectId);
+			lastCommitsAccesses.remove(projectId);
 		}
 	}
 	
@@ -1061,6 +1176,26 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		};		
 	}
 	
+	private BatchWorker getLastCommitsRefresher(Long projectId) {
+		return new BatchWorker("project-" + projectId + "-refreshLastCommits") {
+
+			@Override
+			public void doWorks(Collection<Prioritized> works) {
+				sessionManager.run(new Runnable() {
+
+					@Override
+					public void run() {
+						Project project = projectManager.load(projectId);
+						for (Object work: works)
+							refreshLastCommits(project, ((RefreshingWork)work).getCommitId());
+					}
+					
+				});
+			}
+			
+		};		
+	}
+	
 	private void collect(Project project) {
 		List<CollectingWork> works = new ArrayList<>();
 		try (RevWalk revWalk = new RevWalk(project.getRepository())) {
@@ -1148,7 +1283,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		return fileCount;
 	}
 	
-	static class CollectingWork extends Prioritized {
+	static class CollectingWork extends Prioritized implements CoalescableWork {
 		
 		private final String refName;
 		
@@ -1168,6 +1303,39 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 			return refName;
 		}
 
+		/*
+		 * Collecting latest commit of a ref also collects its ancestors, so earlier 
+		 * queued works of the same ref are redundant
+		 */
+		@Override
+		public Object getCoalescingKey() {
+			return refName;
+		}
+		
+	}
+	
+	static class RefreshingWork extends Prioritized implements CoalescableWork {
+		
+		private final ObjectId commitId;
+		
+		public RefreshingWork(int priority, ObjectId commitId) {
+			super(priority);
+			this.commitId = commitId;
+		}
+
+		public ObjectId getCommitId() {
+			return commitId;
+		}
+
+		/*
+		 * Refreshing at latest commit of default branch makes earlier queued 
+		 * refreshes redundant
+		 */
+		@Override
+		public Object getCoalescingKey() {
+			return LAST_COMMITS_STORE;
+		}
+		
 	}
 	
 	static class CommitTimeComparator implements Comparator<CollectingWork> {
@@ -1194,6 +1362,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 				backupStrategy.afterBackup();
 			}
 			writeVersion(getEnvDir(target.getId().toString()));
+			commitGraphs.remove(target.getId());
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -1261,6 +1430,218 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		});
 	}
 	
+	private static ByteIterable getLastCommitsKey(ObjectId commitId, String path) {
+		byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+		byte[] keyBytes = new byte[Constants.OBJECT_ID_LENGTH + pathBytes.length];
+		commitId.copyRawTo(keyBytes, 0);
+		System.arraycopy(pathBytes, 0, keyBytes, Constants.OBJECT_ID_LENGTH, pathBytes.length);
+		return new ArrayByteIterable(keyBytes);
+	}
+	
+	@Override
+	public LastCommitsOfChildren getLastCommitsOfChildren(Project project, ObjectId commitId, 
+			@Nullable String path) {
+		String normalizedPath = GitUtils.normalizePath(path);
+		String treePath = normalizedPath != null? normalizedPath: "";
+		ObjectId treeCommitId = commitId.copy();
+		
+		Environment env = getEnv(project.getId().toString());
+		Store lastCommitsStore = getStore(env, LAST_COMMITS_STORE);
+		
+		long accessTime = System.currentTimeMillis();
+		Map<Pair<ObjectId, String>, Long> accesses = 
+				lastCommitsAccesses.computeIfAbsent(project.getId(), key -> new ConcurrentHashMap<>());
+		if (accesses.size() < MAX_LAST_COMMITS)
+			accesses.put(new Pair<>(treeCommitId, treePath), accessTime);
+		
+		byte[] bytes = env.computeInReadonlyTransaction(new TransactionalComputable<byte[]>() {
+
+			@Override
+			public byte[] compute(Transaction txn) {
+				return readBytes(lastCommitsStore, txn, getLastCommitsKey(treeCommitId, treePath));
+			}
+			
+		});
+		if (bytes != null)
+			return new LastCommitsOfChildren(CommitInfoCodec.decodeLastCommits(bytes));
+		else
+			return calcLastCommitsOfChildren(project, treeCommitId, treePath, accessTime, null);
+	}
+	
+	/*
+	 * Calculate last commits of children and add to index, pruning least recently accessed 
+	 * entries if index grows too large. Indexed last commits of same path at ancestor commits 
+	 * are used to complement the calculation
+	 * 
+	 * @param supersededCommitId
+	 * 			if not null, entry of same path at this commit will be removed from index as it
+	 * 			is superseded by the calculated one
+	 */
+	private LastCommitsOfChildren calcLastCommitsOfChildren(Project project, ObjectId commitId, 
+			String path, long accessTime, @Nullable ObjectId supersededCommitId) {
+		Environment env = getEnv(project.getId().toString());
+		Store lastCommitsStore = getStore(env, LAST_COMMITS_STORE);
+		Store lastCommitsAccessesStore = getStore(env, LAST_COMMITS_ACCESSES_STORE);
+		
+		LastCommitsOfChildren lastCommits;
+		Transaction readTxn = env.beginReadonlyTransaction();
+		try {
+			lastCommits = new LastCommitsOfChildren(project.getRepository(), commitId, path, 
+					new LastCommitsOfChildren.Cache() {
+
+				@Override
+				public Map<String, Value> getLastCommitsOfChildren(ObjectId ancestorId) {
+					byte[] bytes = readBytes(lastCommitsStore, readTxn, getLastCommitsKey(ancestorId, path));
+					return bytes != null? CommitInfoCodec.decodeLastCommits(bytes): null;
+				}
+				
+			});
+		} finally {
+			readTxn.abort();
+		}
+		
+		byte[] bytes = CommitInfoCodec.encodeLastCommits(lastCommits);
+		env.executeInTransaction(new TransactionalExecutable() {
+			
+			@Override
+			public void execute(Transaction txn) {
+				ByteIterable key = getLastCommitsKey(commitId, path);
+				lastCommitsStore.put(txn, key, new ArrayByteIterable(bytes));
+				writeLong(lastCommitsAccessesStore, txn, key, accessTime);
+				if (supersededCommitId != null) {
+					ByteIterable supersededKey = getLastCommitsKey(supersededCommitId, path);
+					lastCommitsStore.delete(txn, supersededKey);
+					lastCommitsAccessesStore.delete(txn, supersededKey);
+				}
+				if (lastCommitsAccessesStore.count(txn) > MAX_LAST_COMMITS)
+					pruneLastCommits(project.getId(), txn, lastCommitsStore, lastCommitsAccessesStore);
+			}
+			
+		});
+		return lastCommits;
+	}
+	
+	private void flushLastCommitsAccesses(Long projectId, Transaction txn, 
+			Store lastCommitsStore, Store lastCommitsAccessesStore) {
+		Map<Pair<ObjectId, String>, Long> accesses = lastCommitsAccesses.remove(projectId);
+		if (accesses != null) {
+			for (Map.Entry<Pair<ObjectId, String>, Long> entry: accesses.entrySet()) {
+				ByteIterable key = getLastCommitsKey(entry.getKey().getFirst(), entry.getKey().getSecond());
+				if (lastCommitsStore.get(txn, key) != null 
+						&& readLong(lastCommitsAccessesStore, txn, key, 0) < entry.getValue()) {
+					writeLong(lastCommitsAccessesStore, txn, key, entry.getValue());
+				}
+			}
+		}
+	}
+	
+	private List<Pair<byte[], Long>> readLastCommitsAccesses(Transaction txn, Store lastCommitsAccessesStore) {
+		List<Pair<byte[], Long>> entries = new ArrayList<>();
+		try (Cursor cursor = lastCommitsAccessesStore.openCursor(txn)) {
+			while (cursor.getNext()) {
+				ByteIterable key = cursor.getKey();
+				byte[] keyBytes = Arrays.copyOf(key.getBytesUnsafe(), key.getLength());
+				long accessTime = ByteBuffer.wrap(cursor.getValue().getBytesUnsafe(), 0, Long.BYTES).getLong();
+				entries.add(new Pair<>(keyBytes, accessTime));
+			}
+		}
+		return entries;
+	}
+	
+	/*
+	 * Access times recorded in memory are flushed first so that recently accessed entries 
+	 * are not pruned. Index is pruned to 90% of max size to avoid pruning on every write
+	 */
+	private void pruneLastCommits(Long projectId, Transaction txn, Store lastCommitsStore, 
+			Store lastCommitsAccessesStore) {
+		flushLastCommitsAccesses(projectId, txn, lastCommitsStore, lastCommitsAccessesStore);
+		List<Pair<byte[], Long>> entries = readLastCommitsAccesses(txn, lastCommitsAccessesStore);
+		int keepCount = MAX_LAST_COMMITS * 9 / 10;
+		if (entries.size() > keepCount) {
+			entries.sort(Comparator.comparing(Pair::getSecond));
+			for (Pair<byte[], Long> entry: entries.subList(0, entries.size() - keepCount)) {
+				ByteIterable key = new ArrayByteIterable(entry.getFirst());
+				lastCommitsStore.delete(txn, key);
+				lastCommitsAccessesStore.delete(txn, key);
+			}
+		}
+	}
+	
+	/*
+	 * Index last commits of most recently accessed directories at new commit of default 
+	 * branch, so that they can be answered from index when viewed again. Indexed last 
+	 * commits at previous commit of default branch are used to complement the calculation 
+	 * so that only new commits are walked, and are then removed as they are superseded
+	 */
+	private void refreshLastCommits(Project project, ObjectId commitId) {
+		Long projectId = project.getId();
+		File legacyDir = new File(storageManager.getProjectInfoDir(projectId), LEGACY_LAST_COMMITS_DIR);
+		if (legacyDir.exists())
+			FileUtils.deleteDir(legacyDir);
+		
+		Environment env = getEnv(projectId.toString());
+		Store defaultStore = getStore(env, DEFAULT_STORE);
+		Store lastCommitsStore = getStore(env, LAST_COMMITS_STORE);
+		Store lastCommitsAccessesStore = getStore(env, LAST_COMMITS_ACCESSES_STORE);
+		
+		Map<String, Long> pathAccesses = new HashMap<>();
+		ObjectId prevCommitId = env.computeInTransaction(new TransactionalComputable<ObjectId>() {
+			
+			@Override
+			public ObjectId compute(Transaction txn) {
+				flushLastCommitsAccesses(projectId, txn, lastCommitsStore, lastCommitsAccessesStore);
+				for (Pair<byte[], Long> entry: readLastCommitsAccesses(txn, lastCommitsAccessesStore)) {
+					byte[] keyBytes = entry.getFirst();
+					String path = new String(keyBytes, Constants.OBJECT_ID_LENGTH, 
+							keyBytes.length - Constants.OBJECT_ID_LENGTH, StandardCharsets.UTF_8);
+					pathAccesses.merge(path, entry.getSecond(), Math::max);
+				}
+				byte[] prevCommitBytes = readBytes(defaultStore, txn, LAST_COMMIT_OF_LAST_COMMITS_KEY);
+				defaultStore.put(txn, LAST_COMMIT_OF_LAST_COMMITS_KEY, new CommitByteIterable(commitId));
+				return prevCommitBytes != null? ObjectId.fromRaw(prevCommitBytes): null;
+			}
+			
+		});
+		
+		if (commitId.equals(prevCommitId))
+			return;
+		
+		List<Map.Entry<String, Long>> recentPathAccesses = new ArrayList<>(pathAccesses.entrySet());
+		recentPathAccesses.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+		if (recentPathAccesses.size() > MAX_REFRESHED_LAST_COMMITS)
+			recentPathAccesses = recentPathAccesses.subList(0, MAX_REFRESHED_LAST_COMMITS);
+		
+		Repository repository = project.getRepository();
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			RevCommit commit = revWalk.parseCommit(commitId);
+			for (Map.Entry<String, Long> entry: recentPathAccesses) {
+				String path = entry.getKey();
+				boolean indexed = env.computeInReadonlyTransaction(new TransactionalComputable<Boolean>() {
+
+					@Override
+					public Boolean compute(Transaction txn) {
+						return lastCommitsStore.get(txn, getLastCommitsKey(commitId, path)) != null;
+					}
+					
+				});
+				if (!indexed && isTree(repository, commit, path)) 
+					calcLastCommitsOfChildren(project, commitId, path, entry.getValue(), prevCommitId);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private boolean isTree(Repository repository, RevCommit commit, String path) throws IOException {
+		if (path.length() != 0) {
+			try (TreeWalk treeWalk = TreeWalk.forPath(repository, path, commit.getTree())) {
+				return treeWalk != null && FileMode.TREE.equals(treeWalk.getFileMode(0));
+			}
+		} else {
+			return true;
+		}
+	}
+	
 	@Sessional
 	@Override
 	public Map<Day, GitContribution> getOverallContributions(Project project) {
@@ -1300,7 +1681,7 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 				if (userOpt == null) {
 					byte[] userBytes = readBytes(indexToUserStore, txn, new IntByteIterable(userIndex));
 					if (userBytes != null) { 
-						NameAndEmail user = (NameAndEmail) SerializationUtils.deserialize(userBytes);
+						NameAndEmail user = CommitInfoCodec.decodeUser(userBytes);
 						EmailAddress emailAddress = emailAddressManager.findByValue(user.getEmailAddress());
 						if (emailAddress != null && emailAddress.isVerified()) {
 							User owner = emailAddress.getOwner();
@@ -1457,6 +1838,77 @@ public class DefaultCommitInfoManager extends AbstractMultiEnvironmentManager im
 		return INFO_VERSION;
 	}
 
+	/*
+	 * Version 15 stores users, files and line stats as Java serialized objects. Convert them 
+	 * to compact encoding in place instead of clearing the environment, which would cause 
+	 * all commits of the project to be re-collected
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean migrate(File envDir, int fromVersion) {
+		if (fromVersion != 15)
+			return false;
+		Environment env = openEnv(envDir);
+		try {
+			Store defaultStore = getStore(env, DEFAULT_STORE);
+			Store dailyLineStatsStore = getStore(env, DAILY_LINE_STATS_STORE);
+			Store userToIndexStore = getStore(env, USER_TO_INDEX_STORE);
+			Store indexToUserStore = getStore(env, INDEX_TO_USER_STORE);
+			env.executeInTransaction(new TransactionalExecutable() {
+
+				@Override
+				public void execute(Transaction txn) {
+					byte[] bytes = readBytes(defaultStore, txn, USERS_KEY);
+					if (bytes != null) {
+						Set<NameAndEmail> users = (Set<NameAndEmail>) SerializationUtils.deserialize(bytes);
+						defaultStore.put(txn, USERS_KEY, new ArrayByteIterable(CommitInfoCodec.encodeUsers(users)));
+					}
+					
+					bytes = readBytes(defaultStore, txn, FILES_KEY);
+					if (bytes != null) {
+						Set<String> files = (Set<String>) SerializationUtils.deserialize(bytes);
+						defaultStore.put(txn, FILES_KEY, new ArrayByteIterable(CommitInfoCodec.encodePaths(files)));
+					}
+					
+					bytes = readBytes(defaultStore, txn, LEGACY_LINE_STATS_KEY);
+					if (bytes != null) {
+						Map<Integer, Map<String, Integer>> lineStats = 
+								(Map<Integer, Map<String, Integer>>) SerializationUtils.deserialize(bytes);
+						writeLineStats(defaultStore, dailyLineStatsStore, txn, lineStats, new ArrayList<>());
+						defaultStore.delete(txn, LEGACY_LINE_STATS_KEY);
+					}
+					
+					Map<Integer, NameAndEmail> indexToUser = new HashMap<>();
+					try (Cursor cursor = indexToUserStore.openCursor(txn)) {
+						while (cursor.getNext()) {
+							ByteIterable key = cursor.getKey();
+							int userIndex = ByteBuffer.wrap(key.getBytesUnsafe(), 0, key.getLength()).getInt();
+							ByteIterable value = cursor.getValue();
+							byte[] userBytes = Arrays.copyOf(value.getBytesUnsafe(), value.getLength());
+							indexToUser.put(userIndex, (NameAndEmail) SerializationUtils.deserialize(userBytes));
+						}
+					}
+					try (Cursor cursor = userToIndexStore.openCursor(txn)) {
+						while (cursor.getNext())
+							cursor.deleteCurrent();
+					}
+					for (Map.Entry<Integer, NameAndEmail> entry: indexToUser.entrySet()) {
+						ByteIterable userKey = new ArrayByteIterable(CommitInfoCodec.encodeUser(entry.getValue()));
+						writeInt(userToIndexStore, txn, userKey, entry.getKey());
+						indexToUserStore.put(txn, new IntByteIterable(entry.getKey()), userKey);
+					}
+				}
+				
+			});
+			return true;
+		} catch (Exception e) {
+			logger.error("Error migrating commit info (directory: " + envDir.getAbsolutePath() + ")", e);
+			return false;
+		} finally {
+			env.close();
+		}
+	}
+
 	@Override
 	public Collection<ObjectId> getFixCommits(Project project, Long issueId) {
 		Environment env = getEnv(project.getId().toString());
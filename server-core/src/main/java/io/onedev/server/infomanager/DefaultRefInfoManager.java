@@ -0,0 +1,346 @@
+package io.onedev.server.infomanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.onedev.commons.loader.Listen;
+import io.onedev.commons.utils.FileUtils;
+import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.git.GitUtils;
+import io.onedev.server.model.Project;
+import io.onedev.server.storage.StorageManager;
+import jetbrains.exodus.ArrayByteIterable;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.Transaction;
+import jetbrains.exodus.env.TransactionalExecutable;
+
+/**
+ * Index of branch and tag refs sorted by date. Index of a project is loaded into memory
+ * on first access. Persisted entries are reused if their refs still point to same objects,
+ * so that only changed refs need to be parsed. The index is then maintained incrementally
+ * from ref update events.
+ */
+@Singleton
+public class DefaultRefInfoManager extends AbstractMultiEnvironmentManager implements RefInfoManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(DefaultRefInfoManager.class);
+
+	private static final int INFO_VERSION = 1;
+
+	private static final String INFO_DIR = "ref";
+
+	private static final String REFS_STORE = "refs";
+
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private final StorageManager storageManager;
+
+	private final Map<Long, ProjectRefs> projectRefs = new ConcurrentHashMap<>();
+
+	@Inject
+	public DefaultRefInfoManager(StorageManager storageManager) {
+		this.storageManager = storageManager;
+	}
+
+	@Listen
+	public void on(RefUpdated event) {
+		String refName = event.getRefName();
+		if (refName.startsWith(Constants.R_HEADS) || refName.startsWith(Constants.R_TAGS)) {
+			ProjectRefs refs = projectRefs.get(event.getProject().getId());
+			if (refs != null)
+				refs.update(event.getProject(), refName);
+		}
+	}
+
+	@Listen
+	public void on(EntityRemoved event) {
+		if (event.getEntity() instanceof Project) {
+			Long projectId = event.getEntity().getId();
+			projectRefs.remove(projectId);
+			removeEnv(projectId.toString());
+		}
+	}
+
+	@Override
+	public List<Ref> queryRefs(Project project, String prefix, @Nullable String nameQuery,
+			int offset, int count) {
+		List<Ref> refs = new ArrayList<>();
+		int index = 0;
+		for (RefEntry entry: getProjectRefs(project).getEntries(project, prefix, nameQuery)) {
+			if (index - offset >= count)
+				break;
+			if (index++ >= offset)
+				refs.add(entry.toRef());
+		}
+		return refs;
+	}
+
+	@Override
+	public int countRefs(Project project, String prefix, @Nullable String nameQuery) {
+		return getProjectRefs(project).getEntries(project, prefix, nameQuery).size();
+	}
+
+	private ProjectRefs getProjectRefs(Project project) {
+		ProjectRefs refs = projectRefs.computeIfAbsent(project.getId(), key -> new ProjectRefs(key));
+		refs.load(project);
+		return refs;
+	}
+
+	@Override
+	protected File getEnvDir(String envKey) {
+		File infoDir = new File(storageManager.getProjectInfoDir(Long.valueOf(envKey)), INFO_DIR);
+		if (!infoDir.exists())
+			FileUtils.createDir(infoDir);
+		return infoDir;
+	}
+
+	@Override
+	protected int getEnvVersion() {
+		return INFO_VERSION;
+	}
+
+	@Nullable
+	private static RefEntry parse(RevWalk revWalk, Ref ref) throws IOException {
+		if (ref.getObjectId() == null)
+			return null;
+		RevObject obj = revWalk.parseAny(ref.getObjectId());
+		RevObject peeledObj = revWalk.peel(obj);
+		long date;
+		if (obj instanceof RevTag && ((RevTag)obj).getTaggerIdent() != null)
+			date = ((RevTag)obj).getTaggerIdent().getWhen().getTime();
+		else if (peeledObj instanceof RevCommit)
+			date = ((RevCommit)peeledObj).getCommitterIdent().getWhen().getTime();
+		else
+			date = NO_DATE;
+		return new RefEntry(ref.getName(), obj.copy(), peeledObj.copy(), date,
+				peeledObj instanceof RevCommit);
+	}
+
+	private class ProjectRefs {
+
+		private final Long projectId;
+
+		private final Map<String, RefEntry> entries = new HashMap<>();
+
+		private final TreeSet<RefEntry> sortedEntries = new TreeSet<>(Comparator
+				.comparingLong((RefEntry entry) -> entry.date).reversed()
+				.thenComparing(entry -> entry.name));
+
+		private boolean loaded;
+
+		ProjectRefs(Long projectId) {
+			this.projectId = projectId;
+		}
+
+		synchronized void load(Project project) {
+			if (loaded)
+				return;
+			entries.clear();
+			sortedEntries.clear();
+
+			Environment env = getEnv(projectId.toString());
+			Store store = getStore(env, REFS_STORE);
+
+			Map<String, RefEntry> persistedEntries = new HashMap<>();
+			env.executeInReadonlyTransaction(new TransactionalExecutable() {
+
+				@Override
+				public void execute(Transaction txn) {
+					try (Cursor cursor = store.openCursor(txn)) {
+						while (cursor.getNext()) {
+							ByteIterable key = cursor.getKey();
+							String refName = new String(key.getBytesUnsafe(), 0, key.getLength(), StandardCharsets.UTF_8);
+							ByteIterable value = cursor.getValue();
+							persistedEntries.put(refName, RefEntry.decode(refName, value.getBytesUnsafe()));
+						}
+					}
+				}
+
+			});
+
+			Repository repository = project.getRepository();
+			List<RefEntry> changedEntries = new ArrayList<>();
+			try (RevWalk revWalk = new RevWalk(repository)) {
+				List<Ref> refs = new ArrayList<>(repository.getRefDatabase().getRefsByPrefix(Constants.R_HEADS));
+				refs.addAll(repository.getRefDatabase().getRefsByPrefix(Constants.R_TAGS));
+				for (Ref ref: refs) {
+					RefEntry entry = persistedEntries.remove(ref.getName());
+					if (entry == null || !entry.objectId.equals(ref.getObjectId())) {
+						entry = parse(revWalk, ref);
+						if (entry == null)
+							continue;
+						changedEntries.add(entry);
+					}
+					entries.put(entry.name, entry);
+					sortedEntries.add(entry);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			if (!changedEntries.isEmpty() || !persistedEntries.isEmpty()) {
+				logger.debug("Indexed {} changed refs (project: {})", changedEntries.size(), project.getPath());
+				env.executeInTransaction(new TransactionalExecutable() {
+
+					@Override
+					public void execute(Transaction txn) {
+						for (RefEntry entry: changedEntries)
+							store.put(txn, entry.getKey(), new ArrayByteIterable(entry.encode()));
+						for (RefEntry entry: persistedEntries.values())
+							store.delete(txn, entry.getKey());
+					}
+
+				});
+			}
+			loaded = true;
+		}
+
+		synchronized void update(Project project, String refName) {
+			if (!loaded)
+				return;
+
+			RefEntry entry;
+			Repository repository = project.getRepository();
+			try (RevWalk revWalk = new RevWalk(repository)) {
+				// Read current state of the ref in case events are not delivered in order
+				Ref ref = repository.exactRef(refName);
+				entry = ref != null? parse(revWalk, ref): null;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			RefEntry oldEntry = entries.remove(refName);
+			if (oldEntry != null)
+				sortedEntries.remove(oldEntry);
+			if (entry != null) {
+				entries.put(refName, entry);
+				sortedEntries.add(entry);
+			}
+
+			Environment env = getEnv(projectId.toString());
+			Store store = getStore(env, REFS_STORE);
+			env.executeInTransaction(new TransactionalExecutable() {
+
+				@Override
+				public void execute(Transaction txn) {
+					if (entry != null)
+						store.put(txn, entry.getKey(), new ArrayByteIterable(entry.encode()));
+					else
+						store.delete(txn, new StringByteIterable(refName));
+				}
+
+			});
+		}
+
+		synchronized List<RefEntry> getEntries(Project project, String prefix, @Nullable String nameQuery) {
+			if (nameQuery != null)
+				nameQuery = nameQuery.trim().toLowerCase();
+
+			List<RefEntry> matchedEntries = new ArrayList<>();
+			RefEntry defaultBranchEntry = null;
+			if (Constants.R_HEADS.startsWith(prefix) || prefix.startsWith(Constants.R_HEADS)) {
+				String defaultBranch = project.getDefaultBranch();
+				if (defaultBranch != null) {
+					defaultBranchEntry = entries.get(GitUtils.branch2ref(defaultBranch));
+					if (defaultBranchEntry != null && defaultBranchEntry.matches(prefix, nameQuery))
+						matchedEntries.add(defaultBranchEntry);
+				}
+			}
+			for (RefEntry entry: sortedEntries) {
+				if (entry != defaultBranchEntry && entry.matches(prefix, nameQuery))
+					matchedEntries.add(entry);
+			}
+			return matchedEntries;
+		}
+
+	}
+
+	private static class RefEntry {
+
+		final String name;
+
+		final ObjectId objectId;
+
+		final ObjectId peeledId;
+
+		final long date;
+
+		final boolean commit;
+
+		RefEntry(String name, ObjectId objectId, ObjectId peeledId, long date, boolean commit) {
+			this.name = name;
+			this.objectId = objectId;
+			this.peeledId = peeledId;
+			this.date = date;
+			this.commit = commit;
+		}
+
+		boolean matches(String prefix, @Nullable String nameQuery) {
+			return commit && name.startsWith(prefix)
+					&& (nameQuery == null || name.substring(prefix.length()).toLowerCase().contains(nameQuery));
+		}
+
+		Ref toRef() {
+			if (objectId.equals(peeledId))
+				return new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, name, objectId);
+			else
+				return new ObjectIdRef.PeeledTag(Ref.Storage.LOOSE, name, objectId, peeledId);
+		}
+
+		ByteIterable getKey() {
+			return new StringByteIterable(name);
+		}
+
+		byte[] encode() {
+			ByteBuffer buffer = ByteBuffer.allocate(Constants.OBJECT_ID_LENGTH*2 + Long.BYTES + 1);
+			byte[] idBytes = new byte[Constants.OBJECT_ID_LENGTH];
+			objectId.copyRawTo(idBytes, 0);
+			buffer.put(idBytes);
+			peeledId.copyRawTo(idBytes, 0);
+			buffer.put(idBytes);
+			buffer.putLong(date);
+			buffer.put((byte)(commit?1:0));
+			return buffer.array();
+		}
+
+		static RefEntry decode(String name, byte[] bytes) {
+			ObjectId objectId = ObjectId.fromRaw(bytes, 0);
+			ObjectId peeledId = ObjectId.fromRaw(bytes, Constants.OBJECT_ID_LENGTH);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, Constants.OBJECT_ID_LENGTH*2, Long.BYTES + 1);
+			long date = buffer.getLong();
+			boolean commit = buffer.get() == 1;
+			return new RefEntry(name, objectId, peeledId, date, commit);
+		}
+
+	}
+
+}
@@ -0,0 +1,30 @@
+package io.onedev.server.infomanager;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.lib.Ref;
+
+import io.onedev.server.model.Project;
+
+public interface RefInfoManager {
+
+	/**
+	 * Query indexed branch or tag refs pointing to commits. Refs are ordered by tag or commit
+	 * date descendingly, with ref of default branch always being the first
+	 *
+	 * @param prefix
+	 * 			prefix of ref names to query, should start with <tt>refs/heads/</tt> or
+	 * 			<tt>refs/tags/</tt>
+	 * @param nameQuery
+	 * 			only include refs whose names after specified prefix contain this string
+	 * 			case-insensitively, or <tt>null</tt> to include all refs with specified prefix
+	 * @return
+	 * 			peeled refs
+	 */
+	List<Ref> queryRefs(Project project, String prefix, @Nullable String nameQuery, int offset, int count);
+
+	int countRefs(Project project, String prefix, @Nullable String nameQuery);
+
+}
@@ -1,14 +1,21 @@
 package io.onedev.server.job.resource;
 
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
-import java.util.UUID;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -37,8 +44,18 @@ import io.onedev.server.persistence.annotation.Transactional;
 import io.onedev.server.persistence.dao.Dao;
 import io.onedev.server.search.entity.agent.AgentQuery;
 
+/**
+ * Resource requests are queued and allocated by a single dispatch routine whenever resources
+ * might become available, instead of having each waiting thread re-check all agents on every
+ * release. Requests are served in order of priority and then submission, and a request not
+ * able to be satisfied does not block subsequent requests.
+ */
 @Singleton
 public class DefaultResourceManager implements ResourceManager {
+	
+	private static final int PRIORITY_TEST = 0;
+	
+	private static final int PRIORITY_JOB = 1;
 
 	private final SettingManager settingManager;
 	
@@ -46,11 +63,42 @@ public class DefaultResourceManager implements ResourceManager {
 	
 	private ResourceHolder serverResourceHolder;
 	
+	private Integer projectJobConcurrency;
+	
 	private final Map<Long, Boolean> agentPaused = new HashMap<>();
 	
-	private final Map<Long, ResourceHolder> agentResourceHolders = new HashMap<>();
+	private final Map<Long, AgentSlot> agentSlots = new HashMap<>();
+	
+	// Online agents ordered by spare capacity, with most spare one comes first
+	private final NavigableSet<AgentSlot> agentIndex = new TreeSet<>(new Comparator<AgentSlot>() {
+		
+		@Override
+		public int compare(AgentSlot o1, AgentSlot o2) {
+			if (o1.spareResources != o2.spareResources)
+				return o2.spareResources - o1.spareResources;
+			else
+				return o1.agentId.compareTo(o2.agentId);
+		}
+	
+	});
+	
+	private final NavigableSet<ResourceRequest> requests = new TreeSet<>(new Comparator<ResourceRequest>() {
+		
+		@Override
+		public int compare(ResourceRequest o1, ResourceRequest o2) {
+			if (o1.priority != o2.priority)
+				return o1.priority - o2.priority;
+			else
+				return Long.compare(o1.sequence, o2.sequence);
+		}
+	
+	});
+	
+	private final Map<Long, Integer> projectRunnings = new HashMap<>();
+	
+	private final AtomicLong requestSequence = new AtomicLong(0);
 	
-	private final Map<String, QueryCache> queryCaches = new HashMap<>();
+	private long averageWaitTime;
 	
 	private final SessionManager sessionManager;
 	
@@ -73,15 +121,17 @@ public class DefaultResourceManager implements ResourceManager {
 	@Listen(10)
 	public synchronized void on(SystemStarted event) {
 		Map<String, Integer> resources = new HashMap<>();
-		resources.put(ResourceHolder.CPU, 
-				settingManager.getPerformanceSetting().getServerJobExecutorCpuQuota());
-		resources.put(ResourceHolder.MEMORY, 
-				settingManager.getPerformanceSetting().getServerJobExecutorMemoryQuota());
+		PerformanceSetting performanceSetting = settingManager.getPerformanceSetting();
+		resources.put(ResourceHolder.CPU, performanceSetting.getServerJobExecutorCpuQuota());
+		resources.put(ResourceHolder.MEMORY, performanceSetting.getServerJobExecutorMemoryQuota());
 		serverResourceHolder = new ResourceHolder(resources);
+		projectJobConcurrency = performanceSetting.getProjectJobConcurrency();
 		
 		Query<?> query = dao.getSession().createQuery(String.format("select id, %s from Agent", Agent.PROP_PAUSED));
 		for (Object[] fields: (List<Object[]>)query.list()) 
 			agentPaused.put((Long)fields[0], (Boolean)fields[1]);
+		
+		dispatch();
 	}
 
 	@Transactional
@@ -94,12 +144,17 @@ public class DefaultResourceManager implements ResourceManager {
 			public void run() {
 				synchronized (DefaultResourceManager.this) {
 					Agent agent = agentManager.load(agentId);
-					agentResourceHolders.put(agentId, new ResourceHolder(agent.getResources()));
-					for (QueryCache cache: queryCaches.values()) {
-						if (cache.query.matches(agent))
-							cache.result.add(agentId);
+					AgentSlot slot = agentSlots.remove(agentId);
+					if (slot != null)
+						agentIndex.remove(slot);
+					slot = new AgentSlot(agentId, new ResourceHolder(agent.getResources()));
+					agentSlots.put(agentId, slot);
+					agentIndex.add(slot);
+					for (ResourceRequest request: requests) {
+						if (request.agentQuery != null && request.agentQuery.matches(agent))
+							request.agentIds.add(agentId);
 					}
-					DefaultResourceManager.this.notifyAll();
+					dispatch();
 				}
 			}
 			
@@ -115,9 +170,13 @@ public class DefaultResourceManager implements ResourceManager {
 			@Override
 			public void run() {
 				synchronized (DefaultResourceManager.this) {
-					agentResourceHolders.remove(agentId);
-					for (QueryCache cache: queryCaches.values())
-						cache.result.remove(agentId);
+					AgentSlot slot = agentSlots.remove(agentId);
+					if (slot != null)
+						agentIndex.remove(slot);
+					for (ResourceRequest request: requests) {
+						if (request.agentIds != null)
+							request.agentIds.remove(agentId);
+					}
 				}
 			}
 		});
@@ -139,7 +198,8 @@ public class DefaultResourceManager implements ResourceManager {
 									performanceSetting.getServerJobExecutorCpuQuota());
 							serverResourceHolder.updateTotalResource(ResourceHolder.MEMORY, 
 									performanceSetting.getServerJobExecutorMemoryQuota());
-							DefaultResourceManager.this.notifyAll();
+							projectJobConcurrency = performanceSetting.getProjectJobConcurrency();
+							dispatch();
 						}
 					}
 				});
@@ -153,7 +213,7 @@ public class DefaultResourceManager implements ResourceManager {
 				public void run() {
 					synchronized (DefaultResourceManager.this) {
 						agentPaused.put(agentId, paused);
-						DefaultResourceManager.this.notifyAll();
+						dispatch();
 					}
 				}
 			});
@@ -178,28 +238,17 @@ public class DefaultResourceManager implements ResourceManager {
 	}
 	
 	@Override
-	public void run(Runnable runnable, Map<String, Integer> serverResourceRequirements, TaskLogger logger) {
-		logger.log("Waiting for resources...");
-		synchronized(this) {
-			while (serverResourceHolder.getSpareResources(serverResourceRequirements) == 0) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					throw new RuntimeException(e);
-				}
-			}
-			serverResourceHolder.acquireResources(serverResourceRequirements);
-		}
-		
+	public void run(Runnable runnable, Long projectId, Map<String, Integer> serverResourceRequirements,
+			TaskLogger logger) {
+		ResourceRequest request = new ResourceRequest(projectId, serverResourceRequirements, null, null,
+				Collections.emptyMap());
+		acquire(request, logger);
 		try {
 			runnable.run();
 		} catch (Exception e) {
 			throw ExceptionUtils.unchecked(e);
 		} finally {
-			synchronized (this) {
-				serverResourceHolder.releaseResources(serverResourceRequirements);
-				notifyAll();
-			}
+			release(request, null);
 		}	
 	}
 	
@@ -209,89 +258,153 @@ public class DefaultResourceManager implements ResourceManager {
 	}
 
 	@Override
-	public void run(AgentAwareRunnable runnable, Map<String, Integer> serverResourceRequirements, 
+	public void run(AgentAwareRunnable runnable, Long projectId, Map<String, Integer> serverResourceRequirements,
 			AgentQuery agentQuery, Map<String, Integer> agentResourceRequirements, TaskLogger logger) {
 		Set<Long> agentIds = agentManager.query(agentQuery, 0, Integer.MAX_VALUE)
 				.stream().map(it->it.getId()).collect(Collectors.toSet());
-		Long agentId = 0L;
-		ResourceHolder agentResourceHolder = null;
-		synchronized(this) {
-			logger.log("Waiting for resources...");
-			String uuid = UUID.randomUUID().toString();
-			queryCaches.put(uuid, new QueryCache(agentQuery, agentIds));
-			try {
-				while (true) {
-					if (serverResourceHolder != null && serverResourceHolder.getSpareResources(serverResourceRequirements) != 0) {
-						int maxSpareResources = 0;
-						for (Long each: agentIds) {
-							ResourceHolder eachAgentResourceHolder = agentResourceHolders.get(each);
-							Boolean paused = agentPaused.get(each);
-							if (eachAgentResourceHolder != null && paused != null && !paused) {
-								int spareResources = eachAgentResourceHolder.getSpareResources(agentResourceRequirements);
-								if (spareResources > maxSpareResources) {
-									agentId = each;
-									maxSpareResources = spareResources;
-									agentResourceHolder = eachAgentResourceHolder;
-								}
-							}
-						}
-						if (agentId != 0)
-							break;
-					} 
-					try {
-						wait();
-					} catch (InterruptedException e) {
-						throw new RuntimeException(e);
-					}
-				}
-				agentResourceHolder.acquireResources(agentResourceRequirements);
-				serverResourceHolder.acquireResources(serverResourceRequirements);
-			} finally {
-				queryCaches.remove(uuid);
-			}
-		}
-
+		ResourceRequest request = new ResourceRequest(projectId, serverResourceRequirements,
+				agentQuery, agentIds, agentResourceRequirements);
+		AgentSlot slot = acquire(request, logger);
 		try {
-			updateLastUsedDate(agentId);
-			Session agentSession = agentManager.getAgentSession(agentId);
+			updateLastUsedDate(slot.agentId);
+			Session agentSession = agentManager.getAgentSession(slot.agentId);
 			if (agentSession == null)
 				throw new ExplicitException("Agent goes offline");
-			runnable.runOn(agentId, agentSession, getAgentData(agentId));
+			runnable.runOn(slot.agentId, agentSession, getAgentData(slot.agentId));
 		} catch (Exception e) {
 			throw ExceptionUtils.unchecked(e);
 		} finally {
-			synchronized(this) {
-				serverResourceHolder.releaseResources(serverResourceRequirements);
-				agentResourceHolder.releaseResources(agentResourceRequirements);
-				notifyAll();
+			release(request, slot);
+		}
+	}
+	
+	@Nullable
+	private AgentSlot acquire(ResourceRequest request, TaskLogger logger) {
+		logger.log("Waiting for resources...");
+		synchronized (this) {
+			requests.add(request);
+			dispatch();
+		}
+		try {
+			return request.future.get();
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				requests.remove(request);
+				if (!request.future.cancel(false))
+					release(request, request.future.getNow(null));
 			}
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.unchecked(e);
 		}	
 	}
 	
-	@Transactional
-	protected void updateLastUsedDate(Long agentId) {
-		agentManager.load(agentId).setLastUsedDate(new Date());
-	}
-
-	private static class QueryCache {
-		
-		AgentQuery query;
+	private synchronized void release(ResourceRequest request, @Nullable AgentSlot slot) {
+		serverResourceHolder.releaseResources(request.serverResourceRequirements);
+		if (slot != null) {
+			// Slot is no longer indexed if agent is disconnected or reconnected
+			boolean indexed = agentSlots.get(slot.agentId) == slot && agentIndex.remove(slot);
+			slot.holder.releaseResources(request.agentResourceRequirements);
+			slot.updateSpareResources();
+			if (indexed)
+				agentIndex.add(slot);
+		}
+		if (request.projectId != null) {
+			Integer runnings = projectRunnings.get(request.projectId);
+			if (runnings != null && runnings > 1)
+				projectRunnings.put(request.projectId, runnings - 1);
+			else
+				projectRunnings.remove(request.projectId);
+		}
 		
-		Collection<Long> result;
+		// Notify threads waiting for agent resources to be released
+		notifyAll();
+		dispatch();
+	}
+	
+	/*
+	 * Allocate resources to queued requests in order. This should be called whenever
+	 * resources might become available
+	 */
+	private synchronized void dispatch() {
+		if (serverResourceHolder == null)
+			return;
 		
-		QueryCache(AgentQuery query, Collection<Long> result) {
-			this.query = query;
-			this.result = result;
+		for (Iterator<ResourceRequest> it = requests.iterator(); it.hasNext();) {
+			ResourceRequest request = it.next();
+			if (request.projectId != null && projectJobConcurrency != null) {
+				Integer runnings = projectRunnings.get(request.projectId);
+				if (runnings != null && runnings >= projectJobConcurrency)
+					continue;
+			}
+			if (serverResourceHolder.getSpareResources(request.serverResourceRequirements) == 0)
+				continue;
+			
+			AgentSlot slot = null;
+			if (request.agentQuery != null) {
+				slot = selectAgent(request);
+				if (slot == null)
+					continue;
+				agentIndex.remove(slot);
+				slot.holder.acquireResources(request.agentResourceRequirements);
+				slot.updateSpareResources();
+				agentIndex.add(slot);
+			}
+			serverResourceHolder.acquireResources(request.serverResourceRequirements);
+			if (request.projectId != null)
+				projectRunnings.merge(request.projectId, 1, Integer::sum);
+			
+			it.remove();
+			long waitTime = System.currentTimeMillis() - request.submitTime;
+			averageWaitTime = averageWaitTime + (waitTime - averageWaitTime) / 8;
+			request.future.complete(slot);
 		}
-		
+	}
+	
+	@Nullable
+	private AgentSlot selectAgent(ResourceRequest request) {
+		if (request.agentIds.size() < agentIndex.size()) {
+			AgentSlot selected = null;
+			int maxSpareResources = 0;
+			for (Long agentId: request.agentIds) {
+				AgentSlot slot = agentSlots.get(agentId);
+				if (slot != null && isAvailable(slot)) {
+					int spareResources = slot.holder.getSpareResources(request.agentResourceRequirements);
+					if (spareResources > maxSpareResources) {
+						selected = slot;
+						maxSpareResources = spareResources;
+					}
+				}
+			}
+			return selected;
+		} else {
+			for (AgentSlot slot: agentIndex) {
+				if (request.agentIds.contains(slot.agentId) && isAvailable(slot)
+						&& slot.holder.getSpareResources(request.agentResourceRequirements) != 0) {
+					return slot;
+				}
+			}
+			return null;
+		}
+	}
+	
+	private boolean isAvailable(AgentSlot slot) {
+		Boolean paused = agentPaused.get(slot.agentId);
+		return paused != null && !paused;
+	}
+	
+	@Transactional
+	protected void updateLastUsedDate(Long agentId) {
+		agentManager.load(agentId).setLastUsedDate(new Date());
 	}
 
 	@Override
 	public void waitingForAgentResourceToBeReleased(Long agentId) {
 		synchronized (this) {
-			ResourceHolder agentResourceHolder = agentResourceHolders.remove(agentId);
-			if (agentResourceHolder != null) {
-				while (agentResourceHolder.hasUsedResources()) {
+			AgentSlot slot = agentSlots.remove(agentId);
+			if (slot != null) {
+				agentIndex.remove(slot);
+				while (slot.holder.hasUsedResources()) {
 					try {
 						wait();
 					} catch (InterruptedException e) {
@@ -301,4 +414,80 @@ public class DefaultResourceManager implements ResourceManager {
 		}
 	}
 	
+	@Override
+	public synchronized int getQueueDepth() {
+		return requests.size();
+	}
+	
+	@Override
+	public synchronized long getLongestWaitTime() {
+		long now = System.currentTimeMillis();
+		long longestWaitTime = 0;
+		for (ResourceRequest request: requests) {
+			if (now - request.submitTime > longestWaitTime)
+				longestWaitTime = now - request.submitTime;
+		}
+		return longestWaitTime;
+	}
+	
+	@Override
+	public synchronized long getAverageWaitTime() {
+		return averageWaitTime;
+	}
+	
+	private class ResourceRequest {
+		
+		final long sequence = requestSequence.incrementAndGet();
+		
+		final long submitTime = System.currentTimeMillis();
+		
+		final int priority;
+		
+		final Long projectId;
+		
+		final Map<String, Integer> serverResourceRequirements;
+		
+		final AgentQuery agentQuery;
+		
+		final Set<Long> agentIds;
+		
+		final Map<String, Integer> agentResourceRequirements;
+		
+		final CompletableFuture<AgentSlot> future = new CompletableFuture<>();
+		
+		ResourceRequest(@Nullable Long projectId, Map<String, Integer> serverResourceRequirements,
+				@Nullable AgentQuery agentQuery, @Nullable Set<Long> agentIds,
+				Map<String, Integer> agentResourceRequirements) {
+			// Requests not on behalf of projects are executor tests, which are interactive
+			priority = projectId != null? PRIORITY_JOB: PRIORITY_TEST;
+			this.projectId = projectId;
+			this.serverResourceRequirements = serverResourceRequirements;
+			this.agentQuery = agentQuery;
+			this.agentIds = agentIds;
+			this.agentResourceRequirements = agentResourceRequirements;
+		}
+	
+	}
+	
+	private static class AgentSlot {
+		
+		final Long agentId;
+		
+		final ResourceHolder holder;
+		
+		// Cached so that position of the slot in agent index is stable while indexed
+		int spareResources;
+		
+		AgentSlot(Long agentId, ResourceHolder holder) {
+			this.agentId = agentId;
+			this.holder = holder;
+			updateSpareResources();
+		}
+		
+		void updateSpareResources() {
+			spareResources = holder.getSpareResources(Collections.emptyMap());
+		}
+	
+	}
+
 }
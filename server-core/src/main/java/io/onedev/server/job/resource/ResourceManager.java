@@ -2,17 +2,55 @@ package io.onedev.server.job.resource;
 
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import io.onedev.commons.utils.TaskLogger;
 import io.onedev.server.search.entity.agent.AgentQuery;
 
 public interface ResourceManager {
-	
-	void run(Runnable runnable, Map<String, Integer> serverResourceRequirements, TaskLogger logger);
-	
-	void run(AgentAwareRunnable runnable, Map<String, Integer> serverResourceRequirements, 
-			AgentQuery agentQuery, Map<String, Integer> agentResourceRequirements, 
+
+	/**
+	 * Run specified runnable on server after required resources are allocated
+	 *
+	 * @param projectId
+	 * 			id of project requesting the resources to apply project quota, or <tt>null</tt>
+	 * 			if resources are not requested on behalf of a project, for instance when
+	 * 			testing job executors
+	 */
+	void run(Runnable runnable, @Nullable Long projectId, Map<String, Integer> serverResourceRequirements,
 			TaskLogger logger);
-	
+
+	/**
+	 * Run specified runnable on an agent after required resources are allocated
+	 *
+	 * @param projectId
+	 * 			id of project requesting the resources to apply project quota, or <tt>null</tt>
+	 * 			if resources are not requested on behalf of a project, for instance when
+	 * 			testing job executors
+	 */
+	void run(AgentAwareRunnable runnable, @Nullable Long projectId, Map<String, Integer> serverResourceRequirements,
+			AgentQuery agentQuery, Map<String, Integer> agentResourceRequirements,
+			TaskLogger logger);
+
 	void waitingForAgentResourceToBeReleased(Long agentId);
-	
+
+	/**
+	 * @return
+	 * 			number of resource requests waiting in queue
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return
+	 * 			wait time in milliseconds of the longest waiting request in queue, or <tt>0</tt>
+	 * 			if queue is empty
+	 */
+	long getLongestWaitTime();
+
+	/**
+	 * @return
+	 * 			moving average of wait time in milliseconds of recently allocated requests
+	 */
+	long getAverageWaitTime();
+
 }
@@ -8,14 +8,18 @@ import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
@@ -23,17 +27,14 @@ import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import javax.mail.Authenticator;
 import javax.mail.Folder;
 import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
-import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Store;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
@@ -56,6 +57,8 @@ import org.jsoup.nodes.TextNode;
 import org.jsoup.safety.Safelist;
 import org.jsoup.select.NodeTraversor;
 import org.jsoup.select.NodeVisitor;
+import org.quartz.ScheduleBuilder;
+import org.quartz.SimpleScheduleBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -113,6 +116,10 @@ import io.onedev.server.security.permission.ReadCode;
 import io.onedev.server.util.CollectionUtils;
 import io.onedev.server.util.HtmlUtils;
 import io.onedev.server.util.ParsedEmailAddress;
+import io.onedev.server.util.concurrent.CategorizedRunnable;
+import io.onedev.server.util.concurrent.TaskCategory;
+import io.onedev.server.util.schedule.SchedulableTask;
+import io.onedev.server.util.schedule.TaskScheduler;
 import io.onedev.server.util.validation.UserNameValidator;
 
 @Singleton
@@ -124,6 +131,22 @@ public class DefaultMailManager implements MailManager {
 	
 	private static final String SENDER_NAME = "~OneDev Notifier";
 	
+	private static final int MAX_QUEUED_MAILS = 10000;
+	
+	private static final int MAX_BATCH_SIZE = 50;
+	
+	private static final int MAX_SEND_ATTEMPTS = 5;
+	
+	private static final long INITIAL_RETRY_DELAY = 30000L;
+	
+	private static final int MAX_SEND_RATE = 10;
+	
+	private static final int MAX_IDLE_CONNECTIONS = 2;
+	
+	private static final long MAX_CONNECTION_IDLE_TIME = 60000L;
+	
+	private static final int MAINTENANCE_INTERVAL = 10;
+	
 	private final SettingManager settingManager;
 	
 	private final TransactionManager transactionManager;
@@ -154,8 +177,23 @@ public class DefaultMailManager implements MailManager {
 	
 	private final UrlManager urlManager;
 	
+	private final TaskScheduler taskScheduler;
+	
+	private final SmtpTransportPool transportPool = new SmtpTransportPool(
+			MAX_IDLE_CONNECTIONS, MAX_CONNECTION_IDLE_TIME, MAX_SEND_RATE);
+	
+	private final BlockingQueue<QueuedMail> mailQueue = new LinkedBlockingQueue<>(MAX_QUEUED_MAILS);
+	
+	private final List<QueuedMail> retryMails = new ArrayList<>();
+	
+	private final AtomicBoolean sendingQueuedMails = new AtomicBoolean();
+	
 	private volatile Thread thread;
 	
+	private volatile boolean stopping;
+	
+	private String maintenanceTaskId;
+	
 	@Inject
 	public DefaultMailManager(TransactionManager transactionManager, SettingManager setingManager, 
 			UserManager userManager, ProjectManager projectManager, 
@@ -164,7 +202,7 @@ public class DefaultMailManager implements MailManager {
 			PullRequestManager pullRequestManager, PullRequestCommentManager pullRequestCommentManager, 
 			PullRequestWatchManager pullRequestWatchManager, ExecutorService executorService, 
 			UrlManager urlManager, EmailAddressManager emailAddressManager, 
-			IssueAuthorizationManager issueAuthorizationManager) {
+			IssueAuthorizationManager issueAuthorizationManager, TaskScheduler taskScheduler) {
 		this.transactionManager = transactionManager;
 		this.settingManager = setingManager;
 		this.userManager = userManager;
@@ -180,33 +218,122 @@ public class DefaultMailManager implements MailManager {
 		this.urlManager = urlManager;
 		this.emailAddressManager = emailAddressManager;
 		this.issueAuthorizationManager = issueAuthorizationManager;
+		this.taskScheduler = taskScheduler;
 	}
 
 	@Sessional
 	@Override
 	public void sendMailAsync(Collection<String> toList, Collection<String> ccList, Collection<String> bccList, 
 			String subject, String htmlBody, String textBody, String replyAddress, String references) {
+		if (toList.isEmpty() && ccList.isEmpty() && bccList.isEmpty())
+			return;
+		
+		QueuedMail mail = new QueuedMail(toList, ccList, bccList, subject, htmlBody, textBody, 
+				replyAddress, references);
 		transactionManager.runAfterCommit(new Runnable() {
 
 			@Override
 			public void run() {
-				executorService.execute(new Runnable() {
-
-					@Override
-					public void run() {
-						try {
-							sendMail(toList, ccList, bccList, subject, htmlBody, textBody, replyAddress, references);
-						} catch (Exception e) {
-							logger.error("Error sending email (to: " + toList + ", subject: " + subject + ")", e);
-						}		
-					}
-					
-				});
+				if (mailQueue.offer(mail)) 
+					sendQueuedMails();
+				else 
+					logger.error("Too many emails queued, discarding email (to: " + toList + ", subject: " + subject + ")");
 			}
 			
 		});
 	}
 	
+	/*
+	 * Queued mails are sent by a single task in batches, so that a batch can be sent 
+	 * over one SMTP connection
+	 */
+	private void sendQueuedMails() {
+		if (!stopping && !mailQueue.isEmpty() && sendingQueuedMails.compareAndSet(false, true)) {
+			executorService.execute(new CategorizedRunnable(TaskCategory.MAIL) {
+
+				@Override
+				public void run() {
+					try {
+						List<QueuedMail> batch = new ArrayList<>();
+						while (!stopping && mailQueue.drainTo(batch, MAX_BATCH_SIZE) != 0) {
+							sendBatch(batch);
+							batch.clear();
+						}
+					} catch (Exception e) {
+						logger.error("Error sending queued emails", e);
+					} finally {
+						sendingQueuedMails.set(false);
+					}
+					// Mails might be queued after draining and before above flag is reset
+					sendQueuedMails();
+				}
+				
+			});
+		}
+	}
+	
+	private void sendBatch(List<QueuedMail> batch) {
+		MailSetting mailSetting = settingManager.getMailSetting();
+		MailSendSetting sendSetting = mailSetting!=null? mailSetting.getSendSetting(): null;
+		if (sendSetting == null) {
+			logger.warn("Unable to send mail as mail setting is not specified");
+			return;
+		}
+		
+		Session session = getSession(sendSetting);
+		Map<Message, QueuedMail> messages = new LinkedHashMap<>();
+		for (QueuedMail mail: batch) {
+			try {
+				messages.put(createMessage(session, sendSetting, mail.toList, mail.ccList, mail.bccList, 
+						mail.subject, mail.htmlBody, mail.textBody, mail.replyAddress, mail.references), mail);
+			} catch (Exception e) {
+				logger.error("Error sending email (to: " + mail.toList + ", subject: " + mail.subject + ")", e);
+			}
+		}
+		
+		Map<Message, MessagingException> failures = transportPool.send(session, new ArrayList<>(messages.keySet()));
+		for (Map.Entry<Message, MessagingException> entry: failures.entrySet()) {
+			QueuedMail mail = messages.get(entry.getKey());
+			mail.attempts++;
+			if (SmtpTransportPool.isPermanentFailure(entry.getValue()) || mail.attempts >= MAX_SEND_ATTEMPTS) {
+				logger.error("Error sending email (to: " + mail.toList + ", subject: " + mail.subject + ")", 
+						entry.getValue());
+			} else {
+				long retryDelay = INITIAL_RETRY_DELAY << (mail.attempts - 1);
+				logger.warn("Error sending email, will retry in {} seconds (to: {}, subject: {}): {}", 
+						retryDelay/1000, mail.toList, mail.subject, entry.getValue().getMessage());
+				mail.retryTime = System.currentTimeMillis() + retryDelay;
+				synchronized (retryMails) {
+					retryMails.add(mail);
+				}
+			}
+		}
+	}
+	
+	private Session getSession(MailSendSetting sendSetting) {
+		Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", sendSetting.getSmtpHost());
+        properties.setProperty("mail.smtp.port", String.valueOf(sendSetting.getSmtpPort()));
+        properties.setProperty("mail.transport.protocol", "smtp");
+ 
+        properties.setProperty("mail.smtp.connectiontimeout", String.valueOf(Bootstrap.SOCKET_CONNECT_TIMEOUT));
+        properties.setProperty("mail.smtp.timeout", String.valueOf(sendSetting.getTimeout()*1000));
+        properties.setProperty("mail.smtp.starttls.enable", String.valueOf(sendSetting.isEnableStartTLS()));
+        properties.setProperty("mail.smtp.starttls.required", "false");
+        
+        String smtpUser = sendSetting.getSmtpUser();
+        String credentialValue;
+        if (smtpUser != null) {
+        	properties.setProperty("mail.smtp.auth", "true");
+        	if (sendSetting.getSmtpCredential() instanceof OAuthAccessToken)
+        		properties.setProperty("mail.smtp.auth.mechanisms", "XOAUTH2");
+        	credentialValue = sendSetting.getSmtpCredential()!=null?sendSetting.getSmtpCredential().getValue():null;
+        } else {
+        	credentialValue = null;
+        }
+        return transportPool.getSession(properties, smtpUser, credentialValue);
+	}
+	
 	private String getThreadIndex(String references) {
 		byte[] threadIndexBytes = new byte[22];
 		FileTime ft = FileTime.fromMillis(System.currentTimeMillis());
@@ -255,80 +382,13 @@ public class DefaultMailManager implements MailManager {
 		}
 		
 		if (sendSetting != null) {
-			Properties properties = new Properties();
-	        properties.setProperty("mail.smtp.host", sendSetting.getSmtpHost());
-	        properties.setProperty("mail.smtp.port", String.valueOf(sendSetting.getSmtpPort()));
-	        properties.setProperty("mail.transport.protocol", "smtp");
-	 
-	        properties.setProperty("mail.smtp.connectiontimeout", String.valueOf(Bootstrap.SOCKET_CONNECT_TIMEOUT));
-	        properties.setProperty("mail.smtp.timeout", String.valueOf(sendSetting.getTimeout()*1000));
-	        properties.setProperty("mail.smtp.starttls.enable", String.valueOf(sendSetting.isEnableStartTLS()));
-	        properties.setProperty("mail.smtp.starttls.required", "false");
-	        
-	        Authenticator authenticator;
-	        if (sendSetting.getSmtpUser() != null) {
-	        	properties.setProperty("mail.smtp.auth", "true");
-	        	if (sendSetting.getSmtpCredential() instanceof OAuthAccessToken)
-	        		properties.setProperty("mail.smtp.auth.mechanisms", "XOAUTH2");
-	        	String smtpUser = sendSetting.getSmtpUser();
-	        	String credentialValue = sendSetting.getSmtpCredential()!=null?sendSetting.getSmtpCredential().getValue():null;
-	        	authenticator = new Authenticator() {
-		        	
-		            @Override
-		            protected PasswordAuthentication getPasswordAuthentication() {
-		                return new PasswordAuthentication(smtpUser, credentialValue);
-		            }
-		            
-		        };	        	
-	        } else {
-	        	authenticator = null;
-	        }
-	        
-	        try {
-				Session session = Session.getInstance(properties, authenticator);	        
-				
-				MimeMultipart bodyPart = new MimeMultipart("alternative");
-				
-				MimeBodyPart htmlPart = new MimeBodyPart();
-				htmlPart.setContent(htmlBody, "text/html; charset=" + StandardCharsets.UTF_8.name());
-				bodyPart.addBodyPart(htmlPart, 0);
-				
-				MimeBodyPart textPart = new MimeBodyPart();
-				textPart.setText(textBody, StandardCharsets.UTF_8.name());
-				bodyPart.addBodyPart(textPart, 0);
-
-				Message message = new MimeMessage(session);
-				
-				if (references != null) {
-				    Map<String, String> headers = CollectionUtils.newHashMap(
-				    		"References", references, 
-				    		"In-Reply-To", references, 
-				    		"Thread-Index", getThreadIndex(references));
-				    
-				    for (Map.Entry<String, String> entry: headers.entrySet())
-				    	message.addHeader(entry.getKey(), createFoldedHeaderValue(entry.getKey(), entry.getValue()));
-				}
-				
-				message.setFrom(createInetAddress(sendSetting.getSenderAddress(), SENDER_NAME));
-				
-				if (toList.isEmpty() && ccList.isEmpty() && bccList.isEmpty())
-					throw new ExplicitException("At least one receiver address should be specified");
-				
-				message.setRecipients(RecipientType.TO, 
-						toList.stream().map(it->createInetAddress(it, null)).toArray(InternetAddress[]::new));
-				message.setRecipients(RecipientType.CC, 
-						ccList.stream().map(it->createInetAddress(it, null)).toArray(InternetAddress[]::new));
-				message.setRecipients(RecipientType.BCC, 
-						bccList.stream().map(it->createInetAddress(it, null)).toArray(InternetAddress[]::new));
-				if (replyAddress != null)
-					message.setReplyTo(new InternetAddress[]{createInetAddress(replyAddress, null)});
-
-				message.setSubject(subject);
-				message.setContent(bodyPart);
-
-				logger.debug("Sending email (subject: {}, to: {}, cc: {}, bcc: {})... ", subject, toList, ccList, bccList);
-				
-	            Transport.send(message);
+			try {
+				Session session = getSession(sendSetting);
+				Message message = createMessage(session, sendSetting, toList, ccList, bccList, subject, 
+						htmlBody, textBody, replyAddress, references);
+				Map<Message, MessagingException> failures = transportPool.send(session, Lists.newArrayList(message));
+				if (!failures.isEmpty())
+					throw failures.values().iterator().next();
 			} catch (MessagingException e) {
 				throw new RuntimeException(e);
 			}
@@ -336,6 +396,54 @@ public class DefaultMailManager implements MailManager {
 			logger.warn("Unable to send mail as mail setting is not specified");
 		}
 	}
+	
+	private Message createMessage(Session session, MailSendSetting sendSetting, Collection<String> toList, 
+			Collection<String> ccList, Collection<String> bccList, String subject, String htmlBody, 
+			String textBody, @Nullable String replyAddress, @Nullable String references) 
+			throws MessagingException {
+		MimeMultipart bodyPart = new MimeMultipart("alternative");
+		
+		MimeBodyPart htmlPart = new MimeBodyPart();
+		htmlPart.setContent(htmlBody, "text/html; charset=" + StandardCharsets.UTF_8.name());
+		bodyPart.addBodyPart(htmlPart, 0);
+		
+		MimeBodyPart textPart = new MimeBodyPart();
+		textPart.setText(textBody, StandardCharsets.UTF_8.name());
+		bodyPart.addBodyPart(textPart, 0);
+
+		Message message = new MimeMessage(session);
+		
+		if (references != null) {
+		    Map<String, String> headers = CollectionUtils.newHashMap(
+		    		"References", references, 
+		    		"In-Reply-To", references, 
+		    		"Thread-Index", getThreadIndex(references));
+		    
+		    for (Map.Entry<String, String> entry: headers.entrySet())
+		    	message.addHeader(entry.getKey(), createFoldedHeaderValue(entry.getKey(), entry.getValue()));
+		}
+		
+		message.setFrom(createInetAddress(sendSetting.getSenderAddress(), SENDER_NAME));
+		
+		if (toList.isEmpty() && ccList.isEmpty() && bccList.isEmpty())
+			throw new ExplicitException("At least one receiver address should be specified");
+		
+		message.setRecipients(RecipientType.TO, 
+				toList.stream().map(it->createInetAddress(it, null)).toArray(InternetAddress[]::new));
+		message.setRecipients(RecipientType.CC, 
+				ccList.stream().map(it->createInetAddress(it, null)).toArray(InternetAddress[]::new));
+		message.setRecipients(RecipientType.BCC, 
+				bccList.stream().map(it->createInetAddress(it, null)).toArray(InternetAddress[]::new));
+		if (replyAddress != null)
+			message.setReplyTo(new InternetAddress[]{createInetAddress(replyAddress, null)});
+
+		message.setSubject(subject);
+		message.setContent(bodyPart);
+
+		logger.debug("Sending email (subject: {}, to: {}, cc: {}, bcc: {})... ", subject, toList, ccList, bccList);
+		
+		return message;
+	}
 
 	@Override
 	public void sendMail(Collection<String> toList, Collection<String> ccList, Collection<String> bccList, 
@@ -771,6 +879,34 @@ public class DefaultMailManager implements MailManager {
 	
 	@Listen
 	public void on(SystemStarted event) {
+		maintenanceTaskId = taskScheduler.schedule(new SchedulableTask() {
+			
+			@Override
+			public ScheduleBuilder<?> getScheduleBuilder() {
+				return SimpleScheduleBuilder.repeatSecondlyForever(MAINTENANCE_INTERVAL);
+			}
+			
+			@Override
+			public void execute() {
+				long now = System.currentTimeMillis();
+				synchronized (retryMails) {
+					for (Iterator<QueuedMail> it = retryMails.iterator(); it.hasNext();) {
+						QueuedMail mail = it.next();
+						if (mail.retryTime <= now) {
+							it.remove();
+							if (!mailQueue.offer(mail)) {
+								logger.error("Too many emails queued, discarding email (to: " + mail.toList 
+										+ ", subject: " + mail.subject + ")");
+							}
+						}
+					}
+				}
+				sendQueuedMails();
+				transportPool.evictIdle();
+			}
+			
+		});
+		
 		thread = new Thread(new Runnable() {
 
 			@Override
@@ -818,6 +954,11 @@ public class DefaultMailManager implements MailManager {
 	
 	@Listen
 	public void on(SystemStopping event) {
+		stopping = true;
+		if (maintenanceTaskId != null)
+			taskScheduler.unschedule(maintenanceTaskId);
+		transportPool.close();
+		
 		Thread copy = thread;
 		thread = null;
 		if (copy != null) {
@@ -1077,6 +1218,43 @@ public class DefaultMailManager implements MailManager {
 	    } 
 	}
 	
+	private static class QueuedMail {
+		
+		final Collection<String> toList;
+		
+		final Collection<String> ccList;
+		
+		final Collection<String> bccList;
+		
+		final String subject;
+		
+		final String htmlBody;
+		
+		final String textBody;
+		
+		final String replyAddress;
+		
+		final String references;
+		
+		int attempts;
+		
+		long retryTime;
+		
+		QueuedMail(Collection<String> toList, Collection<String> ccList, Collection<String> bccList, 
+				String subject, String htmlBody, String textBody, @Nullable String replyAddress, 
+				@Nullable String references) {
+			this.toList = toList;
+			this.ccList = ccList;
+			this.bccList = bccList;
+			this.subject = subject;
+			this.htmlBody = htmlBody;
+			this.textBody = textBody;
+			this.replyAddress = replyAddress;
+			this.references = references;
+		}
+		
+	}
+	
 	private static class Attachments {
 		
 		final Map<String, Attachment> identifiable = new LinkedHashMap<>();
@@ -0,0 +1,308 @@
+package io.onedev.server.mail;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.Nullable;
+import javax.mail.Authenticator;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Keeps authenticated SMTP connections alive between sends. Sessions are cached by SMTP
+ * properties and credential, and connections of a session are reused until they are idle
+ * for specified time. Connections are verified before reuse, as SMTP servers may close
+ * idle connections at their own discretion.
+ */
+public class SmtpTransportPool implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+	private final int maxIdleConnections;
+
+	private final long maxIdleTime;
+
+	private final long minSendInterval;
+
+	private final Map<String, SessionPool> sessionPools = new LinkedHashMap<>();
+
+	private long nextSendTime;
+
+	/**
+	 * @param maxIdleConnections
+	 * 			max number of idle connections to keep for each session
+	 * @param maxIdleTime
+	 * 			max time in milliseconds to keep an idle connection
+	 * @param maxSendRate
+	 * 			max number of messages to send per second, or <tt>0</tt> to send without
+	 * 			rate limiting
+	 */
+	public SmtpTransportPool(int maxIdleConnections, long maxIdleTime, int maxSendRate) {
+		this.maxIdleConnections = maxIdleConnections;
+		this.maxIdleTime = maxIdleTime;
+		minSendInterval = maxSendRate != 0? 1000L / maxSendRate: 0;
+	}
+
+	/**
+	 * Get session of specified SMTP properties and credential. Messages to be sent with
+	 * {@link #send(Session, List)} should be created with session returned here
+	 */
+	public synchronized Session getSession(Properties properties, @Nullable String user,
+			@Nullable String password) {
+		String key = properties.toString() + "\n" + user + "\n" + password;
+		SessionPool sessionPool = sessionPools.get(key);
+		if (sessionPool == null) {
+			Authenticator authenticator;
+			if (user != null) {
+				authenticator = new Authenticator() {
+
+					@Override
+					protected PasswordAuthentication getPasswordAuthentication() {
+						return new PasswordAuthentication(user, password);
+					}
+
+				};
+			} else {
+				authenticator = null;
+			}
+			sessionPool = new SessionPool(Session.getInstance(properties, authenticator));
+			sessionPools.put(key, sessionPool);
+		}
+		sessionPool.lastUsed = System.currentTimeMillis();
+		return sessionPool.session;
+	}
+
+	/**
+	 * Send specified messages over a pooled connection of specified session. A message
+	 * failing due to connection error will cause the connection to be discarded, and
+	 * remaining messages will be sent over a new connection.
+	 *
+	 * @return
+	 * 			messages failed to be sent, mapped to the failure
+	 */
+	public Map<Message, MessagingException> send(Session session, List<Message> messages) {
+		Map<Message, MessagingException> failures = new LinkedHashMap<>();
+		Transport transport = null;
+		try {
+			for (Iterator<Message> it = messages.iterator(); it.hasNext();) {
+				Message message = it.next();
+				if (transport == null) {
+					try {
+						transport = borrow(session);
+					} catch (MessagingException e) {
+						failures.put(message, e);
+						while (it.hasNext())
+							failures.put(it.next(), e);
+						break;
+					}
+				}
+				try {
+					waitForRate();
+					message.saveChanges();
+					transport.sendMessage(message, message.getAllRecipients());
+				} catch (SendFailedException e) {
+					failures.put(message, e);
+				} catch (MessagingException e) {
+					failures.put(message, e);
+					close(transport);
+					transport = null;
+				}
+			}
+		} finally {
+			if (transport != null)
+				giveBack(session, transport);
+		}
+		return failures;
+	}
+
+	/**
+	 * Check whether specified failure returned by {@link #send(Session, List)} is permanent.
+	 * Messages rejected by SMTP server with 5xx replies will never be sent, while 4xx replies
+	 * such as greylisting or insufficient storage are transient and the message can be 
+	 * retried later, same as connection errors.
+	 */
+	public static boolean isPermanentFailure(MessagingException failure) {
+		if (!(failure instanceof SendFailedException))
+			return false;
+		Exception current = failure;
+		while (current != null) {
+			int returnCode;
+			if (current instanceof SMTPSendFailedException)
+				returnCode = ((SMTPSendFailedException) current).getReturnCode();
+			else if (current instanceof SMTPAddressFailedException)
+				returnCode = ((SMTPAddressFailedException) current).getReturnCode();
+			else
+				returnCode = 0;
+			if (returnCode >= 400 && returnCode < 500)
+				return false;
+			if (current instanceof MessagingException)
+				current = ((MessagingException) current).getNextException();
+			else
+				current = null;
+		}
+		return true;
+	}
+
+	private Transport borrow(Session session) throws MessagingException {
+		while (true) {
+			Transport transport = null;
+			synchronized (this) {
+				SessionPool sessionPool = getSessionPool(session);
+				if (sessionPool != null) {
+					IdleTransport idleTransport = sessionPool.idleTransports.pollLast();
+					if (idleTransport != null)
+						transport = idleTransport.transport;
+				}
+			}
+			if (transport == null)
+				break;
+			// For SMTP, this sends a NOOP command to verify the connection
+			if (transport.isConnected())
+				return transport;
+			else
+				close(transport);
+		}
+		Transport transport = session.getTransport();
+		transport.connect();
+		return transport;
+	}
+
+	private void giveBack(Session session, Transport transport) {
+		synchronized (this) {
+			SessionPool sessionPool = getSessionPool(session);
+			if (sessionPool != null && sessionPool.idleTransports.size() < maxIdleConnections) {
+				sessionPool.idleTransports.add(new IdleTransport(transport));
+				return;
+			}
+		}
+		close(transport);
+	}
+
+	@Nullable
+	private SessionPool getSessionPool(Session session) {
+		for (SessionPool sessionPool: sessionPools.values()) {
+			if (sessionPool.session == session)
+				return sessionPool;
+		}
+		return null;
+	}
+
+	private void waitForRate() {
+		if (minSendInterval != 0) {
+			long sendTime;
+			synchronized (this) {
+				sendTime = Math.max(nextSendTime, System.currentTimeMillis());
+				nextSendTime = sendTime + minSendInterval;
+			}
+			long waitTime = sendTime - System.currentTimeMillis();
+			if (waitTime > 0) {
+				try {
+					Thread.sleep(waitTime);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close connections idle for more than max idle time, and discard sessions not used
+	 * during that time
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		Deque<Transport> transportsToClose = new ArrayDeque<>();
+		synchronized (this) {
+			for (Iterator<SessionPool> it = sessionPools.values().iterator(); it.hasNext();) {
+				SessionPool sessionPool = it.next();
+				for (Iterator<IdleTransport> itTransport = sessionPool.idleTransports.iterator(); itTransport.hasNext();) {
+					IdleTransport idleTransport = itTransport.next();
+					if (now - idleTransport.idleSince > maxIdleTime) {
+						transportsToClose.add(idleTransport.transport);
+						itTransport.remove();
+					}
+				}
+				if (sessionPool.idleTransports.isEmpty() && now - sessionPool.lastUsed > maxIdleTime)
+					it.remove();
+			}
+		}
+		for (Transport transport: transportsToClose)
+			close(transport);
+	}
+
+	/**
+	 * @return
+	 * 			number of idle connections currently kept
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (SessionPool sessionPool: sessionPools.values())
+			count += sessionPool.idleTransports.size();
+		return count;
+	}
+
+	private void close(Transport transport) {
+		try {
+			transport.close();
+		} catch (MessagingException e) {
+			logger.debug("Error closing SMTP connection", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		Deque<Transport> transportsToClose = new ArrayDeque<>();
+		synchronized (this) {
+			for (SessionPool sessionPool: sessionPools.values()) {
+				for (IdleTransport idleTransport: sessionPool.idleTransports)
+					transportsToClose.add(idleTransport.transport);
+			}
+			sessionPools.clear();
+		}
+		for (Transport transport: transportsToClose)
+			close(transport);
+	}
+
+	private static class SessionPool {
+
+		final Session session;
+
+		final Deque<IdleTransport> idleTransports = new ArrayDeque<>();
+
+		long lastUsed;
+
+		SessionPool(Session session) {
+			this.session = session;
+		}
+
+	}
+
+	private static class IdleTransport {
+
+		final Transport transport;
+
+		final long idleSince = System.currentTimeMillis();
+
+		IdleTransport(Transport transport) {
+			this.transport = transport;
+		}
+
+	}
+
+}
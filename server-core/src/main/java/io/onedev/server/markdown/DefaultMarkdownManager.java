@@ -3,6 +3,7 @@ package io.onedev.server.markdown;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -11,6 +12,8 @@ import javax.inject.Singleton;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.vladsch.flexmark.ext.anchorlink.AnchorLinkExtension;
 import com.vladsch.flexmark.ext.autolink.AutolinkExtension;
 import com.vladsch.flexmark.ext.definition.DefinitionExtension;
@@ -35,18 +38,49 @@ import io.onedev.server.web.resource.AttachmentResource;
 @Singleton
 public class DefaultMarkdownManager implements MarkdownManager {
 	
+	// Weight of cached content is measured in chars
+	private static final long MAX_CACHE_WEIGHT = 8*1024*1024;
+	
 	private final SettingManager settingManager;
 	
 	private final Set<Extension> contributedExtensions;
 	
 	private final Set<MarkdownProcessor> htmlTransformers;
 	
+	/*
+	 * Parser and renderer are thread-safe. They are built once as contributed extensions 
+	 * are fixed once injected 
+	 */
+	private final Parser parser;
+	
+	private final HtmlRenderer renderer;
+	
+	/*
+	 * Cache of rendered html keyed by markdown, and cache of sanitized html keyed by html 
+	 * to be processed. Processed html is not cached as markdown processors produce 
+	 * different results for different users and entity states 
+	 */
+	private final Cache<String, String> renderedCache = newCache();
+	
+	private final Cache<String, String> sanitizedCache = newCache();
+	
 	@Inject
 	public DefaultMarkdownManager(SettingManager settingManager, Set<Extension> contributedExtensions, 
 			Set<MarkdownProcessor> htmlTransformers) {
 		this.settingManager = settingManager;
 		this.contributedExtensions = contributedExtensions;
 		this.htmlTransformers = htmlTransformers;
+		
+		MutableDataHolder options = setupOptions();
+		parser = Parser.builder(options).build();
+		renderer = HtmlRenderer.builder(options).softBreak("<br>").build();
+	}
+	
+	private static Cache<String, String> newCache() {
+		return CacheBuilder.newBuilder()
+				.maximumWeight(MAX_CACHE_WEIGHT)
+				.weigher((String key, String value) -> key.length() + value.length())
+				.build();
 	}
 
 	private MutableDataHolder setupOptions() {
@@ -76,14 +110,21 @@ public class DefaultMarkdownManager implements MarkdownManager {
 	
 	@Override
 	public String render(String markdown) {
-		Node node = parse(markdown);
-		return HtmlRenderer.builder(setupOptions()).softBreak("<br>").build().render(node);
+		try {
+			return renderedCache.get(markdown, () -> renderer.render(parse(markdown)));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	@Override
 	public Document process(Document document, @Nullable Project project, @Nullable BlobRenderContext blobRenderContext, 
 			@Nullable SuggestionSupport suggestionSupport, boolean forExternal) {
-		document = HtmlUtils.sanitize(document);
+		return doProcess(HtmlUtils.sanitize(document), project, blobRenderContext, suggestionSupport, forExternal);
+	}
+	
+	private Document doProcess(Document document, @Nullable Project project, @Nullable BlobRenderContext blobRenderContext, 
+			@Nullable SuggestionSupport suggestionSupport, boolean forExternal) {
 		for (MarkdownProcessor htmlTransformer: htmlTransformers)
 			htmlTransformer.process(document, project, blobRenderContext, suggestionSupport);
 		
@@ -117,13 +158,17 @@ public class DefaultMarkdownManager implements MarkdownManager {
 			@Nullable BlobRenderContext blobRenderContext, 
 			@Nullable SuggestionSupport suggestionSupport, 
 			boolean forExternal) {
-		return process(HtmlUtils.parse(html), project, blobRenderContext, suggestionSupport, forExternal).body().html();
+		String sanitized;
+		try {
+			sanitized = sanitizedCache.get(html, () -> HtmlUtils.sanitize(HtmlUtils.parse(html)).body().html());
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+		return doProcess(HtmlUtils.parse(sanitized), project, blobRenderContext, suggestionSupport, forExternal).body().html();
 	}
 
 	@Override
 	public Node parse(String markdown) {
-		MutableDataHolder options = setupOptions();
-		Parser parser = Parser.builder(options).build();
 		return parser.parse(markdown);
 	}
 
@@ -51,10 +51,25 @@ import oshi.hardware.HardwareAbstractionLayer;
 
 @Singleton
 @SuppressWarnings("unused")
-public class DataMigrator {
+public class DataMigrator implements StreamingMigrator {
 	
 	private static final Logger logger = LoggerFactory.getLogger(DataMigrator.class);
 	
+	/*
+	 * Only recent element local migrate methods (migrate85 and later) are streamable. Older 
+	 * ones such as migrate1 and migrate2 keep the DOM based implementation although they 
+	 * also touch individual elements, as they only run when upgrading from old versions. 
+	 * Migrate methods correlating data across elements or files are never streamable. 
+	 * Empty migrate methods since migrate84 are marked streamable as well, so that they 
+	 * do not split composition of surrounding streamable migrate methods
+	 */
+	private final XmlStreamMigration streamMigration = new XmlStreamMigration();
+	
+	@Override
+	public void applyTransforms(Object customData) {
+		streamMigration.apply((File) customData);
+	}
+	
 	private void migrate1(File dataDir, Stack<Integer> versions) {
 		for (File file: dataDir.listFiles()) {
 			if (file.getName().startsWith("CodeComments.xml")) {
@@ -4067,59 +4082,66 @@ public class DataMigrator {
 		}
 	}
 	
+	@StreamableMigration
 	private void migrate84(File dataDir, Stack<Integer> versions) {
 	}
 	
+	@StreamableMigration
 	private void migrate85(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Builds.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) 
-					element.addElement("uuid").setText(UUID.randomUUID().toString());
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("Builds.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				element.addElement("uuid").setText(UUID.randomUUID().toString());
+				return element;
 			}
-		}
+			
+		});
 	}
 	
+	@StreamableMigration
 	private void migrate86(File dataDir, Stack<Integer> versions) {
 	}
 	
+	@StreamableMigration
 	private void migrate87(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Settings.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					String key = element.elementTextTrim("key");
-					if (key.equals("JOB_EXECUTORS")) {
-						Element valueElement = element.element("value");
-						if (valueElement != null) {
-							for (Element executorElement: valueElement.elements()) {
-								if (executorElement.getName().contains("DockerExecutor")) 
-									executorElement.addElement("mountDockerSock").setText("false");
-								else if (executorElement.getName().contains("KubernetesExecutor")) 
-									executorElement.addElement("mountContainerSock").setText("false");
-								
-								Element jobRequirementElement = executorElement.element("jobRequirement");
-								if (jobRequirementElement != null)
-									jobRequirementElement.setName("jobAuthorization");
-							}
-						}						
-					}
+		streamMigration.addTransform("Settings.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				String key = element.elementTextTrim("key");
+				if (key.equals("JOB_EXECUTORS")) {
+					Element valueElement = element.element("value");
+					if (valueElement != null) {
+						for (Element executorElement: valueElement.elements()) {
+							if (executorElement.getName().contains("DockerExecutor")) 
+								executorElement.addElement("mountDockerSock").setText("false");
+							else if (executorElement.getName().contains("KubernetesExecutor")) 
+								executorElement.addElement("mountContainerSock").setText("false");
+							
+							Element jobRequirementElement = executorElement.element("jobRequirement");
+							if (jobRequirementElement != null)
+								jobRequirementElement.setName("jobAuthorization");
+						}
+					}						
 				}
-				dom.writeToFile(file, false);
+				return element;
 			}
-		}
+			
+		});
 	}
 	
+	@StreamableMigration
 	private void migrate88(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("CodeComments.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) 
-					element.addElement("resolved").setText("false");
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("CodeComments.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				element.addElement("resolved").setText("false");
+				return element;
 			}
-		}
+			
+		});
 	}
 
 	private void migrate89(File dataDir, Stack<Integer> versions) {
@@ -4189,122 +4211,139 @@ public class DataMigrator {
 		}
 	}
 
+	@StreamableMigration
 	private void migrate90(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("PullRequests.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					Element closeInfoElement = element.element("closeInfo");
-					if (closeInfoElement != null) 
-						closeInfoElement.detach();
-				}
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("PullRequests.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				Element closeInfoElement = element.element("closeInfo");
+				if (closeInfoElement != null) 
+					closeInfoElement.detach();
+				return element;
 			}
-		}
+			
+		});
 	}
 	
+	@StreamableMigration
 	private void migrate91(File dataDir, Stack<Integer> versions) {
 	}
 	
+	@StreamableMigration
 	private void migrate92(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Issues.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements())  
-					element.addElement("confidential").setText("false");
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("Roles.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					if (element.elementTextTrim("codePrivilege").equals("WRITE"))
-						element.addElement("accessConfidentialIssues").setText("true");
-					else
-						element.addElement("accessConfidentialIssues").setText("false");
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("IssueChanges.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					Element dataElement = element.element("data");
-					if (dataElement.attributeValue("class").contains("IssueBatchUpdateData")) {
-						dataElement.addElement("oldConfidential").setText("false");
-						dataElement.addElement("newConfidential").setText("false");
-					}
-				}
-				dom.writeToFile(file, false);
-			} else if (file.getName().startsWith("Settings.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					String key = element.elementTextTrim("key");
-					if (key.equals("SERVICE_DESK_SETTING")) {
-						Element valueElement = element.element("value");
-						if (valueElement != null) {
-							for (Element issueCreationSettingElement: valueElement.element("issueCreationSettings").elements()) 
-								issueCreationSettingElement.addElement("confidential").setText("false");
-						}						
-					}
-				}
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("Issues.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				element.addElement("confidential").setText("false");
+				return element;
 			}
-		}
+			
+		});
+		streamMigration.addTransform("Roles.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				if (element.elementTextTrim("codePrivilege").equals("WRITE"))
+					element.addElement("accessConfidentialIssues").setText("true");
+				else
+					element.addElement("accessConfidentialIssues").setText("false");
+				return element;
+			}
+			
+		});
+		streamMigration.addTransform("IssueChanges.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				Element dataElement = element.element("data");
+				if (dataElement.attributeValue("class").contains("IssueBatchUpdateData")) {
+					dataElement.addElement("oldConfidential").setText("false");
+					dataElement.addElement("newConfidential").setText("false");
+				}
+				return element;
+			}
+			
+		});
+		streamMigration.addTransform("Settings.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				String key = element.elementTextTrim("key");
+				if (key.equals("SERVICE_DESK_SETTING")) {
+					Element valueElement = element.element("value");
+					if (valueElement != null) {
+						for (Element issueCreationSettingElement: valueElement.element("issueCreationSettings").elements()) 
+							issueCreationSettingElement.addElement("confidential").setText("false");
+					}						
+				}
+				return element;
+			}
+			
+		});
 	}
 	
+	@StreamableMigration
 	private void migrate93(File dataDir, Stack<Integer> versions) {
 	}
 	
+	@StreamableMigration
 	private void migrate94(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Settings.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					String key = element.elementTextTrim("key");
-					if (key.equals("MAIL")) {
-						Element valueElement = element.element("value");
-						if (valueElement != null) {
-							valueElement.addAttribute("class", "io.onedev.server.model.support.administration.mailsetting.OtherMailSetting");
-							Element receiveMailSettingElement = valueElement.element("receiveMailSetting");
-							if (receiveMailSettingElement != null) 
-								receiveMailSettingElement.setName("otherInboxPollSetting");
-						}						
-					}
-				}
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("Settings.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				String key = element.elementTextTrim("key");
+				if (key.equals("MAIL")) {
+					Element valueElement = element.element("value");
+					if (valueElement != null) {
+						valueElement.addAttribute("class", "io.onedev.server.model.support.administration.mailsetting.OtherMailSetting");
+						Element receiveMailSettingElement = valueElement.element("receiveMailSetting");
+						if (receiveMailSettingElement != null) 
+							receiveMailSettingElement.setName("otherInboxPollSetting");
+					}						
+				}
+				return element;
 			}
-		}		
+			
+		});
 	}
 	
+	@StreamableMigration
 	private void migrate95(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("GpgKeys.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					Element contentElement = element.element("content");
-					byte[] bytes = contentElement.getText().getBytes(StandardCharsets.UTF_8);
-					contentElement.setText(JVM.getBase64Codec().encode(bytes));
-				}
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("GpgKeys.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				Element contentElement = element.element("content");
+				byte[] bytes = contentElement.getText().getBytes(StandardCharsets.UTF_8);
+				contentElement.setText(JVM.getBase64Codec().encode(bytes));
+				return element;
 			}
-		}		
+			
+		});
 	}
 	
+	@StreamableMigration
 	private void migrate96(File dataDir, Stack<Integer> versions) {
-		for (File file: dataDir.listFiles()) {
-			if (file.getName().startsWith("Settings.xml")) {
-				VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
-				for (Element element: dom.getRootElement().elements()) {
-					String key = element.elementTextTrim("key");
-					if (key.equals("SERVICE_DESK_SETTING")) {
-						Element valueElement = element.element("value");
-						if (valueElement != null) {
-							Element preserveBeforeElement = valueElement.element("preserveBefore");
-							if (preserveBeforeElement != null)
-								preserveBeforeElement.detach();
-						}						
-					}
-				}
-				dom.writeToFile(file, false);
+		streamMigration.addTransform("Settings.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				String key = element.elementTextTrim("key");
+				if (key.equals("SERVICE_DESK_SETTING")) {
+					Element valueElement = element.element("value");
+					if (valueElement != null) {
+						Element preserveBeforeElement = valueElement.element("preserveBefore");
+						if (preserveBeforeElement != null)
+							preserveBeforeElement.detach();
+					}						
+				}
+				return element;
 			}
-		}		
+			
+		});
 	}
 	
 	private void migrate97(File dataDir, Stack<Integer> versions) {
@@ -4330,6 +4369,7 @@ public class DataMigrator {
 		}		
 	}
 	
+	@StreamableMigration
 	private void migrate98(File dataDir, Stack<Integer> versions) {
 	}
 	
@@ -145,6 +145,10 @@ public class MigrationHelper {
 						String.valueOf(previousVersion), 
 						String.valueOf(currentVersion)};
 				logger.debug("Migrating data (migrator: {}, from version: {}, " + "to version: {})", params);
+				if (migrator instanceof StreamingMigrator
+						&& !migrateMethod.isAnnotationPresent(StreamableMigration.class)) {
+					((StreamingMigrator) migrator).applyTransforms(customData);
+				}
 				try {
 					migrateMethod.invoke(migrator, customData, versionParts);
 				} catch (Exception e) {
@@ -154,6 +158,8 @@ public class MigrationHelper {
 			}
 			current = current.getSuperclass();
 		}
+		if (migrator instanceof StreamingMigrator)
+			((StreamingMigrator) migrator).applyTransforms(customData);
 		return migrated;
 	}	
 }
@@ -0,0 +1,19 @@
+package io.onedev.server.migration;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a migrate method of a {@link StreamingMigrator} as only registering element
+ * transforms without touching data files directly. Consecutive streamable migrate methods
+ * are composed and applied together in a single pass of each data file. Empty migrate
+ * methods should also be marked, as otherwise they apply transforms registered so far
+ * and break the composition.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StreamableMigration {
+
+}
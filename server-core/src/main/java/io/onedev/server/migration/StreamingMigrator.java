@@ -0,0 +1,18 @@
+package io.onedev.server.migration;
+
+/**
+ * A migrator with some migrate methods annotated with {@link StreamableMigration}.
+ * {@link MigrationHelper} calls {@link #applyTransforms(Object)} before running a migrate
+ * method not streamable, and after running all migrate methods.
+ */
+public interface StreamingMigrator {
+
+	/**
+	 * Apply element transforms registered by streamable migrate methods run so far
+	 *
+	 * @param customData
+	 * 			custom data passed to migrate methods
+	 */
+	void applyTransforms(Object customData);
+
+}
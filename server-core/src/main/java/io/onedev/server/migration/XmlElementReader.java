@@ -0,0 +1,154 @@
+package io.onedev.server.migration;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * Reads child elements of root element of a xml file one by one, so that large xml files
+ * can be processed without loading whole document into memory. Each element is returned
+ * as a detached dom4j element, with same content as would be parsed by {@link VersionedXmlDoc#fromFile(File)}.
+ */
+public class XmlElementReader implements Closeable {
+
+	private static final String XML_1_0_DECLARATION = "<?xml version=\"1.0\"";
+
+	private static final String XML_1_1_DECLARATION = "<?xml version=\"1.1\"";
+
+	private static final XMLInputFactory inputFactory;
+
+	static {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private final Reader fileReader;
+
+	private final XMLStreamReader reader;
+
+	private final String rootName;
+
+	public XmlElementReader(File file) {
+		try {
+			fileReader = openFile(file);
+			try {
+				reader = inputFactory.createXMLStreamReader(fileReader);
+				if (reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+					throw new XMLStreamException("Root element not found");
+				rootName = reader.getLocalName();
+			} catch (XMLStreamException e) {
+				fileReader.close();
+				throw e;
+			}
+		} catch (IOException | XMLStreamException e) {
+			throw new RuntimeException("Error reading xml file: " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/*
+	 * May contain some invalid characters, parse with 1.1 as VersionedXmlDoc does
+	 */
+	private static Reader openFile(File file) throws IOException {
+		PushbackReader reader = new PushbackReader(new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8)), XML_1_0_DECLARATION.length());
+		char[] buffer = new char[XML_1_0_DECLARATION.length()];
+		int length = 0;
+		int count;
+		while (length < buffer.length && (count = reader.read(buffer, length, buffer.length - length)) != -1)
+			length += count;
+		String prefix = new String(buffer, 0, length);
+		if (prefix.equals(XML_1_0_DECLARATION))
+			prefix = XML_1_1_DECLARATION;
+		reader.unread(prefix.toCharArray());
+		return reader;
+	}
+
+	public String getRootName() {
+		return rootName;
+	}
+
+	/**
+	 * Read next child element of root element
+	 *
+	 * @return
+	 * 			next child element of root element, or <tt>null</tt> if all child elements
+	 * 			have been read
+	 */
+	@Nullable
+	public Element readElement() {
+		try {
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT)
+					return readCurrentElement();
+				else if (event == XMLStreamConstants.END_ELEMENT)
+					return null;
+			}
+			return null;
+		} catch (XMLStreamException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Element readCurrentElement() throws XMLStreamException {
+		Deque<Element> stack = new ArrayDeque<>();
+		Element element = newElement();
+		stack.push(element);
+		while (!stack.isEmpty()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				Element child = newElement();
+				stack.peek().add(child);
+				stack.push(child);
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				stack.pop();
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				stack.peek().addText(reader.getText());
+				break;
+			default:
+			}
+		}
+		return element;
+	}
+
+	private Element newElement() {
+		Element element = DocumentHelper.createElement(reader.getLocalName());
+		for (int i=0; i<reader.getAttributeCount(); i++)
+			element.addAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+		return element;
+	}
+
+	@Override
+	public void close() {
+		try {
+			reader.close();
+			fileReader.close();
+		} catch (XMLStreamException | IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
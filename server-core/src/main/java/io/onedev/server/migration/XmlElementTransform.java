@@ -0,0 +1,21 @@
+package io.onedev.server.migration;
+
+import javax.annotation.Nullable;
+
+import org.dom4j.Element;
+
+/**
+ * Transforms a child element of root element of a data file. See {@link XmlStreamMigration}.
+ */
+public interface XmlElementTransform {
+
+	/**
+	 * @param element
+	 * 			detached child element of root element to transform
+	 * @return
+	 * 			transformed element to be written back, or <tt>null</tt> to remove the element
+	 */
+	@Nullable
+	Element transform(Element element);
+
+}
@@ -0,0 +1,76 @@
+package io.onedev.server.migration;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+import org.xml.sax.SAXException;
+
+/**
+ * Writes a xml file by appending child elements of root element one by one, so that large
+ * xml files can be written without holding whole document in memory. Written file can be
+ * read back either with {@link XmlElementReader} or with {@link VersionedXmlDoc#fromFile(File)}.
+ */
+public class XmlElementWriter implements Closeable {
+
+	private final XMLWriter writer;
+	
+	private final Element root;
+
+	/*
+	 * Written with dom4j as VersionedXmlDoc does, which escapes control characters 
+	 * as character references. These characters are not allowed in xml 1.0, and are 
+	 * read back by parsing as xml 1.1
+	 */
+	public XmlElementWriter(File file, String rootName) {
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				OutputFormat format = new OutputFormat();
+				format.setEncoding(StandardCharsets.UTF_8.name());
+				writer = new XMLWriter(os, format);
+				writer.startDocument();
+				root = DocumentHelper.createElement(rootName);
+				writer.writeOpen(root);
+			} catch (IOException | SAXException e) {
+				os.close();
+				throw e;
+			}
+		} catch (IOException | SAXException e) {
+			throw new RuntimeException("Error writing xml file: " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Append specified element as child of root element
+	 */
+	public void writeElement(Element element) {
+		try {
+			writer.write("\n  ");
+			writer.write(element);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			writer.write("\n");
+			writer.writeClose(root);
+			writer.write("\n");
+			writer.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package io.onedev.server.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dom4j.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.onedev.commons.utils.ExceptionUtils;
+
+/**
+ * Collects element transforms of data files, and applies them with a single streaming pass
+ * of each affected file, instead of loading and rewriting whole document for each migration
+ * step. Transforms of the same file are applied in order of registration, and different
+ * files are processed in parallel.
+ */
+public class XmlStreamMigration {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlStreamMigration.class);
+
+	private final int concurrency;
+
+	private final Map<String, List<XmlElementTransform>> transforms = new LinkedHashMap<>();
+
+	/**
+	 * @param concurrency
+	 * 			max number of data files to process concurrently
+	 */
+	public XmlStreamMigration(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public XmlStreamMigration() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Register a transform for child elements of data files of specified name
+	 *
+	 * @param fileName
+	 * 			name of data file, for instance <tt>Issues.xml</tt>. Split files such as
+	 * 			<tt>Issues.xml.1</tt> will also be transformed
+	 * @param transform
+	 * 			transform to apply
+	 */
+	public synchronized void addTransform(String fileName, XmlElementTransform transform) {
+		List<XmlElementTransform> transformsOfFile = transforms.get(fileName);
+		if (transformsOfFile == null) {
+			transformsOfFile = new ArrayList<>();
+			transforms.put(fileName, transformsOfFile);
+		}
+		transformsOfFile.add(transform);
+	}
+
+	public synchronized boolean hasTransforms() {
+		return !transforms.isEmpty();
+	}
+
+	/**
+	 * Apply all registered transforms to data files under specified directory, and clear
+	 * them afterwards
+	 */
+	public void apply(File dataDir) {
+		Map<File, List<XmlElementTransform>> transformsOfFiles = new LinkedHashMap<>();
+		synchronized (this) {
+			for (File file: dataDir.listFiles()) {
+				for (Map.Entry<String, List<XmlElementTransform>> entry: transforms.entrySet()) {
+					if (file.getName().startsWith(entry.getKey())) {
+						transformsOfFiles.put(file, new ArrayList<>(entry.getValue()));
+						break;
+					}
+				}
+			}
+			transforms.clear();
+		}
+		if (transformsOfFiles.isEmpty())
+			return;
+
+		long time = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, transformsOfFiles.size()));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Map.Entry<File, List<XmlElementTransform>> entry: transformsOfFiles.entrySet()) {
+				futures.add(executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						transform(entry.getKey(), entry.getValue());
+					}
+
+				}));
+			}
+			for (Future<?> future: futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.debug("Transformed {} data files in {} ms", transformsOfFiles.size(),
+				System.currentTimeMillis() - time);
+	}
+
+	private void transform(File file, List<XmlElementTransform> transformsOfFile) {
+		// Prefix with dot so that it will not be taken as a data file if left over
+		File tempFile = new File(file.getParentFile(), "." + file.getName() + ".migrating");
+		try {
+			try (	XmlElementReader reader = new XmlElementReader(file);
+					XmlElementWriter writer = new XmlElementWriter(tempFile, reader.getRootName())) {
+				Element element;
+				while ((element = reader.readElement()) != null) {
+					for (XmlElementTransform transform: transformsOfFile) {
+						element = transform.transform(element);
+						if (element == null)
+							break;
+					}
+					if (element != null)
+						writer.writeElement(element);
+				}
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException("Error transforming data file: " + file.getAbsolutePath(), e);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+}
@@ -18,7 +18,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,7 +46,6 @@ import javax.validation.Validator;
 
 import org.apache.commons.collections4.map.AbstractReferenceMap.ReferenceStrength;
 import org.apache.commons.collections4.map.ReferenceMap;
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.shiro.authz.Permission;
 import org.apache.tika.mime.MediaType;
 import org.apache.wicket.util.encoding.UrlEncoder;
@@ -55,7 +53,6 @@ import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.eclipse.jgit.api.CreateBranchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
@@ -67,7 +64,6 @@ import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.revwalk.LastCommitsOfChildren;
-import org.eclipse.jgit.revwalk.LastCommitsOfChildren.Value;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -112,6 +108,7 @@ import io.onedev.server.git.BlobIdent;
 import io.onedev.server.git.BlobIdentFilter;
 import io.onedev.server.git.GitUtils;
 import io.onedev.server.git.RefInfo;
+import io.onedev.server.git.RepositoryCacheManager;
 import io.onedev.server.git.Submodule;
 import io.onedev.server.git.command.BlameCommand;
 import io.onedev.server.git.command.GetRawCommitCommand;
@@ -122,6 +119,7 @@ import io.onedev.server.git.exception.ObjectNotFoundException;
 import io.onedev.server.git.signature.SignatureVerificationKeyLoader;
 import io.onedev.server.git.signature.SignatureVerified;
 import io.onedev.server.infomanager.CommitInfoManager;
+import io.onedev.server.infomanager.RefInfoManager;
 import io.onedev.server.model.Build.Status;
 import io.onedev.server.model.support.BranchProtection;
 import io.onedev.server.model.support.FileProtection;
@@ -230,8 +228,6 @@ public class Project extends AbstractEntity {
 			NAME_SERVICE_DESK_NAME, PROP_SERVICE_DESK_NAME,
 			NAME_UPDATE_DATE, PROP_UPDATE_DATE);
 	
-	private static final int LAST_COMMITS_CACHE_THRESHOLD = 1000;
-	
 	static ThreadLocal<Stack<Project>> stack =  new ThreadLocal<Stack<Project>>() {
 
 		@Override
@@ -587,17 +583,7 @@ public class Project extends AbstractEntity {
 	}
 	
 	public List<RefInfo> getBranchRefInfos() {
-		List<RefInfo> refInfos = getRefInfos(Constants.R_HEADS);
-		for (Iterator<RefInfo> it = refInfos.iterator(); it.hasNext();) {
-			RefInfo refInfo = it.next();
-			if (refInfo.getRef().getName().equals(GitUtils.branch2ref(getDefaultBranch()))) {
-				it.remove();
-				refInfos.add(0, refInfo);
-				break;
-			}
-		}
-		
-		return refInfos;
+		return getRefInfos(Constants.R_HEADS);
     }
 	
 	public List<RefInfo> getTagRefInfos() {
@@ -605,6 +591,21 @@ public class Project extends AbstractEntity {
     }
 	
 	public List<RefInfo> getRefInfos(String prefix) {
+		if (prefix.startsWith(Constants.R_HEADS) || prefix.startsWith(Constants.R_TAGS))
+			return getRefInfos(prefix, null, 0, Integer.MAX_VALUE);
+		else
+			return readRefInfos(prefix);
+    }
+	
+	/**
+	 * Read ref infos from repository directly without consulting ref index. Ref index is 
+	 * only updated via {@link RefUpdated} events, so this should be used to find out refs 
+	 * changed by git operations performed outside of OneDev, for instance a fetch
+	 * 
+	 * @return
+	 * 			ref infos pointing to commits, ordered by date descendingly
+	 */
+	public List<RefInfo> readRefInfos(String prefix) {
 		try (RevWalk revWalk = new RevWalk(getRepository())) {
 			List<Ref> refs = new ArrayList<Ref>(getRepository().getRefDatabase().getRefsByPrefix(prefix));
 			List<RefInfo> refInfos = refs.stream()
@@ -618,6 +619,28 @@ public class Project extends AbstractEntity {
 			throw new RuntimeException(e);
 		}
     }
+	
+	/**
+	 * Get a page of branch or tag ref infos from ref index. Only refs of the page are parsed 
+	 * 
+	 * @param prefix
+	 * 			prefix of refs, should start with <tt>refs/heads/</tt> or <tt>refs/tags/</tt>
+	 * @param nameQuery
+	 * 			only return refs whose names after prefix contain this string case-insensitively, 
+	 * 			or <tt>null</tt> to return all refs with specified prefix
+	 * @return
+	 * 			ref infos ordered by date descendingly, with default branch being the first
+	 */
+	public List<RefInfo> getRefInfos(String prefix, @Nullable String nameQuery, int offset, int count) {
+		List<Ref> refs = OneDev.getInstance(RefInfoManager.class).queryRefs(this, prefix, nameQuery, offset, count);
+		try (RevWalk revWalk = new RevWalk(getRepository())) {
+			return refs.stream().map(ref->new RefInfo(revWalk, ref)).collect(Collectors.toList());
+		}
+	}
+	
+	public int countRefInfos(String prefix, @Nullable String nameQuery) {
+		return OneDev.getInstance(RefInfoManager.class).countRefs(this, prefix, nameQuery);
+	}
 
 	public Git git() {
 		return Git.wrap(getRepository()); 
@@ -742,47 +765,53 @@ public class Project extends AbstractEntity {
 		
 		Optional<Blob> blob = getBlobCache().get(blobIdent);
 		if (blob == null) {
-			try (RevWalk revWalk = new RevWalk(getRepository())) {
-				ObjectId revId = getObjectId(blobIdent.revision, mustExist);		
-				if (revId != null) {
-					RevCommit commit = GitUtils.parseCommit(revWalk, revId);
-					if (commit != null) {
-						RevTree revTree = commit.getTree();
-						TreeWalk treeWalk = TreeWalk.forPath(getRepository(), blobIdent.path, revTree);
-						if (treeWalk != null) {
-							ObjectId blobId = treeWalk.getObjectId(0);
-							if (blobIdent.isGitLink()) {
-								String url = getSubmodules(blobIdent.revision).get(blobIdent.path);
-								if (url == null) {
-									logger.error("Unable to find submodule (project: {}, revision: {}, path: {})", 
-											getPath(), blobIdent.revision, blobIdent.path);
-									blob = Optional.of(new Blob(blobIdent, blobId, treeWalk.getObjectReader()));
-								} else {
-									String hash = blobId.name();
-									blob = Optional.of(new Blob(blobIdent, blobId, new Submodule(url, hash).toString().getBytes()));
-								}
-							} else if (blobIdent.isTree()) {
-								throw new NotFileException("Path '" + blobIdent.path + "' is a tree");
-							} else {
-								blob = Optional.of(new Blob(blobIdent, blobId, treeWalk.getObjectReader()));
-							}
-						} 
-					} 				
-				} 
-				if (blob == null) {
-					if (mustExist)
-						throw new ObjectNotFoundException("Unable to find blob ident: " + blobIdent);
-					else 
-						blob = Optional.absent();
-				}
-				getBlobCache().put(blobIdent, blob);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+			ObjectId revId = getObjectId(blobIdent.revision, mustExist);		
+			if (revId != null) {
+				blob = OneDev.getInstance(RepositoryCacheManager.class).getBlob(getId(), revId, blobIdent, 
+						() -> readBlob(blobIdent, revId));
+			} else {
+				blob = Optional.absent();
 			}
+			if (mustExist && !blob.isPresent())
+				throw new ObjectNotFoundException("Unable to find blob ident: " + blobIdent);
+			getBlobCache().put(blobIdent, blob);
 		}
 		return blob.orNull();
 	}
 	
+	private Optional<Blob> readBlob(BlobIdent blobIdent, ObjectId revId) {
+		// Blob is shared across sessions, do not let it hold ident which may be changed by caller
+		blobIdent = new BlobIdent(blobIdent);
+		try (RevWalk revWalk = new RevWalk(getRepository())) {
+			RevCommit commit = GitUtils.parseCommit(revWalk, revId);
+			if (commit != null) {
+				RevTree revTree = commit.getTree();
+				TreeWalk treeWalk = TreeWalk.forPath(getRepository(), blobIdent.path, revTree);
+				if (treeWalk != null) {
+					ObjectId blobId = treeWalk.getObjectId(0);
+					if (blobIdent.isGitLink()) {
+						String url = getSubmodules(blobIdent.revision).get(blobIdent.path);
+						if (url == null) {
+							logger.error("Unable to find submodule (project: {}, revision: {}, path: {})", 
+									getPath(), blobIdent.revision, blobIdent.path);
+							return Optional.of(new Blob(blobIdent, blobId, treeWalk.getObjectReader()));
+						} else {
+							String hash = blobId.name();
+							return Optional.of(new Blob(blobIdent, blobId, new Submodule(url, hash).toString().getBytes()));
+						}
+					} else if (blobIdent.isTree()) {
+						throw new NotFileException("Path '" + blobIdent.path + "' is a tree");
+					} else {
+						return Optional.of(new Blob(blobIdent, blobId, treeWalk.getObjectReader()));
+					}
+				} 
+			} 				
+			return Optional.absent();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public InputStream getInputStream(BlobIdent ident) {
 		try (RevWalk revWalk = new RevWalk(getRepository())) {
 			ObjectId commitId = getObjectId(ident.revision, true);
@@ -814,11 +843,12 @@ public class Project extends AbstractEntity {
 	@Nullable
 	public ObjectId getObjectId(String revision, boolean mustExist) {
 		if (objectIdCache == null)
-			objectIdCache = new HashMap<>();
+			objectIdCache = new ConcurrentHashMap<>();
 		
 		Optional<ObjectId> optional = objectIdCache.get(revision);
 		if (optional == null) {
-			optional = Optional.fromNullable(GitUtils.resolve(getRepository(), revision));
+			optional = OneDev.getInstance(RepositoryCacheManager.class).getObjectId(getId(), revision, 
+					() -> getRepository());
 			objectIdCache.put(revision, optional);
 		}
 		if (mustExist && !optional.isPresent())
@@ -828,7 +858,7 @@ public class Project extends AbstractEntity {
 	
 	public void cacheObjectId(String revision, @Nullable ObjectId objectId) {
 		if (objectIdCache == null)
-			objectIdCache = new HashMap<>();
+			objectIdCache = new ConcurrentHashMap<>();
 		
 		objectIdCache.put(revision, Optional.fromNullable(objectId));
 	}
@@ -933,79 +963,8 @@ public class Project extends AbstractEntity {
 	}
 	
 	public LastCommitsOfChildren getLastCommitsOfChildren(String revision, @Nullable String path) {
-		if (path == null)
-			path = "";
-		
-		final File cacheDir = new File(
-				OneDev.getInstance(StorageManager.class).getProjectInfoDir(getId()), 
-				"last_commits/" + path + "/onedev_last_commits");
-		
-		final ReadWriteLock lock;
-		try {
-			lock = LockUtils.getReadWriteLock(cacheDir.getCanonicalPath());
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		
-		final Set<ObjectId> commitIds = new HashSet<>(); 
-		
-		lock.readLock().lock();
-		try {
-			if (cacheDir.exists()) {
-				for (String each: cacheDir.list()) 
-					commitIds.add(ObjectId.fromString(each));
-			} 	
-		} finally {
-			lock.readLock().unlock();
-		}
-		
-		org.eclipse.jgit.revwalk.LastCommitsOfChildren.Cache cache;
-		if (!commitIds.isEmpty()) {
-			cache = new org.eclipse.jgit.revwalk.LastCommitsOfChildren.Cache() {
-	
-				@SuppressWarnings("unchecked")
-				@Override
-				public Map<String, Value> getLastCommitsOfChildren(ObjectId commitId) {
-					if (commitIds.contains(commitId)) {
-						lock.readLock().lock();
-						try {
-							byte[] bytes = FileUtils.readFileToByteArray(new File(cacheDir, commitId.name()));
-							return (Map<String, Value>) SerializationUtils.deserialize(bytes);
-						} catch (IOException e) {
-							throw new RuntimeException(e);
-						} finally {
-							lock.readLock().unlock();
-						}
-					} else {
-						return null;
-					}
-				}
-				
-			};
-		} else {
-			cache = null;
-		}
-
-		final AnyObjectId commitId = getObjectId(revision, true);
-		
-		long time = System.currentTimeMillis();
-		LastCommitsOfChildren lastCommits = new LastCommitsOfChildren(getRepository(), commitId, path, cache);
-		long elapsed = System.currentTimeMillis()-time;
-		if (elapsed > LAST_COMMITS_CACHE_THRESHOLD) {
-			lock.writeLock().lock();
-			try {
-				if (!cacheDir.exists())
-					FileUtils.createDir(cacheDir);
-				FileUtils.writeByteArrayToFile(
-						new File(cacheDir, commitId.name()), 
-						SerializationUtils.serialize(lastCommits));
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			} finally {
-				lock.writeLock().unlock();
-			}
-		}
-		return lastCommits;
+		return OneDev.getInstance(CommitInfoManager.class).getLastCommitsOfChildren(
+				this, getObjectId(revision, true), path);
 	}
 
 	@Nullable
@@ -1065,9 +1024,11 @@ public class Project extends AbstractEntity {
 		RevCommit commit;
 		Optional<RevCommit> optional = commitCache.get(revId);
 		if (optional == null) {
-			try (RevWalk revWalk = new RevWalk(getRepository())) {
-				optional = Optional.fromNullable(GitUtils.parseCommit(revWalk, revId));
-			}
+			optional = OneDev.getInstance(RepositoryCacheManager.class).getCommit(getId(), revId, () -> {
+				try (RevWalk revWalk = new RevWalk(getRepository())) {
+					return Optional.fromNullable(GitUtils.parseCommit(revWalk, revId));
+				}
+			});
 			commitCache.put(revId, optional);
 		}
 		commit = optional.orNull();
@@ -57,6 +57,7 @@ import io.onedev.server.entitymanager.PullRequestManager;
 import io.onedev.server.entitymanager.UserManager;
 import io.onedev.server.entityreference.Referenceable;
 import io.onedev.server.git.GitUtils;
+import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.infomanager.PullRequestInfoManager;
 import io.onedev.server.infomanager.UserInfoManager;
 import io.onedev.server.model.support.BranchProtection;
@@ -786,7 +787,7 @@ public class PullRequest extends AbstractEntity implements Referenceable, Attach
 	
 	public boolean isMergedIntoTarget() {
 		if (mergedIntoTarget == null) { 
-			mergedIntoTarget = GitUtils.isMergedInto(getTargetProject().getRepository(), null, 
+			mergedIntoTarget = OneDev.getInstance(CommitInfoManager.class).isMergedInto(getTargetProject(), 
 					ObjectId.fromString(getLatestUpdate().getHeadCommitHash()), getTarget().getObjectId());
 		}
 		return mergedIntoTarget;
@@ -980,9 +981,10 @@ public class PullRequest extends AbstractEntity implements Referenceable, Attach
 				if (update.getCommits().contains(newCommitId)) {
 					ObjectId targetHead = ObjectId.fromString(update.getTargetHeadCommitHash());
 					Repository repo = getTargetProject().getRepository();
-					ObjectId mergeBase1 = GitUtils.getMergeBase(repo, targetHead, newCommitId);
+					CommitInfoManager commitInfoManager = OneDev.getInstance(CommitInfoManager.class);
+					ObjectId mergeBase1 = commitInfoManager.getMergeBase(getTargetProject(), targetHead, newCommitId);
 					if (mergeBase1 != null) {
-						ObjectId mergeBase2 = GitUtils.getMergeBase(repo, mergeBase1, oldCommitId);
+						ObjectId mergeBase2 = commitInfoManager.getMergeBase(getTargetProject(), mergeBase1, oldCommitId);
 						if (mergeBase2.equals(mergeBase1)) {
 							comparisonBase = oldCommitId;
 							break;
@@ -1110,7 +1112,7 @@ public class PullRequest extends AbstractEntity implements Referenceable, Attach
 				return "Change already merged";
 		}
 		
-		if (GitUtils.isMergedInto(getTargetProject().getRepository(), null,
+		if (OneDev.getInstance(CommitInfoManager.class).isMergedInto(getTargetProject(),
 						getSource().getObjectId(), getTarget().getObjectId())) {
 			return "Source branch already merged into target branch";
 		}
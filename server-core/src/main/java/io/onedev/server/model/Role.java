@@ -335,17 +335,29 @@ public class Role extends AbstractEntity implements Permission, Validatable {
 
 	@Override
 	public boolean implies(Permission p) {
-		for (Permission each: getPermissions()) {
+		return implies(p, SecurityUtils.getUser() != null);
+	}
+	
+	/**
+	 * Check whether or not this role implies specified permission for a user with specified 
+	 * login state, regardless of the current user
+	 * 
+	 * @param loggedIn
+	 * 			whether or not the user being checked is logged in, as this role grants less 
+	 * 			permissions to anonymous users
+	 */
+	public boolean implies(Permission p, boolean loggedIn) {
+		for (Permission each: getPermissions(loggedIn)) {
 			if (each.implies(p))
 				return true;
 		}
 		return false;
 	}
 	
-	private Collection<Permission> getPermissions() {
+	private Collection<Permission> getPermissions(boolean loggedIn) {
 		Collection<Permission> permissions = Lists.newArrayList(new AccessProject());
 		
-		if (SecurityUtils.getUser() != null) {
+		if (loggedIn) {
 			if (manageProject) 
 				permissions.add(new ManageProject());
 			if (createChildren)
@@ -72,6 +72,8 @@ public class WebHook implements Serializable {
 	private List<EventType> eventTypes = new ArrayList<>();
 	
 	private String secret = RandomStringUtils.randomAlphanumeric(20);
+	
+	private boolean batchEvents;
 
 	@Editable(order=100, description="The URL of the server endpoint that will receive the webhook POST requests")
 	@NotEmpty
@@ -103,5 +105,15 @@ public class WebHook implements Serializable {
 	public void setSecret(String secret) {
 		this.secret = secret;
 	}
+
+	@Editable(order=400, description="If enabled, events pending delivery to the payload URL will be posted together "
+			+ "as a json array, instead of one event per POST request")
+	public boolean isBatchEvents() {
+		return batchEvents;
+	}
+
+	public void setBatchEvents(boolean batchEvents) {
+		this.batchEvents = batchEvents;
+	}
 	
 }
@@ -2,6 +2,8 @@ package io.onedev.server.model.support.administration;
 
 import java.io.Serializable;
 
+import javax.validation.constraints.Min;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +24,8 @@ public class PerformanceSetting implements Serializable {
 	
 	private int serverJobExecutorMemoryQuota;
 	
+	private Integer projectJobConcurrency;
+	
 	private int maxGitLFSFileSize = 4096;  
 	
 	private int maxUploadFileSize = 20;
@@ -77,6 +81,19 @@ public class PerformanceSetting implements Serializable {
 		this.serverJobExecutorMemoryQuota = serverJobExecutorMemoryQuota;
 	}
 
+	@Editable(order=550, name="Max Concurrent Jobs per Project", placeholder="Unlimited", description="Optionally "
+			+ "specify max number of concurrently running jobs of a single project, so that a project with many "
+			+ "queued jobs does not occupy all job resources. Exceeding jobs will wait while jobs of other "
+			+ "projects proceed")
+	@Min(1)
+	public Integer getProjectJobConcurrency() {
+		return projectJobConcurrency;
+	}
+
+	public void setProjectJobConcurrency(Integer projectJobConcurrency) {
+		this.projectJobConcurrency = projectJobConcurrency;
+	}
+
 	@Editable(order=600, name="Max Git LFS File Size (MB)", description="Specify max git LFS file size in mega bytes")
 	public int getMaxGitLFSFileSize() {
 		return maxGitLFSFileSize;
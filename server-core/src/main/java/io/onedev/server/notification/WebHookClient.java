@@ -0,0 +1,112 @@
+package io.onedev.server.notification;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Posts web hook payloads over a shared pool of connections, so that connections to same
+ * host are reused across deliveries, and number of connections to each host is limited.
+ */
+public class WebHookClient implements Closeable {
+
+	public static final String SIGNATURE_HEAD = "X-OneDev-Signature";
+
+	private static final int MAX_RESPONSE_LENGTH = 1024;
+
+	private final CloseableHttpClient client;
+
+	/**
+	 * @param maxConnections
+	 * 			max number of pooled connections
+	 * @param maxConnectionsPerHost
+	 * 			max number of pooled connections to a single host
+	 * @param timeout
+	 * 			timeout in milliseconds to connect, to wait for a pooled connection and to
+	 * 			wait for response data
+	 */
+	public WebHookClient(int maxConnections, int maxConnectionsPerHost, int timeout) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(timeout)
+				.setConnectionRequestTimeout(timeout)
+				.setSocketTimeout(timeout)
+				.build();
+
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(60L, TimeUnit.SECONDS)
+				.disableAutomaticRetries()
+				.build();
+	}
+
+	/**
+	 * Post specified json payload to specified url.
+	 *
+	 * @throws IOException
+	 * 			if payload can not be delivered
+	 * @throws WebHookClient.RejectedException
+	 * 			if endpoint responds with a status indicating that the request should not
+	 * 			be retried
+	 */
+	public void post(String postUrl, String secret, String payload) throws IOException {
+		HttpPost httpPost = new HttpPost(postUrl);
+		httpPost.setEntity(new StringEntity(payload, StandardCharsets.UTF_8.name()));
+		httpPost.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+		httpPost.setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+		httpPost.setHeader(HttpHeaders.ACCEPT_CHARSET, StandardCharsets.UTF_8.name());
+		httpPost.setHeader(SIGNATURE_HEAD, secret);
+
+		try (CloseableHttpResponse response = client.execute(httpPost)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			String responseText;
+			if (response.getEntity() != null)
+				responseText = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			else
+				responseText = "";
+			if (statusCode < 200 || statusCode >= 300) {
+				if (responseText.length() > MAX_RESPONSE_LENGTH)
+					responseText = responseText.substring(0, MAX_RESPONSE_LENGTH) + "...";
+				String message = "Unexpected response (status code: " + statusCode + ", response: " + responseText + ")";
+				if (statusCode >= 500 || statusCode == 429 || statusCode == 408)
+					throw new IOException(message);
+				else
+					throw new RejectedException(message);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+	}
+
+	public static class RejectedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public RejectedException(String message) {
+			super(message);
+		}
+
+	}
+
+}
@@ -1,22 +1,27 @@
 package io.onedev.server.notification;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import javax.ws.rs.core.HttpHeaders;
-import javax.ws.rs.core.MediaType;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+
+import org.quartz.ScheduleBuilder;
+import org.quartz.SimpleScheduleBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,27 +29,108 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.onedev.commons.loader.Listen;
+import io.onedev.commons.utils.FileUtils;
 import io.onedev.server.event.ProjectEvent;
+import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.event.system.SystemStopping;
+import io.onedev.server.infomanager.AbstractSingleEnvironmentManager;
 import io.onedev.server.model.support.WebHook;
 import io.onedev.server.persistence.annotation.Sessional;
+import io.onedev.server.storage.StorageManager;
+import io.onedev.server.util.concurrent.CategorizedRunnable;
+import io.onedev.server.util.concurrent.TaskCategory;
+import io.onedev.server.util.schedule.SchedulableTask;
+import io.onedev.server.util.schedule.TaskScheduler;
+import jetbrains.exodus.ArrayByteIterable;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.Transaction;
+import jetbrains.exodus.env.TransactionalExecutable;
 
+/**
+ * Delivers web hook events via an outbound queue persisted in an environment, so that
+ * undelivered events survive server restart. Events of each endpoint are delivered in
+ * order by at most one task at a time. Deliveries failed with a retryable error are
+ * retried with exponential backoff, and if batching is enabled for the web hook, pending
+ * events of the endpoint are posted together as a json array.
+ */
 @Singleton
-public class WebHookManager {
+public class WebHookManager extends AbstractSingleEnvironmentManager {
 
 	private static final Logger logger = LoggerFactory.getLogger(WebHookManager.class);
-	
-	private static final String SIGNATURE_HEAD = "X-OneDev-Signature";
-	
+
+	private static final int INFO_VERSION = 1;
+
+	private static final String INFO_DIR = "webhook";
+
+	private static final String DELIVERIES_STORE = "deliveries";
+
+	private static final int MAX_CONNECTIONS = 200;
+
+	private static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+	private static final int TIMEOUT = 30000;
+
+	private static final int MAX_ATTEMPTS = 10;
+
+	private static final long INITIAL_RETRY_DELAY = 10000L;
+
+	private static final long MAX_RETRY_DELAY = 3600000L;
+
+	private static final int MAX_BATCH_SIZE = 100;
+
+	private static final int MAX_PENDING_DELIVERIES = 10000;
+
+	private static final int RETRY_CHECK_INTERVAL = 5;
+
 	private final ObjectMapper mapper;
-	
+
 	private final ExecutorService executor;
 
+	private final StorageManager storageManager;
+
+	private final TaskScheduler taskScheduler;
+
+	private final WebHookClient client;
+
+	private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextDeliveryId = new AtomicLong(1);
+
+	private final AtomicLong deliveredCount = new AtomicLong();
+
+	private final AtomicLong failedCount = new AtomicLong();
+
+	private final AtomicLong retriedCount = new AtomicLong();
+
+	private volatile long averageLatency;
+
+	private volatile boolean started;
+
+	private volatile boolean stopping;
+
+	private boolean loaded;
+
+	private String retryTaskId;
+
 	@Inject
-	public WebHookManager(ObjectMapper mapper, ExecutorService executor) {
+	public WebHookManager(ObjectMapper mapper, ExecutorService executor, StorageManager storageManager,
+			TaskScheduler taskScheduler) {
+		this(mapper, executor, storageManager, taskScheduler, 
+				new WebHookClient(MAX_CONNECTIONS, MAX_CONNECTIONS_PER_HOST, TIMEOUT));
+	}
+
+	WebHookManager(ObjectMapper mapper, ExecutorService executor, StorageManager storageManager,
+			TaskScheduler taskScheduler, WebHookClient client) {
 		this.mapper = mapper;
 		this.executor = executor;
+		this.storageManager = storageManager;
+		this.taskScheduler = taskScheduler;
+		this.client = client;
 	}
-	
+
 	@Sessional
 	@Listen
 	public void on(ProjectEvent event) {
@@ -54,52 +140,447 @@ public class WebHookManager {
 		} catch (JsonProcessingException e) {
 			throw new RuntimeException(e);
 		}
-		
+
+		List<WebHook> webHooks = new ArrayList<>();
 		for (WebHook webHook: event.getProject().getHierarchyWebHooks()) {
 			for (WebHook.EventType eventType: webHook.getEventTypes()) {
 				if (eventType.includes(event)) {
-					executor.submit(new Runnable() {
-
-						@Override
-						public void run() {
-							CloseableHttpClient client = HttpClients.createDefault();
-							try {
-							    HttpPost httpPost = new HttpPost(webHook.getPostUrl());
-							 
-							    StringEntity entity = new StringEntity(jsonOfEvent, StandardCharsets.UTF_8.name());
-							    httpPost.setEntity(entity);
-							    httpPost.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
-							    httpPost.setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
-							    httpPost.setHeader(HttpHeaders.ACCEPT_CHARSET, StandardCharsets.UTF_8.name());
-							    httpPost.setHeader(SIGNATURE_HEAD, webHook.getSecret());
-							 
-							    CloseableHttpResponse response = client.execute(httpPost);
-							    try {
-							    	HttpEntity responseEntity = response.getEntity();
-							    	String responseText = EntityUtils.toString(responseEntity);
-							    	if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
-							    		logger.error("Error calling web hooks: " + responseText);
-							    } finally {
-							    	try {
-										response.close();
-									} catch (IOException e) {
-									}
-							    }
-							} catch (IOException e) {
-								logger.error("Error calling web hooks", e);
-							} finally {
-								try {
-									client.close();
-								} catch (IOException e) {
-								}
-							}
-						}
-						
-					});
+					webHooks.add(webHook);
 					break;
 				}
 			}
 		}
+
+		if (!webHooks.isEmpty()) {
+			// Load persisted deliveries first so that ids of new deliveries do not conflict
+			load();
+			
+			List<Delivery> deliveries = new ArrayList<>();
+			for (WebHook webHook: webHooks) {
+				deliveries.add(new Delivery(nextDeliveryId.getAndIncrement(), webHook.getPostUrl(),
+						webHook.getSecret(), webHook.isBatchEvents(), 0, jsonOfEvent));
+			}
+			
+			// Persist before queueing, otherwise a quick delivery may be persisted again after removal 
+			writeDeliveries(deliveries);
+			
+			List<Delivery> discardedDeliveries = new ArrayList<>();
+			for (Delivery delivery: deliveries) {
+				Endpoint endpoint = endpoints.compute(delivery.getEndpointKey(), (key, value) -> {
+					if (value == null)
+						value = new Endpoint(delivery.postUrl, delivery.secret);
+					if (!value.add(delivery))
+						discardedDeliveries.add(delivery);
+					return value;
+				});
+				dispatch(endpoint);
+			}
+			
+			if (!discardedDeliveries.isEmpty()) {
+				failedCount.addAndGet(discardedDeliveries.size());
+				for (Delivery delivery: discardedDeliveries) {
+					logger.error("Too many pending web hook deliveries, discarding event (post url: {})",
+							delivery.postUrl);
+				}
+				removeDeliveries(discardedDeliveries);
+			}
+		}
+	}
+
+	private synchronized void load() {
+		if (loaded)
+			return;
+
+		Environment env = getEnv();
+		Store store = getStore(env, DELIVERIES_STORE);
+		env.executeInReadonlyTransaction(new TransactionalExecutable() {
+
+			@Override
+			public void execute(Transaction txn) {
+				long lastDeliveryId = 0;
+				int count = 0;
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						ByteIterable key = cursor.getKey();
+						long deliveryId = ByteBuffer.wrap(key.getBytesUnsafe(), 0, key.getLength()).getLong();
+						ByteIterable value = cursor.getValue();
+						Delivery delivery = Delivery.decode(deliveryId, value.getBytesUnsafe(), value.getLength());
+						endpoints.computeIfAbsent(delivery.getEndpointKey(),
+								it -> new Endpoint(delivery.postUrl, delivery.secret)).add(delivery);
+						lastDeliveryId = deliveryId;
+						count++;
+					}
+				}
+				if (nextDeliveryId.get() <= lastDeliveryId)
+					nextDeliveryId.set(lastDeliveryId + 1);
+				if (count != 0)
+					logger.info("Loaded {} pending web hook deliveries", count);
+			}
+
+		});
+		loaded = true;
+	}
+
+	@Listen
+	public void on(SystemStarted event) {
+		load();
+		started = true;
+		retryTaskId = taskScheduler.schedule(new SchedulableTask() {
+
+			@Override
+			public ScheduleBuilder<?> getScheduleBuilder() {
+				return SimpleScheduleBuilder.repeatSecondlyForever(RETRY_CHECK_INTERVAL);
+			}
+
+			@Override
+			public void execute() {
+				for (String endpointKey: endpoints.keySet()) {
+					Endpoint endpoint = endpoints.computeIfPresent(endpointKey,
+							(key, value) -> value.isIdle()? null: value);
+					if (endpoint != null)
+						dispatch(endpoint);
+				}
+			}
+
+		});
+		for (Endpoint endpoint: endpoints.values())
+			dispatch(endpoint);
+	}
+
+	@Listen
+	@Override
+	public synchronized void on(SystemStopping event) {
+		stopping = true;
+		if (retryTaskId != null) {
+			taskScheduler.unschedule(retryTaskId);
+			retryTaskId = null;
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+		}
+		super.on(event);
+	}
+
+	private void dispatch(Endpoint endpoint) {
+		if (started && !stopping && endpoint.startDispatching()) {
+			executor.execute(new CategorizedRunnable(TaskCategory.WEBHOOK) {
+
+				@Override
+				public void run() {
+					try {
+						deliver(endpoint);
+					} catch (Exception e) {
+						endpoint.stopDispatching();
+						if (!stopping)
+							logger.error("Error delivering web hook events", e);
+					}
+				}
+
+			});
+		}
+	}
+
+	private void deliver(Endpoint endpoint) {
+		List<Delivery> batch;
+		while (!(batch = endpoint.nextBatch()).isEmpty()) {
+			String payload;
+			if (batch.get(0).batch) {
+				StringBuilder builder = new StringBuilder("[");
+				for (Delivery delivery: batch) {
+					if (builder.length() != 1)
+						builder.append(",");
+					builder.append(delivery.payload);
+				}
+				payload = builder.append("]").toString();
+			} else {
+				payload = batch.get(0).payload;
+			}
+
+			long time = System.currentTimeMillis();
+			try {
+				client.post(endpoint.postUrl, endpoint.secret, payload);
+			} catch (IOException | RuntimeException e) {
+				if (stopping)
+					throw new RuntimeException(e);
+				failed(endpoint, batch, e);
+				continue;
+			}
+			long latency = System.currentTimeMillis() - time;
+			averageLatency += (latency - averageLatency) / 8;
+			deliveredCount.addAndGet(batch.size());
+			endpoint.delivered(batch);
+			removeDeliveries(batch);
+		}
 	}
-	
+
+	private void failed(Endpoint endpoint, List<Delivery> batch, Exception e) {
+		List<Delivery> retryDeliveries = new ArrayList<>();
+		List<Delivery> failedDeliveries = new ArrayList<>();
+		
+		/*
+		 * Only retry i/o errors. Rejected deliveries and runtime errors such as malformed 
+		 * post url will never succeed, and retrying them blocks the endpoint forever
+		 */
+		if (e instanceof IOException && !(e instanceof WebHookClient.RejectedException)) {
+			for (Delivery delivery: batch) {
+				delivery.attempts++;
+				if (delivery.attempts < MAX_ATTEMPTS)
+					retryDeliveries.add(delivery);
+				else
+					failedDeliveries.add(delivery);
+			}
+		} else {
+			failedDeliveries.addAll(batch);
+		}
+
+		if (!failedDeliveries.isEmpty()) {
+			failedCount.addAndGet(failedDeliveries.size());
+			logger.error("Error delivering web hook events, giving up (post url: " + endpoint.postUrl
+					+ ", events: " + failedDeliveries.size() + ")", e);
+			endpoint.delivered(failedDeliveries);
+			removeDeliveries(failedDeliveries);
+		}
+		if (!retryDeliveries.isEmpty()) {
+			retriedCount.addAndGet(retryDeliveries.size());
+			int attempts = retryDeliveries.get(0).attempts;
+			long retryDelay = Math.min(INITIAL_RETRY_DELAY << Math.min(attempts - 1, 20), MAX_RETRY_DELAY);
+			logger.warn("Error delivering web hook events, will retry in {} seconds (post url: {}, attempts: {}): {}",
+					retryDelay/1000, endpoint.postUrl, attempts, e.getMessage());
+			writeDeliveries(retryDeliveries);
+			endpoint.retryAfter(retryDelay);
+		}
+	}
+
+	private void writeDeliveries(List<Delivery> deliveries) {
+		if (!deliveries.isEmpty() && !stopping) {
+			Environment env = getEnv();
+			Store store = getStore(env, DELIVERIES_STORE);
+			env.executeInTransaction(new TransactionalExecutable() {
+
+				@Override
+				public void execute(Transaction txn) {
+					for (Delivery delivery: deliveries)
+						store.put(txn, delivery.getKey(), new ArrayByteIterable(delivery.encode()));
+				}
+
+			});
+		}
+	}
+
+	private void removeDeliveries(List<Delivery> deliveries) {
+		if (!deliveries.isEmpty() && !stopping) {
+			Environment env = getEnv();
+			Store store = getStore(env, DELIVERIES_STORE);
+			env.executeInTransaction(new TransactionalExecutable() {
+
+				@Override
+				public void execute(Transaction txn) {
+					for (Delivery delivery: deliveries)
+						store.delete(txn, delivery.getKey());
+				}
+
+			});
+		}
+	}
+
+	@Override
+	protected File getEnvDir() {
+		File infoDir = new File(storageManager.getInfoDir(), INFO_DIR);
+		if (!infoDir.exists())
+			FileUtils.createDir(infoDir);
+		return infoDir;
+	}
+
+	@Override
+	protected int getEnvVersion() {
+		return INFO_VERSION;
+	}
+
+	/**
+	 * @return
+	 * 			number of events waiting to be delivered
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (Endpoint endpoint: endpoints.values())
+			count += endpoint.size();
+		return count;
+	}
+
+	/**
+	 * @return
+	 * 			number of events delivered successfully since server start
+	 */
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * @return
+	 * 			number of events discarded due to delivery failures since server start
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return
+	 * 			number of event deliveries scheduled to retry since server start
+	 */
+	public long getRetriedCount() {
+		return retriedCount.get();
+	}
+
+	/**
+	 * @return
+	 * 			moving average of latency in milliseconds of recent successful deliveries
+	 */
+	public long getAverageLatency() {
+		return averageLatency;
+	}
+
+	private static class Endpoint {
+
+		final String postUrl;
+
+		final String secret;
+
+		private final Deque<Delivery> deliveries = new ArrayDeque<>();
+
+		private boolean dispatching;
+
+		private long retryTime;
+
+		Endpoint(String postUrl, String secret) {
+			this.postUrl = postUrl;
+			this.secret = secret;
+		}
+
+		synchronized boolean add(Delivery delivery) {
+			if (deliveries.size() < MAX_PENDING_DELIVERIES) {
+				deliveries.add(delivery);
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		synchronized int size() {
+			return deliveries.size();
+		}
+
+		synchronized boolean isIdle() {
+			return deliveries.isEmpty() && !dispatching;
+		}
+
+		synchronized boolean startDispatching() {
+			if (dispatching || deliveries.isEmpty() || retryTime > System.currentTimeMillis())
+				return false;
+			dispatching = true;
+			return true;
+		}
+
+		synchronized void stopDispatching() {
+			dispatching = false;
+		}
+
+		/*
+		 * Get next deliveries to post, or an empty list to stop dispatching if there
+		 * is nothing to deliver at this time
+		 */
+		synchronized List<Delivery> nextBatch() {
+			List<Delivery> batch = new ArrayList<>();
+			if (deliveries.isEmpty() || retryTime > System.currentTimeMillis()) {
+				dispatching = false;
+			} else {
+				Delivery first = deliveries.peek();
+				if (first.batch) {
+					for (Delivery delivery: deliveries) {
+						if (!delivery.batch || batch.size() >= MAX_BATCH_SIZE)
+							break;
+						batch.add(delivery);
+					}
+				} else {
+					batch.add(first);
+				}
+			}
+			return batch;
+		}
+
+		synchronized void delivered(List<Delivery> batch) {
+			for (Delivery delivery: batch)
+				deliveries.remove(delivery);
+		}
+
+		synchronized void retryAfter(long delay) {
+			retryTime = System.currentTimeMillis() + delay;
+		}
+
+	}
+
+	private static class Delivery {
+
+		final long id;
+
+		final String postUrl;
+
+		final String secret;
+
+		final boolean batch;
+
+		int attempts;
+
+		final String payload;
+
+		Delivery(long id, String postUrl, String secret, boolean batch, int attempts, String payload) {
+			this.id = id;
+			this.postUrl = postUrl;
+			this.secret = secret;
+			this.batch = batch;
+			this.attempts = attempts;
+			this.payload = payload;
+		}
+
+		String getEndpointKey() {
+			return postUrl + "\n" + secret;
+		}
+
+		ByteIterable getKey() {
+			return new ArrayByteIterable(ByteBuffer.allocate(Long.BYTES).putLong(id).array());
+		}
+
+		byte[] encode() {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (DataOutputStream os = new DataOutputStream(baos)) {
+				os.writeUTF(postUrl);
+				os.writeUTF(secret);
+				os.writeBoolean(batch);
+				os.writeInt(attempts);
+				byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+				os.writeInt(payloadBytes.length);
+				os.write(payloadBytes);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return baos.toByteArray();
+		}
+
+		static Delivery decode(long id, byte[] bytes, int length) {
+			try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(bytes, 0, length))) {
+				String postUrl = is.readUTF();
+				String secret = is.readUTF();
+				boolean batch = is.readBoolean();
+				int attempts = is.readInt();
+				byte[] payloadBytes = new byte[is.readInt()];
+				is.readFully(payloadBytes);
+				return new Delivery(id, postUrl, secret, batch, attempts,
+						new String(payloadBytes, StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+	}
+
 }
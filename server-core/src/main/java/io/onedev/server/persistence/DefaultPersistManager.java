@@ -16,19 +16,22 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Root;
 import javax.persistence.metamodel.EntityType;
 
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.hibernate.Interceptor;
 import org.hibernate.ReplicationMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
@@ -57,6 +60,8 @@ import io.onedev.commons.utils.FileUtils;
 import io.onedev.server.migration.DataMigrator;
 import io.onedev.server.migration.MigrationHelper;
 import io.onedev.server.migration.VersionedXmlDoc;
+import io.onedev.server.migration.XmlElementReader;
+import io.onedev.server.migration.XmlElementWriter;
 import io.onedev.server.model.AbstractEntity;
 import io.onedev.server.model.ModelVersion;
 import io.onedev.server.persistence.annotation.Sessional;
@@ -69,6 +74,10 @@ public class DefaultPersistManager implements PersistManager {
 
 	private static final int BACKUP_BATCH_SIZE = 1000;
 	
+	private static final int EXPORT_CONCURRENCY = 4;
+	
+	private static final int IMPORT_BATCH_SIZE = 100;
+	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultPersistManager.class);
 	
 	protected final PhysicalNamingStrategy physicalNamingStrategy;
@@ -405,58 +414,87 @@ public class DefaultPersistManager implements PersistManager {
 		exportData(exportDir, BACKUP_BATCH_SIZE);
 	}
 	
+	/*
+	 * Tables are exported concurrently as exporting only reads the database. Each table is 
+	 * exported with its own session to avoid sharing sessions between threads
+	 */
 	@Sessional
 	@Override
 	public void exportData(File exportDir, int batchSize) {
-		Session session = sessionFactory.openSession();
-		for (Class<?> entityType: getEntityTypes(sessionFactory)) {
-			logger.info("Exporting table '" + entityType.getSimpleName() + "'...");
-			
-			logger.info("Querying table ids...");
-			
-			CriteriaBuilder builder = sessionFactory.getCriteriaBuilder();
-			CriteriaQuery<Number> query = builder.createQuery(Number.class);
-			Root<?> root = query.from(entityType);
-			query.select(root.get("id")).orderBy(builder.asc(root.get("id")));
-			
-			List<Number> ids = session.createQuery(query).list();
-			
-			int count = ids.size();
-			
-			for (int i=0; i<count/batchSize; i++) {
-				exportEntity(session, entityType, ids, i*batchSize, batchSize, batchSize, exportDir);
-				// clear session to free memory
-				session.clear();
-			}
-			
-			if (count%batchSize != 0) {
-				exportEntity(session, entityType, ids, count/batchSize*batchSize, count%batchSize, batchSize, exportDir);
+		String driver = properties.getDriver();
+		if (driver != null && driver.startsWith("com.mysql.") 
+				&& !properties.getUrl().contains("useCursorFetch=true")) {
+			logger.warn("MySQL jdbc driver reads whole table into memory when exporting. Append "
+					+ "'useCursorFetch=true' to property 'hibernate.connection.url' to stream rows instead");
+		}
+		List<Class<?>> entityTypes = getEntityTypes(sessionFactory);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(EXPORT_CONCURRENCY, entityTypes.size()));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Class<?> entityType: entityTypes) {
+				futures.add(executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						exportEntities(entityType, batchSize, exportDir);
+					}
+					
+				}));
 			}
-			logger.info("");
+			for (Future<?> future: futures) 
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.unchecked(e);
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 
-	private void exportEntity(Session session, Class<?> entityType, List<Number> ids, int start, int count, int batchSize, File exportDir) {
-		logger.info("Loading table rows ({}->{}) from database...", String.valueOf(start+1), (start + count));
-		
-		Query<?> query = session.createQuery("from " + entityType.getSimpleName() + " where id>=:fromId and id<=:toId order by id");
-		query.setParameter("fromId", ids.get(start));
-		query.setParameter("toId", ids.get(start+count-1));
-		
-		logger.info("Converting table rows to XML...");
-		VersionedXmlDoc dom = new VersionedXmlDoc();
-		Element rootElement = dom.addElement("list");
-		for (Object entity: query.list())
-			rootElement.appendContent(VersionedXmlDoc.fromBean(entity));
-		String fileName;
-
-		if (start == 0)
-			fileName = entityType.getSimpleName() + "s.xml";
-		else
-			fileName = entityType.getSimpleName() + "s.xml." + (start/batchSize + 1);
+	/*
+	 * Rows are streamed with a forward only cursor and written to file as they are read, 
+	 * and every batchSize rows are written to a separate file. Note that MySQL Connector/J 
+	 * ignores fetch size unless connection property "useCursorFetch" is enabled. Its other 
+	 * streaming mode (fetch size of Integer.MIN_VALUE) is not used as it forbids issuing 
+	 * other statements over the connection, which are needed to load eager associations
+	 */
+	private void exportEntities(Class<?> entityType, int batchSize, File exportDir) {
+		logger.info("Exporting table '" + entityType.getSimpleName() + "'...");
 		
-		logger.info("Writing resulting XML to file '" + fileName + "...");
-		dom.writeToFile(new File(exportDir, fileName), true);
+		Session session = sessionFactory.openSession();
+		// Some databases such as PostgreSQL only use cursors for fetching inside transactions
+		Transaction transaction = session.beginTransaction();
+		XmlElementWriter writer = null;
+		int count = 0;
+		try {
+			Query<?> query = session.createQuery("from " + entityType.getSimpleName() + " order by id");
+			query.setReadOnly(true);
+			query.setFetchSize(batchSize);
+			try (ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY)) {
+				while (results.next()) {
+					if (count % batchSize == 0) {
+						if (writer != null) {
+							writer.close();
+							// clear session to free memory
+							session.clear();
+						}
+						String fileName;
+						if (count == 0)
+							fileName = entityType.getSimpleName() + "s.xml";
+						else
+							fileName = entityType.getSimpleName() + "s.xml." + (count/batchSize + 1);
+						writer = new XmlElementWriter(new File(exportDir, fileName), "list");
+					}
+					writer.writeElement(VersionedXmlDoc.fromBean(results.get(0)).getRootElement());
+					count++;
+				}
+			}
+		} finally {
+			if (writer != null)
+				writer.close();
+			transaction.rollback();
+			session.close();
+		}
+		logger.info("Exported {} rows of table '{}'", count, entityType.getSimpleName());
 	}
 
 	/*
@@ -467,37 +505,47 @@ public class DefaultPersistManager implements PersistManager {
 	@Override
 	public void importData(Metadata metadata, File dataDir) {
 		Session session = dao.getSession();
-		List<Class<?>> entityTypes = getEntityTypes(sessionFactory);
-		Collections.reverse(entityTypes);
-		for (Class<?> entityType: entityTypes) {
-			File[] dataFiles = dataDir.listFiles(new FilenameFilter() {
+		// Batch inserts of replicated entities
+		session.setJdbcBatchSize(IMPORT_BATCH_SIZE);
+		try {
+			List<Class<?>> entityTypes = getEntityTypes(sessionFactory);
+			Collections.reverse(entityTypes);
+			for (Class<?> entityType: entityTypes) {
+				File[] dataFiles = dataDir.listFiles(new FilenameFilter() {
 
-				@Override
-				public boolean accept(File dir, String name) {
-					return name.startsWith(entityType.getSimpleName() + "s.xml");
-				}
-				
-			});
-			for (File file: dataFiles) {
-				Transaction transaction = session.beginTransaction();
-				try {
-					logger.info("Importing from data file '" + file.getName() + "'...");
-					VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.startsWith(entityType.getSimpleName() + "s.xml");
+					}
 					
-					for (Element element: dom.getRootElement().elements()) {
-						element.detach();
-						AbstractEntity entity = (AbstractEntity) new VersionedXmlDoc(DocumentHelper.createDocument(element)).toBean();
-						session.replicate(entity, ReplicationMode.EXCEPTION);
+				});
+				for (File file: dataFiles) {
+					Transaction transaction = session.beginTransaction();
+					try (XmlElementReader reader = new XmlElementReader(file)) {
+						logger.info("Importing from data file '" + file.getName() + "'...");
+						
+						int count = 0;
+						Element element;
+						while ((element = reader.readElement()) != null) {
+							AbstractEntity entity = (AbstractEntity) new VersionedXmlDoc(DocumentHelper.createDocument(element)).toBean();
+							session.replicate(entity, ReplicationMode.EXCEPTION);
+							if (++count % IMPORT_BATCH_SIZE == 0) {
+								session.flush();
+								session.clear();
+							}
+						}
+						session.flush();
+						session.clear();
+						transaction.commit();
+					} catch (Exception e) {
+						transaction.rollback();
+						throw ExceptionUtils.unchecked(e);
 					}
-					session.flush();
-					session.clear();
-					transaction.commit();
-				} catch (Exception e) {
-					transaction.rollback();
-					throw ExceptionUtils.unchecked(e);
 				}
-			}
-		}	
+			}	
+		} finally {
+			session.setJdbcBatchSize(null);
+		}
 	}
 	
 	protected void validateData(Metadata metadata, File dataDir) {
@@ -513,12 +561,11 @@ public class DefaultPersistManager implements PersistManager {
 				
 			});
 			for (File file: dataFiles) {
-				try {
+				try (XmlElementReader reader = new XmlElementReader(file)) {
 					logger.info("Validating data file '" + file.getName() + "'...");
-					VersionedXmlDoc dom = VersionedXmlDoc.fromFile(file);
 					
-					for (Element element: dom.getRootElement().elements()) {
-						element.detach();
+					Element element;
+					while ((element = reader.readElement()) != null) {
 						AbstractEntity entity = (AbstractEntity) new VersionedXmlDoc(DocumentHelper.createDocument(element)).toBean();
 						validator.validate(entity);
 					}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.regex.PatternSyntaxException;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -31,6 +32,8 @@ import io.onedev.server.rest.exception.InvalidParamException;
 import io.onedev.server.rest.support.RestConstants;
 import io.onedev.server.search.entity.build.BuildQuery;
 import io.onedev.server.security.SecurityUtils;
+import io.onedev.server.tasklog.JobLogManager;
+import io.onedev.server.tasklog.JobLogMatch;
 
 @Api(order=4000, description="In most cases, build resource is operated with build id, which is different from build number. "
 		+ "To get build id of a particular build number, use the <a href='/help/api/io.onedev.server.rest.BuildResource/queryBasicInfo'>Query Basic Info</a> operation with query for "
@@ -41,11 +44,16 @@ import io.onedev.server.security.SecurityUtils;
 @Singleton
 public class BuildResource {
 
+	private static final int MAX_LOG_CONTEXT = 100;
+
 	private final BuildManager buildManager;
 	
+	private final JobLogManager jobLogManager;
+	
 	@Inject
-	public BuildResource(BuildManager buildManager) {
+	public BuildResource(BuildManager buildManager, JobLogManager jobLogManager) {
 		this.buildManager = buildManager;
+		this.jobLogManager = jobLogManager;
 	}
 
 	@Api(order=100)
@@ -105,6 +113,35 @@ public class BuildResource {
     	return build.getFixedIssueIds();
     }
 	
+	@Api(order=550, description="Search log of specified build. Index of each matched log entry is returned together with surrounding log entries")
+	@Path("/{buildId}/log-matches")
+    @GET
+    public List<JobLogMatch> searchLog(@PathParam("buildId") Long buildId, 
+    		@QueryParam("term") @Api(description="Term to search", example="ERROR") String term, 
+    		@QueryParam("regex") @Api(description="Whether or not term is a regular expression") boolean regex, 
+    		@QueryParam("caseSensitive") @Api(description="Whether or not to match case") boolean caseSensitive, 
+    		@QueryParam("context") @Api(description="Number of log entries before and after each match to return", example="3") int context, 
+    		@QueryParam("count") @Api(example="100") int count) {
+		Build build = buildManager.load(buildId);
+    	if (!SecurityUtils.canAccessLog(build)) 
+			throw new UnauthorizedException();
+    	
+    	if (term == null || term.length() == 0)
+    		throw new InvalidParamException("Search term should be specified");
+    	if (count <= 0)
+    		throw new InvalidParamException("Count should be greater than 0");
+    	if (count > RestConstants.MAX_PAGE_SIZE)
+    		throw new InvalidParamException("Count should not be greater than " + RestConstants.MAX_PAGE_SIZE);
+    	if (context < 0 || context > MAX_LOG_CONTEXT)
+    		throw new InvalidParamException("Context should be between 0 and " + MAX_LOG_CONTEXT);
+    	
+    	try {
+    		return jobLogManager.search(build, term, regex, caseSensitive, context, count);
+    	} catch (PatternSyntaxException e) {
+    		throw new InvalidParamException("Invalid regular expression", e);
+    	}
+    }
+	
 	@Api(order=600)
 	@GET
     public List<Build> queryBasicInfo(
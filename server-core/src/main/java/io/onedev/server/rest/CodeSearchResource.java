@@ -0,0 +1,168 @@
+package io.onedev.server.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.onedev.commons.utils.PlanarRange;
+import io.onedev.server.entitymanager.ProjectManager;
+import io.onedev.server.model.Project;
+import io.onedev.server.rest.annotation.Api;
+import io.onedev.server.rest.exception.InvalidParamException;
+import io.onedev.server.search.code.CodeSearchManager;
+import io.onedev.server.search.code.hit.QueryHit;
+import io.onedev.server.search.code.hit.TextHit;
+import io.onedev.server.search.code.query.BlobQuery;
+import io.onedev.server.search.code.query.FileQuery;
+import io.onedev.server.search.code.query.SymbolQuery;
+import io.onedev.server.search.code.query.TextQuery;
+import io.onedev.server.search.code.query.TooGeneralQueryException;
+import io.onedev.server.security.permission.ReadCode;
+
+@Api(order=1200)
+@Path("/code-search")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+@Singleton
+public class CodeSearchResource {
+
+	private static final int MAX_HITS = 10000;
+
+	private final ProjectManager projectManager;
+
+	private final CodeSearchManager searchManager;
+
+	private final ObjectMapper objectMapper;
+
+	@Inject
+	public CodeSearchResource(ProjectManager projectManager, CodeSearchManager searchManager,
+			ObjectMapper objectMapper) {
+		this.projectManager = projectManager;
+		this.searchManager = searchManager;
+		this.objectMapper = objectMapper;
+	}
+
+	@Api(order=100, description="Search default branches of all projects with code read permission. "
+			+ "Hits are streamed as soon as they are found, one JSON object per line")
+	@GET
+	@Produces("application/x-ndjson")
+	public StreamingOutput search(
+			@QueryParam("type") @Api(description="One of <tt>TEXT</tt>, <tt>SYMBOL</tt> and <tt>FILE</tt>", example="TEXT")
+			String type,
+			@QueryParam("term") @Api(example="getProject") @NotEmpty String term,
+			@QueryParam("regex") @Api(description="Only applicable for text search") boolean regex,
+			@QueryParam("caseSensitive") boolean caseSensitive,
+			@QueryParam("wholeWord") @Api(description="Only applicable for text search") boolean wholeWord,
+			@QueryParam("fileNames") @Api(description="Comma separated file name patterns to search in", example="*.java")
+			String fileNames,
+			@QueryParam("count") @Api(example="100") int count) {
+		if (count <= 0 || count > MAX_HITS)
+			throw new InvalidParamException("Count should be between 1 and " + MAX_HITS);
+
+		BlobQuery query;
+		if (type == null || type.equalsIgnoreCase("TEXT")) {
+			query = new TextQuery.Builder().term(term).regex(regex).caseSensitive(caseSensitive)
+					.wholeWord(wholeWord).fileNames(fileNames).count(count).build();
+		} else if (type.equalsIgnoreCase("SYMBOL")) {
+			query = new SymbolQuery.Builder().term(term).caseSensitive(caseSensitive)
+					.fileNames(fileNames).count(count).build();
+		} else if (type.equalsIgnoreCase("FILE")) {
+			query = new FileQuery.Builder().fileNames(term).caseSensitive(caseSensitive)
+					.count(count).build();
+		} else {
+			throw new InvalidParamException("Unexpected search type: " + type);
+		}
+
+		try {
+			query.asLuceneQuery();
+			query.asContentQuery();
+		} catch (TooGeneralQueryException e) {
+			throw new InvalidParamException("Search is too general");
+		} catch (Exception e) {
+			throw new InvalidParamException("Invalid search term", e);
+		}
+
+		Map<Project, ObjectId> commitIds = new HashMap<>();
+		for (Project project: projectManager.getPermittedProjects(new ReadCode())) {
+			String defaultBranch = project.getDefaultBranch();
+			if (defaultBranch != null) {
+				ObjectId commitId = project.getObjectId(defaultBranch, false);
+				if (commitId != null)
+					commitIds.put(project, commitId);
+			}
+		}
+
+		return new StreamingOutput() {
+
+			@Override
+			public void write(OutputStream os) throws IOException, WebApplicationException {
+				try {
+					searchManager.search(commitIds, query, (project, hit) -> {
+						try {
+							os.write(objectMapper.writeValueAsBytes(toSearchHit(project, commitIds.get(project), hit)));
+							os.write("\n".getBytes(StandardCharsets.UTF_8));
+							os.flush();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					});
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		};
+	}
+
+	private CodeSearchHit toSearchHit(Project project, ObjectId commitId, QueryHit hit) {
+		CodeSearchHit searchHit = new CodeSearchHit();
+		searchHit.projectId = project.getId();
+		searchHit.projectPath = project.getPath();
+		searchHit.commitHash = commitId.name();
+		searchHit.blobPath = hit.getBlobPath();
+		searchHit.position = hit.getTokenPos();
+		if (hit instanceof TextHit)
+			searchHit.lineContent = ((TextHit) hit).getLineContent();
+		return searchHit;
+	}
+
+	public static class CodeSearchHit implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		Long projectId;
+
+		String projectPath;
+
+		@Api(example="46c001b04cba0ca41588841f1ca32f50b582ee9b")
+		String commitHash;
+
+		String blobPath;
+
+		PlanarRange position;
+
+		@Api(description="Content of the matched line. Only available for text search")
+		String lineContent;
+
+	}
+
+}
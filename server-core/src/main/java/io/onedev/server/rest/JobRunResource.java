@@ -28,7 +28,7 @@ import io.onedev.server.buildspec.job.SubmitReason;
 import io.onedev.server.entitymanager.BuildManager;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.entitymanager.PullRequestManager;
-import io.onedev.server.git.GitUtils;
+import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Build;
 import io.onedev.server.model.Project;
 import io.onedev.server.model.PullRequest;
@@ -54,13 +54,17 @@ public class JobRunResource {
 	
 	private final PullRequestManager pullRequestManager;
 	
+	private final CommitInfoManager commitInfoManager;
+	
 	@Inject
 	public JobRunResource(JobManager jobManager, BuildManager buildManager, 
-			ProjectManager projectManager, PullRequestManager pullRequestManager) {
+			ProjectManager projectManager, PullRequestManager pullRequestManager, 
+			CommitInfoManager commitInfoManager) {
 		this.jobManager = jobManager;
 		this.buildManager = buildManager;
 		this.projectManager = projectManager;
 		this.pullRequestManager = pullRequestManager;
+		this.commitInfoManager = commitInfoManager;
 	}
 
 	@Api(order=100)
@@ -84,7 +88,7 @@ public class JobRunResource {
 			
 			commitId = ObjectId.fromString(jobRunOnCommit.getCommitHash());
 			
-			if (!GitUtils.isMergedInto(project.getRepository(), null, commitId, refCommit)) 
+			if (!commitInfoManager.isMergedInto(project, commitId, refCommit)) 
 				throw new ValidationException("Specified commit is not reachable from specified ref");
 			
 			reason = new SubmitReason() {
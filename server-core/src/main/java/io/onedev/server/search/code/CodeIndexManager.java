@@ -18,4 +18,11 @@ public interface CodeIndexManager {
 	
 	String getIndexVersion(@Nullable SymbolExtractor<Symbol> extractor);
 	
+	/**
+	 * Get key of the content document of specified blob. Content of a blob is indexed only 
+	 * once no matter how many paths, branches or forks it appears in, and is shared by 
+	 * path documents referencing the same key
+	 */
+	String getContentKey(ObjectId blobId, String blobPath);
+	
 }
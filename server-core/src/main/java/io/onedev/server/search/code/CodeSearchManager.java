@@ -1,6 +1,8 @@
 package io.onedev.server.search.code;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Nullable;
 
@@ -27,6 +29,22 @@ public interface CodeSearchManager {
 	List<QueryHit> search(Project project, ObjectId commitId, BlobQuery query) 
 			throws InterruptedException, TooGeneralQueryException;
 	
+	/**
+	 * Search specified projects in parallel, with each project being searched at specified 
+	 * commit. Hits are passed to specified consumer in calling thread as soon as they are 
+	 * found, and searching stops once query count is reached.
+	 * 
+	 * @param commitIds
+	 * 			map of project to commit to search in the project
+	 * @param hitConsumer
+	 * 			consumer of found hits along with their projects
+	 * @throws 
+	 * 			TooGeneralQueryException if supplied query term is too general to possibly cause query slow
+	 * 			InterruptedException if the search process is interrupted
+	 */
+	void search(Map<Project, ObjectId> commitIds, BlobQuery query, BiConsumer<Project, QueryHit> hitConsumer) 
+			throws InterruptedException, TooGeneralQueryException;
+	
 	@Nullable
 	List<Symbol> getSymbols(Project project, ObjectId blobId, String blobPath);
 	
@@ -1,7 +1,8 @@
 package io.onedev.server.search.code;
 
+import static io.onedev.server.search.code.FieldConstants.BLOB_CONTENT_KEY;
 import static io.onedev.server.search.code.FieldConstants.BLOB_HASH;
-import static io.onedev.server.search.code.FieldConstants.BLOB_INDEX_VERSION;
+import static io.onedev.server.search.code.FieldConstants.BLOB_LINE_OFFSETS;
 import static io.onedev.server.search.code.FieldConstants.BLOB_NAME;
 import static io.onedev.server.search.code.FieldConstants.BLOB_PATH;
 import static io.onedev.server.search.code.FieldConstants.BLOB_PRIMARY_SYMBOLS;
@@ -10,6 +11,7 @@ import static io.onedev.server.search.code.FieldConstants.BLOB_SYMBOL_LIST;
 import static io.onedev.server.search.code.FieldConstants.BLOB_TEXT;
 import static io.onedev.server.search.code.FieldConstants.COMMIT_HASH;
 import static io.onedev.server.search.code.FieldConstants.COMMIT_INDEX_VERSION;
+import static io.onedev.server.search.code.FieldConstants.CONTENT_KEY;
 import static io.onedev.server.search.code.FieldConstants.LAST_COMMIT;
 import static io.onedev.server.search.code.FieldConstants.LAST_COMMIT_HASH;
 import static io.onedev.server.search.code.FieldConstants.LAST_COMMIT_INDEX_VERSION;
@@ -21,10 +23,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -32,25 +41,35 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.SerializationUtils;
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexFormatTooOldException;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.eclipse.jgit.lib.AnyObjectId;
@@ -76,8 +95,10 @@ import io.onedev.commons.utils.ExceptionUtils;
 import io.onedev.commons.utils.FileUtils;
 import io.onedev.commons.utils.StringUtils;
 import io.onedev.server.entitymanager.ProjectManager;
+import io.onedev.server.entitymanager.SettingManager;
 import io.onedev.server.event.RefUpdated;
 import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.model.Project;
 import io.onedev.server.persistence.SessionManager;
 import io.onedev.server.persistence.annotation.Sessional;
@@ -86,6 +107,7 @@ import io.onedev.server.util.ContentDetector;
 import io.onedev.server.util.IndexResult;
 import io.onedev.server.util.concurrent.BatchWorkManager;
 import io.onedev.server.util.concurrent.BatchWorker;
+import io.onedev.server.util.concurrent.CoalescableWork;
 import io.onedev.server.util.concurrent.Prioritized;
 
 @Singleton
@@ -97,7 +119,23 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 	
 	private static final int BACKEND_INDEXING_PRIORITY = 50;
 	
-	private static final int DATA_VERSION = 6;
+	private static final int DATA_VERSION = 9;
+	
+	private static final int COMMIT_BATCH_SIZE = 10000;
+	
+	private static final int MAX_IN_FLIGHT_PER_THREAD = 4;
+	
+	/*
+	 * Blob text is indexed with offsets so that text query can locate matched lines via 
+	 * postings instead of scanning the whole text
+	 */
+	private static final FieldType TEXT_WITH_OFFSETS;
+	
+	static {
+		TEXT_WITH_OFFSETS = new FieldType(TextField.TYPE_NOT_STORED);
+		TEXT_WITH_OFFSETS.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+		TEXT_WITH_OFFSETS.freeze();
+	}
 	
 	private final StorageManager storageManager;
 	
@@ -109,14 +147,20 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 	
 	private final ListenerRegistry listenerRegistry;
 	
+	private final SettingManager settingManager;
+	
+	private ForkJoinPool indexPool;
+	
 	@Inject
 	public DefaultCodeIndexManager(ListenerRegistry listenerRegistry, StorageManager storageManager, 
-			BatchWorkManager batchWorkManager, SessionManager sessionManager, ProjectManager projectManager) {
+			BatchWorkManager batchWorkManager, SessionManager sessionManager, ProjectManager projectManager, 
+			SettingManager settingManager) {
 		this.listenerRegistry = listenerRegistry;
 		this.storageManager = storageManager;
 		this.batchWorkManager = batchWorkManager;
 		this.sessionManager = sessionManager;
 		this.projectManager = projectManager;
+		this.settingManager = settingManager;
 	}
 
 	private String getCommitIndexVersion(final IndexSearcher searcher, AnyObjectId commitId) throws IOException {
@@ -146,7 +190,8 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 	}
 	
 	private IndexResult index(Repository repository, AnyObjectId commitId, 
-			IndexWriter writer, final IndexSearcher searcher) throws Exception {
+			IndexWriter writer, @Nullable IndexSearcher searcher) throws Exception {
+		List<BlobToIndex> blobs = new ArrayList<>();
 		try (	RevWalk revWalk = new RevWalk(repository); 
 				TreeWalk treeWalk = new TreeWalk(repository)) {
 			treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
@@ -168,106 +213,244 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 				}
 			}
 	
-			int indexed = 0;
-			int checked = 0;
 			while (treeWalk.next()) {
 				if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE 
 						&& (treeWalk.getTreeCount() == 1 || !treeWalk.idEqual(0, 1))) {
-					ObjectId blobId = treeWalk.getObjectId(0);
-					String blobPath = treeWalk.getPathString();
-					String blobName = treeWalk.getNameString();
-					
+					blobs.add(new BlobToIndex(treeWalk.getObjectId(0), treeWalk.getPathString()));
+				}
+			}
+		}
+		
+		for (BlobToIndex blob: blobs) 
+			blob.contentKey = getContentKey(blob.id, blob.path);
+		
+		int checked = 0;
+		Set<String> indexedContentKeys = new HashSet<>();
+		if (searcher != null) {
+			readIndexedContentKeys(searcher.getIndexReader(), blobs);
+			indexedContentKeys.addAll(getIndexedContentKeys(searcher.getIndexReader(), blobs));
+			checked = blobs.size();
+		}
+
+		/*
+		 * Path documents are cheap and are added directly. Content documents are built in 
+		 * parallel as symbol extraction and tokenization are CPU intensive, and only once 
+		 * for each unique content. Number of in-flight contents is bounded so that memory 
+		 * used by blob contents does not grow unbounded if the writer can not keep up
+		 */
+		ForkJoinPool pool = getIndexPool();
+		int maxInFlight = pool.getParallelism() * MAX_IN_FLIGHT_PER_THREAD;
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		AtomicReference<Throwable> errorRef = new AtomicReference<>(null);
+		int indexed = 0;
+		for (BlobToIndex blob: blobs) {
+			if (!blob.contentKey.equals(blob.indexedContentKey)) {
+				if (blob.indexedContentKey != null) {
 					BooleanQuery.Builder builder = new BooleanQuery.Builder();
-					builder.add(BLOB_HASH.getTermQuery(blobId.name()), Occur.MUST);
-					builder.add(BLOB_PATH.getTermQuery(blobPath), Occur.MUST);
-					BooleanQuery query = builder.build();
-					
-					final AtomicReference<String> blobIndexVersionRef = new AtomicReference<>(null);
-					if (searcher != null) {
-						searcher.search(query, new SimpleCollector() {
-	
-							private LeafReaderContext context;
+					builder.add(BLOB_HASH.getTermQuery(blob.id.name()), Occur.MUST);
+					builder.add(BLOB_PATH.getTermQuery(blob.path), Occur.MUST);
+					writer.deleteDocuments(builder.build());
+				}
+				writer.addDocument(newPathDocument(blob));
+				
+				if (indexedContentKeys.add(blob.contentKey)) {
+					inFlight.acquire();
+					checkError(errorRef);
+					pool.execute(new Runnable() {
 	
-							@Override
-							public void collect(int doc) throws IOException {
-								blobIndexVersionRef.set(searcher.doc(context.docBase+doc).get(BLOB_INDEX_VERSION.name()));
+						@Override
+						public void run() {
+							try {
+								writer.addDocument(newContentDocument(repository, blob));
+							} catch (Throwable e) {
+								errorRef.compareAndSet(null, e);
+							} finally {
+								inFlight.release();
 							}
+						}
+						
+					});
+				}
+				
+				if (++indexed % COMMIT_BATCH_SIZE == 0) {
+					inFlight.acquire(maxInFlight);
+					try {
+						checkError(errorRef);
+						writer.commit();
+					} finally {
+						inFlight.release(maxInFlight);
+					}
+				}
+			}
+		}
+		inFlight.acquire(maxInFlight);
+		checkError(errorRef);
+
+		// record current commit so that we know which commit has been indexed
+		Document document = new Document();
+		document.add(new StringField(COMMIT_HASH.name(), commitId.getName(), Store.NO));
+		document.add(new StoredField(COMMIT_INDEX_VERSION.name(), getIndexVersion()));
+		writer.updateDocument(COMMIT_HASH.getTerm(commitId.getName()), document);
+		
+		// record last commit so that we only need to indexing changed files for subsequent commits
+		document = new Document();
+		document.add(new StringField(META.name(), LAST_COMMIT.name(), Store.NO));
+		document.add(new StoredField(LAST_COMMIT_INDEX_VERSION.name(), getIndexVersion()));
+		document.add(new StoredField(LAST_COMMIT_HASH.name(), commitId.getName()));
+		writer.updateDocument(META.getTerm(LAST_COMMIT.name()), document);
+		
+		return new IndexResult(checked, indexed);
+	}
 	
-							@Override
-							protected void doSetNextReader(LeafReaderContext context) throws IOException {
-								this.context = context;
-							}
+	private void checkError(AtomicReference<Throwable> errorRef) {
+		Throwable error = errorRef.get();
+		if (error != null)
+			throw ExceptionUtils.unchecked(error);
+	}
 	
-							@Override
-							public ScoreMode scoreMode() {
-								return ScoreMode.COMPLETE_NO_SCORES;
-							}
-							
-						});
-						checked++;
+	/*
+	 * Read content keys of indexed path documents of specified blobs in bulk. Path 
+	 * documents of each blob hash are located via terms enum of each segment, and then 
+	 * their paths and content keys are read via doc values in doc id order, instead of 
+	 * running a query per blob
+	 */
+	private void readIndexedContentKeys(IndexReader reader, List<BlobToIndex> blobs) throws IOException {
+		List<BlobToIndex> sortedBlobs = new ArrayList<>(blobs);
+		sortedBlobs.sort(Comparator.comparing(it -> it.id));
+		
+		for (LeafReaderContext context: reader.leaves()) {
+			LeafReader leafReader = context.reader();
+			Terms terms = leafReader.terms(BLOB_HASH.name());
+			if (terms == null)
+				continue;
+			
+			Bits liveDocs = leafReader.getLiveDocs();
+			TermsEnum termsEnum = terms.iterator();
+			PostingsEnum postingsEnum = null;
+			
+			// Pairs of doc id and index of first blob with the hash in sorted blobs
+			List<int[]> docAndBlobs = new ArrayList<>();
+			for (int i=0; i<sortedBlobs.size(); i++) {
+				ObjectId blobId = sortedBlobs.get(i).id;
+				if (i != 0 && blobId.equals(sortedBlobs.get(i-1).id)) 
+					continue;
+				if (termsEnum.seekExact(new BytesRef(blobId.name()))) {
+					postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+					int doc;
+					while ((doc = postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+						if (liveDocs == null || liveDocs.get(doc))
+							docAndBlobs.add(new int[] {doc, i});
 					}
-	
-					SymbolExtractor<Symbol> extractor = SymbolExtractorRegistry.getExtractor(blobName);
-					String currentBlobIndexVersion = getIndexVersion(extractor);
-					String blobIndexVersion = blobIndexVersionRef.get();
-					if (blobIndexVersion != null) {
-						if (!blobIndexVersion.equals(currentBlobIndexVersion)) {
-							writer.deleteDocuments(query);
-							indexBlob(writer, repository, extractor, blobId, blobPath);
-							indexed++;
-						}
-					} else {
-						indexBlob(writer, repository, extractor, blobId, blobPath);
-						indexed++;
+				}
+			}
+			if (docAndBlobs.isEmpty())
+				continue;
+			
+			// Doc values can only be advanced forward
+			docAndBlobs.sort(Comparator.comparingInt(it -> it[0]));
+			BinaryDocValues pathValues = leafReader.getBinaryDocValues(BLOB_PATH.name());
+			BinaryDocValues contentKeyValues = leafReader.getBinaryDocValues(BLOB_CONTENT_KEY.name());
+			for (int[] docAndBlob: docAndBlobs) {
+				int doc = docAndBlob[0];
+				if (pathValues == null || !pathValues.advanceExact(doc)) 
+					continue;
+				String path = pathValues.binaryValue().utf8ToString();
+				String contentKey;
+				if (contentKeyValues != null && contentKeyValues.advanceExact(doc)) 
+					contentKey = contentKeyValues.binaryValue().utf8ToString();
+				else // indexed by earlier data version with content stored in path document 
+					contentKey = "";
+				ObjectId blobId = sortedBlobs.get(docAndBlob[1]).id;
+				for (int i=docAndBlob[1]; i<sortedBlobs.size() && sortedBlobs.get(i).id.equals(blobId); i++) {
+					BlobToIndex blob = sortedBlobs.get(i);
+					if (blob.path.equals(path)) {
+						blob.indexedContentKey = contentKey;
+						break;
 					}
 				}
 			}
+		}
+	}
 	
-			// record current commit so that we know which commit has been indexed
-			Document document = new Document();
-			document.add(new StringField(COMMIT_HASH.name(), commitId.getName(), Store.NO));
-			document.add(new StoredField(COMMIT_INDEX_VERSION.name(), getIndexVersion()));
-			writer.updateDocument(COMMIT_HASH.getTerm(commitId.getName()), document);
-			
-			// record last commit so that we only need to indexing changed files for subsequent commits
-			document = new Document();
-			document.add(new StringField(META.name(), LAST_COMMIT.name(), Store.NO));
-			document.add(new StoredField(LAST_COMMIT_INDEX_VERSION.name(), getIndexVersion()));
-			document.add(new StoredField(LAST_COMMIT_HASH.name(), commitId.getName()));
-			writer.updateDocument(META.getTerm(LAST_COMMIT.name()), document);
+	/*
+	 * Get content keys of specified blobs which already have content documents in the 
+	 * index, possibly added when indexing other commits, branches or forks  
+	 */
+	private Set<String> getIndexedContentKeys(IndexReader reader, List<BlobToIndex> blobs) throws IOException {
+		Set<String> contentKeys = new HashSet<>();
+		for (BlobToIndex blob: blobs) {
+			if (!blob.contentKey.equals(blob.indexedContentKey))
+				contentKeys.add(blob.contentKey);
+		}
+		
+		Set<String> indexedContentKeys = new HashSet<>();
+		for (LeafReaderContext context: reader.leaves()) {
+			LeafReader leafReader = context.reader();
+			Terms terms = leafReader.terms(CONTENT_KEY.name());
+			if (terms == null)
+				continue;
 			
-			return new IndexResult(checked, indexed);
+			Bits liveDocs = leafReader.getLiveDocs();
+			TermsEnum termsEnum = terms.iterator();
+			PostingsEnum postingsEnum = null;
+			for (String contentKey: contentKeys) {
+				if (!indexedContentKeys.contains(contentKey) && termsEnum.seekExact(new BytesRef(contentKey))) {
+					postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+					int doc;
+					while ((doc = postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+						if (liveDocs == null || liveDocs.get(doc)) {
+							indexedContentKeys.add(contentKey);
+							break;
+						}
+					}
+				}
+			}
 		}
+		return indexedContentKeys;
 	}
 	
-	private void indexBlob(IndexWriter writer, Repository repository, 
-			SymbolExtractor<Symbol> extractor, ObjectId blobId, String blobPath) throws IOException {
+	private Document newPathDocument(BlobToIndex blob) {
 		Document document = new Document();
 		
-		document.add(new StoredField(BLOB_INDEX_VERSION.name(), getIndexVersion(extractor)));
-		document.add(new StringField(BLOB_HASH.name(), blobId.name(), Store.NO));
-		document.add(new StringField(BLOB_PATH.name(), blobPath, Store.NO));
-		document.add(new BinaryDocValuesField(BLOB_PATH.name(), new BytesRef(blobPath.getBytes(StandardCharsets.UTF_8))));
-		
-		String blobName = blobPath;
-		if (blobPath.indexOf('/') != -1) 
-			blobName = StringUtils.substringAfterLast(blobPath, "/");
+		String blobName = blob.path;
+		if (blobName.indexOf('/') != -1) 
+			blobName = StringUtils.substringAfterLast(blobName, "/");
 		
+		document.add(new StringField(BLOB_HASH.name(), blob.id.name(), Store.NO));
+		document.add(new StringField(BLOB_PATH.name(), blob.path, Store.NO));
+		document.add(new BinaryDocValuesField(BLOB_PATH.name(), new BytesRef(blob.path.getBytes(StandardCharsets.UTF_8))));
 		document.add(new StringField(BLOB_NAME.name(), blobName.toLowerCase(), Store.NO));
+		document.add(new StringField(BLOB_CONTENT_KEY.name(), blob.contentKey, Store.NO));
+		document.add(new BinaryDocValuesField(BLOB_CONTENT_KEY.name(), new BytesRef(blob.contentKey)));
 		
-		ObjectLoader objectLoader = repository.open(blobId);
+		return document;
+	}
+	
+	private Document newContentDocument(Repository repository, BlobToIndex blob) throws IOException {
+		Document document = new Document();
+		
+		String blobName = blob.path;
+		if (blobName.indexOf('/') != -1) 
+			blobName = StringUtils.substringAfterLast(blobName, "/");
+		
+		document.add(new StringField(CONTENT_KEY.name(), blob.contentKey, Store.NO));
+		document.add(new BinaryDocValuesField(CONTENT_KEY.name(), new BytesRef(blob.contentKey)));
+		
+		ObjectLoader objectLoader = repository.open(blob.id);
 		if (objectLoader.getSize() <= MAX_INDEXABLE_SIZE) {
 			byte[] bytes = objectLoader.getCachedBytes();
 			String content = ContentDetector.convertToText(bytes, blobName);
 			if (content != null) {
-				document.add(new TextField(BLOB_TEXT.name(), content, Store.NO));
+				document.add(new Field(BLOB_TEXT.name(), content, TEXT_WITH_OFFSETS));
+				document.add(new BinaryDocValuesField(BLOB_LINE_OFFSETS.name(), new BytesRef(LineOffsets.encode(content))));
 				
+				SymbolExtractor<Symbol> extractor = SymbolExtractorRegistry.getExtractor(blobName);
 				if (extractor != null) {
 					List<Symbol> symbols = null;
 					try {
 						symbols = extractor.extract(blobName, StringUtils.removeBOM(content));
 					} catch (Exception e) {
-						logger.trace("Can not extract symbols from blob (hash:" + blobId.name() + ", path:" + blobPath + ")", e);
+						logger.trace("Can not extract symbols from blob (hash:" + blob.id.name() + ", path:" + blob.path + ")", e);
 					}
 					if (symbols != null) {
 						for (Symbol symbol: symbols) {
@@ -288,17 +471,33 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 					}
 				} 
 			} else {
-				logger.debug("Ignore content of binary file '{}'.", blobPath);
+				logger.debug("Ignore content of binary file '{}'.", blob.path);
 			}
 		} else {
-			logger.debug("Ignore content of large file '{}'.", blobPath);
+			logger.debug("Ignore content of large file '{}'.", blob.path);
 		}
 
-		writer.addDocument(document);
+		return document;
 	}
 	
-	private BatchWorker getBatchWorker(Long projectId) {
-		return new BatchWorker("project-" + projectId + "-indexBlob", 1) {
+	private synchronized ForkJoinPool getIndexPool() {
+		int concurrency = settingManager.getPerformanceSetting().getCpuIntensiveTaskConcurrency();
+		if (indexPool == null || indexPool.getParallelism() != concurrency) {
+			/*
+			 * Previous pool may still be used by running indexing, and its threads will 
+			 * terminate automatically after being idle 
+			 */
+			indexPool = new ForkJoinPool(concurrency);
+		}
+		return indexPool;
+	}
+	
+	/*
+	 * Forks share index of the fork root, so indexing of projects in a fork network is 
+	 * serialized via the same worker
+	 */
+	private BatchWorker getBatchWorker(Project project) {
+		return new BatchWorker("project-" + project.getForkRoot().getId() + "-indexBlob", 1) {
 
 			@Override
 			public void doWorks(Collection<Prioritized> works) {
@@ -308,8 +507,9 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 					public void run() {
 						Preconditions.checkState(works.size() == 1);
 
-						Project project = projectManager.load(projectId);
-						ObjectId commitId = ((IndexWork) works.iterator().next()).getCommitId();
+						IndexWork work = (IndexWork) works.iterator().next();
+						Project project = projectManager.load(work.getProjectId());
+						ObjectId commitId = work.getCommitId();
 						doIndex(project, commitId);
 						
 						listenerRegistry.post(new CommitIndexed(project, commitId.copy()));
@@ -340,7 +540,8 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 	}
 	
 	private IndexResult doIndex(Project project, ObjectId commit) {
-		try (Directory directory = FSDirectory.open(storageManager.getProjectIndexDir(project.getId()).toPath())) {
+		File indexDir = storageManager.getProjectIndexDir(project.getForkRoot().getId());
+		try (Directory directory = FSDirectory.open(indexDir.toPath())) {
 			if (DirectoryReader.indexExists(directory)) {
 				try (IndexReader reader = DirectoryReader.open(directory)) {
 					IndexSearcher searcher = new IndexSearcher(reader);
@@ -372,9 +573,17 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 		return DigestUtils.md5Hex(version);
 	}
 
+	@Override
+	public String getContentKey(ObjectId blobId, String blobPath) {
+		String blobName = blobPath;
+		if (blobName.indexOf('/') != -1) 
+			blobName = StringUtils.substringAfterLast(blobName, "/");
+		return blobId.name() + ":" + getIndexVersion(SymbolExtractorRegistry.getExtractor(blobName));
+	}
+
 	@Override
 	public boolean isIndexed(Project project, ObjectId commitId) {
-		File indexDir = storageManager.getProjectIndexDir(project.getId());
+		File indexDir = storageManager.getProjectIndexDir(project.getForkRoot().getId());
 		try (Directory directory = FSDirectory.open(indexDir.toPath())) {
 			if (DirectoryReader.indexExists(directory)) {
 				try (IndexReader reader = DirectoryReader.open(directory)) {
@@ -395,8 +604,9 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 		// only index branches at back end, tags will be indexed on demand from GUI 
 		// as many tags might be pushed all at once when the repository is imported 
 		if (event.getRefName().startsWith(Constants.R_HEADS) && !event.getNewCommitId().equals(ObjectId.zeroId())) {
-			IndexWork work = new IndexWork(BACKEND_INDEXING_PRIORITY, event.getNewCommitId());
-			batchWorkManager.submit(getBatchWorker(event.getProject().getId()), work);
+			IndexWork work = new IndexWork(BACKEND_INDEXING_PRIORITY, event.getProject().getId(), 
+					event.getNewCommitId(), event.getRefName());
+			batchWorkManager.submit(getBatchWorker(event.getProject()), work);
 		}
 	}
 	
@@ -428,23 +638,70 @@ public class DefaultCodeIndexManager implements CodeIndexManager {
 			priority = UI_INDEXING_PRIORITY;
 		else
 			priority = BACKEND_INDEXING_PRIORITY;
-		IndexWork work = new IndexWork(priority, commitId);
-		batchWorkManager.submit(getBatchWorker(project.getId()), work);
+		IndexWork work = new IndexWork(priority, project.getId(), commitId, null);
+		batchWorkManager.submit(getBatchWorker(project), work);
+	}
+	
+	@Listen
+	public synchronized void on(SystemStopping event) {
+		if (indexPool != null) {
+			indexPool.shutdown();
+			indexPool = null;
+		}
+	}
+	
+	private static class BlobToIndex {
+		
+		final ObjectId id;
+		
+		final String path;
+		
+		String contentKey;
+		
+		String indexedContentKey;
+		
+		BlobToIndex(ObjectId id, String path) {
+			this.id = id;
+			this.path = path;
+		}
+		
 	}
 	
-	private static class IndexWork extends Prioritized {
+	private static class IndexWork extends Prioritized implements CoalescableWork {
 
+		private final Long projectId;
+		
 		private final ObjectId commitId;
 		
-		public IndexWork(int priority, ObjectId commitId) {
+		private final String refName;
+		
+		public IndexWork(int priority, Long projectId, ObjectId commitId, @Nullable String refName) {
 			super(priority);
+			this.projectId = projectId;
 			this.commitId = commitId;
+			this.refName = refName;
+		}
+
+		public Long getProjectId() {
+			return projectId;
 		}
 
 		public ObjectId getCommitId() {
 			return commitId;
 		}
 		
+		/*
+		 * Only latest commit of a branch needs to be indexed at back end. Works indexing 
+		 * specific commits on demand are not coalesced
+		 */
+		@Override
+		public Object getCoalescingKey() {
+			if (refName != null)
+				return projectId + ":" + refName;
+			else
+				return null;
+		}
+		
 	}
 
 }
@@ -1,19 +1,32 @@
 package io.onedev.server.search.code;
 
-import static io.onedev.server.search.code.FieldConstants.BLOB_HASH;
-import static io.onedev.server.search.code.FieldConstants.BLOB_INDEX_VERSION;
-import static io.onedev.server.search.code.FieldConstants.BLOB_PATH;
+import static io.onedev.server.search.code.FieldConstants.BLOB_CONTENT_KEY;
 import static io.onedev.server.search.code.FieldConstants.BLOB_SYMBOL_LIST;
+import static io.onedev.server.search.code.FieldConstants.CONTENT_KEY;
 
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -23,17 +36,27 @@ import org.apache.commons.lang.SerializationUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.DocValuesFieldExistsQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
@@ -41,17 +64,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import io.onedev.commons.jsymbol.Symbol;
-import io.onedev.commons.jsymbol.SymbolExtractorRegistry;
 import io.onedev.commons.loader.Listen;
 import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.server.entitymanager.SettingManager;
 import io.onedev.server.event.entity.EntityRemoved;
 import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.model.Project;
 import io.onedev.server.persistence.annotation.Transactional;
 import io.onedev.server.search.code.hit.QueryHit;
 import io.onedev.server.search.code.query.BlobQuery;
+import io.onedev.server.search.code.query.CandidateBlob;
 import io.onedev.server.search.code.query.FileQuery;
 import io.onedev.server.search.code.query.TooGeneralQueryException;
 import io.onedev.server.storage.StorageManager;
@@ -61,31 +87,49 @@ public class DefaultCodeSearchManager implements CodeSearchManager {
 
 	private static final int MAX_BLOB_PATH_QUERY_COUNT = 5;
 	
+	private static final int MAX_CACHED_TREES = 20;
+	
+	private static final int MAX_CONTENT_DOCS = 10000;
+	
+	private static final int MAX_QUEUED_HITS = 1000;
+	
+	private static final Object SEARCH_FINISHED = new Object();
+	
 	private static final Logger logger = LoggerFactory.getLogger(DefaultCodeSearchManager.class);
 	
 	private final StorageManager storageManager;
 	
 	private final Map<Long, SearcherManager> searcherManagers = new ConcurrentHashMap<>();
 	
+	private final Cache<ObjectId, Map<String, ObjectId>> blobIdsCache = 
+			CacheBuilder.newBuilder().maximumSize(MAX_CACHED_TREES).softValues().build();
+	
 	private final CodeIndexManager indexManager;
 	
+	private final SettingManager settingManager;
+	
+	private final ExecutorService executorService;
+	
 	@Inject
-	public DefaultCodeSearchManager(StorageManager storageManager, CodeIndexManager indexManager) {
+	public DefaultCodeSearchManager(StorageManager storageManager, CodeIndexManager indexManager, 
+			SettingManager settingManager, ExecutorService executorService) {
 		this.storageManager = storageManager;
 		this.indexManager = indexManager;
+		this.settingManager = settingManager;
+		this.executorService = executorService;
 	}
 	
 	@Nullable
-	private SearcherManager getSearcherManager(Project project) throws InterruptedException {
+	private SearcherManager getSearcherManager(Long projectId) throws InterruptedException {
 		try {
-			SearcherManager searcherManager = searcherManagers.get(project.getId());
+			SearcherManager searcherManager = searcherManagers.get(projectId);
 			if (searcherManager == null) synchronized (searcherManagers) {
-				searcherManager = searcherManagers.get(project.getId());
+				searcherManager = searcherManagers.get(projectId);
 				if (searcherManager == null) {
-					Directory directory = FSDirectory.open(storageManager.getProjectIndexDir(project.getId()).toPath());
+					Directory directory = FSDirectory.open(storageManager.getProjectIndexDir(projectId).toPath());
 					if (DirectoryReader.indexExists(directory)) {
 						searcherManager = new SearcherManager(directory, null);
-						searcherManagers.put(project.getId(), searcherManager);
+						searcherManagers.put(projectId, searcherManager);
 					}
 				}
 			}
@@ -105,39 +149,133 @@ public class DefaultCodeSearchManager implements CodeSearchManager {
 	@Override
 	public List<QueryHit> search(Project project, ObjectId commitId, final BlobQuery query) 
 			throws InterruptedException {
+		List<QueryHit> hits = search(project.getForkRoot().getId(), project.getRepository(), commitId, query, 
+				null, new BooleanSupplier() {
+
+					@Override
+					public boolean getAsBoolean() {
+						return Thread.currentThread().isInterrupted();
+					}
+					
+				});
+		if (Thread.interrupted())
+			throw new InterruptedException();
+
+		return hits;
+	}
+	
+	/*
+	 * Search index of specified project and collect hits of specified commit. Collecting 
+	 * stops as soon as query count is reached or specified stop condition is met
+	 */
+	private List<QueryHit> search(Long indexProjectId, Repository repository, ObjectId commitId, 
+			BlobQuery query, @Nullable Consumer<QueryHit> hitConsumer, BooleanSupplier stopCondition) 
+			throws InterruptedException {
 		List<QueryHit> hits = new ArrayList<>();
 
-		SearcherManager searcherManager = getSearcherManager(project.getForkRoot());
+		SearcherManager searcherManager = getSearcherManager(indexProjectId);
 		if (searcherManager != null) {
 			try {
-				final IndexSearcher searcher = searcherManager.acquire();
+				IndexSearcher searcher = searcherManager.acquire();
 				try {
-					try (RevWalk revWalk = new RevWalk(project.getRepository())){
-						final RevTree revTree = revWalk.parseCommit(commitId).getTree();
-						final Set<String> checkedBlobPaths = new HashSet<>();
+					try (	RevWalk revWalk = new RevWalk(repository);
+							ObjectReader objectReader = repository.newObjectReader()) {
+						RevTree revTree = revWalk.parseCommit(commitId).getTree();
+						Map<String, ObjectId> blobIds = getBlobIds(repository, revTree);
+						Set<String> checkedBlobPaths = new HashSet<>();
+						List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+				
+						Query pathQuery = query.asLuceneQuery();
+						Query contentQuery = query.asContentQuery();
+						BooleanQuery.Builder builder = new BooleanQuery.Builder();
+						if (!isEmpty(pathQuery)) {
+							builder.add(pathQuery, Occur.MUST);
+						} else if (contentQuery != null) {
+							// Empty boolean query matches nothing, match all path documents instead
+							builder.add(new DocValuesFieldExistsQuery(FieldConstants.BLOB_PATH.name()), Occur.FILTER);
+						} else {
+							return hits;
+						}
 						
-						searcher.search(query.asLuceneQuery(), new SimpleCollector() {
+						Map<BytesRef, Integer> contentDocs;
+						boolean contentFiltered = false;
+						if (contentQuery != null) {
+							contentDocs = getContentDocs(searcher, contentQuery);
+							if (contentDocs == null) {
+								/*
+								 * Too many contents matched. Filtering path documents with all 
+								 * these content keys is more expensive than matching candidate 
+								 * blobs directly
+								 */
+								contentDocs = new HashMap<>();
+							} else if (contentDocs.isEmpty()) {
+								return hits;
+							} else {
+								builder.add(new TermInSetQuery(BLOB_CONTENT_KEY.name(), contentDocs.keySet()), Occur.FILTER);
+								contentFiltered = true;
+							}
+						} else {
+							contentDocs = new HashMap<>();
+						}
+						Query luceneQuery = builder.build();
+						boolean contentRequired = contentFiltered;
+				
+						searcher.search(luceneQuery, new SimpleCollector() {
 	
 							private BinaryDocValues blobPathValues;
-							
+					
+							private BinaryDocValues contentKeyValues;
+					
 							@Override
 							public void collect(int doc) throws IOException {
-								if (hits.size() < query.getCount() && !Thread.currentThread().isInterrupted()) {
-									Preconditions.checkState(blobPathValues.advanceExact(doc));
-									String blobPath = blobPathValues.binaryValue().utf8ToString();
-									
-									if (!checkedBlobPaths.contains(blobPath)) {
-										TreeWalk treeWalk = TreeWalk.forPath(project.getRepository(), blobPath, revTree);									
-										if (treeWalk != null)
-											query.collect(searcher, treeWalk, hits);
+								if (hits.size() >= query.getCount() || stopCondition.getAsBoolean())
+									throw new CollectionTerminatedException();
+						
+								Preconditions.checkState(blobPathValues.advanceExact(doc));
+								String blobPath = blobPathValues.binaryValue().utf8ToString();
+						
+								if (!checkedBlobPaths.contains(blobPath)) {
+									ObjectId blobId = blobIds.get(blobPath);
+									if (blobId != null) {
+										/*
+										 * Index is shared by all commits and forks, this path 
+										 * document may reference content of another blob at 
+										 * the same path. Its content document can only be used 
+										 * if it is for the blob of the searched commit
+										 */
+										LeafReader contentReader = null;
+										int contentDoc = -1;
+										if (contentKeyValues != null && contentKeyValues.advanceExact(doc) 
+												&& contentKeyValues.binaryValue().utf8ToString().equals(indexManager.getContentKey(blobId, blobPath))) {
+											Integer globalContentDoc = contentDocs.get(contentKeyValues.binaryValue());
+											if (globalContentDoc != null) {
+												LeafReaderContext contentContext = leaves.get(ReaderUtil.subIndex(globalContentDoc, leaves));
+												contentReader = contentContext.reader();
+												contentDoc = globalContentDoc - contentContext.docBase;
+											}
+										} else if (contentRequired) {
+											// Matched content is not of the searched blob, keep scanning
+											return;
+										}
 										checkedBlobPaths.add(blobPath);
+										int collected = hits.size();
+										query.collect(searcher, new CandidateBlob(blobPath, blobId, objectReader, 
+												contentReader, contentDoc), hits);
+										if (hitConsumer != null) {
+											for (QueryHit hit: hits.subList(collected, hits.size()))
+												hitConsumer.accept(hit);
+										}
 									}
 								}
 							}
 	
 							@Override
 							protected void doSetNextReader(LeafReaderContext context) throws IOException {
+								// Skip remaining segments once enough hits are collected
+								if (hits.size() >= query.getCount() || stopCondition.getAsBoolean())
+									throw new CollectionTerminatedException();
 								blobPathValues  = context.reader().getBinaryDocValues(FieldConstants.BLOB_PATH.name());
+								contentKeyValues = context.reader().getBinaryDocValues(BLOB_CONTENT_KEY.name());
 							}
 
 							@Override
@@ -154,16 +292,120 @@ public class DefaultCodeSearchManager implements CodeSearchManager {
 				throw ExceptionUtils.unchecked(e);
 			}
 		}
-		if (Thread.interrupted())
-			throw new InterruptedException();
-
 		return hits;
 	}
+	
+	@Override
+	public void search(Map<Project, ObjectId> commitIds, BlobQuery query, 
+			BiConsumer<Project, QueryHit> hitConsumer) throws InterruptedException {
+		// Validate query in calling thread so that TooGeneralQueryException is thrown to caller 
+		query.asLuceneQuery();
+		query.asContentQuery();
+		
+		Queue<ProjectSearch> searches = new ConcurrentLinkedQueue<>();
+		for (Map.Entry<Project, ObjectId> entry: commitIds.entrySet()) {
+			Project project = entry.getKey();
+			searches.add(new ProjectSearch(project, project.getForkRoot().getId(), 
+					project.getRepository(), entry.getValue()));
+		}
+		
+		int workers = Math.min(searches.size(), 
+				settingManager.getPerformanceSetting().getCpuIntensiveTaskConcurrency());
+		if (workers == 0)
+			return;
+		
+		BlockingQueue<Object> hitQueue = new ArrayBlockingQueue<>(MAX_QUEUED_HITS);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		AtomicBoolean abandoned = new AtomicBoolean(false);
+		AtomicInteger found = new AtomicInteger(0);
+		AtomicReference<Throwable> errorRef = new AtomicReference<>(null);
+		
+		for (int i=0; i<workers; i++) {
+			executorService.execute(new Runnable() {
 
+				/*
+				 * Hand over an item to the consumer. Give up if consumer abandons the 
+				 * search so that this thread will not block forever
+				 */
+				private void handOver(Object item) throws InterruptedException {
+					while (!hitQueue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+						if (abandoned.get())
+							return;
+					}
+				}
+				
+				@Override
+				public void run() {
+					try {
+						ProjectSearch search;
+						while (!stopped.get() && (search = searches.poll()) != null) {
+							ProjectSearch currentSearch = search;
+							search(search.indexProjectId, search.repository, search.commitId, query, 
+									new Consumer<QueryHit>() {
+
+								@Override
+								public void accept(QueryHit hit) {
+									try {
+										if (found.incrementAndGet() >= query.getCount())
+											stopped.set(true);
+										handOver(new ProjectHit(currentSearch.project, hit));
+									} catch (InterruptedException e) {
+										throw new RuntimeException(e);
+									}
+								}
+								
+							}, new BooleanSupplier() {
+
+								@Override
+								public boolean getAsBoolean() {
+									return stopped.get();
+								}
+								
+							});
+						}
+					} catch (Throwable e) {
+						errorRef.compareAndSet(null, e);
+						stopped.set(true);
+					} finally {
+						try {
+							handOver(SEARCH_FINISHED);
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+				
+			});
+		}
+		
+		try {
+			int delivered = 0;
+			int finished = 0;
+			while (finished < workers) {
+				Object item = hitQueue.take();
+				if (item == SEARCH_FINISHED) {
+					finished++;
+				} else if (delivered < query.getCount()) {
+					ProjectHit projectHit = (ProjectHit) item;
+					hitConsumer.accept(projectHit.project, projectHit.hit);
+					if (++delivered == query.getCount())
+						stopped.set(true);
+				}
+			}
+		} catch (Throwable e) {
+			stopped.set(true);
+			abandoned.set(true);
+			throw e;
+		}
+		
+		Throwable error = errorRef.get();
+		if (error != null)
+			throw ExceptionUtils.unchecked(error);
+	}
+	
 	@Override
 	public List<Symbol> getSymbols(Project project, ObjectId blobId, String blobPath) {
 		try {
-			SearcherManager searcherManager = getSearcherManager(project.getForkRoot());
+			SearcherManager searcherManager = getSearcherManager(project.getForkRoot().getId());
 			if (searcherManager != null) {
 				try {
 					IndexSearcher searcher = searcherManager.acquire();
@@ -183,61 +425,112 @@ public class DefaultCodeSearchManager implements CodeSearchManager {
 		}
 	}
 	
-	@Override
-	public List<Symbol> getSymbols(IndexSearcher searcher, ObjectId blobId, String blobPath) {
-		BooleanQuery.Builder builder = new BooleanQuery.Builder();
-		builder.add(BLOB_HASH.getTermQuery(blobId.name()), Occur.MUST);
-		builder.add(BLOB_PATH.getTermQuery(blobPath), Occur.MUST);
-		
-		BooleanQuery query = builder.build();
-		
-		String indexVersion = indexManager.getIndexVersion(SymbolExtractorRegistry.getExtractor(blobPath));
-		AtomicReference<List<Symbol>> symbolsRef = new AtomicReference<>(null);
-		if (searcher != null) {
-			try {
-				searcher.search(query, new SimpleCollector() {
-
-					private LeafReaderContext context;
+	private boolean isEmpty(Query query) {
+		return query instanceof BooleanQuery && ((BooleanQuery) query).clauses().isEmpty();
+	}
+	
+	/*
+	 * Get content documents matching specified query, keyed by their content keys. Path 
+	 * documents referencing these keys will then be searched to find out paths of matched 
+	 * contents. Return null if there are too many matched content documents
+	 */
+	@Nullable
+	private Map<BytesRef, Integer> getContentDocs(IndexSearcher searcher, Query contentQuery) throws IOException {
+		Map<BytesRef, Integer> contentDocs = new HashMap<>();
+		AtomicBoolean exceeded = new AtomicBoolean(false);
+		searcher.search(contentQuery, new SimpleCollector() {
 
-					@SuppressWarnings("unchecked")
-					@Override
-					public void collect(int doc) throws IOException {
-						Document document = searcher.doc(context.docBase+doc);
-						if (indexVersion.equals(document.get(BLOB_INDEX_VERSION.name()))) {
-							BytesRef bytesRef = document.getBinaryValue(BLOB_SYMBOL_LIST.name());
-							if (bytesRef != null) {
-								try {
-									symbolsRef.set((List<Symbol>) SerializationUtils.deserialize(bytesRef.bytes));
-								} catch (Exception e) {
-									logger.error("Error deserializing symbols", e);
-								}
-							}
-						}
+			private int docBase;
+			
+			private BinaryDocValues contentKeyValues;
+			
+			@Override
+			public void collect(int doc) throws IOException {
+				if (contentKeyValues != null && contentKeyValues.advanceExact(doc)) {
+					if (contentDocs.size() >= MAX_CONTENT_DOCS) {
+						exceeded.set(true);
+						throw new CollectionTerminatedException();
 					}
+					contentDocs.put(BytesRef.deepCopyOf(contentKeyValues.binaryValue()), docBase + doc);
+				}
+			}
 
-					@Override
-					protected void doSetNextReader(LeafReaderContext context) throws IOException {
-						this.context = context;
-					}
+			@Override
+			protected void doSetNextReader(LeafReaderContext context) throws IOException {
+				if (exceeded.get())
+					throw new CollectionTerminatedException();
+				docBase = context.docBase;
+				contentKeyValues = context.reader().getBinaryDocValues(CONTENT_KEY.name());
+			}
 
-					@Override
-					public ScoreMode scoreMode() {
-						return ScoreMode.COMPLETE_NO_SCORES;
+			@Override
+			public ScoreMode scoreMode() {
+				return ScoreMode.COMPLETE_NO_SCORES;
+			}
+			
+		});
+		if (exceeded.get())
+			return null;
+		else
+			return contentDocs;
+	}
+	
+	/*
+	 * Get blob ids of all files in specified tree, keyed by blob path. Result is cached as 
+	 * trees are immutable, and it is much cheaper to look up candidate paths of a search 
+	 * here than to walk the tree for each of them
+	 */
+	private Map<String, ObjectId> getBlobIds(Repository repository, RevTree tree) {
+		try {
+			return blobIdsCache.get(tree.copy(), new Callable<Map<String, ObjectId>>() {
+
+				@Override
+				public Map<String, ObjectId> call() throws Exception {
+					Map<String, ObjectId> blobIds = new HashMap<>();
+					try (TreeWalk treeWalk = new TreeWalk(repository)) {
+						treeWalk.addTree(tree);
+						treeWalk.setRecursive(true);
+						while (treeWalk.next()) {
+							if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE)
+								blobIds.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+						}
 					}
-					
-				});
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+					return blobIds;
+				}
+				
+			});
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.unchecked(e.getCause());
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<Symbol> getSymbols(IndexSearcher searcher, ObjectId blobId, String blobPath) {
+		String contentKey = indexManager.getContentKey(blobId, blobPath);
+		try {
+			TopDocs topDocs = searcher.search(CONTENT_KEY.getTermQuery(contentKey), 1);
+			if (topDocs.scoreDocs.length != 0) {
+				Document document = searcher.doc(topDocs.scoreDocs[0].doc);
+				BytesRef bytesRef = document.getBinaryValue(BLOB_SYMBOL_LIST.name());
+				if (bytesRef != null) {
+					try {
+						return (List<Symbol>) SerializationUtils.deserialize(bytesRef.bytes);
+					} catch (Exception e) {
+						logger.error("Error deserializing symbols", e);
+					}
+				}
 			}
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		
-		return symbolsRef.get();
 	}
 	
 	@Listen
 	public void on(CommitIndexed event) {
 		try {
-			SearcherManager searcherManager = getSearcherManager(event.getProject().getForkRoot()); 
+			SearcherManager searcherManager = getSearcherManager(event.getProject().getForkRoot().getId()); 
 			if (searcherManager != null)
 				searcherManager.maybeRefresh();
 		} catch (InterruptedException | IOException e) {
@@ -303,4 +596,37 @@ public class DefaultCodeSearchManager implements CodeSearchManager {
 		return blobPath;
 	}
 
+	
+	private static class ProjectSearch {
+		
+		final Project project;
+		
+		final Long indexProjectId;
+		
+		final Repository repository;
+		
+		final ObjectId commitId;
+		
+		ProjectSearch(Project project, Long indexProjectId, Repository repository, ObjectId commitId) {
+			this.project = project;
+			this.indexProjectId = indexProjectId;
+			this.repository = repository;
+			this.commitId = commitId;
+		}
+		
+	}
+	
+	private static class ProjectHit {
+		
+		final Project project;
+		
+		final QueryHit hit;
+		
+		ProjectHit(Project project, QueryHit hit) {
+			this.project = project;
+			this.hit = hit;
+		}
+		
+	}
+
 }
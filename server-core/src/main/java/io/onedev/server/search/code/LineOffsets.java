@@ -0,0 +1,74 @@
+package io.onedev.server.search.code;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Start offsets of lines of blob text, stored as doc values of content documents so that
+ * offsets of index terms can be mapped to lines without scanning the text. Lines are
+ * separated by '\n', and start offset of each line except the first one is stored as
+ * varint encoded delta to start offset of previous line.
+ */
+public class LineOffsets {
+
+	private LineOffsets() {
+	}
+
+	public static byte[] encode(String text) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int lastStart = 0;
+		for (int i=0; i<text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				int delta = i + 1 - lastStart;
+				while ((delta & ~0x7F) != 0) {
+					baos.write((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				baos.write(delta);
+				lastStart = i + 1;
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return
+	 * 			start offsets of all lines, with first element being <tt>0</tt>
+	 */
+	public static int[] decode(BytesRef bytesRef) {
+		int[] lineStarts = new int[bytesRef.length+1];
+		int count = 1;
+		int lastStart = 0;
+		int pos = bytesRef.offset;
+		int end = bytesRef.offset + bytesRef.length;
+		while (pos < end) {
+			int delta = 0;
+			int shift = 0;
+			while (true) {
+				int b = bytesRef.bytes[pos++] & 0xFF;
+				delta |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+				shift += 7;
+			}
+			lastStart += delta;
+			lineStarts[count++] = lastStart;
+		}
+		return Arrays.copyOf(lineStarts, count);
+	}
+
+	/**
+	 * @return
+	 * 			line number (0-based) containing specified offset
+	 */
+	public static int getLine(int[] lineStarts, int offset) {
+		int index = Arrays.binarySearch(lineStarts, offset);
+		if (index >= 0)
+			return index;
+		else
+			return -index - 2;
+	}
+
+}
@@ -11,7 +11,6 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.WildcardQuery;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import io.onedev.server.search.code.hit.QueryHit;
 
@@ -35,10 +34,10 @@ public abstract class BlobQuery {
 		return count;
 	}
 
-	public abstract void collect(IndexSearcher searcher, TreeWalk treeWalk, List<QueryHit> hits);
+	public abstract void collect(IndexSearcher searcher, CandidateBlob blob, List<QueryHit> hits);
 
 	/**
-	 * Get lucene query representation of this query
+	 * Get lucene query representation of this query against blob path documents
 	 * 
 	 * @return 
 	 * 			lucene query
@@ -60,6 +59,29 @@ public abstract class BlobQuery {
 		return luceneQueryBuilder.build();
 	}
 
+	/**
+	 * Get lucene query representation of this query against blob content documents. Blob 
+	 * content is indexed once per unique content, and is referenced by blob path documents 
+	 * 
+	 * @return 
+	 * 			lucene query, or <tt>null</tt> if this query does not constrain blob content
+	 * @throws 
+	 * 			TooGeneralQueryException if supplied query term is too general to possibly cause query slow
+	 */
+	@Nullable
+	public Query asContentQuery() throws TooGeneralQueryException {
+		BooleanQuery.Builder luceneQueryBuilder = new BooleanQuery.Builder();
+		applyContentConstraints(luceneQueryBuilder);
+		BooleanQuery luceneQuery = luceneQueryBuilder.build();
+		if (!luceneQuery.clauses().isEmpty())
+			return luceneQuery;
+		else
+			return null;
+	}
+	
 	protected abstract void applyConstraints(BooleanQuery.Builder query);
 	
+	protected void applyContentConstraints(BooleanQuery.Builder query) {
+	}
+	
 }
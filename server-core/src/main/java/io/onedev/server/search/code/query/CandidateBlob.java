@@ -0,0 +1,65 @@
+package io.onedev.server.search.code.query;
+
+import javax.annotation.Nullable;
+
+import org.apache.lucene.index.LeafReader;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+
+/**
+ * Blob of searched commit matching lucene query of a blob query. Hits are collected from
+ * candidate blobs via {@link BlobQuery#collect(org.apache.lucene.search.IndexSearcher, CandidateBlob, java.util.List)}
+ */
+public class CandidateBlob {
+
+	private final String path;
+
+	private final ObjectId id;
+
+	private final ObjectReader objectReader;
+
+	private final LeafReader contentReader;
+
+	private final int contentDoc;
+
+	public CandidateBlob(String path, ObjectId id, ObjectReader objectReader,
+			@Nullable LeafReader contentReader, int contentDoc) {
+		this.path = path;
+		this.id = id;
+		this.objectReader = objectReader;
+		this.contentReader = contentReader;
+		this.contentDoc = contentDoc;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public ObjectId getId() {
+		return id;
+	}
+
+	public ObjectReader getObjectReader() {
+		return objectReader;
+	}
+
+	/**
+	 * @return
+	 * 			reader of index segment containing content document of this blob, or
+	 * 			<tt>null</tt> if content document is not located for this blob
+	 */
+	@Nullable
+	public LeafReader getContentReader() {
+		return contentReader;
+	}
+
+	/**
+	 * @return
+	 * 			segment local doc id of content document of this blob. Only meaningful
+	 * 			if {@link #getContentReader()} is not <tt>null</tt>
+	 */
+	public int getContentDoc() {
+		return contentDoc;
+	}
+
+}
@@ -11,7 +11,6 @@ import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.WildcardQuery;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import io.onedev.commons.utils.PathUtils;
 import io.onedev.commons.utils.LinearRange;
@@ -28,8 +27,8 @@ public class PathQuery extends BlobQuery {
 	}
 
 	@Override
-	public void collect(IndexSearcher searcher, TreeWalk treeWalk, List<QueryHit> hits) {
-		String blobPath = treeWalk.getPathString();
+	public void collect(IndexSearcher searcher, CandidateBlob blob, List<QueryHit> hits) {
+		String blobPath = blob.getPath();
 		LinearRange range = PathUtils.matchSegments(blobPath, match, true);
 		if (range != null) {
 			hits.add(new PathHit(blobPath, range));
@@ -14,7 +14,6 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.WildcardQuery;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import io.onedev.commons.jsymbol.Symbol;
 import io.onedev.commons.utils.LinearRange;
@@ -58,9 +57,9 @@ public class SymbolQuery extends BlobQuery {
 	}
  
 	@Override
-	public void collect(IndexSearcher searcher, TreeWalk treeWalk, List<QueryHit> hits) {
-		String blobPath = treeWalk.getPathString();
-		ObjectId blobId = treeWalk.getObjectId(0);
+	public void collect(IndexSearcher searcher, CandidateBlob blob, List<QueryHit> hits) {
+		String blobPath = blob.getPath();
+		ObjectId blobId = blob.getId();
 		
 		List<Symbol> symbols = OneDev.getInstance(CodeSearchManager.class).getSymbols(searcher, blobId, blobPath);
 		if (symbols != null) {
@@ -125,7 +124,10 @@ public class SymbolQuery extends BlobQuery {
 		}
 		if (tooGeneral)
 			throw new TooGeneralQueryException();
-
+	}
+	
+	@Override
+	protected void applyContentConstraints(BooleanQuery.Builder builder) {
 		if (primary != null) {
 			String fieldName;
 			if (primary)
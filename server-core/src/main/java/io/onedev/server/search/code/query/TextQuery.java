@@ -1,10 +1,12 @@
 package io.onedev.server.search.code.query;
 
+import static io.onedev.server.search.code.FieldConstants.BLOB_LINE_OFFSETS;
 import static io.onedev.server.search.code.FieldConstants.BLOB_NAME;
 import static io.onedev.server.search.code.FieldConstants.BLOB_TEXT;
 import static io.onedev.server.search.code.IndexConstants.NGRAM_SIZE;
 
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -12,13 +14,18 @@ import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 import org.apache.commons.lang3.CharUtils;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
 import org.eclipse.jgit.lib.ObjectLoader;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
@@ -26,6 +33,7 @@ import com.google.common.base.Splitter;
 import io.onedev.commons.utils.LinearRange;
 import io.onedev.commons.utils.PlanarRange;
 import io.onedev.server.search.code.IndexConstants;
+import io.onedev.server.search.code.LineOffsets;
 import io.onedev.server.search.code.hit.QueryHit;
 import io.onedev.server.search.code.hit.TextHit;
 import io.onedev.server.search.code.query.regex.RegexLiterals;
@@ -81,84 +89,32 @@ public class TextQuery extends BlobQuery {
 	}
 	
 	@Override
-	public void collect(IndexSearcher searcher, TreeWalk treeWalk, List<QueryHit> hits) {
-		ObjectLoader objectLoader;
+	public void collect(IndexSearcher searcher, CandidateBlob blob, List<QueryHit> hits) {
 		try {
-			objectLoader = treeWalk.getObjectReader().open(treeWalk.getObjectId(0));
+			ObjectLoader objectLoader = blob.getObjectReader().open(blob.getId());
 			if (objectLoader.getSize() <= IndexConstants.MAX_INDEXABLE_SIZE) {
-				String blobPath = treeWalk.getPathString();
+				String blobPath = blob.getPath();
 				String content = ContentDetector.convertToText(objectLoader.getCachedBytes(), blobPath);
 				if (content != null) {
-					Pattern pattern = getPattern();
-					if (pattern != null) {
-						int lineNo = 0;
-						for (String line: Splitter.on('\n').split(content)) {
-							if (line.length() <= MAX_LINE_LEN) {
-								Matcher matcher = pattern.matcher(line);
-								while (matcher.find()) {
-									LinearRange range = new LinearRange(matcher.start(), matcher.end());
-									PlanarRange position = new PlanarRange(lineNo, range.getFrom(), lineNo, range.getTo());
-									hits.add(new TextHit(blobPath, line, position));
-									if (hits.size() >= getCount())
-										break;
-								}
-								if (hits.size() >= getCount())
-									break;
-							}
-							lineNo++;
+					int[] lineStarts = getLineStarts(blob, content);
+					BitSet candidateLines = lineStarts != null? getCandidateLines(blob, lineStarts): null;
+					if (candidateLines != null) {
+						for (int lineNo = candidateLines.nextSetBit(0); 
+								lineNo != -1 && hits.size() < getCount(); 
+								lineNo = candidateLines.nextSetBit(lineNo+1)) {
+							int lineEnd;
+							if (lineNo+1 < lineStarts.length)
+								lineEnd = lineStarts[lineNo+1] - 1;
+							else
+								lineEnd = content.length();
+							collect(blobPath, content.substring(lineStarts[lineNo], lineEnd), lineNo, hits);
 						}
 					} else {
-						String normalizedTerm;
-						if (!caseSensitive)
-							normalizedTerm = term.toLowerCase();
-						else
-							normalizedTerm = term;
-						
 						int lineNo = 0;
 						for (String line: Splitter.on('\n').split(content)) {
-							if (line.length() <= MAX_LINE_LEN) {
-								String normalizedLine;
-								if (!caseSensitive)
-									normalizedLine = line.toLowerCase();
-								else
-									normalizedLine = line;
-								
-								int start = normalizedLine.indexOf(normalizedTerm, 0);
-								while (start != -1) {
-									int end = start + normalizedTerm.length();
-									if (wholeWord) {
-										char beforeChar;
-										if (start == 0)
-											beforeChar = ' ';
-										else 
-											beforeChar = line.charAt(start-1);
-										
-										char afterChar;
-										if (end == line.length())
-											afterChar = ' ';
-										else
-											afterChar = line.charAt(end);
-										
-										if (!isWordChar(beforeChar) && !isWordChar(afterChar)) {
-											LinearRange range = new LinearRange(start, end);
-											PlanarRange position = new PlanarRange(lineNo, range.getFrom(), lineNo, range.getTo());
-											hits.add(new TextHit(blobPath, line, position));
-											if (hits.size() >= getCount())
-												break;
-										}
-									} else {
-										LinearRange range = new LinearRange(start, end);
-										PlanarRange position = new PlanarRange(lineNo, range.getFrom(), lineNo, range.getTo());
-										hits.add(new TextHit(blobPath, line, position));
-										if (hits.size() >= getCount())
-											break;
-									}
-									start = normalizedLine.indexOf(normalizedTerm, end);
-								}
-								if (hits.size() >= getCount())
-									break;
-							}
-							lineNo++;
+							if (hits.size() >= getCount())
+								break;
+							collect(blobPath, line, lineNo++, hits);
 						}
 					}
 				}
@@ -167,6 +123,135 @@ public class TextQuery extends BlobQuery {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	private void collect(String blobPath, String line, int lineNo, List<QueryHit> hits) {
+		if (line.length() > MAX_LINE_LEN)
+			return;
+		
+		Pattern pattern = getPattern();
+		if (pattern != null) {
+			Matcher matcher = pattern.matcher(line);
+			while (matcher.find()) {
+				LinearRange range = new LinearRange(matcher.start(), matcher.end());
+				PlanarRange position = new PlanarRange(lineNo, range.getFrom(), lineNo, range.getTo());
+				hits.add(new TextHit(blobPath, line, position));
+				if (hits.size() >= getCount())
+					break;
+			}
+		} else {
+			String normalizedTerm;
+			if (!caseSensitive)
+				normalizedTerm = term.toLowerCase();
+			else
+				normalizedTerm = term;
+			
+			String normalizedLine;
+			if (!caseSensitive)
+				normalizedLine = line.toLowerCase();
+			else
+				normalizedLine = line;
+			
+			int start = normalizedLine.indexOf(normalizedTerm, 0);
+			while (start != -1) {
+				int end = start + normalizedTerm.length();
+				if (wholeWord) {
+					char beforeChar;
+					if (start == 0)
+						beforeChar = ' ';
+					else 
+						beforeChar = line.charAt(start-1);
+					
+					char afterChar;
+					if (end == line.length())
+						afterChar = ' ';
+					else
+						afterChar = line.charAt(end);
+					
+					if (!isWordChar(beforeChar) && !isWordChar(afterChar)) {
+						LinearRange range = new LinearRange(start, end);
+						PlanarRange position = new PlanarRange(lineNo, range.getFrom(), lineNo, range.getTo());
+						hits.add(new TextHit(blobPath, line, position));
+						if (hits.size() >= getCount())
+							break;
+					}
+				} else {
+					LinearRange range = new LinearRange(start, end);
+					PlanarRange position = new PlanarRange(lineNo, range.getFrom(), lineNo, range.getTo());
+					hits.add(new TextHit(blobPath, line, position));
+					if (hits.size() >= getCount())
+						break;
+				}
+				start = normalizedLine.indexOf(normalizedTerm, end);
+			}
+		}
+	}
+	
+	/*
+	 * Read line start offsets stored in content document of the blob. Return null if not 
+	 * available or not consistent with the text
+	 */
+	@Nullable
+	private int[] getLineStarts(CandidateBlob blob, String content) throws IOException {
+		LeafReader reader = blob.getContentReader();
+		if (reader != null) {
+			BinaryDocValues lineOffsetsValues = reader.getBinaryDocValues(BLOB_LINE_OFFSETS.name());
+			if (lineOffsetsValues != null && lineOffsetsValues.advanceExact(blob.getContentDoc())) {
+				int[] lineStarts = LineOffsets.decode(lineOffsetsValues.binaryValue());
+				if (lineStarts[lineStarts.length-1] <= content.length())
+					return lineStarts;
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Get lines possibly containing the literal term via offsets of its n-grams in content 
+	 * document of the blob, so that only these lines need to be matched. Offsets of the 
+	 * n-gram occurring least in the blob are used. Return null if lines can not be 
+	 * determined from the index
+	 */
+	@Nullable
+	private BitSet getCandidateLines(CandidateBlob blob, int[] lineStarts) throws IOException {
+		if (regex || term.length() < NGRAM_SIZE)
+			return null;
+		
+		// Lower case n-grams the same way as LowerCaseFilter used by the n-gram analyzer
+		char[] chars = term.toCharArray();
+		for (int i=0; i<chars.length; i++) {
+			if (Character.isSurrogate(chars[i]))
+				return null;
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		
+		LeafReader reader = blob.getContentReader();
+		Terms terms = reader.terms(BLOB_TEXT.name());
+		if (terms == null || !terms.hasOffsets())
+			return null;
+		
+		TermsEnum termsEnum = terms.iterator();
+		PostingsEnum rarestPostings = null;
+		int rarestGramIndex = -1;
+		for (int i=0; i<=chars.length-NGRAM_SIZE; i++) {
+			if (!termsEnum.seekExact(new BytesRef(new String(chars, i, NGRAM_SIZE))))
+				return new BitSet();
+			PostingsEnum postings = termsEnum.postings(null, PostingsEnum.OFFSETS);
+			if (postings.advance(blob.getContentDoc()) != blob.getContentDoc())
+				return new BitSet();
+			if (rarestPostings == null || postings.freq() < rarestPostings.freq()) {
+				rarestPostings = postings;
+				rarestGramIndex = i;
+			}
+		}
+		
+		BitSet candidateLines = new BitSet();
+		for (int i=0; i<rarestPostings.freq(); i++) {
+			rarestPostings.nextPosition();
+			int start = rarestPostings.startOffset() - rarestGramIndex;
+			if (start >= 0)
+				candidateLines.set(LineOffsets.getLine(lineStarts, start));
+		}
+		return candidateLines;
+	}
 
 	private boolean isWordChar(char ch) {
 		return CharUtils.isAsciiAlphanumeric(ch) || ch == '_';
@@ -182,7 +267,10 @@ public class TextQuery extends BlobQuery {
 			if (subQuery.clauses().size() != 0)
 				builder.add(subQuery, Occur.MUST);
 		}
-
+	}
+	
+	@Override
+	protected void applyContentConstraints(BooleanQuery.Builder builder) {
 		if (regex) 
 			builder.add(new RegexLiterals(term).asNGramQuery(BLOB_TEXT.name(), NGRAM_SIZE), Occur.MUST);
 		else if (term.length() >= NGRAM_SIZE)
@@ -49,6 +49,21 @@ public class RegexLiterals {
 	 * @throws TooGeneralQueryException
 	 */
 	public Query asNGramQuery(String fieldName, int gramSize) throws TooGeneralQueryException {
+		return asNGramQuery(fieldName, gramSize, false);
+	}
+	
+	/**
+	 * @param fieldName
+	 * @param gramSize
+	 * @param exhaustive
+	 * 			if <tt>true</tt>, every alternative of the regular expression should contribute 
+	 * 			some n-gram clause, so that the query does not miss any text matching the regular 
+	 * 			expression. Otherwise alternatives without long enough literals are ignored
+	 * @return
+	 * @throws TooGeneralQueryException
+	 */
+	public Query asNGramQuery(String fieldName, int gramSize, boolean exhaustive) 
+			throws TooGeneralQueryException {
 		BooleanQuery.Builder orQueryBuilder = new BooleanQuery.Builder();
 		for (List<LeafLiterals> row: rows) {
 			BooleanQuery.Builder andQueryBuilder = new BooleanQuery.Builder();
@@ -59,6 +74,8 @@ public class RegexLiterals {
 			BooleanQuery andQuery = andQueryBuilder.build();
 			if (andQuery.clauses().size() != 0)
 				orQueryBuilder.add(andQuery, Occur.SHOULD);
+			else if (exhaustive)
+				throw new TooGeneralQueryException();
 		}
 		BooleanQuery orQuery = orQueryBuilder.build();
 		if (orQuery.clauses().size() != 0)
@@ -18,7 +18,8 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 
 import io.onedev.commons.utils.ExplicitException;
-import io.onedev.server.git.GitUtils;
+import io.onedev.server.OneDev;
+import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Build;
 import io.onedev.server.model.Issue;
 import io.onedev.server.model.Project;
@@ -83,7 +84,8 @@ public class FixedBetweenCriteria extends Criteria<Issue> {
 		ObjectId firstCommitId = getProjectAndCommitIds().firstCommitId;
 		ObjectId secondCommitId = getProjectAndCommitIds().secondCommitId;
 		Repository repository = getProjectAndCommitIds().project.getRepository();
-		ObjectId mergeBaseId = GitUtils.getMergeBase(repository, firstCommitId, secondCommitId);
+		ObjectId mergeBaseId = OneDev.getInstance(CommitInfoManager.class)
+				.getMergeBase(project, firstCommitId, secondCommitId);
 		if (mergeBaseId != null) {
 			try (RevWalk revWalk = new RevWalk(repository)) {
 				revWalk.markStart(revWalk.parseCommit(secondCommitId));
@@ -115,7 +117,8 @@ public class FixedBetweenCriteria extends Criteria<Issue> {
 		ObjectId secondCommitId = getProjectAndCommitIds().secondCommitId;
 		if (project.equals(issue.getProject())) {
 			Repository repository = issue.getProject().getRepository();
-			ObjectId mergeBaseId = GitUtils.getMergeBase(repository, firstCommitId, secondCommitId);
+			ObjectId mergeBaseId = OneDev.getInstance(CommitInfoManager.class)
+					.getMergeBase(project, firstCommitId, secondCommitId);
 			if (mergeBaseId != null) {
 				try (RevWalk revWalk = new RevWalk(repository)) {
 					revWalk.markStart(revWalk.parseCommit(secondCommitId));
@@ -72,6 +72,7 @@ import io.onedev.server.storage.StorageManager;
 import io.onedev.server.util.ReflectionUtils;
 import io.onedev.server.util.concurrent.BatchWorkManager;
 import io.onedev.server.util.concurrent.BatchWorker;
+import io.onedev.server.util.concurrent.CoalescableWork;
 import io.onedev.server.util.concurrent.Prioritized;
 
 public abstract class EntityTextManager<T extends AbstractEntity> {
@@ -437,7 +438,7 @@ public abstract class EntityTextManager<T extends AbstractEntity> {
 
 	protected abstract void addFields(Document document, T entity);
 
-	private static class IndexWork extends Prioritized {
+	private static class IndexWork extends Prioritized implements CoalescableWork {
 
 		private final Long entityId;
 
@@ -451,6 +452,12 @@ public abstract class EntityTextManager<T extends AbstractEntity> {
 			return entityId;
 		}
 
+		// Work without entity id indexes all unindexed entities, one queued such work is enough
+		@Override
+		public Object getCoalescingKey() {
+			return entityId != null? entityId: "";
+		}
+		
 	}
 
 	protected static interface WriterRunnable {
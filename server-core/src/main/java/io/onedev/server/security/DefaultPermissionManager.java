@@ -0,0 +1,301 @@
+package io.onedev.server.security;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.shiro.authz.Permission;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+
+import io.onedev.commons.loader.Listen;
+import io.onedev.server.entitymanager.ProjectManager;
+import io.onedev.server.entitymanager.RoleManager;
+import io.onedev.server.entitymanager.SettingManager;
+import io.onedev.server.entitymanager.UserManager;
+import io.onedev.server.event.entity.EntityPersisted;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.model.AbstractEntity;
+import io.onedev.server.model.Group;
+import io.onedev.server.model.GroupAuthorization;
+import io.onedev.server.model.Membership;
+import io.onedev.server.model.Project;
+import io.onedev.server.model.Role;
+import io.onedev.server.model.Setting;
+import io.onedev.server.model.User;
+import io.onedev.server.model.UserAuthorization;
+import io.onedev.server.persistence.SessionManager;
+import io.onedev.server.persistence.TransactionManager;
+import io.onedev.server.security.permission.AccessConfidentialIssues;
+import io.onedev.server.security.permission.AccessProject;
+import io.onedev.server.security.permission.CreateChildren;
+import io.onedev.server.security.permission.ManageBuilds;
+import io.onedev.server.security.permission.ManageCodeComments;
+import io.onedev.server.security.permission.ManageIssues;
+import io.onedev.server.security.permission.ManageProject;
+import io.onedev.server.security.permission.ManagePullRequests;
+import io.onedev.server.security.permission.ReadCode;
+import io.onedev.server.security.permission.ScheduleIssues;
+import io.onedev.server.security.permission.WriteCode;
+import io.onedev.server.util.Pair;
+import io.onedev.server.util.facade.ProjectCache;
+import io.onedev.server.util.facade.ProjectFacade;
+
+/**
+ * Permitted projects of each indexed privilege are kept as bitsets over project ids. Bitsets
+ * are calculated on first access from roles granted to the user and its groups, and from
+ * default roles of projects, with privileges granted on a project inherited by its subtree.
+ * Changes of memberships and user authorizations only invalidate index of affected user,
+ * while changes of groups, roles, projects and settings invalidate the whole index.
+ */
+@Singleton
+public class DefaultPermissionManager implements PermissionManager {
+
+	private static final int MAX_CACHED_USERS = 1000;
+
+	private static final Set<Class<?>> INDEXED_PRIVILEGES = Sets.newHashSet(
+			AccessProject.class, ReadCode.class, WriteCode.class, ManageProject.class,
+			CreateChildren.class, ManageCodeComments.class, ManagePullRequests.class,
+			ManageIssues.class, AccessConfidentialIssues.class, ScheduleIssues.class,
+			ManageBuilds.class);
+
+	private final UserManager userManager;
+
+	private final RoleManager roleManager;
+
+	private final ProjectManager projectManager;
+
+	private final SettingManager settingManager;
+
+	private final SessionManager sessionManager;
+
+	private final TransactionManager transactionManager;
+
+	private final Cache<Long, UserPermissions> userPermissions = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_USERS)
+			.build();
+
+	/*
+	 * Projects permitted by default roles, keyed by privilege class and whether or not
+	 * user is logged in, as roles grant less privileges to anonymous users
+	 */
+	private final Map<Pair<Class<?>, Boolean>, BitSet> defaultRolePermissions = new ConcurrentHashMap<>();
+
+	/*
+	 * Increased on every invalidation, so that index calculated from data before the
+	 * invalidation will not be stored
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	@Inject
+	public DefaultPermissionManager(UserManager userManager, RoleManager roleManager,
+			ProjectManager projectManager, SettingManager settingManager,
+			SessionManager sessionManager, TransactionManager transactionManager) {
+		this.userManager = userManager;
+		this.roleManager = roleManager;
+		this.projectManager = projectManager;
+		this.settingManager = settingManager;
+		this.sessionManager = sessionManager;
+		this.transactionManager = transactionManager;
+	}
+
+	@Listen
+	public void on(EntityPersisted event) {
+		invalidate(event.getEntity());
+	}
+
+	@Listen
+	public void on(EntityRemoved event) {
+		invalidate(event.getEntity());
+	}
+
+	private void invalidate(AbstractEntity entity) {
+		Long userId;
+		if (entity instanceof User)
+			userId = entity.getId();
+		else if (entity instanceof Membership)
+			userId = ((Membership) entity).getUser().getId();
+		else if (entity instanceof UserAuthorization)
+			userId = ((UserAuthorization) entity).getUser().getId();
+		else if (entity instanceof Group || entity instanceof GroupAuthorization || entity instanceof Role
+				|| entity instanceof Project || entity instanceof Setting)
+			userId = null;
+		else
+			return;
+
+		transactionManager.runAfterCommit(new Runnable() {
+
+			@Override
+			public void run() {
+				generation.incrementAndGet();
+				if (userId != null) {
+					userPermissions.invalidate(userId);
+				} else {
+					userPermissions.invalidateAll();
+					defaultRolePermissions.clear();
+				}
+			}
+
+		});
+	}
+
+	@Override
+	public boolean isIndexed(Permission privilege) {
+		return INDEXED_PRIVILEGES.contains(privilege.getClass());
+	}
+
+	@Override
+	public boolean isAdministrator(Long userId) {
+		return userId != 0L && getUserPermissions(userId).administrator;
+	}
+
+	@Override
+	public boolean isPermitted(Long userId, Long projectId, Permission privilege) {
+		return isAdministrator(userId)
+				|| getPermittedProjects(userId, privilege).get(projectId.intValue());
+	}
+
+	@Override
+	public Collection<Long> getPermittedProjectIds(Long userId, Permission privilege) {
+		if (isAdministrator(userId)) {
+			return projectManager.getIds();
+		} else {
+			return getPermittedProjects(userId, privilege).stream()
+					.mapToObj(it -> Long.valueOf(it))
+					.collect(Collectors.toSet());
+		}
+	}
+
+	private UserPermissions getUserPermissions(Long userId) {
+		UserPermissions permissions = userPermissions.getIfPresent(userId);
+		if (permissions == null) {
+			long currentGeneration = generation.get();
+			permissions = sessionManager.call(new Callable<UserPermissions>() {
+
+				@Override
+				public UserPermissions call() throws Exception {
+					return loadUserPermissions(userId);
+				}
+
+			});
+			if (generation.get() == currentGeneration)
+				userPermissions.put(userId, permissions);
+		}
+		return permissions;
+	}
+
+	private UserPermissions loadUserPermissions(Long userId) {
+		Map<Long, Collection<Long>> projectRoleIds = new HashMap<>();
+		if (userId != 0L) {
+			User user = userManager.load(userId);
+			if (user.isRoot() || user.isSystem())
+				return new UserPermissions(true, projectRoleIds);
+
+			List<Group> groups = new ArrayList<>(user.getGroups());
+			Group defaultLoginGroup = settingManager.getSecuritySetting().getDefaultLoginGroup();
+			if (defaultLoginGroup != null)
+				groups.add(defaultLoginGroup);
+
+			for (Group group: groups) {
+				if (group.isAdministrator())
+					return new UserPermissions(true, projectRoleIds);
+				for (GroupAuthorization authorization: group.getAuthorizations()) {
+					projectRoleIds.computeIfAbsent(authorization.getProject().getId(), key -> new HashSet<>())
+							.add(authorization.getRole().getId());
+				}
+			}
+			for (UserAuthorization authorization: user.getProjectAuthorizations()) {
+				projectRoleIds.computeIfAbsent(authorization.getProject().getId(), key -> new HashSet<>())
+						.add(authorization.getRole().getId());
+			}
+		}
+		return new UserPermissions(false, projectRoleIds);
+	}
+
+	/*
+	 * Privileges implied by roles are evaluated for login state of specified user instead of 
+	 * current user, as the result is cached and permissions of a user may be checked while 
+	 * another user or no user is bound to current thread
+	 */
+	private BitSet getPermittedProjects(Long userId, Permission privilege) {
+		UserPermissions permissions = getUserPermissions(userId);
+		BitSet permittedProjects = permissions.permittedProjects.get(privilege.getClass());
+		if (permittedProjects == null) {
+			long currentGeneration = generation.get();
+			permittedProjects = sessionManager.call(new Callable<BitSet>() {
+
+				@Override
+				public BitSet call() throws Exception {
+					BitSet permittedProjects = new BitSet();
+					if (userId != 0L || settingManager.getSecuritySetting().isEnableAnonymousAccess())
+						permittedProjects.or(getDefaultRolePermittedProjects(userId != 0L, privilege));
+					for (Map.Entry<Long, Collection<Long>> entry: permissions.projectRoleIds.entrySet()) {
+						for (Long roleId: entry.getValue()) {
+							if (roleManager.load(roleId).implies(privilege, userId != 0L)) {
+								for (Long projectId: projectManager.getSubtreeIds(entry.getKey()))
+									permittedProjects.set(projectId.intValue());
+								break;
+							}
+						}
+					}
+					return permittedProjects;
+				}
+
+			});
+			if (generation.get() == currentGeneration)
+				permissions.permittedProjects.put(privilege.getClass(), permittedProjects);
+		}
+		return permittedProjects;
+	}
+
+	private BitSet getDefaultRolePermittedProjects(boolean loggedIn, Permission privilege) {
+		Pair<Class<?>, Boolean> key = new Pair<>(privilege.getClass(), loggedIn);
+		BitSet permittedProjects = defaultRolePermissions.get(key);
+		if (permittedProjects == null) {
+			long currentGeneration = generation.get();
+			permittedProjects = new BitSet();
+			ProjectCache cache = projectManager.cloneCache();
+			for (ProjectFacade project: cache.values()) {
+				if (project.getDefaultRoleId() != null
+						&& roleManager.load(project.getDefaultRoleId()).implies(privilege, loggedIn)) {
+					for (Long projectId: cache.getSubtreeIds(project.getId()))
+						permittedProjects.set(projectId.intValue());
+				}
+			}
+			if (generation.get() == currentGeneration)
+				defaultRolePermissions.put(key, permittedProjects);
+		}
+		return permittedProjects;
+	}
+
+	private static class UserPermissions {
+
+		final boolean administrator;
+
+		// map of project id to ids of roles granted to the user and its groups
+		final Map<Long, Collection<Long>> projectRoleIds;
+
+		final Map<Class<?>, BitSet> permittedProjects = new ConcurrentHashMap<>();
+
+		UserPermissions(boolean administrator, Map<Long, Collection<Long>> projectRoleIds) {
+			this.administrator = administrator;
+			this.projectRoleIds = projectRoleIds;
+		}
+
+	}
+
+}
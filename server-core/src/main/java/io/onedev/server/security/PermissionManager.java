@@ -0,0 +1,31 @@
+package io.onedev.server.security;
+
+import java.util.Collection;
+
+import org.apache.shiro.authz.Permission;
+
+/**
+ * In-memory index of project privileges granted to users. Only project privileges not
+ * carrying any state (such as {@link io.onedev.server.security.permission.ReadCode}) are
+ * indexed, others should be checked against permissions of the user.
+ *
+ * User id <tt>0</tt> is used to refer to anonymous user.
+ */
+public interface PermissionManager {
+
+	boolean isIndexed(Permission privilege);
+
+	boolean isAdministrator(Long userId);
+
+	/**
+	 * Check if specified user has specified indexed privilege over specified project,
+	 * either directly or via group, default role or ancestor projects
+	 */
+	boolean isPermitted(Long userId, Long projectId, Permission privilege);
+
+	/**
+	 * Get ids of projects over which specified user has specified indexed privilege
+	 */
+	Collection<Long> getPermittedProjectIds(Long userId, Permission privilege);
+
+}
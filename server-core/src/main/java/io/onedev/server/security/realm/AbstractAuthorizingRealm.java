@@ -29,6 +29,7 @@ import io.onedev.server.model.Project;
 import io.onedev.server.model.User;
 import io.onedev.server.model.UserAuthorization;
 import io.onedev.server.persistence.SessionManager;
+import io.onedev.server.security.PermissionManager;
 import io.onedev.server.security.permission.ConfidentialIssuePermission;
 import io.onedev.server.security.permission.ProjectPermission;
 import io.onedev.server.security.permission.SystemAdministration;
@@ -46,22 +47,26 @@ public abstract class AbstractAuthorizingRealm extends AuthorizingRealm {
     
     protected final SettingManager settingManager;
     
+    protected final PermissionManager permissionManager;
+    
     @SuppressWarnings("serial")
 	private static final MetaDataKey<Map<Long, AuthorizationInfo>> AUTHORIZATION_INFOS = 
 			new MetaDataKey<Map<Long, AuthorizationInfo>>() {};    
     
 	@Inject
     public AbstractAuthorizingRealm(UserManager userManager, GroupManager groupManager, 
-    		ProjectManager projectManager, SessionManager sessionManager, SettingManager settingManager) {
+    		ProjectManager projectManager, SessionManager sessionManager, SettingManager settingManager, 
+    		PermissionManager permissionManager) {
     	this.userManager = userManager;
     	this.groupManager = groupManager;
     	this.projectManager = projectManager;
     	this.sessionManager = sessionManager;
     	this.settingManager = settingManager;
+    	this.permissionManager = permissionManager;
     }
 
-	private AuthorizationInfo newAuthorizationInfo(Long userId) {
-		Collection<Permission> permissions = sessionManager.call(new Callable<Collection<Permission>>() {
+	private Collection<Permission> loadPermissions(Long userId) {
+		return sessionManager.call(new Callable<Collection<Permission>>() {
 
 			@Override
 			public Collection<Permission> call() throws Exception {
@@ -119,6 +124,41 @@ public abstract class AbstractAuthorizingRealm extends AuthorizingRealm {
 			}
 			
 		});
+	}
+	
+	private AuthorizationInfo newAuthorizationInfo(Long userId) {
+		Collection<Permission> permissions;
+		if (permissionManager.isAdministrator(userId)) {
+			permissions = Lists.newArrayList(new SystemAdministration());
+		} else {
+			/*
+			 * Indexed project privileges are answered from permission index directly, and 
+			 * permissions of the user are only loaded when other permissions are checked
+			 */
+			permissions = Lists.newArrayList(new Permission() {
+	
+				private Collection<Permission> loadedPermissions;
+				
+				@Override
+				public boolean implies(Permission p) {
+					if (p instanceof ProjectPermission) {
+						ProjectPermission projectPermission = (ProjectPermission) p;
+						Long projectId = projectPermission.getProject().getId();
+						Permission privilege = projectPermission.getPrivilege();
+						if (projectId != null && permissionManager.isIndexed(privilege))
+							return permissionManager.isPermitted(userId, projectId, privilege);
+					}
+					if (loadedPermissions == null)
+						loadedPermissions = loadPermissions(userId);
+					for (Permission permission: loadedPermissions) {
+						if (permission.implies(p))
+							return true;
+					}
+					return false;
+				}
+				
+			});
+		}
 		
 		return new AuthorizationInfo() {
 			
@@ -1,54 +1,63 @@
 package io.onedev.server.tasklog;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.antlr.v4.runtime.tree.TerminalNode;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.search.Query;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
+import org.quartz.ScheduleBuilder;
+import org.quartz.SimpleScheduleBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import io.onedev.commons.loader.Listen;
 import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.commons.utils.FileUtils;
 import io.onedev.commons.utils.LockUtils;
 import io.onedev.commons.utils.TaskLogger;
 import io.onedev.server.OneDev;
-import io.onedev.server.buildspec.job.log.JobLogEntry;
 import io.onedev.server.buildspec.job.log.JobLogEntryEx;
 import io.onedev.server.buildspec.job.log.instruction.LogInstruction;
 import io.onedev.server.buildspec.job.log.instruction.LogInstructionParser.InstructionContext;
 import io.onedev.server.buildspec.job.log.instruction.LogInstructionParser.ParamContext;
 import io.onedev.server.entitymanager.BuildManager;
 import io.onedev.server.event.build.BuildFinished;
+import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.model.Build;
-import io.onedev.server.model.support.inputspec.SecretInput;
 import io.onedev.server.persistence.annotation.Sessional;
 import io.onedev.server.storage.StorageManager;
+import io.onedev.server.util.concurrent.BatchWorkManager;
+import io.onedev.server.util.concurrent.BatchWorker;
+import io.onedev.server.util.concurrent.Prioritized;
+import io.onedev.server.util.schedule.SchedulableTask;
+import io.onedev.server.util.schedule.TaskScheduler;
 import io.onedev.server.web.websocket.WebSocketManager;
 
 @Singleton
@@ -60,7 +69,13 @@ public class DefaultJobLogManager implements JobLogManager {
 
 	private static final int MAX_CACHE_ENTRIES = 10000;
 	
-	private static final String LOG_FILE = "build.log";
+	private static final int BUFFER_CAPACITY = 1000;
+	
+	private static final int FLUSH_INTERVAL = 1;
+	
+	private static final int INDEXING_PRIORITY = 50;
+	
+	private static final String LEGACY_LOG_FILE = "build.log";
 	
 	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss");	
 	
@@ -72,21 +87,69 @@ public class DefaultJobLogManager implements JobLogManager {
 	
 	private final BuildManager buildManager;
 	
+	private final TaskScheduler taskScheduler;
+	
+	private final BatchWorkManager batchWorkManager;
+	
 	private final Map<Long, LogSnippet> recentSnippets = new ConcurrentHashMap<>();
 	
+	private final Map<Long, JobLogBuffer> logBuffers = new ConcurrentHashMap<>();
+	
+	/*
+	 * Logs of recently finished builds are ignored, otherwise they will create buffers 
+	 * never flushed or removed 
+	 */
+	private final Cache<Long, Boolean> finishedBuildIds = CacheBuilder.newBuilder()
+			.expireAfterWrite(1, TimeUnit.HOURS).build();
+	
 	private final Map<String, TaskLogger> jobLoggers = new ConcurrentHashMap<>();
 	
+	private String flushTaskId;
+	
 	@Inject
 	public DefaultJobLogManager(StorageManager storageManager, WebSocketManager webSocketManager, 
-			BuildManager buildManager) {
+			BuildManager buildManager, TaskScheduler taskScheduler, BatchWorkManager batchWorkManager) {
 		this.storageManager = storageManager;
 		this.webSocketManager = webSocketManager;
 		this.buildManager = buildManager;
+		this.taskScheduler = taskScheduler;
+		this.batchWorkManager = batchWorkManager;
 	}
 	
-	private File getLogFile(Long projectId, Long buildNumber) {
-		File buildDir = storageManager.getBuildDir(projectId, buildNumber);
-		return new File(buildDir, LOG_FILE);
+	private File getBuildDir(Long projectId, Long buildNumber) {
+		return storageManager.getBuildDir(projectId, buildNumber);
+	}
+	
+	/*
+	 * Get log file of specified build, converting legacy log file written with Java 
+	 * serialization on the fly. Do not call this while holding read lock of the build log
+	 */
+	private JobLogFile getLogFile(Long projectId, Long buildId, Long buildNumber) {
+		File buildDir = getBuildDir(projectId, buildNumber);
+		JobLogFile logFile = new JobLogFile(buildDir);
+		File legacyLogFile = new File(buildDir, LEGACY_LOG_FILE);
+		if (legacyLogFile.exists()) {
+			Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).writeLock();
+			lock.lock();
+			try {
+				if (legacyLogFile.exists()) {
+					logger.info("Converting log of build (project id: {}, build number: {})...", 
+							projectId, buildNumber);
+					if (logFile.getDataFile().exists())
+						FileUtils.deleteFile(logFile.getDataFile());
+					if (logFile.getIndexFile().exists())
+						FileUtils.deleteFile(logFile.getIndexFile());
+					logFile.convert(legacyLogFile);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return logFile;
+	}
+	
+	private JobLogFile getLogFile(Build build) {
+		return getLogFile(build.getProject().getId(), build.getId(), build.getNumber());
 	}
 	
 	@Override
@@ -101,66 +164,88 @@ public class DefaultJobLogManager implements JobLogManager {
 		Long buildNumber = build.getNumber();
 		Collection<String> secretValuesToMask = build.getSecretValuesToMask();
 		secretValuesToMask.addAll(jobSecretsToMask);
-		return new TaskLogger() {
+		SecretMasker secretMasker = new SecretMasker(secretValuesToMask);
+		
+		// Build is being run again
+		finishedBuildIds.invalidate(buildId);
+		
+		return new JobLogger() {
 			
 			private final Map<String, StyleBuilder> styleBuilders = new ConcurrentHashMap<>();
 			
+			@Nullable
+			private JobLogEntryEx parse(String message, StyleBuilder styleBuilder) {
+				try {
+					return JobLogEntryEx.parse(secretMasker.mask(message), styleBuilder);
+				} catch (Exception e) {
+					logger.error("Failed to parse job log message: " +  message, e);
+					return null;
+				}
+			}
+			
+			private void offer(List<JobLogEntryEx> entries) {
+				JobLogBuffer buffer = logBuffers.computeIfAbsent(buildId, it -> {
+					if (finishedBuildIds.getIfPresent(buildId) == null)
+						return new JobLogBuffer(projectId, buildId, buildNumber, BUFFER_CAPACITY);
+					else
+						return null;
+				});
+				if (buffer == null) {
+					logger.debug("Ignoring log of finished build (id: {})", buildId);
+					return;
+				}
+				int offered = 0;
+				while (true) {
+					offered += buffer.offer(entries, offered);
+					if (offered < entries.size())
+						flush(buffer);
+					else
+						break;
+				}
+			}
+			
 			private void doLog(String message, StyleBuilder styleBuilder) {
-				for (String maskSecret: secretValuesToMask)
-					message = StringUtils.replace(message, maskSecret, SecretInput.MASK);
-				
-				Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).writeLock();
-				lock.lock();
+				JobLogEntryEx entry = parse(message, styleBuilder);
+				if (entry != null) 
+					offer(Collections.singletonList(entry));
+			}
+			
+			private StyleBuilder getStyleBuilder(@Nullable String sessionId) {
+				if (sessionId != null) 
+					return styleBuilders.computeIfAbsent(sessionId, it -> new StyleBuilder());
+				else 
+					return new StyleBuilder();
+			}
+			
+			/*
+			 * Parse messages of the batch outside of the buffer lock, and add them to the 
+			 * buffer all at once. Log instructions are rare and processed one by one
+			 */
+			@Override
+			public void log(List<String> messages, String sessionId) {
 				try {
-					LogSnippet snippet = recentSnippets.get(buildId);
-					if (snippet == null) {
-						File logFile = getLogFile(projectId, buildNumber);
-						if (!logFile.exists())	{
-							snippet = new LogSnippet();
-							recentSnippets.put(buildId, snippet);
-						}
-					}
-					if (snippet != null) {
-						boolean entryAdded = false;
-						try {
-							snippet.entries.add(JobLogEntryEx.parse(message, styleBuilder));
-							entryAdded = true;
-						} catch (Exception e) {
-							logger.error("Failed to parse job log message: " +  message, e);
-						}
-						if (entryAdded) {
-							if (snippet.entries.size() > MAX_CACHE_ENTRIES) {
-								File logFile = getLogFile(projectId, buildNumber);
-								try (ObjectOutputStream oos = newOutputStream(logFile)) {
-									while (snippet.entries.size() > MIN_CACHE_ENTRIES) {
-										writeLogEntry(oos, snippet.entries.remove(0));
-										snippet.offset++;
-									}
-								} catch (IOException e) {
-									throw new RuntimeException(e);
-								}
-							}
-							webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(buildId));
+					List<JobLogEntryEx> entries = new ArrayList<>(messages.size());
+					for (String message: messages) {
+						if (message.startsWith(LogInstruction.PREFIX)) {
+							offer(entries);
+							entries.clear();
+							log(message, sessionId);
+						} else {
+							JobLogEntryEx entry = parse(message, getStyleBuilder(sessionId));
+							if (entry != null)
+								entries.add(entry);
 						}
 					}
-				} finally {
-					lock.unlock();
+					offer(entries);
+				} catch (Exception e) {
+					logger.error("Error logging", e);
 				}
 			}
 			
 			@Override
 			public void log(String message, String sessionId) {
 				try {
-					StyleBuilder styleBuilder;
-					if (sessionId != null) {
-						styleBuilder = styleBuilders.get(sessionId);
-						if (styleBuilder == null) {
-							styleBuilder = new StyleBuilder();
-							styleBuilders.put(sessionId, styleBuilder);
-						}
-					} else {
-						styleBuilder = new StyleBuilder();
-					}
+					StyleBuilder styleBuilder = getStyleBuilder(sessionId);
 					if (message.startsWith(LogInstruction.PREFIX)) {
 						doLog(message, styleBuilder);
 						
@@ -204,6 +289,83 @@ public class DefaultJobLogManager implements JobLogManager {
 		};
 	}
 	
+	/*
+	 * Move buffered log entries into the build log. Observers of the build log are not 
+	 * notified here, instead they will be notified by the flush task at most once per
+	 * flush interval
+	 */
+	private void flush(JobLogBuffer buffer) {
+		JobLogFile logFile = getLogFile(buffer.getProjectId(), buffer.getBuildId(), buffer.getBuildNumber());
+		Lock lock = LockUtils.getReadWriteLock(getLockKey(buffer.getBuildId())).writeLock();
+		lock.lock();
+		try {
+			List<JobLogEntryEx> entries = new ArrayList<>();
+			if (buffer.drainTo(entries) != 0) {
+				LogSnippet snippet = recentSnippets.get(buffer.getBuildId());
+				if (snippet == null && !logFile.exists()) {
+					snippet = new LogSnippet();
+					recentSnippets.put(buffer.getBuildId(), snippet);
+				}
+				if (snippet != null) {
+					snippet.entries.addAll(entries);
+					if (snippet.entries.size() > MAX_CACHE_ENTRIES) {
+						List<JobLogEntryEx> entriesToFlush = new ArrayList<>();
+						while (snippet.entries.size() > MIN_CACHE_ENTRIES) {
+							entriesToFlush.add(snippet.entries.remove(0));
+							snippet.offset++;
+						}
+						logFile.append(entriesToFlush);
+					}
+					buffer.markChanged();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void flush(Long buildId) {
+		JobLogBuffer buffer = logBuffers.get(buildId);
+		if (buffer != null)
+			flush(buffer);
+	}
+	
+	private void flushAndNotify(JobLogBuffer buffer) {
+		try {
+			flush(buffer);
+		} catch (Exception e) {
+			logger.error("Error flushing job log", e);
+		}
+		if (buffer.checkChanged())
+			webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(buffer.getBuildId()));
+	}
+	
+	@Listen
+	public void on(SystemStarted event) {
+		flushTaskId = taskScheduler.schedule(new SchedulableTask() {
+			
+			@Override
+			public ScheduleBuilder<?> getScheduleBuilder() {
+				return SimpleScheduleBuilder.repeatSecondlyForever(FLUSH_INTERVAL);
+			}
+			
+			@Override
+			public void execute() {
+				for (JobLogBuffer buffer: logBuffers.values()) 
+					flushAndNotify(buffer);
+			}
+			
+		});
+	}
+	
+	@Listen
+	public void on(SystemStopping event) {
+		if (flushTaskId != null)
+			taskScheduler.unschedule(flushTaskId);
+		for (JobLogBuffer buffer: logBuffers.values()) 
+			flushAndNotify(buffer);
+	}
+	
 	@Sessional
 	protected void doInSession(LogInstruction instruction, Long buildId, Map<String, List<String>> params) {
 		instruction.execute(buildManager.load(buildId), params);
@@ -213,96 +375,180 @@ public class DefaultJobLogManager implements JobLogManager {
 		return "build-log: " + buildId;
 	}
 
-	@Override
-	public boolean matches(Build build, Pattern pattern) {
-		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
+	private String getIndexLockKey(Long buildId) {
+		return "build-log-index: " + buildId;
+	}
+	
+	private JobLogIndex getLogIndex(Long projectId, Long buildNumber) {
+		return new JobLogIndex(getBuildDir(projectId, buildNumber));
+	}
+	
+	private void updateIndex(Long projectId, Long buildId, Long buildNumber) {
+		JobLogFile logFile = getLogFile(projectId, buildId, buildNumber);
+		Lock lock = LockUtils.getReadWriteLock(getLockKey(buildId)).readLock();
 		lock.lock();
 		try {
-			LogSnippet snippet = recentSnippets.get(build.getId());
-			if (snippet != null) {
-				for (JobLogEntryEx entry: snippet.entries) {
-					if ((build.getRetryDate() == null || !entry.getDate().before(build.getRetryDate())) 
-							&& pattern.matcher(entry.getMessageText()).find()) {
-						return true;
-					}
-				}
-			}
-			
-			File logFile = getLogFile(build.getProject().getId(), build.getNumber());
-			
-			if (logFile.exists()) {
-				try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
-					while (true) {
-						JobLogEntry entry  = (JobLogEntry) ois.readObject();
-						if ((build.getRetryDate() == null || !entry.getDate().before(build.getRetryDate())) 
-								&& pattern.matcher(entry.getMessage()).find()) {
-							return true;
-						}
-					}
-				} catch (EOFException e) {
-				} catch (IOException|ClassNotFoundException e) {
-					throw new RuntimeException(e);
+			Lock indexLock = LockUtils.getLock(getIndexLockKey(buildId));
+			indexLock.lock();
+			try {
+				int indexed = getLogIndex(projectId, buildNumber).update(logFile);
+				if (indexed != 0) {
+					logger.debug("Indexed {} log entries (project id: {}, build number: {})", 
+							indexed, projectId, buildNumber);
 				}
+			} finally {
+				indexLock.unlock();
 			}
-			return false;
 		} finally {
 			lock.unlock();
 		}
 	}
 	
-	private List<JobLogEntryEx> readLogEntries(File logFile, int from, int count) {
-		List<JobLogEntryEx> entries = new ArrayList<>();
-		if (logFile.exists()) {
-			try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
-				int numOfReadEntries = 0;
-				while (numOfReadEntries < from) {
-					ois.readObject();
-					numOfReadEntries++;
+	/*
+	 * Find log entries satisfying specified matcher. Candidate entries covered by the log 
+	 * index are located via specified query, and remaining entries are scanned. Entry index 
+	 * of each match will be passed to the consumer in order, until consumer returns false
+	 */
+	private void find(Build build, Predicate<JobLogEntryEx> matcher, @Nullable Query query, 
+			Predicate<Integer> consumer) {
+		flush(build.getId());
+		JobLogFile logFile = getLogFile(build);
+		JobLogIndex logIndex = getLogIndex(build.getProject().getId(), build.getNumber());
+		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
+		lock.lock();
+		try {
+			int scanFrom = 0;
+			if (query != null) {
+				int indexedCount;
+				BitSet candidates;
+				Lock indexLock = LockUtils.getLock(getIndexLockKey(build.getId()));
+				indexLock.lock();
+				try {
+					indexedCount = Math.min(logIndex.getIndexedCount(), logFile.size());
+					if (indexedCount != 0)
+						candidates = logIndex.query(query);
+					else
+						candidates = new BitSet();
+				} finally {
+					indexLock.unlock();
+				}
+				for (int i=candidates.nextSetBit(0); i>=0 && i<indexedCount; i=candidates.nextSetBit(i+1)) {
+					if (matcher.test(logFile.read(i, 1).get(0)) && !consumer.test(i))
+						return;
+				}
+				scanFrom = indexedCount;
+			}
+			
+			try (JobLogFile.Reader reader = logFile.openReader(scanFrom)) {
+				JobLogEntryEx entry;
+				while ((entry = reader.read()) != null) {
+					if (matcher.test(entry) && !consumer.test(reader.getNext()-1))
+						return;
 				}
-				while (count == 0 || numOfReadEntries - from < count) {
-					entries.add(readLogEntry(ois));
-					numOfReadEntries++;
+			}
+			
+			LogSnippet snippet = recentSnippets.get(build.getId());
+			if (snippet != null) {
+				int index = snippet.offset;
+				for (JobLogEntryEx entry: snippet.entries) {
+					if (matcher.test(entry) && !consumer.test(index))
+						return;
+					index++;
 				}
-			} catch (EOFException e) {
-			} catch (IOException | ClassNotFoundException e) {
-				throw new RuntimeException(e);
 			}
+		} finally {
+			lock.unlock();
 		}
-		return entries;
 	}
 	
-	private JobLogEntryEx readLogEntry(ObjectInputStream ois) throws ClassNotFoundException, IOException {
-		Object obj = ois.readObject();
-		if (obj instanceof JobLogEntry)
-			return new JobLogEntryEx((JobLogEntry) obj);
-		else
-			return (JobLogEntryEx) obj;
+	@Override
+	public boolean matches(Build build, Pattern pattern) {
+		Query query;
+		if ((pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS)) == 0)
+			query = JobLogIndex.newRegexQuery(pattern.pattern());
+		else 
+			query = null;
+		
+		AtomicBoolean matched = new AtomicBoolean(false);
+		find(build, new Predicate<JobLogEntryEx>() {
+
+			@Override
+			public boolean test(JobLogEntryEx entry) {
+				return (build.getRetryDate() == null || !entry.getDate().before(build.getRetryDate())) 
+						&& pattern.matcher(entry.getMessageText()).find();
+			}
+			
+		}, query, new Predicate<Integer>() {
+
+			@Override
+			public boolean test(Integer index) {
+				matched.set(true);
+				return false;
+			}
+			
+		});
+		return matched.get();
 	}
 	
-	private void writeLogEntry(ObjectOutputStream oos, JobLogEntryEx logEntry) throws IOException {
-		JobLogEntry spaceEfficientVersion = logEntry.getSpaceEfficientVersion();
-		if (spaceEfficientVersion != null)
-			oos.writeObject(spaceEfficientVersion);
-		else
-			oos.writeObject(logEntry);
+	@Sessional
+	@Override
+	public List<JobLogMatch> search(Build build, String term, boolean regex, boolean caseSensitive, 
+			int contextLines, int count) {
+		int flags = caseSensitive? 0: Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+		Pattern pattern;
+		Query query;
+		if (regex) {
+			pattern = Pattern.compile(term, flags);
+			query = JobLogIndex.newRegexQuery(term);
+		} else {
+			pattern = Pattern.compile(term, flags | Pattern.LITERAL);
+			query = JobLogIndex.newLiteralQuery(term);
+		}
+		
+		if (build.isFinished() && query != null)
+			updateIndex(build.getProject().getId(), build.getId(), build.getNumber());
+		
+		List<Integer> indexes = new ArrayList<>();
+		find(build, new Predicate<JobLogEntryEx>() {
+
+			@Override
+			public boolean test(JobLogEntryEx entry) {
+				return pattern.matcher(entry.getMessageText()).find();
+			}
+			
+		}, query, new Predicate<Integer>() {
+
+			@Override
+			public boolean test(Integer index) {
+				indexes.add(index);
+				return indexes.size() < count;
+			}
+			
+		});
+		
+		List<JobLogMatch> matches = new ArrayList<>();
+		for (int index: indexes) {
+			int from = Math.max(0, index - contextLines);
+			List<JobLogEntryEx> entries = readLogEntries(build, from, index - from + contextLines + 1);
+			if (entries.size() > index - from) {
+				List<String> linesBefore = new ArrayList<>();
+				for (JobLogEntryEx entry: entries.subList(0, index - from))
+					linesBefore.add(entry.getMessageText());
+				List<String> linesAfter = new ArrayList<>();
+				for (JobLogEntryEx entry: entries.subList(index - from + 1, entries.size()))
+					linesAfter.add(entry.getMessageText());
+				matches.add(new JobLogMatch(index, entries.get(index - from).getMessageText(), 
+						linesBefore, linesAfter));
+			}
+		}
+		return matches;
 	}
 	
-	private LogSnippet readLogSnippetReversely(File logFile, int count) {
+	private LogSnippet readLogSnippetReversely(JobLogFile logFile, int count) {
 		LogSnippet snippet = new LogSnippet();
-		if (logFile.exists()) {
-			try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
-				while (true) {
-					snippet.entries.add(readLogEntry(ois));
-					if (snippet.entries.size() > count) {
-						snippet.entries.remove(0);
-						snippet.offset ++;
-					}
-				}
-			} catch (EOFException e) {
-			} catch (IOException | ClassNotFoundException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		int size = logFile.size();
+		snippet.offset = Math.max(size - count, 0);
+		snippet.entries.addAll(logFile.read(snippet.offset, count));
 		return snippet;
 	}
 	
@@ -320,17 +566,17 @@ public class DefaultJobLogManager implements JobLogManager {
 	@Sessional
 	@Override
 	public List<JobLogEntryEx> readLogEntries(Build build, int from, int count) {
+		JobLogFile logFile = getLogFile(build);
 		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
 		lock.lock();
 		try {
-			File logFile = getLogFile(build.getProject().getId(), build.getNumber());
 			LogSnippet snippet = recentSnippets.get(build.getId());
 			if (snippet != null) {
 				if (from >= snippet.offset) {
 					return readLogEntries(snippet.entries, from - snippet.offset, count);
 				} else {
 					List<JobLogEntryEx> entries = new ArrayList<>();
-					entries.addAll(readLogEntries(logFile, from, count));
+					entries.addAll(logFile.read(from, count));
 					if (count == 0)
 						entries.addAll(snippet.entries);
 					else if (entries.size() < count) 
@@ -338,7 +584,7 @@ public class DefaultJobLogManager implements JobLogManager {
 					return entries;
 				}
 			} else {
-				return readLogEntries(logFile, from, count);
+				return logFile.read(from, count);
 			}
 		} finally {
 			lock.unlock();
@@ -348,10 +594,10 @@ public class DefaultJobLogManager implements JobLogManager {
 	@Sessional
 	@Override
 	public LogSnippet readLogSnippetReversely(Build build, int count) {
+		JobLogFile logFile = getLogFile(build);
 		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
 		lock.lock();
 		try {
-			File logFile = getLogFile(build.getProject().getId(), build.getNumber());
 			LogSnippet recentSnippet = recentSnippets.get(build.getId());
 			if (recentSnippet != null) {
 				LogSnippet snippet = new LogSnippet();
@@ -372,45 +618,38 @@ public class DefaultJobLogManager implements JobLogManager {
 		}
 	}
 	
-	private ObjectOutputStream newOutputStream(File logFile) {
-		try {
-			if (logFile.exists()) {
-				return new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true))) {
-
-					@Override
-					protected void writeStreamHeader() throws IOException {
-						reset();
-					}
-					
-				};
-			} else {
-				return new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(logFile)));
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-	
 	@Sessional
 	@Listen
 	public void on(BuildFinished event) {
 		Build build = event.getBuild();
+		finishedBuildIds.put(build.getId(), true);
+		JobLogBuffer buffer = logBuffers.remove(build.getId());
+		if (buffer != null)
+			flush(buffer);
+		JobLogFile logFile = getLogFile(build);
 		Lock lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).writeLock();
 		lock.lock();
 		try {
 			LogSnippet snippet = recentSnippets.remove(build.getId());
-			if (snippet != null) {
-				File logFile = getLogFile(build.getProject().getId(), build.getNumber());
-				try (ObjectOutputStream oos = newOutputStream(logFile)) {
-					for (JobLogEntryEx entry: snippet.entries)
-						writeLogEntry(oos, entry);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				} 
-			}
+			if (snippet != null) 
+				logFile.append(snippet.entries);
 		} finally {
 			lock.unlock();
 		}
+		if (buffer != null && buffer.checkChanged())
+			webSocketManager.notifyObservableChange(Build.getLogWebSocketObservable(build.getId()));
+		
+		Long projectId = build.getProject().getId();
+		Long buildId = build.getId();
+		Long buildNumber = build.getNumber();
+		batchWorkManager.submit(new BatchWorker("build-" + buildId + "-indexLog", 1) {
+
+			@Override
+			public void doWorks(Collection<Prioritized> works) {
+				updateIndex(projectId, buildId, buildNumber);
+			}
+			
+		}, new Prioritized(INDEXING_PRIORITY));
 	}
 
 	@Override
@@ -420,32 +659,26 @@ public class DefaultJobLogManager implements JobLogManager {
 
 	class LogStream extends InputStream {
 
-		private ObjectInputStream ois;
+		private JobLogFile.Reader reader;
 		
 		private final Lock lock;
 
 		private byte[] buffer = new byte[0];
 		
-		private byte[] recentBuffer;
+		private List<JobLogEntryEx> recentEntries;
 		
 		private int pos = 0;
 		
 		public LogStream(Build build) {
+			flush(build.getId());
+			JobLogFile logFile = getLogFile(build);
 			lock = LockUtils.getReadWriteLock(getLockKey(build.getId())).readLock();
 			lock.lock();
 			try {
-				File logFile = getLogFile(build.getProject().getId(), build.getNumber());
-				
-				if (logFile.exists())
-					ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(logFile)));
-				
+				reader = logFile.openReader(0);
 				LogSnippet snippet = recentSnippets.get(build.getId());
-				if (snippet != null) {
-					StringBuilder builder = new StringBuilder();
-					for (JobLogEntryEx entry: snippet.entries)
-						builder.append(renderAsText(entry) + "\n");
-					recentBuffer = builder.toString().getBytes(StandardCharsets.UTF_8);
-				}
+				if (snippet != null) 
+					recentEntries = new ArrayList<>(snippet.entries);
 			} catch (Exception e) {
 				lock.unlock();
 				throw ExceptionUtils.unchecked(e);
@@ -468,42 +701,38 @@ public class DefaultJobLogManager implements JobLogManager {
 			return builder.toString();
 		}
 		
+		@Nullable
+		private JobLogEntryEx nextEntry() {
+			if (reader != null) {
+				JobLogEntryEx entry = reader.read();
+				if (entry != null)
+					return entry;
+				reader.close();
+				reader = null;
+			}
+			if (recentEntries != null && !recentEntries.isEmpty())
+				return recentEntries.remove(0);
+			else
+				return null;
+		}
+		
 		@Override
 		public int read() throws IOException {
-			if (pos == buffer.length) {
-				if (ois != null) {
-					try {
-						buffer = (renderAsText(readLogEntry(ois)) + "\n").getBytes(StandardCharsets.UTF_8);
-					} catch (EOFException e) {
-						ois.close();
-						ois = null;
-						if (recentBuffer != null) {
-							buffer = recentBuffer;
-							recentBuffer = null;
-						} else {
-							return -1;
-						}
-					} catch (ClassNotFoundException e) {
-						throw new RuntimeException(e);
-					}
-				} else if (recentBuffer != null) {
-					buffer = recentBuffer;
-					recentBuffer = null;
-				} else {
+			while (pos == buffer.length) {
+				JobLogEntryEx entry = nextEntry();
+				if (entry == null)
 					return -1;
-				}
-				pos = 1;
-				return buffer[0];
-			} else {
-				return buffer[pos++];
+				buffer = (renderAsText(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+				pos = 0;
 			}
+			return buffer[pos++] & 0xff;
 		}
 		
 		@Override
 		public void close() throws IOException {
 			try {
-				if (ois != null)
-					ois.close();
+				if (reader != null)
+					reader.close();
 			} finally {
 				lock.unlock();
 			}
@@ -0,0 +1,100 @@
+package io.onedev.server.tasklog;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.onedev.server.buildspec.job.log.JobLogEntryEx;
+
+/**
+ * Bounded ring buffer holding log entries of a running build before they are flushed
+ * into the build log in batches
+ */
+public class JobLogBuffer {
+
+	private final Long projectId;
+
+	private final Long buildId;
+
+	private final Long buildNumber;
+
+	private final JobLogEntryEx[] entries;
+
+	private int head;
+
+	private int size;
+
+	private final AtomicBoolean changed = new AtomicBoolean(false);
+
+	public JobLogBuffer(Long projectId, Long buildId, Long buildNumber, int capacity) {
+		this.projectId = projectId;
+		this.buildId = buildId;
+		this.buildNumber = buildNumber;
+		entries = new JobLogEntryEx[capacity];
+	}
+
+	public Long getProjectId() {
+		return projectId;
+	}
+
+	public Long getBuildId() {
+		return buildId;
+	}
+
+	public Long getBuildNumber() {
+		return buildNumber;
+	}
+
+	/**
+	 * Add specified entries to the buffer as many as possible, starting from specified index
+	 *
+	 * @return
+	 * 			number of entries added, which is less than number of remaining entries if 
+	 * 			buffer becomes full
+	 */
+	public synchronized int offer(List<JobLogEntryEx> entries, int fromIndex) {
+		int count = Math.min(this.entries.length - size, entries.size() - fromIndex);
+		for (int i=0; i<count; i++) 
+			this.entries[(head + size + i) % this.entries.length] = entries.get(fromIndex + i);
+		size += count;
+		return count;
+	}
+
+	/**
+	 * Move all entries in the buffer to specified collection in order they are added
+	 *
+	 * @return
+	 * 			number of entries moved
+	 */
+	public synchronized int drainTo(Collection<JobLogEntryEx> collection) {
+		int drained = size;
+		while (size != 0) {
+			collection.add(entries[head]);
+			entries[head] = null;
+			head = (head + 1) % entries.length;
+			size--;
+		}
+		return drained;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Mark that entries of this buffer has been flushed into build log, and observers
+	 * of the build log should be notified
+	 */
+	public void markChanged() {
+		changed.set(true);
+	}
+
+	/**
+	 * @return
+	 * 			<tt>true</tt> if entries were flushed since last call of this method
+	 */
+	public boolean checkChanged() {
+		return changed.getAndSet(false);
+	}
+
+}
@@ -0,0 +1,337 @@
+package io.onedev.server.tasklog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import io.onedev.server.buildspec.job.log.JobLogEntry;
+import io.onedev.server.buildspec.job.log.JobLogEntryEx;
+import io.onedev.server.buildspec.job.log.Message;
+import io.onedev.server.buildspec.job.log.Style;
+
+/**
+ * Compact binary job log storage. Log entries are written as length-prefixed records into
+ * the data file, and offset of each record is appended to a sidecar index file as a fixed
+ * 8-byte long, so that locating an arbitrary entry only needs a single seek into the index
+ * file.
+ *
+ * Data file is always written before the index file, so that a record becomes visible to
+ * readers only after it is completely written.
+ *
+ * This class is not thread safe, and callers should synchronize access via the build log
+ * lock.
+ */
+public class JobLogFile {
+
+	public static final String DATA_FILE = "build-log.data";
+
+	public static final String INDEX_FILE = "build-log.index";
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 4;
+
+	private static final int INDEX_ENTRY_SIZE = 8;
+
+	private static final int FLAG_BOLD = 1;
+
+	private static final int FLAG_COLOR = 2;
+
+	private static final int FLAG_BACKGROUND_COLOR = 4;
+
+	private final File dataFile;
+
+	private final File indexFile;
+
+	public JobLogFile(File dir) {
+		dataFile = new File(dir, DATA_FILE);
+		indexFile = new File(dir, INDEX_FILE);
+	}
+
+	public boolean exists() {
+		return indexFile.exists();
+	}
+
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * @return
+	 * 			number of log entries in this file
+	 */
+	public int size() {
+		if (indexFile.exists())
+			return (int) (indexFile.length() / INDEX_ENTRY_SIZE);
+		else
+			return 0;
+	}
+
+	public void append(Collection<JobLogEntryEx> entries) {
+		if (entries.isEmpty())
+			return;
+		try {
+			long offset;
+			if (dataFile.exists() && dataFile.length() != 0) {
+				offset = dataFile.length();
+			} else {
+				try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(dataFile))) {
+					dos.writeInt(FORMAT_VERSION);
+				}
+				offset = HEADER_SIZE;
+			}
+
+			long[] offsets = new long[entries.size()];
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile, true)))) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				DataOutputStream recordOutput = new DataOutputStream(baos);
+				int index = 0;
+				for (JobLogEntryEx entry: entries) {
+					baos.reset();
+					writeEntry(recordOutput, entry);
+					recordOutput.flush();
+					offsets[index++] = offset;
+					dos.writeInt(baos.size());
+					baos.writeTo(dos);
+					offset += 4 + baos.size();
+				}
+			}
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)))) {
+				for (long each: offsets)
+					dos.writeLong(each);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read specified number of log entries starting from specified index
+	 *
+	 * @param from
+	 * 			index of the first entry to read
+	 * @param count
+	 * 			number of entries to read. Use <tt>0</tt> to read all entries since <tt>from</tt>
+	 * @return
+	 * 			log entries read. Number of entries may be less than required count if there is
+	 * 			no enough log entries
+	 */
+	public List<JobLogEntryEx> read(int from, int count) {
+		List<JobLogEntryEx> entries = new ArrayList<>();
+		int size = size();
+		if (from < size) {
+			int to = from + count;
+			if (count == 0 || to > size)
+				to = size;
+			try (Reader reader = openReader(from)) {
+				for (int i=from; i<to; i++)
+					entries.add(reader.read());
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Open a reader to read log entries sequentially starting from specified index
+	 *
+	 * @param from
+	 * 			index of the first log entry to read
+	 */
+	public Reader openReader(int from) {
+		return new Reader(from);
+	}
+
+	private long getOffset(int entryIndex) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+			raf.seek((long)entryIndex * INDEX_ENTRY_SIZE);
+			return raf.readLong();
+		}
+	}
+
+	private static void writeEntry(DataOutputStream dos, JobLogEntryEx entry) throws IOException {
+		dos.writeLong(entry.getDate().getTime());
+		writeVarInt(dos, entry.getMessages().size());
+		for (Message message: entry.getMessages()) {
+			Style style = message.getStyle();
+			int flags = 0;
+			if (style.isBold())
+				flags |= FLAG_BOLD;
+			if (!style.getColor().equals(Style.FOREGROUND_COLOR_DEFAULT))
+				flags |= FLAG_COLOR;
+			if (!style.getBackgroundColor().equals(Style.BACKGROUND_COLOR_DEFAULT))
+				flags |= FLAG_BACKGROUND_COLOR;
+			dos.writeByte(flags);
+			if ((flags & FLAG_COLOR) != 0)
+				dos.writeUTF(style.getColor());
+			if ((flags & FLAG_BACKGROUND_COLOR) != 0)
+				dos.writeUTF(style.getBackgroundColor());
+			byte[] bytes = message.getText().getBytes(StandardCharsets.UTF_8);
+			writeVarInt(dos, bytes.length);
+			dos.write(bytes);
+		}
+	}
+
+	private static JobLogEntryEx readEntry(DataInputStream dis) throws IOException {
+		Date date = new Date(dis.readLong());
+		int messageCount = readVarInt(dis);
+		List<Message> messages = new ArrayList<>(messageCount);
+		for (int i=0; i<messageCount; i++) {
+			int flags = dis.readUnsignedByte();
+			String color = (flags & FLAG_COLOR) != 0? dis.readUTF(): Style.FOREGROUND_COLOR_DEFAULT;
+			String backgroundColor = (flags & FLAG_BACKGROUND_COLOR) != 0? dis.readUTF(): Style.BACKGROUND_COLOR_DEFAULT;
+			byte[] bytes = new byte[readVarInt(dis)];
+			dis.readFully(bytes);
+			Style style = new Style(color, backgroundColor, (flags & FLAG_BOLD) != 0);
+			messages.add(new Message(style, new String(bytes, StandardCharsets.UTF_8)));
+		}
+		return new JobLogEntryEx(date, messages);
+	}
+
+	private static void writeVarInt(DataOutputStream dos, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			dos.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dos.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream dis) throws IOException {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			int b = dis.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+			shift += 7;
+		}
+	}
+
+	/**
+	 * Convert legacy log file written with Java serialization into this format. Legacy file
+	 * will be deleted after conversion
+	 *
+	 * @param legacyFile
+	 * 			legacy log file to convert
+	 */
+	public void convert(File legacyFile) {
+		List<JobLogEntryEx> entries = new ArrayList<>();
+		try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))) {
+			while (true) {
+				Object obj = ois.readObject();
+				if (obj instanceof JobLogEntry)
+					entries.add(new JobLogEntryEx((JobLogEntry) obj));
+				else
+					entries.add((JobLogEntryEx) obj);
+				if (entries.size() >= 10000) {
+					append(entries);
+					entries.clear();
+				}
+			}
+		} catch (EOFException e) {
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+		append(entries);
+		if (!exists()) {
+			// Make sure an empty index exists so that we do not convert again
+			try {
+				indexFile.createNewFile();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (!legacyFile.delete())
+			throw new RuntimeException("Unable to delete legacy log file: " + legacyFile.getAbsolutePath());
+	}
+
+	public class Reader implements Closeable {
+
+		private final int size;
+
+		private int next;
+
+		private DataInputStream dis;
+
+		Reader(int from) {
+			size = size();
+			next = from;
+			if (from < size) {
+				try {
+					FileInputStream fis = new FileInputStream(dataFile);
+					try {
+						fis.getChannel().position(getOffset(from));
+					} catch (IOException e) {
+						fis.close();
+						throw e;
+					}
+					dis = new DataInputStream(new BufferedInputStream(fis));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		/**
+		 * @return
+		 * 			next log entry, or <tt>null</tt> if there is no more entries
+		 */
+		@Nullable
+		public JobLogEntryEx read() {
+			if (next < size) {
+				try {
+					dis.readInt();
+					next++;
+					return readEntry(dis);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			} else {
+				return null;
+			}
+		}
+
+		/**
+		 * @return
+		 * 			index of the log entry to be returned by next call of {@link #read()}
+		 */
+		public int getNext() {
+			return next;
+		}
+
+		@Override
+		public void close() {
+			if (dis != null) {
+				try {
+					dis.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				dis = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,182 @@
+package io.onedev.server.tasklog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Payload of agent job log message carrying many log lines of a job. Legacy payload 
+ * carries a single line in form of <tt>&lt;job token&gt;:&lt;session id&gt;:&lt;line&gt;</tt>, 
+ * and can be distinguished from this payload as it never starts with byte <tt>0</tt>. 
+ * Layout of this payload:
+ * 
+ * <pre>
+ * byte 0: 0
+ * byte 1: flags, see {@link #FLAG_COMPRESSED} and {@link #FLAG_JOB_TOKEN}
+ * remaining bytes, deflated if compressed:
+ *   int: job token handle
+ *   string: job token, only present if flagged
+ *   string: session id, empty if no session
+ *   int: number of lines
+ *   string * number of lines: lines
+ * </pre>
+ * 
+ * Strings are written as int length followed by UTF-8 bytes. The job token handle is 
+ * chosen by agent, and is bound to the job token when the token is present, so that 
+ * subsequent frames of the same job over the same connection only need the handle.
+ */
+public class JobLogFrame {
+
+	public static final int FLAG_COMPRESSED = 0x01;
+	
+	public static final int FLAG_JOB_TOKEN = 0x02;
+	
+	private static final int MAX_INFLATED_SIZE = 64*1024*1024;
+	
+	private final int jobTokenHandle;
+	
+	private final String jobToken;
+	
+	private final String sessionId;
+	
+	private final List<String> messages;
+	
+	public JobLogFrame(int jobTokenHandle, @Nullable String jobToken, @Nullable String sessionId, 
+			List<String> messages) {
+		this.jobTokenHandle = jobTokenHandle;
+		this.jobToken = jobToken;
+		this.sessionId = sessionId;
+		this.messages = messages;
+	}
+
+	public int getJobTokenHandle() {
+		return jobTokenHandle;
+	}
+
+	/**
+	 * @return
+	 * 			job token to be bound to the handle, or <tt>null</tt> if the handle is 
+	 * 			bound by a previous frame
+	 */
+	@Nullable
+	public String getJobToken() {
+		return jobToken;
+	}
+
+	@Nullable
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public List<String> getMessages() {
+		return messages;
+	}
+	
+	public static boolean isFrame(byte[] data) {
+		return data.length != 0 && data[0] == 0;
+	}
+	
+	public byte[] encode(boolean compress) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(0);
+		int flags = 0;
+		if (compress)
+			flags |= FLAG_COMPRESSED;
+		if (jobToken != null)
+			flags |= FLAG_JOB_TOKEN;
+		baos.write(flags);
+		try {
+			OutputStream os = compress? new DeflaterOutputStream(baos): baos;
+			DataOutputStream dos = new DataOutputStream(os);
+			dos.writeInt(jobTokenHandle);
+			if (jobToken != null)
+				writeString(dos, jobToken);
+			writeString(dos, sessionId != null? sessionId: "");
+			dos.writeInt(messages.size());
+			for (String message: messages)
+				writeString(dos, message);
+			dos.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+	
+	public static JobLogFrame decode(byte[] data) {
+		if (!isFrame(data) || data.length < 2)
+			throw new IllegalArgumentException("Not a job log frame");
+		int flags = data[1];
+		InputStream is = new ByteArrayInputStream(data, 2, data.length - 2);
+		try {
+			/*
+			 * Inflate payload upfront so that lengths read from it can be validated against 
+			 * remaining bytes
+			 */
+			if ((flags & FLAG_COMPRESSED) != 0)
+				is = new ByteArrayInputStream(inflate(is));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		try (DataInputStream dis = new DataInputStream(is)) {
+			int jobTokenHandle = dis.readInt();
+			String jobToken = null;
+			if ((flags & FLAG_JOB_TOKEN) != 0)
+				jobToken = readString(dis);
+			String sessionId = readString(dis);
+			if (sessionId.length() == 0)
+				sessionId = null;
+			int count = dis.readInt();
+			List<String> messages = new ArrayList<>(Math.min(count, 1024));
+			for (int i=0; i<count; i++)
+				messages.add(readString(dis));
+			return new JobLogFrame(jobTokenHandle, jobToken, sessionId, messages);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void writeString(DataOutputStream dos, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+	
+	private static byte[] inflate(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (InputStream inflaterIs = new InflaterInputStream(is)) {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = inflaterIs.read(buffer)) != -1) {
+				if (baos.size() + count > MAX_INFLATED_SIZE)
+					throw new IOException("Inflated job log frame is too large");
+				baos.write(buffer, 0, count);
+			}
+		}
+		return baos.toByteArray();
+	}
+	
+	/*
+	 * Payload is always backed by a byte array here, so available bytes are exactly the 
+	 * remaining bytes of the frame
+	 */
+	private static String readString(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length < 0 || length > dis.available())
+			throw new IOException("Invalid string length in job log frame: " + length);
+		byte[] bytes = new byte[length];
+		dis.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+}
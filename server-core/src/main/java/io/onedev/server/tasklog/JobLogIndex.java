@@ -0,0 +1,239 @@
+package io.onedev.server.tasklog;
+
+import static io.onedev.server.search.code.IndexConstants.NGRAM_SIZE;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import javax.annotation.Nullable;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.commons.utils.FileUtils;
+import io.onedev.server.buildspec.job.log.JobLogEntryEx;
+import io.onedev.server.search.code.NGramAnalyzer;
+import io.onedev.server.search.code.query.NGramLuceneQuery;
+import io.onedev.server.search.code.query.TooGeneralQueryException;
+import io.onedev.server.search.code.query.regex.RegexLiterals;
+
+/**
+ * N-gram index of job log entries, used to narrow down candidate entries when searching
+ * the log. Each log entry is indexed as a document, with entry index stored as doc value.
+ * Candidates returned from the index should be verified against the actual log entry as
+ * n-gram query is case insensitive and only approximates the search term.
+ *
+ * Access to this class should be synchronized via the build log lock.
+ */
+public class JobLogIndex {
+
+	public static final String INDEX_DIR = "build-log-index";
+
+	private static final int DATA_VERSION = 1;
+
+	private static final String FIELD_META = "META";
+
+	private static final String FIELD_ENTRY_INDEX = "ENTRY_INDEX";
+
+	private static final String FIELD_ENTRY_TEXT = "ENTRY_TEXT";
+
+	private static final String FIELD_INDEXED_COUNT = "INDEXED_COUNT";
+
+	private static final String FIELD_DATA_VERSION = "DATA_VERSION";
+
+	private static final String META_INDEXED = "INDEXED";
+
+	private static final int COMMIT_BATCH_SIZE = 10000;
+
+	private final File indexDir;
+
+	public JobLogIndex(File buildDir) {
+		indexDir = new File(buildDir, INDEX_DIR);
+	}
+
+	/**
+	 * @return
+	 * 			number of log entries indexed. Log entries with index less than this
+	 * 			value are covered by this index
+	 */
+	public int getIndexedCount() {
+		if (indexDir.exists()) {
+			try (Directory directory = FSDirectory.open(indexDir.toPath())) {
+				if (DirectoryReader.indexExists(directory)) {
+					try (IndexReader reader = DirectoryReader.open(directory)) {
+						return getIndexedCount(new IndexSearcher(reader));
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return 0;
+	}
+
+	private int getIndexedCount(IndexSearcher searcher) throws IOException {
+		TopDocs topDocs = searcher.search(new TermQuery(new Term(FIELD_META, META_INDEXED)), 1);
+		if (topDocs.scoreDocs.length != 0) {
+			Document doc = searcher.doc(topDocs.scoreDocs[0].doc);
+			if (String.valueOf(DATA_VERSION).equals(doc.get(FIELD_DATA_VERSION)))
+				return Integer.parseInt(doc.get(FIELD_INDEXED_COUNT));
+		}
+		return 0;
+	}
+
+	/**
+	 * Index log entries not indexed yet
+	 *
+	 * @param logFile
+	 * 			log file to index
+	 * @return
+	 * 			number of newly indexed entries
+	 */
+	public int update(JobLogFile logFile) {
+		int indexedCount = getIndexedCount();
+		int size = logFile.size();
+		if (indexedCount >= size)
+			return 0;
+
+		FileUtils.createDir(indexDir);
+		IndexWriterConfig writerConfig = new IndexWriterConfig(new NGramAnalyzer(NGRAM_SIZE, NGRAM_SIZE));
+		writerConfig.setOpenMode(indexedCount != 0? OpenMode.CREATE_OR_APPEND: OpenMode.CREATE);
+		try (	Directory directory = FSDirectory.open(indexDir.toPath());
+				IndexWriter writer = new IndexWriter(directory, writerConfig);
+				JobLogFile.Reader reader = logFile.openReader(indexedCount)) {
+			try {
+				JobLogEntryEx entry;
+				while ((entry = reader.read()) != null) {
+					int entryIndex = reader.getNext() - 1;
+					Document document = new Document();
+					document.add(new NumericDocValuesField(FIELD_ENTRY_INDEX, entryIndex));
+					document.add(new TextField(FIELD_ENTRY_TEXT, entry.getMessageText(), Store.NO));
+					writer.addDocument(document);
+					if (reader.getNext() % COMMIT_BATCH_SIZE == 0)
+						commit(writer, reader.getNext());
+				}
+				commit(writer, reader.getNext());
+				return reader.getNext() - indexedCount;
+			} catch (Exception e) {
+				writer.rollback();
+				throw ExceptionUtils.unchecked(e);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void commit(IndexWriter writer, int indexedCount) throws IOException {
+		Document document = new Document();
+		document.add(new StringField(FIELD_META, META_INDEXED, Store.NO));
+		document.add(new StoredField(FIELD_INDEXED_COUNT, String.valueOf(indexedCount)));
+		document.add(new StoredField(FIELD_DATA_VERSION, String.valueOf(DATA_VERSION)));
+		writer.updateDocument(new Term(FIELD_META, META_INDEXED), document);
+		writer.commit();
+	}
+
+	/**
+	 * Query candidate log entries
+	 *
+	 * @param query
+	 * 			query built via {@link #newLiteralQuery(String)} or {@link #newRegexQuery(String)}
+	 * @return
+	 * 			indexes of candidate entries. Entries with index not less than
+	 * 			{@link #getIndexedCount()} are not covered by the result
+	 */
+	public BitSet query(Query query) {
+		BitSet candidates = new BitSet();
+		if (indexDir.exists()) {
+			try (Directory directory = FSDirectory.open(indexDir.toPath())) {
+				if (DirectoryReader.indexExists(directory)) {
+					try (IndexReader reader = DirectoryReader.open(directory)) {
+						new IndexSearcher(reader).search(query, new SimpleCollector() {
+
+							private NumericDocValues entryIndexes;
+
+							@Override
+							public void collect(int doc) throws IOException {
+								if (entryIndexes != null && entryIndexes.advanceExact(doc))
+									candidates.set((int) entryIndexes.longValue());
+							}
+
+							@Override
+							protected void doSetNextReader(LeafReaderContext context) throws IOException {
+								entryIndexes = context.reader().getNumericDocValues(FIELD_ENTRY_INDEX);
+							}
+
+							@Override
+							public ScoreMode scoreMode() {
+								return ScoreMode.COMPLETE_NO_SCORES;
+							}
+
+						});
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return
+	 * 			query to find candidate entries containing specified literal, or <tt>null</tt>
+	 * 			if literal is too short to be queried via the index
+	 */
+	@Nullable
+	public static Query newLiteralQuery(String literal) {
+		if (literal.length() >= NGRAM_SIZE)
+			return new NGramLuceneQuery(FIELD_ENTRY_TEXT, literal, NGRAM_SIZE);
+		else
+			return null;
+	}
+
+	/**
+	 * @return
+	 * 			query to find candidate entries possibly matching specified regular expression,
+	 * 			or <tt>null</tt> if the regular expression can not be queried via the index. 
+	 * 			Query is only returned if every alternative of the regular expression can be 
+	 * 			queried, otherwise entries matching some alternative will be missed
+	 */
+	@Nullable
+	public static Query newRegexQuery(String regex) {
+		try {
+			return new RegexLiterals(regex).asNGramQuery(FIELD_ENTRY_TEXT, NGRAM_SIZE, true);
+		} catch (TooGeneralQueryException e) {
+			return null;
+		} catch (Exception e) {
+			// regular expression syntax not understood by literal extractor
+			return null;
+		}
+	}
+
+	public void delete() {
+		if (indexDir.exists())
+			FileUtils.deleteDir(indexDir);
+	}
+
+}
@@ -35,6 +35,28 @@ public interface JobLogManager {
 	
 	boolean matches(Build build, Pattern pattern);
 	
+	/**
+	 * Search log entries of specified build. Search is accelerated by the n-gram index of 
+	 * the build log if available
+	 * 
+	 * @param build
+	 * 			build to search log entries in
+	 * @param term
+	 * 			term to search
+	 * @param regex
+	 * 			whether or not the term is a regular expression
+	 * @param caseSensitive
+	 * 			whether or not to match case
+	 * @param contextLines
+	 * 			number of lines before and after each match to include in the result
+	 * @param count
+	 * 			maximum number of matches to return
+	 * @return
+	 * 			matched log entries ordered by their index
+	 */
+	List<JobLogMatch> search(Build build, String term, boolean regex, boolean caseSensitive, 
+			int contextLines, int count);
+	
 	/**
 	 * Read specified number of log entries starting from end of the log
 	 * 
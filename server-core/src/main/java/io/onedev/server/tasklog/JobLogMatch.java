@@ -0,0 +1,45 @@
+package io.onedev.server.tasklog;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class JobLogMatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int index;
+	
+	private final String line;
+	
+	private final List<String> linesBefore;
+	
+	private final List<String> linesAfter;
+	
+	public JobLogMatch(int index, String line, List<String> linesBefore, List<String> linesAfter) {
+		this.index = index;
+		this.line = line;
+		this.linesBefore = linesBefore;
+		this.linesAfter = linesAfter;
+	}
+
+	/**
+	 * @return
+	 * 			index of matched log entry, starting from 0
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public String getLine() {
+		return line;
+	}
+
+	public List<String> getLinesBefore() {
+		return linesBefore;
+	}
+
+	public List<String> getLinesAfter() {
+		return linesAfter;
+	}
+	
+}
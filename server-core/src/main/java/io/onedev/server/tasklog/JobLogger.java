@@ -0,0 +1,20 @@
+package io.onedev.server.tasklog;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import io.onedev.commons.utils.TaskLogger;
+
+/**
+ * Task logger able to take a batch of messages at once, for instance log lines sent by 
+ * agents in a single {@link JobLogFrame}
+ */
+public abstract class JobLogger extends TaskLogger {
+
+	public void log(List<String> messages, @Nullable String sessionId) {
+		for (String message: messages)
+			log(message, sessionId);
+	}
+	
+}
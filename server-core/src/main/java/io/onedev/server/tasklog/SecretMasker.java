@@ -0,0 +1,118 @@
+package io.onedev.server.tasklog;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import io.onedev.server.model.support.inputspec.SecretInput;
+
+/**
+ * Mask all occurrences of a set of secrets in a single pass over the text, using the
+ * Aho-Corasick automaton. Overlapping or nested occurrences are merged into a single mask.
+ *
+ * Instance of this class is immutable and can be shared between threads.
+ */
+public class SecretMasker {
+
+	private final Node root = new Node();
+
+	private final boolean empty;
+
+	public SecretMasker(Collection<String> secrets) {
+		boolean empty = true;
+		for (String secret: secrets) {
+			if (secret.length() != 0) {
+				Node node = root;
+				for (int i=0; i<secret.length(); i++)
+					node = node.children.computeIfAbsent(secret.charAt(i), it -> new Node());
+				node.matchLength = Math.max(node.matchLength, secret.length());
+				empty = false;
+			}
+		}
+		this.empty = empty;
+
+		Queue<Node> queue = new ArrayDeque<>();
+		for (Node child: root.children.values()) {
+			child.fail = root;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			Node node = queue.remove();
+			for (Map.Entry<Character, Node> entry: node.children.entrySet()) {
+				Node child = entry.getValue();
+				Node fail = node.fail;
+				while (fail != null && !fail.children.containsKey(entry.getKey()))
+					fail = fail.fail;
+				child.fail = fail != null? fail.children.get(entry.getKey()): root;
+				child.matchLength = Math.max(child.matchLength, child.fail.matchLength);
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * @return
+	 * 			text with all secrets replaced by {@link SecretInput#MASK}. The same string
+	 * 			instance will be returned if no secrets are found
+	 */
+	public String mask(String text) {
+		if (empty)
+			return text;
+
+		/*
+		 * Masked ranges are kept as a stack of non-overlapping ranges ordered by position. 
+		 * A longer secret found later may cover several previously found ranges, in which 
+		 * case these ranges are merged
+		 */
+		int[] ranges = null;
+		int rangeCount = 0;
+		Node node = root;
+		for (int i=0; i<text.length(); i++) {
+			char ch = text.charAt(i);
+			Node next;
+			while ((next = node.children.get(ch)) == null && node != root)
+				node = node.fail;
+			node = next != null? next: root;
+			if (node.matchLength != 0) {
+				int from = i - node.matchLength + 1;
+				int to = i + 1;
+				if (ranges == null)
+					ranges = new int[8];
+				while (rangeCount != 0 && from < ranges[rangeCount*2-1]) {
+					from = Math.min(from, ranges[rangeCount*2-2]);
+					rangeCount--;
+				}
+				if (rangeCount*2 == ranges.length)
+					ranges = Arrays.copyOf(ranges, ranges.length*2);
+				ranges[rangeCount*2] = from;
+				ranges[rangeCount*2+1] = to;
+				rangeCount++;
+			}
+		}
+		if (rangeCount != 0) {
+			StringBuilder builder = new StringBuilder(text.length());
+			int copied = 0;
+			for (int i=0; i<rangeCount; i++) {
+				builder.append(text, copied, ranges[i*2]).append(SecretInput.MASK);
+				copied = ranges[i*2+1];
+			}
+			return builder.append(text, copied, text.length()).toString();
+		} else {
+			return text;
+		}
+	}
+
+	private static class Node {
+
+		final Map<Character, Node> children = new HashMap<>();
+
+		Node fail;
+
+		int matchLength;
+
+	}
+
+}
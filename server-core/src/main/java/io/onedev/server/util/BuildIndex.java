@@ -0,0 +1,286 @@
+package io.onedev.server.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Memory compact index of all builds for number lookups by project and commit. Build
+ * columns are stored in primitive arrays indexed by slot, and commit hashes are stored
+ * as raw bytes. Builds are chained by slot in hash buckets of their ids and commit hashes,
+ * and each project keeps a posting list of slots of its builds. Slots of removed builds
+ * are reused.
+ *
+ * This class is not thread safe.
+ */
+public class BuildIndex {
+
+	private static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] ids;
+
+	private long[] projectIds;
+
+	private long[] numbers;
+
+	private byte[] commitHashes;
+
+	// Next slot in same id bucket, or next free slot if slot is free
+	private int[] idChain;
+
+	private int[] commitChain;
+
+	// Position of slot in posting list of its project
+	private int[] projectPositions;
+
+	private int[] idBuckets;
+
+	private int[] commitBuckets;
+
+	private final Map<Long, Postings> projectPostings = new HashMap<>();
+
+	private int slotCount;
+
+	private int freeSlot = NONE;
+
+	private int size;
+
+	public BuildIndex() {
+		ids = new long[INITIAL_CAPACITY];
+		projectIds = new long[INITIAL_CAPACITY];
+		numbers = new long[INITIAL_CAPACITY];
+		commitHashes = new byte[INITIAL_CAPACITY * Constants.OBJECT_ID_LENGTH];
+		idChain = new int[INITIAL_CAPACITY];
+		commitChain = new int[INITIAL_CAPACITY];
+		projectPositions = new int[INITIAL_CAPACITY];
+		idBuckets = newBuckets(INITIAL_CAPACITY);
+		commitBuckets = newBuckets(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Add specified build into the index, replacing existing build with same id
+	 */
+	public void put(long id, long projectId, long number, AnyObjectId commitId) {
+		int slot = findSlot(id);
+		if (slot != NONE) {
+			if (projectIds[slot] == projectId && numbers[slot] == number
+					&& commitId.equals(getCommitId(slot))) {
+				return;
+			}
+			remove(id);
+		}
+
+		if (freeSlot != NONE) {
+			slot = freeSlot;
+			freeSlot = idChain[slot];
+		} else {
+			if (slotCount == ids.length)
+				grow();
+			slot = slotCount++;
+		}
+
+		ids[slot] = id;
+		projectIds[slot] = projectId;
+		numbers[slot] = number;
+		commitId.copyRawTo(commitHashes, slot * Constants.OBJECT_ID_LENGTH);
+
+		int bucket = bucketOfId(id, idBuckets.length);
+		idChain[slot] = idBuckets[bucket];
+		idBuckets[bucket] = slot;
+
+		bucket = bucketOfCommit(slot, commitBuckets.length);
+		commitChain[slot] = commitBuckets[bucket];
+		commitBuckets[bucket] = slot;
+
+		Postings postings = projectPostings.get(projectId);
+		if (postings == null) {
+			postings = new Postings();
+			projectPostings.put(projectId, postings);
+		}
+		projectPositions[slot] = postings.size;
+		postings.add(slot);
+
+		size++;
+	}
+
+	public void remove(long id) {
+		int bucket = bucketOfId(id, idBuckets.length);
+		int prev = NONE;
+		int slot = idBuckets[bucket];
+		while (slot != NONE && ids[slot] != id) {
+			prev = slot;
+			slot = idChain[slot];
+		}
+		if (slot == NONE)
+			return;
+
+		if (prev != NONE)
+			idChain[prev] = idChain[slot];
+		else
+			idBuckets[bucket] = idChain[slot];
+
+		bucket = bucketOfCommit(slot, commitBuckets.length);
+		prev = NONE;
+		int current = commitBuckets[bucket];
+		while (current != slot) {
+			prev = current;
+			current = commitChain[current];
+		}
+		if (prev != NONE)
+			commitChain[prev] = commitChain[slot];
+		else
+			commitBuckets[bucket] = commitChain[slot];
+
+		Postings postings = projectPostings.get(projectIds[slot]);
+		int movedSlot = postings.remove(projectPositions[slot]);
+		if (movedSlot != NONE)
+			projectPositions[movedSlot] = projectPositions[slot];
+		if (postings.size == 0)
+			projectPostings.remove(projectIds[slot]);
+
+		idChain[slot] = freeSlot;
+		freeSlot = slot;
+		size--;
+	}
+
+	public void removeProject(long projectId) {
+		Postings postings = projectPostings.get(projectId);
+		if (postings != null) {
+			long[] idsOfProject = new long[postings.size];
+			for (int i=0; i<postings.size; i++)
+				idsOfProject[i] = ids[postings.slots[i]];
+			for (long id: idsOfProject)
+				remove(id);
+		}
+	}
+
+	public Collection<Long> getNumbers(long projectId) {
+		Collection<Long> buildNumbers = new HashSet<>();
+		Postings postings = projectPostings.get(projectId);
+		if (postings != null) {
+			for (int i=0; i<postings.size; i++)
+				buildNumbers.add(numbers[postings.slots[i]]);
+		}
+		return buildNumbers;
+	}
+
+	public Collection<Long> getNumbers(long projectId, Collection<String> commitHashes) {
+		Collection<Long> buildNumbers = new HashSet<>();
+		byte[] commitBytes = new byte[Constants.OBJECT_ID_LENGTH];
+		for (String commitHash: commitHashes) {
+			if (!ObjectId.isId(commitHash))
+				continue;
+			ObjectId.fromString(commitHash).copyRawTo(commitBytes, 0);
+			int slot = commitBuckets[bucketOfCommit(commitBytes, 0, commitBuckets.length)];
+			while (slot != NONE) {
+				int offset = slot * Constants.OBJECT_ID_LENGTH;
+				if (projectIds[slot] == projectId && Arrays.equals(
+						this.commitHashes, offset, offset + Constants.OBJECT_ID_LENGTH,
+						commitBytes, 0, Constants.OBJECT_ID_LENGTH)) {
+					buildNumbers.add(numbers[slot]);
+				}
+				slot = commitChain[slot];
+			}
+		}
+		return buildNumbers;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private ObjectId getCommitId(int slot) {
+		return ObjectId.fromRaw(commitHashes, slot * Constants.OBJECT_ID_LENGTH);
+	}
+
+	private int findSlot(long id) {
+		int slot = idBuckets[bucketOfId(id, idBuckets.length)];
+		while (slot != NONE && ids[slot] != id)
+			slot = idChain[slot];
+		return slot;
+	}
+
+	private void grow() {
+		int capacity = ids.length + (ids.length >> 1);
+		ids = Arrays.copyOf(ids, capacity);
+		projectIds = Arrays.copyOf(projectIds, capacity);
+		numbers = Arrays.copyOf(numbers, capacity);
+		commitHashes = Arrays.copyOf(commitHashes, capacity * Constants.OBJECT_ID_LENGTH);
+		idChain = Arrays.copyOf(idChain, capacity);
+		commitChain = Arrays.copyOf(commitChain, capacity);
+		projectPositions = Arrays.copyOf(projectPositions, capacity);
+
+		// Only grow when there is no free slot, so all slots are rehashed
+		idBuckets = newBuckets(capacity);
+		commitBuckets = newBuckets(capacity);
+		for (int slot=0; slot<slotCount; slot++) {
+			int bucket = bucketOfId(ids[slot], idBuckets.length);
+			idChain[slot] = idBuckets[bucket];
+			idBuckets[bucket] = slot;
+			bucket = bucketOfCommit(slot, commitBuckets.length);
+			commitChain[slot] = commitBuckets[bucket];
+			commitBuckets[bucket] = slot;
+		}
+	}
+
+	private static int[] newBuckets(int capacity) {
+		int[] buckets = new int[Integer.highestOneBit(capacity - 1) << 1];
+		Arrays.fill(buckets, NONE);
+		return buckets;
+	}
+
+	private static int bucketOfId(long id, int bucketCount) {
+		int hash = Long.hashCode(id);
+		return (hash ^ (hash >>> 16)) & (bucketCount - 1);
+	}
+
+	private int bucketOfCommit(int slot, int bucketCount) {
+		return bucketOfCommit(commitHashes, slot * Constants.OBJECT_ID_LENGTH, bucketCount);
+	}
+
+	// Commit hashes are uniformly distributed, leading bytes are good enough as hash
+	private static int bucketOfCommit(byte[] bytes, int offset, int bucketCount) {
+		int hash = (bytes[offset] & 0xff) << 24 | (bytes[offset+1] & 0xff) << 16
+				| (bytes[offset+2] & 0xff) << 8 | (bytes[offset+3] & 0xff);
+		return hash & (bucketCount - 1);
+	}
+
+	private static class Postings {
+
+		int[] slots = new int[4];
+
+		int size;
+
+		void add(int slot) {
+			if (size == slots.length)
+				slots = Arrays.copyOf(slots, size << 1);
+			slots[size++] = slot;
+		}
+
+		/**
+		 * Remove slot at specified position by moving last slot into it
+		 *
+		 * @return
+		 * 			the moved slot, or {@link #NONE} if nothing is moved
+		 */
+		int remove(int position) {
+			size--;
+			if (position != size) {
+				slots[position] = slots[size];
+				return slots[position];
+			} else {
+				return NONE;
+			}
+		}
+
+	}
+
+}
@@ -36,5 +36,14 @@ public interface ServerConfig {
      *          ssh port of the server
      */
     int getSshPort();
+    
+	/**
+	 * Get max number of threads to run uncategorized blocking tasks, as well as categorized 
+	 * blocking tasks if virtual threads are not supported by current JVM.
+	 * <p>
+	 * @return
+	 * 			max number of threads of each blocking task pool
+	 */
+	int getExecutorMaxThreads();
 	
 }
@@ -2,6 +2,18 @@ package io.onedev.server.util.concurrent;
 
 public interface BatchWorkManager {
 
+	/**
+	 * Submit a work to specified worker. Works of the same worker (identified by worker id) 
+	 * are processed in batches one after another, with works of lower priority value 
+	 * processed first. Queued works are coalesced if they implement {@link CoalescableWork}
+	 */
 	void submit(BatchWorker worker, Prioritized work);
 
+	/**
+	 * @return
+	 * 			number of works queued for worker of specified id, excluding works being 
+	 * 			processed
+	 */
+	int getBacklogSize(String workerId);
+	
 }
@@ -0,0 +1,15 @@
+package io.onedev.server.util.concurrent;
+
+public abstract class CategorizedRunnable implements Runnable {
+
+	private final TaskCategory category;
+	
+	public CategorizedRunnable(TaskCategory category) {
+		this.category = category;
+	}
+	
+	public TaskCategory getCategory() {
+		return category;
+	}
+	
+}
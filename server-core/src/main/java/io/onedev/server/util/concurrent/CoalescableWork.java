@@ -0,0 +1,20 @@
+package io.onedev.server.util.concurrent;
+
+import javax.annotation.Nullable;
+
+/**
+ * Work submitted to {@link BatchWorkManager} which can be replaced by a later work of the 
+ * same worker with the same coalescing key, if the earlier one is still queued. This avoids 
+ * redundant works for instance when many ref updates of the same project happen in a burst
+ */
+public interface CoalescableWork {
+
+	/**
+	 * @return
+	 * 			key to coalesce works with, or <tt>null</tt> if this work should not be 
+	 * 			coalesced
+	 */
+	@Nullable
+	Object getCoalescingKey();
+	
+}
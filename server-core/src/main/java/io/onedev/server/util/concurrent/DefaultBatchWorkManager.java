@@ -1,13 +1,11 @@
 package io.onedev.server.util.concurrent;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -22,103 +20,147 @@ import io.onedev.server.event.system.SystemStarted;
 import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.security.SecurityUtils;
 
+/**
+ * Works are queued per worker id, and each queue schedules itself to the work executor when 
+ * it has works and is not being processed. There is no dispatching thread or global monitor, 
+ * contention only happens between submitters of the same worker.
+ */
 @Singleton
-public class DefaultBatchWorkManager implements BatchWorkManager, Runnable {
+public class DefaultBatchWorkManager implements BatchWorkManager {
 
 	private static final Logger logger = LoggerFactory.getLogger(DefaultBatchWorkManager.class);
 	
 	private final WorkExecutor workExecutor;
 	
-	private final Map<BatchWorker, Works> works = new HashMap<>();
+	private final Map<String, WorkQueue> workQueues = new ConcurrentHashMap<>();
 	
-	private Thread thread;
+	private volatile boolean started;
+	
+	private volatile boolean stopping;
 	
 	@Inject
 	public DefaultBatchWorkManager(WorkExecutor workExecutor) {
 		this.workExecutor = workExecutor;
 	}
 	
-	private Works getWorks(BatchWorker worker) {
-		Works worksOfWorker = works.get(worker);
-		if (worksOfWorker == null) {
-			worksOfWorker = new Works();
-			works.put(worker, worksOfWorker);
-		}
-		return worksOfWorker;
-	}
-
 	@Listen
 	public void on(SystemStarted event) {
-		thread = new Thread(this);
-		thread.start();
+		started = true;
+		for (WorkQueue queue: workQueues.values())
+			schedule(queue);
 	}
 
 	@Listen
-	public synchronized void on(SystemStopping event) {
-		thread = null;
-		notify();
+	public void on(SystemStopping event) {
+		stopping = true;
 	}
 
 	@Override
-	public synchronized void run() {
-		while (thread != null) {
-			for (Iterator<Map.Entry<BatchWorker, Works>> it = works.entrySet().iterator(); it.hasNext();) {
-				Map.Entry<BatchWorker, Works> entry = it.next();
-				BatchWorker worker = entry.getKey();
-				Works works = entry.getValue();
-				if (works.working.isEmpty()) {
-					works.queued.drainTo(works.working, worker.getMaxBatchSize());
-					if (!works.working.isEmpty()) {
-						double priority = works.working.stream().collect(Collectors.averagingInt(Prioritized::getPriority));
-						workExecutor.submit(new PrioritizedRunnable((int)priority) {
-							
-							@Override
-							public void run() {
-								try {
-									worker.doWorks(works.working);
-								} catch (Exception e) {
-									logger.error("Error doing works", e);
-								} finally {
-									synchronized(DefaultBatchWorkManager.this) {
-										works.working.clear();
-										DefaultBatchWorkManager.this.notify();
-									}
-								}
-							}
-							
-						});
-					} else {
-						it.remove();
+	public void submit(BatchWorker worker, Prioritized work) {
+		Subject subject = SecurityUtils.getSubject();
+		
+		// Queue is updated inside compute so that it is not removed concurrently as idle
+		WorkQueue queue = workQueues.compute(worker.getId(), (key, value) -> {
+			if (value == null)
+				value = new WorkQueue(key);
+			value.worker = worker;
+			value.subject = subject;
+			value.add(work);
+			return value;
+		});
+		schedule(queue);
+	}
+	
+	private void schedule(WorkQueue queue) {
+		if (!started || stopping)
+			return;
+		Prioritized head = queue.queued.peek();
+		if (head != null && queue.scheduled.compareAndSet(false, true)) {
+			workExecutor.submit(new PrioritizedRunnable(head.getPriority()) {
+				
+				@Override
+				public void run() {
+					BatchWorker worker = queue.worker;
+					List<Prioritized> works = queue.drain(worker.getMaxBatchSize());
+					try {
+						if (!works.isEmpty()) {
+							ThreadContext.bind(queue.subject);
+							worker.doWorks(works);
+						}
+					} catch (Exception e) {
+						logger.error("Error doing works", e);
+					} finally {
+						queue.scheduled.set(false);
+						if (!queue.queued.isEmpty()) {
+							schedule(queue);
+						} else {
+							workQueues.computeIfPresent(queue.workerId, (key, value) -> {
+								if (value == queue && value.queued.isEmpty() && !value.scheduled.get())
+									return null;
+								else
+									return value;
+							});
+						}
 					}
 				}
-			}
-			try {
-				wait();
-			} catch (InterruptedException e) {
-			}
+				
+			});
 		}
 	}
-
+	
 	@Override
-	public synchronized void submit(BatchWorker worker, Prioritized work) {
-		Subject subject = SecurityUtils.getSubject();
-		getWorks(new BatchWorker(worker.getId(), worker.getMaxBatchSize()) {
+	public int getBacklogSize(String workerId) {
+		WorkQueue queue = workQueues.get(workerId);
+		return queue != null? queue.queued.size(): 0;
+	}
 
-			@Override
-			public void doWorks(Collection<Prioritized> works) {
-				ThreadContext.bind(subject);
-				worker.doWorks(works);
+	private static class WorkQueue {
+		
+		final String workerId;
+		
+		final PriorityBlockingQueue<Prioritized> queued = new PriorityBlockingQueue<>();
+		
+		// Latest work of each coalescing key. Only first work of the key is put into the queue
+		final Map<Object, Prioritized> coalescedWorks = new ConcurrentHashMap<>();
+		
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		
+		volatile BatchWorker worker;
+		
+		volatile Subject subject;
+		
+		WorkQueue(String workerId) {
+			this.workerId = workerId;
+		}
+		
+		void add(Prioritized work) {
+			Object coalescingKey = getCoalescingKey(work);
+			if (coalescingKey == null || coalescedWorks.put(coalescingKey, work) == null) 
+				queued.offer(work);
+		}
+		
+		List<Prioritized> drain(int maxCount) {
+			List<Prioritized> works = new ArrayList<>();
+			while (works.size() < maxCount) {
+				Prioritized work = queued.poll();
+				if (work == null)
+					break;
+				Object coalescingKey = getCoalescingKey(work);
+				if (coalescingKey != null) 
+					work = coalescedWorks.remove(coalescingKey);
+				if (work != null)
+					works.add(work);
 			}
-			
-		}).queued.offer(work);
+			return works;
+		}
 		
-		notify();
-	}
-
-	private static class Works {
-		BlockingQueue<Prioritized> queued = new PriorityBlockingQueue<>();
+		private Object getCoalescingKey(Prioritized work) {
+			if (work instanceof CoalescableWork)
+				return ((CoalescableWork) work).getCoalescingKey();
+			else
+				return null;
+		}
 		
-		Collection<Prioritized> working = new ArrayList<>();
 	}
 
 }
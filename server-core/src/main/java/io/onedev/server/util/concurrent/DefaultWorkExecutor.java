@@ -2,11 +2,13 @@ package io.onedev.server.util.concurrent;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -30,20 +32,31 @@ import io.onedev.server.security.SecurityUtils;
 @Singleton
 public class DefaultWorkExecutor implements WorkExecutor {
 
+	// Pass increment of stride scheduling, divided by weight of each workload class 
+	private static final long STRIDE = 1000;
+	
 	private final ExecutorService executorService;
 	
-	private final Map<String, Collection<PrioritizedCallable<?>>> runnings = new HashMap<>();
+	private final Map<String, RunningGroup> runnings = new HashMap<>();
+	
+	private final Map<String, WaitingGroup> waitings = new HashMap<>();
 	
-	private final Map<String, Collection<WorkFuture<?>>> waitings = new HashMap<>();
+	private final Map<WorkloadClass, WorkloadState> workloadStates = new EnumMap<>(WorkloadClass.class);
 
 	private final SettingManager settingManager;
 	
 	private volatile int concurrency = 1;
 	
+	private long groupSequence;
+	
+	private long currentPass;
+	
 	@Inject
 	public DefaultWorkExecutor(ExecutorService executorService, SettingManager settingManager) {
 		this.executorService = executorService;
 		this.settingManager = settingManager;
+		for (WorkloadClass workloadClass: WorkloadClass.values())
+			workloadStates.put(workloadClass, new WorkloadState(workloadClass));
 	}
 
 	@Transactional
@@ -80,35 +93,42 @@ public class DefaultWorkExecutor implements WorkExecutor {
 		}
 	}
 	
+	/*
+	 * Start waiting groups while overall concurrency allows. Among workload classes having 
+	 * waiting groups and not reaching their own concurrency limit, the one with minimum pass 
+	 * is selected (stride scheduling), so that classes share concurrency by weight. Inside 
+	 * a class, the group with minimum average priority is started first
+	 */
 	private synchronized void check() {
-		if (concurrency > runnings.size()) {
-			Map<String, Integer> averagePriorities = new HashMap<>();
-			for (Map.Entry<String, Collection<WorkFuture<?>>> entry: waitings.entrySet()) {
-				int totalPriorities = 0;
-				for (WorkFuture<?> future: entry.getValue()) 
-					totalPriorities += future.callable.getPriority();
-				averagePriorities.put(entry.getKey(), totalPriorities/entry.getValue().size());
-			}
-			List<String> groupIds = new ArrayList<>(waitings.keySet());
-			Collections.sort(groupIds, new Comparator<String>() {
-
-				@Override
-				public int compare(String o1, String o2) {
-					return averagePriorities.get(o1) - averagePriorities.get(o2);
+		while (concurrency > runnings.size()) {
+			WorkloadState selected = null;
+			for (WorkloadState state: workloadStates.values()) {
+				if (!state.waitings.isEmpty() 
+						&& state.runningGroups < state.workloadClass.getConcurrency(concurrency)
+						&& (selected == null || state.pass < selected.pass)) {
+					selected = state;
 				}
-				
-			});
-			for (String groupId: groupIds) {
-				Collection<PrioritizedCallable<?>> runningsOfGroup = new ArrayList<>();
-				for (WorkFuture<?> future: waitings.remove(groupId)) {
-					future.runningFuture = call(future.groupId, future.callable);
-					notifyAll();
-					runningsOfGroup.add(future.callable);
-				}
-				runnings.put(groupId, runningsOfGroup);
-				if (runnings.size() == concurrency)
-					break;
 			}
+			if (selected == null)
+				break;
+			
+			currentPass = selected.pass;
+			selected.pass += STRIDE / selected.workloadClass.getWeight();
+			
+			WaitingGroup waitingGroup = selected.waitings.pollFirst();
+			waitings.remove(waitingGroup.groupId);
+			selected.queuedWorks -= waitingGroup.futures.size();
+			selected.runningGroups++;
+			
+			RunningGroup runningGroup = new RunningGroup(selected.workloadClass);
+			runnings.put(waitingGroup.groupId, runningGroup);
+			long now = System.currentTimeMillis();
+			for (WorkFuture<?> future: waitingGroup.futures) {
+				future.runningFuture = call(waitingGroup.groupId, future.callable);
+				runningGroup.callables.add(future.callable);
+				selected.recordWaitTime(now - future.submitTime);
+			}
+			notifyAll();
 		}
 	}
 	
@@ -121,10 +141,11 @@ public class DefaultWorkExecutor implements WorkExecutor {
 					return callable.call();
 				} finally {
 					synchronized (DefaultWorkExecutor.this) {
-						Collection<PrioritizedCallable<?>> runningsOfGroup = runnings.get(groupId);
-						runningsOfGroup.remove(callable);
-						if (runningsOfGroup.isEmpty()) {
+						RunningGroup runningGroup = runnings.get(groupId);
+						runningGroup.callables.remove(callable);
+						if (runningGroup.callables.isEmpty()) {
 							runnings.remove(groupId);
+							workloadStates.get(runningGroup.workloadClass).runningGroups--;
 							check();
 						}
 					}
@@ -135,31 +156,164 @@ public class DefaultWorkExecutor implements WorkExecutor {
 	}
 	
 	@Override
-	public synchronized <T> Future<T> submit(String groupId, PrioritizedCallable<T> callable) {
+	public synchronized <T> Future<T> submit(WorkloadClass workloadClass, String groupId, 
+			PrioritizedCallable<T> callable) {
 		callable = SecurityUtils.inheritSubject(callable);
-		Collection<PrioritizedCallable<?>> runningsOfGroup = runnings.get(groupId);
-		if (runningsOfGroup != null) {
-			runningsOfGroup.add(callable);
+		RunningGroup runningGroup = runnings.get(groupId);
+		if (runningGroup != null) {
+			runningGroup.callables.add(callable);
 			return call(groupId, callable);
 		} else {
 			WorkFuture<T> future = new WorkFuture<T>(groupId, callable);
-			Collection<WorkFuture<?>> waitingsOfGroup = waitings.get(groupId);
-			if (waitingsOfGroup == null) {
-				waitingsOfGroup = new ArrayList<>();
-				waitings.put(groupId, waitingsOfGroup);
+			WaitingGroup waitingGroup = waitings.get(groupId);
+			WorkloadState state;
+			if (waitingGroup == null) {
+				// Group is queued in the class it is first submitted with
+				state = workloadStates.get(workloadClass);
+				if (state.waitings.isEmpty()) {
+					// Do not let a class accumulate credits while it is idle 
+					state.pass = Math.max(state.pass, currentPass);
+				}
+				waitingGroup = new WaitingGroup(groupId, workloadClass, groupSequence++);
+				waitings.put(groupId, waitingGroup);
+			} else {
+				state = workloadStates.get(waitingGroup.workloadClass);
+				state.waitings.remove(waitingGroup);
 			}
-			waitingsOfGroup.add(future);
+			waitingGroup.add(future);
+			state.waitings.add(waitingGroup);
+			state.queuedWorks++;
 			check();
 			return future;
 		}
 	}
 
+	@Override
+	public <T> Future<T> submit(String groupId, PrioritizedCallable<T> callable) {
+		return submit(WorkloadClass.of(callable.getPriority()), groupId, callable);
+	}
+	
+	private synchronized boolean cancelWaiting(WorkFuture<?> future) {
+		WaitingGroup waitingGroup = waitings.get(future.groupId);
+		if (waitingGroup != null && waitingGroup.futures.contains(future)) {
+			WorkloadState state = workloadStates.get(waitingGroup.workloadClass);
+			state.waitings.remove(waitingGroup);
+			waitingGroup.remove(future);
+			state.queuedWorks--;
+			if (!waitingGroup.futures.isEmpty())
+				state.waitings.add(waitingGroup);
+			else
+				waitings.remove(future.groupId);
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	@Override
+	public synchronized int getQueueDepth(WorkloadClass workloadClass) {
+		return workloadStates.get(workloadClass).queuedWorks;
+	}
+
+	@Override
+	public synchronized long getAverageWaitTime(WorkloadClass workloadClass) {
+		return workloadStates.get(workloadClass).averageWaitTime;
+	}
+
+	private static class WorkloadState {
+		
+		final WorkloadClass workloadClass;
+		
+		// Waiting groups ordered by average priority, and then submission order
+		final NavigableSet<WaitingGroup> waitings = new TreeSet<>(new Comparator<WaitingGroup>() {
+
+			@Override
+			public int compare(WaitingGroup o1, WaitingGroup o2) {
+				int result = Integer.compare(o1.getAveragePriority(), o2.getAveragePriority());
+				if (result == 0)
+					result = Long.compare(o1.sequence, o2.sequence);
+				return result;
+			}
+			
+		});
+		
+		int runningGroups;
+		
+		int queuedWorks;
+		
+		long pass;
+		
+		long averageWaitTime;
+		
+		WorkloadState(WorkloadClass workloadClass) {
+			this.workloadClass = workloadClass;
+		}
+		
+		void recordWaitTime(long waitTime) {
+			averageWaitTime += (waitTime - averageWaitTime) / 8;
+		}
+		
+	}
+	
+	/*
+	 * Sort key of a waiting group changes when works are added or removed, so the group 
+	 * must be removed from sorted set of its class before modification and added back 
+	 * afterwards
+	 */
+	private static class WaitingGroup {
+		
+		final String groupId;
+		
+		final WorkloadClass workloadClass;
+		
+		final long sequence;
+		
+		final List<WorkFuture<?>> futures = new ArrayList<>();
+		
+		int totalPriorities;
+		
+		WaitingGroup(String groupId, WorkloadClass workloadClass, long sequence) {
+			this.groupId = groupId;
+			this.workloadClass = workloadClass;
+			this.sequence = sequence;
+		}
+		
+		void add(WorkFuture<?> future) {
+			futures.add(future);
+			totalPriorities += future.callable.getPriority();
+		}
+		
+		void remove(WorkFuture<?> future) {
+			if (futures.remove(future))
+				totalPriorities -= future.callable.getPriority();
+		}
+		
+		int getAveragePriority() {
+			return futures.isEmpty()? 0: totalPriorities / futures.size();
+		}
+		
+	}
+	
+	private static class RunningGroup {
+		
+		final WorkloadClass workloadClass;
+		
+		final Collection<PrioritizedCallable<?>> callables = new ArrayList<>();
+		
+		RunningGroup(WorkloadClass workloadClass) {
+			this.workloadClass = workloadClass;
+		}
+		
+	}
+	
 	private class WorkFuture<T> implements Future<T> {
 
 		private final String groupId;
 		
 		private final PrioritizedCallable<T> callable;
 		
+		private final long submitTime = System.currentTimeMillis();
+		
 		private Future<?> runningFuture;
 		
 		public WorkFuture(String groupId, PrioritizedCallable<T> callable) {
@@ -170,15 +324,10 @@ public class DefaultWorkExecutor implements WorkExecutor {
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
 			synchronized (DefaultWorkExecutor.this) {
-				if (runningFuture != null) {
+				if (runningFuture != null) 
 					return runningFuture.cancel(mayInterruptIfRunning);
-				} else {
-					Collection<WorkFuture<?>> waitingsOfGroup = waitings.get(groupId);
-					if (waitingsOfGroup != null)
-						return waitingsOfGroup.remove(this);
-					else 
-						return false;
-				}
+				else 
+					return cancelWaiting(this);
 			}
 		}
 
@@ -188,11 +337,8 @@ public class DefaultWorkExecutor implements WorkExecutor {
 				if (runningFuture != null) {
 					return runningFuture.isCancelled();
 				} else {
-					Collection<WorkFuture<?>> waitingsOfGroup = waitings.get(groupId);
-					if (waitingsOfGroup != null)
-						return !waitingsOfGroup.contains(this);
-					else 
-						return true;
+					WaitingGroup waitingGroup = waitings.get(groupId);
+					return waitingGroup == null || !waitingGroup.futures.contains(this);
 				}
 			}
 		}
@@ -244,8 +390,8 @@ public class DefaultWorkExecutor implements WorkExecutor {
 	}
 
 	@Override
-	public Future<?> submit(String groupId, PrioritizedRunnable runnable) {
-		return submit(groupId, new PrioritizedCallable<Void>(runnable.getPriority()) {
+	public Future<?> submit(WorkloadClass workloadClass, String groupId, PrioritizedRunnable runnable) {
+		return submit(workloadClass, groupId, new PrioritizedCallable<Void>(runnable.getPriority()) {
 
 			@Override
 			public Void call() throws Exception {
@@ -256,6 +402,16 @@ public class DefaultWorkExecutor implements WorkExecutor {
 		});
 	}
 
+	@Override
+	public Future<?> submit(WorkloadClass workloadClass, PrioritizedRunnable runnable) {
+		return submit(workloadClass, UUID.randomUUID().toString(), runnable);
+	}
+	
+	@Override
+	public Future<?> submit(String groupId, PrioritizedRunnable runnable) {
+		return submit(WorkloadClass.of(runnable.getPriority()), groupId, runnable);
+	}
+
 	@Override
 	public Future<?> submit(PrioritizedRunnable runnable) {
 		return submit(UUID.randomUUID().toString(), runnable);
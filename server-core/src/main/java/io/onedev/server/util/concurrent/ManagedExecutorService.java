@@ -0,0 +1,301 @@
+package io.onedev.server.util.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.server.security.SecurityUtils;
+
+/**
+ * Executor for blocking tasks. Tasks of a {@link TaskCategory} are limited by concurrency 
+ * of the category, and each of them runs in a virtual thread if supported by current JVM, 
+ * otherwise in a bounded platform thread pool. 
+ * <p>
+ * Tasks not categorized, such as job executions, may block for a long time waiting for 
+ * resources, locks or other tasks. They run in a separate platform thread pool so that 
+ * they never starve categorized tasks. This pool is bounded, and tasks are handed off to 
+ * idle threads instead of being buffered: a task waiting in a buffer could be the one 
+ * that running tasks are waiting for. When all threads are busy, the task runs in the 
+ * submitting thread, which also slows down submitters of bursts.
+ */
+public class ManagedExecutorService extends AbstractExecutorService {
+
+	private static final Logger logger = LoggerFactory.getLogger(ManagedExecutorService.class);
+
+	private final ExecutorService delegate;
+	
+	private final ThreadPoolExecutor uncategorizedDelegate;
+
+	private final boolean virtualThreads;
+
+	private final Map<TaskCategory, CategoryState> categoryStates = new EnumMap<>(TaskCategory.class);
+
+	private final AtomicInteger runningCount = new AtomicInteger();
+
+	private volatile long averageWaitTime;
+
+	/**
+	 * @param maxThreads
+	 * 			max number of threads of the platform thread pool running uncategorized 
+	 * 			tasks, as well as the one running categorized tasks when virtual threads 
+	 * 			are not supported
+	 */
+	public ManagedExecutorService(int maxThreads) {
+		uncategorizedDelegate = new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+		ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+		if (virtualThreadExecutor != null) {
+			delegate = virtualThreadExecutor;
+			virtualThreads = true;
+			logger.info("Running categorized blocking tasks with virtual threads");
+		} else {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+					60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			pool.allowCoreThreadTimeOut(true);
+			delegate = pool;
+			virtualThreads = false;
+			logger.info("Running categorized blocking tasks with platform threads (max: {})", maxThreads);
+		}
+		for (TaskCategory category: TaskCategory.values())
+			categoryStates.put(category, new CategoryState(category));
+	}
+
+	/*
+	 * Virtual threads are only available since Java 21, look it up reflectively to
+	 * be able to run on older JVMs
+	 */
+	@Nullable
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			logger.debug("Virtual threads not available", e);
+			return null;
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		long submitTime = System.currentTimeMillis();
+		Runnable task = SecurityUtils.inheritSubject(command);
+		TaskCategory category;
+		if (command instanceof CategorizedRunnable)
+			category = ((CategorizedRunnable) command).getCategory();
+		else if (command instanceof CategorizedFutureTask)
+			category = ((CategorizedFutureTask<?>) command).category;
+		else
+			category = null;
+
+		if (category != null) {
+			CategoryState state = categoryStates.get(category);
+			state.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						doRun(task, submitTime);
+					} finally {
+						state.finished();
+					}
+				}
+
+			});
+		} else {
+			dispatch(uncategorizedDelegate, new Runnable() {
+
+				@Override
+				public void run() {
+					doRun(task, submitTime);
+				}
+
+			});
+		}
+	}
+
+	private void doRun(Runnable task, long submitTime) {
+		long waitTime = System.currentTimeMillis() - submitTime;
+		averageWaitTime += (waitTime - averageWaitTime) / 8;
+		runningCount.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			runningCount.decrementAndGet();
+		}
+	}
+
+	private void dispatch(ExecutorService executor, Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			if (!isShutdown())
+				throw ExceptionUtils.unchecked(e);
+		}
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		if (runnable instanceof CategorizedRunnable)
+			return new CategorizedFutureTask<T>(((CategorizedRunnable) runnable).getCategory(), runnable, value);
+		else
+			return super.newTaskFor(runnable, value);
+	}
+
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+		uncategorizedDelegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		List<Runnable> tasks = new ArrayList<>(delegate.shutdownNow());
+		tasks.addAll(uncategorizedDelegate.shutdownNow());
+		return tasks;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated() && uncategorizedDelegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return delegate.awaitTermination(timeout, unit) 
+				&& uncategorizedDelegate.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * @return
+	 * 			number of tasks currently running
+	 */
+	public int getRunningCount() {
+		return runningCount.get();
+	}
+
+	/**
+	 * @return
+	 * 			number of platform threads, or number of running tasks if virtual threads 
+	 * 			are used
+	 */
+	public int getThreadCount() {
+		if (delegate instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) delegate).getPoolSize() + uncategorizedDelegate.getPoolSize();
+		else
+			return runningCount.get();
+	}
+
+	/**
+	 * @return
+	 * 			number of categorized tasks waiting for a thread of the bounded platform 
+	 * 			thread pool
+	 */
+	public int getQueueDepth() {
+		if (delegate instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) delegate).getQueue().size();
+		else
+			return 0;
+	}
+
+	/**
+	 * @return
+	 * 			number of tasks of specified category waiting for concurrency of the category
+	 */
+	public int getQueueDepth(TaskCategory category) {
+		return categoryStates.get(category).getQueueDepth();
+	}
+
+	/**
+	 * @return
+	 * 			moving average of wait time in milliseconds of recently started tasks
+	 */
+	public long getAverageWaitTime() {
+		return averageWaitTime;
+	}
+
+	private class CategoryState {
+
+		private final TaskCategory category;
+
+		private final Queue<Runnable> waitings = new ArrayDeque<>();
+
+		private int runnings;
+
+		CategoryState(TaskCategory category) {
+			this.category = category;
+		}
+
+		void submit(Runnable task) {
+			synchronized (this) {
+				if (runnings >= category.getConcurrency()) {
+					waitings.add(task);
+					return;
+				}
+				runnings++;
+			}
+			dispatch(delegate, task);
+		}
+
+		void finished() {
+			Runnable next;
+			synchronized (this) {
+				next = waitings.poll();
+				if (next == null) {
+					runnings--;
+					return;
+				}
+			}
+			dispatch(delegate, next);
+		}
+
+		synchronized int getQueueDepth() {
+			return waitings.size();
+		}
+
+	}
+
+	private static class CategorizedFutureTask<T> extends FutureTask<T> {
+
+		private final TaskCategory category;
+
+		CategorizedFutureTask(TaskCategory category, Runnable runnable, T value) {
+			super(runnable, value);
+			this.category = category;
+		}
+
+	}
+
+}
@@ -0,0 +1,30 @@
+package io.onedev.server.util.concurrent;
+
+/**
+ * Category of blocking I/O tasks submitted to the shared executor. Tasks of each category 
+ * are limited to run with specified concurrency, and exceeding tasks wait in queue of the 
+ * category without occupying any thread. Tasks not categorized are only limited by max 
+ * threads of the executor
+ */
+public enum TaskCategory {
+
+	// Notify websocket connections of observable changes
+	WEBSOCKET(16),
+	
+	// Deliver web hook events to external urls
+	WEBHOOK(8),
+	
+	// Send mails via SMTP
+	MAIL(4);
+	
+	private final int concurrency;
+	
+	TaskCategory(int concurrency) {
+		this.concurrency = concurrency;
+	}
+	
+	public int getConcurrency() {
+		return concurrency;
+	}
+	
+}
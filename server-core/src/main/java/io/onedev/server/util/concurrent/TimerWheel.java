@@ -0,0 +1,106 @@
+package io.onedev.server.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timer wheel tracking deadlines of a large number of keys. Time is divided into
+ * ticks, and each key is put into the bucket of its deadline tick, so that scheduling is
+ * O(1) and advancing the wheel only visits buckets of elapsed ticks. Keys due in more than
+ * one round of the wheel simply stay in their buckets until the wheel comes around.
+ * Scheduling a key again replaces its previous deadline. Keys may be reported expired up
+ * to one tick later than their deadlines.
+ *
+ * This class is not thread safe.
+ */
+public class TimerWheel<T> {
+
+	private final long tickMillis;
+
+	private final List<List<Timer<T>>> buckets;
+
+	private final Map<T, Timer<T>> timers = new HashMap<>();
+
+	private long currentTick;
+
+	public TimerWheel(long tickMillis, int wheelSize, long now) {
+		this.tickMillis = tickMillis;
+		buckets = new ArrayList<>(wheelSize);
+		for (int i=0; i<wheelSize; i++)
+			buckets.add(new ArrayList<>());
+		currentTick = now / tickMillis;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	public void schedule(T key, long deadline) {
+		Timer<T> timer = new Timer<>(key, deadline);
+		timers.put(key, timer);
+		/*
+		 * Round up so that the timer is always expired when its bucket is visited. Overdue
+		 * timers go to bucket of current tick, which is visited again on next advance
+		 */
+		long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick);
+		buckets.get((int) (tick % buckets.size())).add(timer);
+	}
+
+	public void cancel(T key) {
+		// Timer will be removed from its bucket lazily when the bucket is visited
+		timers.remove(key);
+	}
+
+	public boolean isScheduled(T key) {
+		return timers.containsKey(key);
+	}
+
+	public boolean isEmpty() {
+		return timers.isEmpty();
+	}
+
+	/**
+	 * Advance the wheel to specified time
+	 *
+	 * @return
+	 * 			keys with deadline reached. These keys are no longer scheduled
+	 */
+	public List<T> advance(long now) {
+		List<T> expired = new ArrayList<>();
+		long nowTick = now / tickMillis;
+
+		// Visiting buckets of the most recent round is enough if the wheel lags behind much
+		long fromTick = Math.max(currentTick, nowTick - buckets.size() + 1);
+		for (long tick = fromTick; tick <= nowTick; tick++) {
+			for (Iterator<Timer<T>> it = buckets.get((int) (tick % buckets.size())).iterator(); it.hasNext();) {
+				Timer<T> timer = it.next();
+				if (timers.get(timer.key) != timer) {
+					it.remove();
+				} else if (timer.deadline <= now) {
+					it.remove();
+					timers.remove(timer.key);
+					expired.add(timer.key);
+				}
+			}
+		}
+		currentTick = Math.max(currentTick, nowTick);
+		return expired;
+	}
+
+	private static class Timer<T> {
+
+		final T key;
+
+		final long deadline;
+
+		Timer(T key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+
+	}
+
+}
@@ -6,15 +6,38 @@ import java.util.concurrent.Future;
  * Work executor executes submitted works with concurrency limit. Only concurrent number of 
  * different groups is limited, works within same group are not subject to concurrency check. 
  * This is so as some work (git lfs push over ssh for instance) may need to wait for 
- * completion of other works. Putting them in same group can prevent deadlocks
+ * completion of other works. Putting them in same group can prevent deadlocks.
+ * 
+ * Works are queued and limited per {@link WorkloadClass}. If not specified, workload class 
+ * is determined by priority of the work via {@link WorkloadClass#of(int)}
  */
 public interface WorkExecutor {
 
+	<T> Future<T> submit(WorkloadClass workloadClass, String groupId, PrioritizedCallable<T> callable); 
+	
 	<T> Future<T> submit(String groupId, PrioritizedCallable<T> callable); 
 	
 	<T> Future<T> submit(PrioritizedCallable<T> callable); 
 	
+	Future<?> submit(WorkloadClass workloadClass, String groupId, PrioritizedRunnable runnable); 
+	
+	Future<?> submit(WorkloadClass workloadClass, PrioritizedRunnable runnable); 
+	
 	Future<?> submit(String groupId, PrioritizedRunnable runnable); 
 	
 	Future<?> submit(PrioritizedRunnable runnable); 
+	
+	/**
+	 * @return
+	 * 			number of works of specified class waiting in queue
+	 */
+	int getQueueDepth(WorkloadClass workloadClass);
+	
+	/**
+	 * @return
+	 * 			moving average of queue wait time in milliseconds of recently started works 
+	 * 			of specified class
+	 */
+	long getAverageWaitTime(WorkloadClass workloadClass);
+	
 }
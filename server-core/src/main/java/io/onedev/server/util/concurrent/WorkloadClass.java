@@ -0,0 +1,57 @@
+package io.onedev.server.util.concurrent;
+
+/**
+ * Class of works submitted to {@link WorkExecutor}. Each class has its own queue and 
+ * concurrency limit, and classes share the overall concurrency by weight, so that for 
+ * instance a reindex after upgrade does not starve git clone/push
+ */
+public enum WorkloadClass {
+
+	// Git pull/push over http or ssh
+	INTERACTIVE_GIT(4, 100),
+	
+	// Works users are waiting for in web UI
+	UI_BLOCKING(2, 100),
+	
+	// Indexing and other works not awaited by users 
+	BACKGROUND(1, 50);
+	
+	/**
+	 * Works with priority value not larger than this are considered as UI blocking if 
+	 * workload class is not specified explicitly
+	 */
+	public static final int MAX_UI_BLOCKING_PRIORITY = 10;
+	
+	private final int weight;
+	
+	private final int concurrencyPercentage;
+	
+	WorkloadClass(int weight, int concurrencyPercentage) {
+		this.weight = weight;
+		this.concurrencyPercentage = concurrencyPercentage;
+	}
+	
+	/**
+	 * @return
+	 * 			weight of this class when sharing overall concurrency with other classes
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return
+	 * 			max concurrency of this class, in percentage of overall concurrency 
+	 */
+	public int getConcurrency(int overallConcurrency) {
+		return Math.max(1, overallConcurrency * concurrencyPercentage / 100);
+	}
+	
+	public static WorkloadClass of(int priority) {
+		if (priority <= MAX_UI_BLOCKING_PRIORITY)
+			return UI_BLOCKING;
+		else
+			return BACKGROUND;
+	}
+	
+}
@@ -412,7 +412,7 @@ public abstract class AdvancedSearchPanel extends Panel {
 							try {
 								if (regex)
 									Pattern.compile(validatable.getValue());
-								query.asLuceneQuery();
+								query.asContentQuery();
 							} catch (PatternSyntaxException e) {
 								validatable.error(new IValidationError() {
 									
@@ -62,9 +62,11 @@ import io.onedev.server.OneDev;
 import io.onedev.server.entitymanager.BuildManager;
 import io.onedev.server.entitymanager.ProjectManager;
 import io.onedev.server.entitymanager.PullRequestManager;
+import io.onedev.server.git.AheadBehind;
 import io.onedev.server.git.BlobIdent;
 import io.onedev.server.git.GitUtils;
 import io.onedev.server.git.RefInfo;
+import io.onedev.server.infomanager.CommitInfoManager;
 import io.onedev.server.model.Project;
 import io.onedev.server.model.PullRequest;
 import io.onedev.server.model.User;
@@ -112,15 +114,25 @@ public class ProjectBranchesPage extends ProjectPage {
 	
 	private String baseBranch;
 	
+	private IModel<Integer> branchCountModel = new LoadableDetachableModel<Integer>() {
+
+		@Override
+		protected Integer load() {
+			return getProject().countRefInfos(Constants.R_HEADS, query);
+		}
+		
+	};
+	
+	// Only branches of current page are loaded from ref index 
 	private IModel<Map<String, RefInfo>> branchesModel = new LoadableDetachableModel<Map<String, RefInfo>>() {
 
 		@Override
 		protected Map<String, RefInfo> load() {
 			Map<String, RefInfo> refInfos = new LinkedHashMap<>();
-			for (RefInfo refInfo: getProject().getBranchRefInfos()) {
-				String branch = GitUtils.ref2branch(refInfo.getRef().getName());
-				if (query == null || branch.toLowerCase().contains(query.trim().toLowerCase()))
-					refInfos.put(branch, refInfo);
+			int firstItemOffset = (int) (branchesTable.getCurrentPage() * branchesTable.getItemsPerPage());
+			for (RefInfo refInfo: getProject().getRefInfos(Constants.R_HEADS, query, 
+					firstItemOffset, (int) branchesTable.getItemsPerPage())) {
+				refInfos.put(GitUtils.ref2branch(refInfo.getRef().getName()), refInfo);
 			}
 			return refInfos;
 		}
@@ -136,15 +148,8 @@ public class ProjectBranchesPage extends ProjectPage {
 			
 			Collection<ProjectAndBranch> sources = new ArrayList<>();
 			
-			List<RefInfo> branches = new ArrayList<>(branchesModel.getObject().values());
-			long firstItemOffset = branchesTable.getCurrentPage() * branchesTable.getItemsPerPage();
-			for (long i=firstItemOffset; i<branches.size(); i++) {
-				if (i-firstItemOffset >= branchesTable.getItemsPerPage())
-					break;
-				RefInfo refInfo = branches.get((int)i);
-				String branchName = GitUtils.ref2branch(refInfo.getRef().getName());
+			for (String branchName: branchesModel.getObject().keySet()) 
 				sources.add(new ProjectAndBranch(getProject(), branchName)); 
-			}
 			
 			return OneDev.getInstance(PullRequestManager.class).findEffectives(target, sources);
 		}
@@ -172,6 +177,23 @@ public class ProjectBranchesPage extends ProjectPage {
 			Ref baseRef = Preconditions.checkNotNull(getProject().getBranchRef(baseBranch));
 			Map<ObjectId, AheadBehind> aheadBehinds = new HashMap<>();
 			
+			// Use collected commit graph if possible, and fall back to walk the repository otherwise 
+			CommitInfoManager commitInfoManager = OneDev.getInstance(CommitInfoManager.class);
+			boolean resolved = true;
+			for (ObjectId compareId: compareIds) {
+				AheadBehind aheadBehind = commitInfoManager.getAheadBehind(getProject(), 
+						baseRef.getObjectId(), compareId);
+				if (aheadBehind != null) {
+					aheadBehinds.put(compareId, aheadBehind);
+				} else {
+					resolved = false;
+					break;
+				}
+			}
+			if (resolved)
+				return aheadBehinds;
+			aheadBehinds.clear();
+			
 			try (RevWalk revWalk = new RevWalk(getProject().getRepository())) {
 				RevCommit baseCommit = revWalk.lookupCommit(baseRef.getObjectId());
 				revWalk.markStart(baseCommit);
@@ -320,6 +342,7 @@ public class ProjectBranchesPage extends ProjectPage {
 		query = (String) data;
 		getPageParameters().set(PARAM_QUERY, query);
 		target.add(searchField);
+		detachBranches();
 		target.add(branchesTable);
 	}
 	
@@ -407,6 +430,7 @@ public class ProjectBranchesPage extends ProjectPage {
 					pushState(target, url, query);
 				
 				branchesTable.setCurrentPage(0);
+				detachBranches();
 				target.add(branchesTable);
 				
 				typing = true;
@@ -463,6 +487,7 @@ public class ProjectBranchesPage extends ProjectPage {
 							} else {
 								getProject().createBranch(branchName, helperBean.getRevision());
 								modal.close();
+								detachBranches();
 								target.add(branchesTable);
 								
 								getSession().success("Branch '" + branchName + "' created");
@@ -634,6 +659,7 @@ public class ProjectBranchesPage extends ProjectPage {
 									baseBranch = getProject().getDefaultBranch();
 									target.add(baseChoice);
 								}
+								detachBranches();
 								target.add(branchesTable);
 								modal.close();
 							}
@@ -682,6 +708,7 @@ public class ProjectBranchesPage extends ProjectPage {
 					@Override
 					public void onClick(AjaxRequestTarget target) {
 						getProject().setDefaultBranch(branch);
+						detachBranches();
 						target.add(branchesTable);
 					}
 
@@ -742,16 +769,18 @@ public class ProjectBranchesPage extends ProjectPage {
 
 			@Override
 			public Iterator<? extends RefInfo> iterator(long first, long count) {
-				List<RefInfo> branches = new ArrayList<>(branchesModel.getObject().values());
-				if (first + count > branches.size())
-					return branches.subList((int)first, branches.size()).iterator();
+				// Reuse refs of current page already loaded for other models if possible
+				List<RefInfo> refInfos = new ArrayList<>(branchesModel.getObject().values());
+				long firstItemOffset = branchesTable.getCurrentPage() * branchesTable.getItemsPerPage();
+				if (first == firstItemOffset && count <= refInfos.size())
+					return refInfos.subList(0, (int) count).iterator();
 				else
-					return branches.subList((int)first, (int)(first+count)).iterator();
+					return getProject().getRefInfos(Constants.R_HEADS, query, (int) first, (int) count).iterator();
 			}
 
 			@Override
 			public long calcSize() {
-				return branchesModel.getObject().size();
+				return branchCountModel.getObject();
 			}
 
 			@Override
@@ -841,16 +870,15 @@ public class ProjectBranchesPage extends ProjectPage {
 		return fragment;
 	}
 	
+	private void detachBranches() {
+		branchCountModel.detach();
+		branchesModel.detach();
+	}
+	
 	private List<ObjectId> getCommitIdsToDisplay() {
-		List<RefInfo> branches = new ArrayList<>(branchesModel.getObject().values());
-		long firstItemOffset = branchesTable.getCurrentPage() * branchesTable.getItemsPerPage();
 		List<ObjectId> commitIdsToDisplay = new ArrayList<>();
-		for (long i=firstItemOffset; i<branches.size(); i++) {
-			if (i-firstItemOffset >= branchesTable.getItemsPerPage())
-				break;
-			RefInfo ref = branches.get((int)i); 
+		for (RefInfo ref: branchesModel.getObject().values()) 
 			commitIdsToDisplay.add(ref.getRef().getObjectId());
-		}
 		return commitIdsToDisplay;
 	}
 	
@@ -862,7 +890,7 @@ public class ProjectBranchesPage extends ProjectPage {
 
 	@Override
 	public void onDetach() {
-		branchesModel.detach();
+		detachBranches();
 		aheadBehindsModel.detach();
 		aheadBehindWidthModel.detach();
 		effectiveRequestsModel.detach();
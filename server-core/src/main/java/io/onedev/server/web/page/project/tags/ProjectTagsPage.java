@@ -101,15 +101,25 @@ public class ProjectTagsPage extends ProjectPage {
 	
 	private boolean typing;
 	
+	private IModel<Integer> tagCountModel = new LoadableDetachableModel<Integer>() {
+
+		@Override
+		protected Integer load() {
+			return getProject().countRefInfos(Constants.R_TAGS, query);
+		}
+		
+	};
+	
+	// Only tags of current page are loaded from ref index 
 	private IModel<Map<String, RefInfo>> tagsModel = new LoadableDetachableModel<Map<String, RefInfo>>() {
 
 		@Override
 		protected Map<String, RefInfo> load() {
 			Map<String, RefInfo> refInfos = new LinkedHashMap<>();
-			for (RefInfo refInfo: getProject().getTagRefInfos()) {
-				String tag = GitUtils.ref2tag(refInfo.getRef().getName());
-				if (query == null || tag.toLowerCase().contains(query.trim().toLowerCase()))
-					refInfos.put(tag, refInfo);
+			int firstItemOffset = (int) (tagsTable.getCurrentPage() * tagsTable.getItemsPerPage());
+			for (RefInfo refInfo: getProject().getRefInfos(Constants.R_TAGS, query, 
+					firstItemOffset, (int) tagsTable.getItemsPerPage())) {
+				refInfos.put(GitUtils.ref2tag(refInfo.getRef().getName()), refInfo);
 			}
 			return refInfos;
 		}
@@ -147,6 +157,7 @@ public class ProjectTagsPage extends ProjectPage {
 		query = (String) data;
 		getPageParameters().set(PARAM_QUERY, query);
 		target.add(searchField);
+		detachTags();
 		target.add(tagsTable);
 	}
 	
@@ -187,6 +198,7 @@ public class ProjectTagsPage extends ProjectPage {
 					pushState(target, url, query);
 				
 				tagsTable.setCurrentPage(0);
+				detachTags();
 				target.add(tagsTable);
 				
 				typing = true;
@@ -253,6 +265,7 @@ public class ProjectTagsPage extends ProjectPage {
 								getProject().createTag(tagName, helperBean.getRevision(), user.asPerson(), 
 										helperBean.getMessage(), signingKey);
 								modal.close();
+								detachTags();
 								target.add(tagsTable);
 								
 								getSession().success("Tag '" + tagName + "' created");
@@ -404,6 +417,7 @@ public class ProjectTagsPage extends ProjectPage {
 					public void onClick(AjaxRequestTarget target) {
 						OneDev.getInstance(ProjectManager.class).deleteTag(getProject(), tagName);
 						WebSession.get().success("Tag '" + tagName + "' deleted");
+						detachTags();
 						target.add(tagsTable);
 					}
 
@@ -429,16 +443,18 @@ public class ProjectTagsPage extends ProjectPage {
 
 			@Override
 			public Iterator<? extends RefInfo> iterator(long first, long count) {
-				List<RefInfo> tags = new ArrayList<>(tagsModel.getObject().values());
-				if (first + count > tags.size())
-					return tags.subList((int)first, tags.size()).iterator();
+				// Reuse refs of current page already loaded for other models if possible
+				List<RefInfo> refInfos = new ArrayList<>(tagsModel.getObject().values());
+				long firstItemOffset = tagsTable.getCurrentPage() * tagsTable.getItemsPerPage();
+				if (first == firstItemOffset && count <= refInfos.size())
+					return refInfos.subList(0, (int) count).iterator();
 				else
-					return tags.subList((int)first, (int)(first+count)).iterator();
+					return getProject().getRefInfos(Constants.R_TAGS, query, (int) first, (int) count).iterator();
 			}
 
 			@Override
 			public long calcSize() {
-				return tagsModel.getObject().size();
+				return tagCountModel.getObject();
 			}
 
 			@Override
@@ -460,15 +476,9 @@ public class ProjectTagsPage extends ProjectPage {
 			
 			@Override
 			protected void onBeforeRender() {
-				List<RefInfo> tags = new ArrayList<>(tagsModel.getObject().values());
-				long firstItemOffset = tagsTable.getCurrentPage() * tagsTable.getItemsPerPage();
 				List<ObjectId> commitIdsToDisplay = new ArrayList<>();
-				for (long i=firstItemOffset; i<tags.size(); i++) {
-					if (i-firstItemOffset >= tagsTable.getItemsPerPage())
-						break;
-					RefInfo ref = tags.get((int)i); 
+				for (RefInfo ref: tagsModel.getObject().values()) 
 					commitIdsToDisplay.add(ref.getRef().getObjectId());
-				}
 				
 				BuildManager buildManager = OneDev.getInstance(BuildManager.class);
 				getProject().cacheCommitStatus(buildManager.queryStatus(getProject(), commitIdsToDisplay));
@@ -478,9 +488,14 @@ public class ProjectTagsPage extends ProjectPage {
 		});		
 	}
 	
+	private void detachTags() {
+		tagCountModel.detach();
+		tagsModel.detach();
+	}
+	
 	@Override
 	public void onDetach() {
-		tagsModel.detach();
+		detachTags();
 		super.onDetach();
 	}
 	
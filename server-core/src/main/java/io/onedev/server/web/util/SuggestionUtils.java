@@ -14,6 +14,7 @@ import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.lib.Constants;
 
 import com.google.common.base.Preconditions;
 
@@ -37,6 +38,7 @@ import io.onedev.server.entitymanager.SettingManager;
 import io.onedev.server.entitymanager.UserManager;
 import io.onedev.server.git.GitUtils;
 import io.onedev.server.infomanager.CommitInfoManager;
+import io.onedev.server.infomanager.RefInfoManager;
 import io.onedev.server.model.AbstractEntity;
 import io.onedev.server.model.Build;
 import io.onedev.server.model.Issue;
@@ -106,9 +108,10 @@ public class SuggestionUtils {
 			@Override
 			public List<InputSuggestion> suggest(Project project, String matchWith) {
 				if (SecurityUtils.canReadCode(project)) {
-					List<String> branchNames = project.getBranchRefInfos()
+					List<String> branchNames = OneDev.getInstance(RefInfoManager.class)
+							.queryRefs(project, Constants.R_HEADS, null, 0, Integer.MAX_VALUE)
 							.stream()
-							.map(it->GitUtils.ref2branch(it.getRef().getName()))
+							.map(it->GitUtils.ref2branch(it.getName()))
 							.sorted()
 							.collect(Collectors.toList());
 					return SuggestionUtils.suggest(branchNames, matchWith);
@@ -126,9 +129,10 @@ public class SuggestionUtils {
 			@Override
 			public List<InputSuggestion> suggest(Project project, String matchWith) {
 				if (SecurityUtils.canReadCode(project)) {
-					List<String> tagNames = project.getTagRefInfos()
+					List<String> tagNames = OneDev.getInstance(RefInfoManager.class)
+							.queryRefs(project, Constants.R_TAGS, null, 0, Integer.MAX_VALUE)
 							.stream()
-							.map(it->GitUtils.ref2tag(it.getRef().getName()))
+							.map(it->GitUtils.ref2tag(it.getName()))
 							.sorted()
 							.collect(Collectors.toList());
 					return SuggestionUtils.suggest(tagNames, matchWith);
@@ -33,6 +33,8 @@ import io.onedev.server.event.system.SystemStarted;
 import io.onedev.server.event.system.SystemStopping;
 import io.onedev.server.persistence.TransactionManager;
 import io.onedev.server.persistence.annotation.Sessional;
+import io.onedev.server.util.concurrent.CategorizedRunnable;
+import io.onedev.server.util.concurrent.TaskCategory;
 import io.onedev.server.util.schedule.SchedulableTask;
 import io.onedev.server.util.schedule.TaskScheduler;
 import io.onedev.server.web.page.base.BasePage;
@@ -126,7 +128,7 @@ public class DefaultWebSocketManager implements WebSocketManager {
 
 			@Override
 			public void run() {
-				executorService.execute(new Runnable() {
+				executorService.execute(new CategorizedRunnable(TaskCategory.WEBSOCKET) {
 
 					@Override
 					public void run() {
@@ -43,6 +43,13 @@ public final class LastCommitsOfChildren extends HashMap<String, Value> {
 
 	private static final int PARSED = RevWalk.PARSED;
 	
+	/**
+	 * Constructs from previously calculated last commits of children
+	 */
+	public LastCommitsOfChildren(Map<String, Value> lastCommits) {
+		super(lastCommits);
+	}
+	
 	public LastCommitsOfChildren(Repository repo, AnyObjectId until) {
 		this(repo, until, null, null);
 	}
@@ -365,6 +372,13 @@ public final class LastCommitsOfChildren extends HashMap<String, Value> {
 			this.commitDate = commit.getCommitterIdent().getWhen();
 			this.summary = StringUtils.substringBefore(commit.getFullMessage(), "\n").trim();
 		}
+		
+		public Value(ObjectId id, PersonIdent author, Date commitDate, String summary) {
+			this.id = id;
+			this.author = author;
+			this.commitDate = commitDate;
+			this.summary = summary;
+		}
 
 		public ObjectId getId() {
 			return id;
@@ -0,0 +1,122 @@
+package io.onedev.server.infomanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class CommitGraphTest {
+
+	private ObjectId commit(int index) {
+		byte[] bytes = new byte[20];
+		bytes[0] = (byte) (index*37);
+		bytes[19] = (byte) index;
+		return ObjectId.fromRaw(bytes);
+	}
+	
+	private BitSet indexes(CommitGraph graph, int...commits) {
+		BitSet indexes = new BitSet();
+		for (int commit: commits)
+			indexes.set(graph.indexOf(commit(commit)));
+		return indexes;
+	}
+	
+	@Test
+	public void test() {
+		CommitGraph graph = new CommitGraph.Builder()
+				.addCommit(commit(1)).addEdge(commit(0), commit(1))
+				.addCommit(commit(2)).addEdge(commit(1), commit(2))
+				.addCommit(commit(3)).addEdge(commit(2), commit(3))
+				.build();
+		assertFalse(graph.isComplete(graph.indexOf(commit(3))));
+		
+		graph = graph.extend(new CommitGraph.Builder()
+				.addCommit(commit(0))
+				.addCommit(commit(4)).addEdge(commit(1), commit(4))
+				.addCommit(commit(5)).addEdge(commit(3), commit(5)).addEdge(commit(4), commit(5))
+				.addEdge(commit(2), commit(3))
+				.addCommit(commit(6)));
+		assertTrue(graph.isComplete(graph.indexOf(commit(3))));
+		
+		assertEquals(7, graph.size());
+		assertEquals(-1, graph.indexOf(commit(7)));
+		assertEquals(commit(3), graph.getCommitId(graph.indexOf(commit(3))));
+		assertEquals(5, graph.getGeneration(graph.indexOf(commit(5))));
+		assertEquals(1, graph.getGeneration(graph.indexOf(commit(6))));
+		
+		assertEquals(indexes(graph, 4, 5), graph.getDescendants(indexes(graph, 4)));
+		assertEquals(indexes(graph, 0, 1, 2, 3, 4, 5), graph.getAncestors(indexes(graph, 5)));
+		
+		assertTrue(graph.isAncestor(graph.indexOf(commit(0)), graph.indexOf(commit(5))));
+		assertFalse(graph.isAncestor(graph.indexOf(commit(4)), graph.indexOf(commit(3))));
+		assertFalse(graph.isAncestor(graph.indexOf(commit(6)), graph.indexOf(commit(5))));
+		
+		assertEquals(graph.indexOf(commit(1)), graph.getMergeBase(graph.indexOf(commit(3)), graph.indexOf(commit(4))));
+		assertEquals(graph.indexOf(commit(4)), graph.getMergeBase(graph.indexOf(commit(5)), graph.indexOf(commit(4))));
+		assertEquals(-1, graph.getMergeBase(graph.indexOf(commit(6)), graph.indexOf(commit(4))));
+		
+		int[] counts = graph.countExclusiveAncestors(graph.indexOf(commit(3)), graph.indexOf(commit(4)));
+		assertEquals(2, counts[0]);
+		assertEquals(1, counts[1]);
+	}
+	
+	@Test
+	public void testAppend() {
+		CommitGraph graph = new CommitGraph.Builder()
+				.addCommit(commit(0))
+				.addCommit(commit(1)).addEdge(commit(0), commit(1))
+				.addCommit(commit(2)).addEdge(commit(0), commit(2))
+				.build();
+		
+		// New commits only have known commits or other new commits as parents, and are appended
+		CommitGraph appended = graph.extend(new CommitGraph.Builder()
+				.addCommit(commit(4)).addEdge(commit(3), commit(4)).addEdge(commit(2), commit(4))
+				.addCommit(commit(3)).addEdge(commit(1), commit(3))
+				.addEdge(commit(0), commit(1)));
+		assertEquals(5, appended.size());
+		assertEquals(3, appended.indexOf(commit(3)));
+		assertEquals(4, appended.indexOf(commit(4)));
+		assertEquals(commit(4), appended.getCommitId(appended.indexOf(commit(4))));
+		assertEquals(4, appended.getGeneration(appended.indexOf(commit(4))));
+		assertTrue(appended.isComplete(appended.indexOf(commit(4))));
+		
+		assertEquals(indexes(appended, 1, 3, 4), appended.getDescendants(indexes(appended, 1)));
+		assertEquals(indexes(appended, 0, 1, 2, 3, 4), appended.getAncestors(indexes(appended, 4)));
+		assertTrue(appended.isAncestor(appended.indexOf(commit(2)), appended.indexOf(commit(4))));
+		assertFalse(appended.isAncestor(appended.indexOf(commit(3)), appended.indexOf(commit(2))));
+		assertEquals(appended.indexOf(commit(0)),
+				appended.getMergeBase(appended.indexOf(commit(3)), appended.indexOf(commit(2))));
+		int[] counts = appended.countExclusiveAncestors(appended.indexOf(commit(4)), appended.indexOf(commit(2)));
+		assertEquals(3, counts[0]);
+		assertEquals(0, counts[1]);
+		
+		// Original graph is not affected
+		assertEquals(3, graph.size());
+		assertEquals(-1, graph.indexOf(commit(3)));
+		assertEquals(indexes(graph, 1), graph.getDescendants(indexes(graph, 1)));
+		
+		// Extending original graph again rebuilds it instead of appending to shared arrays
+		CommitGraph rebuilt = graph.extend(new CommitGraph.Builder()
+				.addCommit(commit(5)).addEdge(commit(1), commit(5)));
+		assertEquals(4, rebuilt.size());
+		assertEquals(-1, rebuilt.indexOf(commit(3)));
+		assertEquals(indexes(rebuilt, 1, 5), rebuilt.getDescendants(indexes(rebuilt, 1)));
+		assertEquals(indexes(appended, 1, 3, 4), appended.getDescendants(indexes(appended, 1)));
+		
+		// Collecting a known commit changes its parents, and rebuilds the graph
+		appended = appended.extend(new CommitGraph.Builder()
+				.addCommit(commit(6)).addEdge(commit(4), commit(6)).addEdge(commit(7), commit(6)));
+		assertFalse(appended.isComplete(appended.indexOf(commit(6))));
+		CommitGraph graphWithCollected = appended.extend(new CommitGraph.Builder()
+				.addCommit(commit(7)).addEdge(commit(2), commit(7)));
+		assertTrue(graphWithCollected.isComplete(graphWithCollected.indexOf(commit(6))));
+		assertEquals(indexes(graphWithCollected, 2, 4, 6, 7),
+				graphWithCollected.getDescendants(indexes(graphWithCollected, 2)));
+		assertEquals(5, graphWithCollected.getGeneration(graphWithCollected.indexOf(commit(6))));
+	}
+	
+}
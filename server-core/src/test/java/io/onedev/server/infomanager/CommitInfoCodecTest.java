@@ -0,0 +1,75 @@
+package io.onedev.server.infomanager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.LastCommitsOfChildren.Value;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+import io.onedev.server.util.NameAndEmail;
+
+public class CommitInfoCodecTest {
+
+	@Test
+	public void testUsers() {
+		NameAndEmail user = new NameAndEmail("robin", "robin@example.com");
+		assertEquals(user, CommitInfoCodec.decodeUser(CommitInfoCodec.encodeUser(user)));
+		
+		Set<NameAndEmail> users = Sets.newHashSet(user, new NameAndEmail("steve", ""));
+		assertEquals(users, CommitInfoCodec.decodeUsers(CommitInfoCodec.encodeUsers(users)));
+	}
+	
+	@Test
+	public void testPaths() {
+		Set<String> paths = Sets.newHashSet("src/main/java/A.java", "src/main/java/B.java", 
+				"src/test", "README.md", "中文/文件");
+		assertEquals(paths, CommitInfoCodec.decodePaths(CommitInfoCodec.encodePaths(paths)));
+	}
+	
+	@Test
+	public void testLineStats() {
+		List<String> languages = new ArrayList<>();
+		Map<String, Integer> lineStats = new HashMap<>();
+		lineStats.put("Java", 120000);
+		lineStats.put("JavaScript", -35);
+		byte[] bytes = CommitInfoCodec.encodeLineStats(lineStats, languages);
+		assertEquals(2, languages.size());
+		
+		languages = CommitInfoCodec.decodeStrings(CommitInfoCodec.encodeStrings(languages));
+		assertEquals(lineStats, CommitInfoCodec.decodeLineStats(bytes, languages));
+	}
+	
+	@Test
+	public void testLastCommits() {
+		PersonIdent author = new PersonIdent("robin", "robin@example.com", 1600000000000L, 480);
+		Value value1 = new Value(ObjectId.fromString("0123456789012345678901234567890123456789"), 
+				author, new Date(1600000001000L), "Initial commit");
+		Value value2 = new Value(ObjectId.fromString("9876543210987654321098765432109876543210"), 
+				new PersonIdent("steve", "", 1500000000000L, -300), new Date(1500000000000L), "中文");
+		Map<String, Value> lastCommits = new HashMap<>();
+		lastCommits.put("src", value1);
+		lastCommits.put("README.md", value1);
+		lastCommits.put("pom.xml", value2);
+		
+		Map<String, Value> decoded = CommitInfoCodec.decodeLastCommits(CommitInfoCodec.encodeLastCommits(lastCommits));
+		assertEquals(lastCommits, decoded);
+		for (Map.Entry<String, Value> entry: lastCommits.entrySet()) {
+			Value decodedValue = decoded.get(entry.getKey());
+			assertEquals(entry.getValue().getAuthor(), decodedValue.getAuthor());
+			assertEquals(entry.getValue().getAuthor().getTimeZoneOffset(), decodedValue.getAuthor().getTimeZoneOffset());
+			assertEquals(entry.getValue().getCommitDate(), decodedValue.getCommitDate());
+			assertEquals(entry.getValue().getSummary(), decodedValue.getSummary());
+		}
+	}
+	
+}
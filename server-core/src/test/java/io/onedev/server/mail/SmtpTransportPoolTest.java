@@ -0,0 +1,175 @@
+package io.onedev.server.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SmtpTransportPoolTest {
+
+	private ServerSocket serverSocket;
+
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private final AtomicInteger messages = new AtomicInteger();
+
+	private SmtpTransportPool pool;
+
+	@Before
+	public void before() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						Socket socket = serverSocket.accept();
+						connections.incrementAndGet();
+						new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								serve(socket);
+							}
+
+						}).start();
+					} catch (IOException e) {
+					}
+				}
+			}
+
+		});
+		thread.setDaemon(true);
+		thread.start();
+		pool = new SmtpTransportPool(2, 60000, 0);
+	}
+
+	@After
+	public void after() throws IOException {
+		pool.close();
+		serverSocket.close();
+	}
+
+	/*
+	 * Minimal SMTP server accepting all messages except those sent to recipient
+	 * starting with "invalid" or "busy"
+	 */
+	private void serve(Socket socket) {
+		try (	Socket autoClose = socket;
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+				OutputStream os = socket.getOutputStream()) {
+			reply(os, "220 localhost ESMTP");
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String command = line.toUpperCase();
+				if (command.startsWith("RCPT TO:<INVALID")) {
+					reply(os, "550 No such user");
+				} else if (command.startsWith("RCPT TO:<BUSY")) {
+					reply(os, "452 Insufficient system storage");
+				} else if (command.equals("DATA")) {
+					reply(os, "354 End data with <CR><LF>.<CR><LF>");
+					while ((line = reader.readLine()) != null && !line.equals("."));
+					messages.incrementAndGet();
+					reply(os, "250 OK");
+				} else if (command.equals("QUIT")) {
+					reply(os, "221 Bye");
+					break;
+				} else {
+					reply(os, "250 OK");
+				}
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	private void reply(OutputStream os, String response) throws IOException {
+		os.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		os.flush();
+	}
+
+	private Session getSession() {
+		Properties properties = new Properties();
+		properties.setProperty("mail.smtp.host", "127.0.0.1");
+		properties.setProperty("mail.smtp.port", String.valueOf(serverSocket.getLocalPort()));
+		properties.setProperty("mail.transport.protocol", "smtp");
+		return pool.getSession(properties, null, null);
+	}
+
+	private Message newMessage(Session session, String to) throws MessagingException {
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress("onedev@localhost"));
+		message.setRecipients(Message.RecipientType.TO, new InternetAddress[] {new InternetAddress(to)});
+		message.setSubject("test");
+		message.setText("test");
+		return message;
+	}
+
+	@Test
+	public void shouldSendBatchOverPooledConnection() throws MessagingException {
+		Session session = getSession();
+		Message invalidMessage = newMessage(session, "invalid@localhost");
+		Map<Message, MessagingException> failures = pool.send(session, Lists.newArrayList(
+				newMessage(session, "user1@localhost"), invalidMessage, newMessage(session, "user2@localhost")));
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(invalidMessage) instanceof SendFailedException);
+		assertEquals(2, messages.get());
+		assertEquals(1, connections.get());
+		assertEquals(1, pool.getIdleCount());
+
+		assertTrue(getSession() == session);
+		failures = pool.send(session, Lists.newArrayList(newMessage(session, "user3@localhost")));
+		assertTrue(failures.isEmpty());
+		assertEquals(3, messages.get());
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void shouldReportFailuresIfServerIsNotAvailable() throws IOException, MessagingException {
+		Session session = getSession();
+		serverSocket.close();
+		Map<Message, MessagingException> failures = pool.send(session, Lists.newArrayList(
+				newMessage(session, "user1@localhost"), newMessage(session, "user2@localhost")));
+		assertEquals(2, failures.size());
+		assertEquals(0, pool.getIdleCount());
+		for (MessagingException failure: failures.values())
+			assertFalse(SmtpTransportPool.isPermanentFailure(failure));
+	}
+
+	@Test
+	public void shouldOnlyTreatPermanentReplyAsPermanentFailure() throws MessagingException {
+		Session session = getSession();
+		Message invalidMessage = newMessage(session, "invalid@localhost");
+		Message busyMessage = newMessage(session, "busy@localhost");
+		Map<Message, MessagingException> failures = pool.send(session, Lists.newArrayList(
+				invalidMessage, busyMessage));
+		assertEquals(2, failures.size());
+		assertTrue(SmtpTransportPool.isPermanentFailure(failures.get(invalidMessage)));
+		assertFalse(SmtpTransportPool.isPermanentFailure(failures.get(busyMessage)));
+	}
+
+}
@@ -0,0 +1,76 @@
+package io.onedev.server.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class MigrationHelperTest {
+
+	@Test
+	public void shouldComposeTransformsAcrossEmptyMigrations() {
+		TestMigrator migrator = new TestMigrator();
+		assertTrue(MigrationHelper.migrate("0", migrator, null));
+		
+		List<List<String>> expected = new ArrayList<>();
+		expected.add(Lists.newArrayList("migrate1", "migrate3"));
+		expected.add(Lists.newArrayList("migrate4"));
+		expected.add(Lists.newArrayList("migrate5"));
+		assertEquals(expected, migrator.passes);
+	}
+	
+	@Test
+	public void shouldMarkEmptyDataMigrationsStreamable() throws Exception {
+		for (int version: new int[] {84, 86, 91, 93, 98}) {
+			assertTrue(DataMigrator.class.getDeclaredMethod("migrate" + version, File.class, Stack.class)
+					.isAnnotationPresent(StreamableMigration.class));
+		}
+	}
+	
+	private static class TestMigrator implements StreamingMigrator {
+
+		private final List<String> pendingTransforms = new ArrayList<>();
+		
+		private final List<List<String>> passes = new ArrayList<>();
+		
+		@StreamableMigration
+		private void migrate1(Object data, Stack<Integer> versions) {
+			pendingTransforms.add("migrate1");
+		}
+		
+		@StreamableMigration
+		private void migrate2(Object data, Stack<Integer> versions) {
+		}
+		
+		@StreamableMigration
+		private void migrate3(Object data, Stack<Integer> versions) {
+			pendingTransforms.add("migrate3");
+		}
+		
+		private void migrate4(Object data, Stack<Integer> versions) {
+			passes.add(Lists.newArrayList("migrate4"));
+		}
+		
+		@StreamableMigration
+		private void migrate5(Object data, Stack<Integer> versions) {
+			pendingTransforms.add("migrate5");
+		}
+		
+		@Override
+		public void applyTransforms(Object customData) {
+			if (!pendingTransforms.isEmpty()) {
+				passes.add(new ArrayList<>(pendingTransforms));
+				pendingTransforms.clear();
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,130 @@
+package io.onedev.server.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
+import org.junit.Test;
+
+public class XmlElementReaderTest {
+
+	private Document createDocument() {
+		Document document = DocumentHelper.createDocument();
+		Element root = document.addElement("list");
+		for (int i=0; i<3; i++) {
+			Element user = root.addElement("io.onedev.server.model.User");
+			user.addAttribute("revision", "0.0");
+			user.addElement("id").setText(String.valueOf(i));
+			user.addElement("name").setText("user<" + i + "> & \"co\"");
+			Element emails = user.addElement("emails");
+			emails.addElement("string").setText("user" + i + "@example.com");
+			emails.addElement("string").setText("中文 " + i);
+			user.addElement("empty");
+		}
+		return document;
+	}
+
+	private List<Element> parse(File file) throws DocumentException {
+		return new SAXReader().read(file).getRootElement().elements();
+	}
+
+	@Test
+	public void shouldReadFilesWrittenAsDocument() throws IOException, DocumentException {
+		File file = File.createTempFile("list", ".xml");
+		try {
+			try (OutputStream os = new FileOutputStream(file)) {
+				OutputFormat format = new OutputFormat();
+				format.setIndent(true);
+				format.setNewlines(true);
+				format.setEncoding(StandardCharsets.UTF_8.name());
+				new XMLWriter(os, format).write(createDocument());
+			}
+
+			List<Element> expected = parse(file);
+			try (XmlElementReader reader = new XmlElementReader(file)) {
+				assertEquals("list", reader.getRootName());
+				for (Element element: expected)
+					assertEquals(element.asXML(), reader.readElement().asXML());
+				assertNull(reader.readElement());
+			}
+		} finally {
+			Files.delete(file.toPath());
+		}
+	}
+
+	@Test
+	public void shouldReadFilesWrittenByElement() throws IOException, DocumentException {
+		File file = File.createTempFile("list", ".xml");
+		try {
+			List<Element> elements = createDocument().getRootElement().elements();
+			try (XmlElementWriter writer = new XmlElementWriter(file, "list")) {
+				for (Element element: elements)
+					writer.writeElement(element);
+			}
+
+			List<Element> parsed = parse(file);
+			assertEquals(elements.size(), parsed.size());
+			try (XmlElementReader reader = new XmlElementReader(file)) {
+				for (int i=0; i<elements.size(); i++) {
+					assertEquals(elements.get(i).asXML(), parsed.get(i).asXML());
+					assertEquals(elements.get(i).asXML(), reader.readElement().asXML());
+				}
+				assertNull(reader.readElement());
+			}
+		} finally {
+			Files.delete(file.toPath());
+		}
+	}
+
+	@Test
+	public void shouldReadControlCharacters() throws IOException {
+		File file = File.createTempFile("list", ".xml");
+		try {
+			Element element = DocumentHelper.createElement("io.onedev.server.model.Issue");
+			element.addAttribute("title", "title\u0001\u001f");
+			element.addElement("description").setText("line1\u0001\nline2\u0008\u001b[0m");
+			try (XmlElementWriter writer = new XmlElementWriter(file, "list")) {
+				writer.writeElement(element);
+			}
+
+			try (XmlElementReader reader = new XmlElementReader(file)) {
+				Element read = reader.readElement();
+				assertEquals("title\u0001\u001f", read.attributeValue("title"));
+				assertEquals("line1\u0001\nline2\u0008\u001b[0m", read.elementText("description"));
+				assertNull(reader.readElement());
+			}
+			Element parsed = VersionedXmlDoc.fromFile(file).getRootElement().elements().get(0);
+			assertEquals("line1\u0001\nline2\u0008\u001b[0m", parsed.elementText("description"));
+		} finally {
+			Files.delete(file.toPath());
+		}
+	}
+
+	@Test
+	public void shouldReadEmptyList() throws IOException {
+		File file = File.createTempFile("list", ".xml");
+		try {
+			new XmlElementWriter(file, "list").close();
+			try (XmlElementReader reader = new XmlElementReader(file)) {
+				assertNull(reader.readElement());
+			}
+		} finally {
+			Files.delete(file.toPath());
+		}
+	}
+
+}
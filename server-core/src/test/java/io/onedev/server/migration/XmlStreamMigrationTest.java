@@ -0,0 +1,136 @@
+package io.onedev.server.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.onedev.commons.utils.FileUtils;
+
+public class XmlStreamMigrationTest {
+
+	private File dataDir;
+
+	@Before
+	public void before() throws IOException {
+		dataDir = File.createTempFile("data", "");
+		dataDir.delete();
+		dataDir.mkdir();
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteDir(dataDir);
+	}
+
+	private void writeFile(String fileName, int from, int to) {
+		try (XmlElementWriter writer = new XmlElementWriter(new File(dataDir, fileName), "list")) {
+			for (int i=from; i<to; i++) {
+				Element element = DocumentHelper.createElement("io.onedev.server.model.Issue");
+				element.addElement("id").setText(String.valueOf(i));
+				writer.writeElement(element);
+			}
+		}
+	}
+
+	private List<String> readFile(String fileName) throws DocumentException {
+		List<String> values = new ArrayList<>();
+		Element root = new SAXReader().read(new File(dataDir, fileName)).getRootElement();
+		for (Element element: root.elements()) {
+			StringBuilder value = new StringBuilder();
+			for (Element child: element.elements())
+				value.append(child.getName()).append("=").append(child.getTextTrim()).append(";");
+			values.add(value.toString());
+		}
+		return values;
+	}
+
+	@Test
+	public void shouldComposeTransformsInOrder() throws DocumentException {
+		writeFile("Issues.xml", 0, 2);
+		writeFile("Issues.xml.1", 2, 4);
+		writeFile("IssueChanges.xml", 0, 1);
+
+		XmlStreamMigration migration = new XmlStreamMigration(2);
+		migration.addTransform("Issues.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				if (element.elementTextTrim("id").equals("1"))
+					return null;
+				element.addElement("confidential").setText("false");
+				return element;
+			}
+
+		});
+		migration.addTransform("Issues.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				element.element("confidential").setName("secret");
+				return element;
+			}
+
+		});
+		migration.apply(dataDir);
+
+		List<String> expected = new ArrayList<>();
+		expected.add("id=0;secret=false;");
+		assertEquals(expected, readFile("Issues.xml"));
+		expected.clear();
+		expected.add("id=2;secret=false;");
+		expected.add("id=3;secret=false;");
+		assertEquals(expected, readFile("Issues.xml.1"));
+		expected.clear();
+		expected.add("id=0;");
+		assertEquals(expected, readFile("IssueChanges.xml"));
+		assertEquals(3, dataDir.listFiles().length);
+
+		// transforms should be cleared after applied
+		migration.apply(dataDir);
+		expected.clear();
+		expected.add("id=0;secret=false;");
+		assertEquals(expected, readFile("Issues.xml"));
+	}
+
+	@Test
+	public void shouldPreserveControlCharacters() {
+		try (XmlElementWriter writer = new XmlElementWriter(new File(dataDir, "Builds.xml"), "list")) {
+			Element element = DocumentHelper.createElement("io.onedev.server.model.Build");
+			element.addAttribute("revision", "0.0\u0002");
+			element.addElement("description").setText("\u001b[31merror\u001b[0m\u0001");
+			writer.writeElement(element);
+		}
+
+		XmlStreamMigration migration = new XmlStreamMigration();
+		migration.addTransform("Builds.xml", new XmlElementTransform() {
+
+			@Override
+			public Element transform(Element element) {
+				element.element("description").setName("summary");
+				return element;
+			}
+
+		});
+		migration.apply(dataDir);
+
+		try (XmlElementReader reader = new XmlElementReader(new File(dataDir, "Builds.xml"))) {
+			Element element = reader.readElement();
+			assertEquals("0.0\u0002", element.attributeValue("revision"));
+			assertEquals("\u001b[31merror\u001b[0m\u0001", element.elementText("summary"));
+			assertNull(reader.readElement());
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package io.onedev.server.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+
+public class WebHookClientTest {
+
+	private HttpServer server;
+
+	private WebHookClient client;
+
+	private final List<String> payloads = new ArrayList<>();
+
+	private final List<String> signatures = new ArrayList<>();
+
+	private final AtomicInteger statusCode = new AtomicInteger(200);
+
+	@Before
+	public void before() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/hook", exchange -> {
+			synchronized (payloads) {
+				payloads.add(new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+				signatures.add(exchange.getRequestHeaders().getFirst(WebHookClient.SIGNATURE_HEAD));
+			}
+			byte[] response = "ok".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(statusCode.get(), response.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(response);
+			}
+		});
+		server.start();
+		client = new WebHookClient(10, 2, 5000);
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+		server.stop(0);
+	}
+
+	private String getPostUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/hook";
+	}
+
+	@Test
+	public void shouldPostPayloadOverPooledConnections() throws IOException {
+		for (int i=0; i<5; i++)
+			client.post(getPostUrl(), "secret", "{\"index\":" + i + "}");
+		assertEquals(5, payloads.size());
+		assertEquals("{\"index\":3}", payloads.get(3));
+		assertEquals("secret", signatures.get(0));
+	}
+
+	@Test
+	public void shouldDistinguishRetryableErrors() throws IOException {
+		statusCode.set(503);
+		try {
+			client.post(getPostUrl(), "secret", "{}");
+			fail();
+		} catch (WebHookClient.RejectedException e) {
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("503"));
+		}
+
+		statusCode.set(404);
+		try {
+			client.post(getPostUrl(), "secret", "{}");
+			fail();
+		} catch (WebHookClient.RejectedException e) {
+			assertTrue(e.getMessage().contains("404"));
+		}
+	}
+
+	@Test
+	public void shouldFailIfEndpointIsNotAvailable() throws IOException {
+		String postUrl = getPostUrl();
+		server.stop(0);
+		try {
+			client.post(postUrl, "secret", "{}");
+			fail();
+		} catch (WebHookClient.RejectedException e) {
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+}
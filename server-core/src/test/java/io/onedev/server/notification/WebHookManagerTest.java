@@ -0,0 +1,148 @@
+package io.onedev.server.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.onedev.commons.utils.FileUtils;
+import io.onedev.server.event.RefUpdated;
+import io.onedev.server.event.system.SystemStarted;
+import io.onedev.server.event.system.SystemStopping;
+import io.onedev.server.model.Project;
+import io.onedev.server.model.support.WebHook;
+import io.onedev.server.storage.StorageManager;
+import io.onedev.server.util.schedule.TaskScheduler;
+
+public class WebHookManagerTest {
+
+	private File infoDir;
+	
+	private ObjectMapper mapper;
+	
+	private ExecutorService executor;
+	
+	private StorageManager storageManager;
+	
+	private TaskScheduler taskScheduler;
+	
+	private WebHookClient client;
+	
+	private WebHookManager manager;
+	
+	private RefUpdated event;
+	
+	@Before
+	public void before() throws Exception {
+		infoDir = FileUtils.createTempDir();
+		
+		storageManager = mock(StorageManager.class);
+		when(storageManager.getInfoDir()).thenReturn(infoDir);
+		taskScheduler = mock(TaskScheduler.class);
+		
+		// Run deliveries in calling thread to check result right after an event is fired 
+		executor = MoreExecutors.newDirectExecutorService();
+		
+		WebHook webHook = new WebHook();
+		webHook.setPostUrl("http://localhost/hook");
+		webHook.setEventTypes(Lists.newArrayList(WebHook.EventType.CODE_PUSH));
+		Project project = new Project();
+		project.setWebHooks(Lists.newArrayList(webHook));
+		
+		event = mock(RefUpdated.class);
+		when(event.getProject()).thenReturn(project);
+		mapper = mock(ObjectMapper.class);
+		when(mapper.writeValueAsString(event)).thenReturn("{}");
+		
+		manager = start();
+	}
+	
+	private WebHookManager start() {
+		client = mock(WebHookClient.class);
+		WebHookManager manager = new WebHookManager(mapper, executor, storageManager, taskScheduler, client);
+		manager.on(new SystemStarted());
+		return manager;
+	}
+	
+	@After
+	public void after() {
+		manager.on(new SystemStopping());
+		FileUtils.deleteDir(infoDir);
+	}
+	
+	@Test
+	public void shouldRemoveDeliveredEvents() throws Exception {
+		manager.on(event);
+		manager.on(event);
+		
+		verify(client, times(2)).post(anyString(), anyString(), anyString());
+		assertEquals(2, manager.getDeliveredCount());
+		assertEquals(0, manager.getPendingCount());
+	}
+	
+	@Test
+	public void shouldRetryOnIOError() throws Exception {
+		doThrow(new IOException("connection refused")).when(client).post(anyString(), anyString(), anyString());
+		manager.on(event);
+		
+		assertEquals(1, manager.getRetriedCount());
+		assertEquals(0, manager.getFailedCount());
+		assertEquals(1, manager.getPendingCount());
+		
+		// Subsequent events wait for retry of the head delivery
+		manager.on(event);
+		verify(client, times(1)).post(anyString(), anyString(), anyString());
+		assertEquals(2, manager.getPendingCount());
+		
+		// Pending deliveries are persisted across restart
+		manager.on(new SystemStopping());
+		manager = start();
+		assertEquals(2, manager.getPendingCount());
+	}
+	
+	@Test
+	public void shouldDropRejectedDelivery() throws Exception {
+		doThrow(new WebHookClient.RejectedException("bad request"))
+				.when(client).post(anyString(), anyString(), anyString());
+		manager.on(event);
+		
+		assertEquals(0, manager.getRetriedCount());
+		assertEquals(1, manager.getFailedCount());
+		assertEquals(0, manager.getPendingCount());
+	}
+	
+	@Test
+	public void shouldDropDeliveryOfMalformedUrl() throws Exception {
+		doThrow(new IllegalArgumentException("Illegal character in path"))
+				.when(client).post(anyString(), anyString(), anyString());
+		manager.on(event);
+		manager.on(event);
+		
+		// Head delivery should not block the endpoint
+		verify(client, times(2)).post(anyString(), anyString(), anyString());
+		assertEquals(0, manager.getRetriedCount());
+		assertEquals(2, manager.getFailedCount());
+		assertEquals(0, manager.getPendingCount());
+		
+		manager.on(new SystemStopping());
+		manager = start();
+		assertEquals(0, manager.getPendingCount());
+	}
+	
+}
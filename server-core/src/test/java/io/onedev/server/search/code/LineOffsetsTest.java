@@ -0,0 +1,30 @@
+package io.onedev.server.search.code;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class LineOffsetsTest {
+
+	@Test
+	public void test() {
+		String text = "first\nsecond\n\n" + Strings.repeat("x", 300) + "\nlast";
+		int[] lineStarts = LineOffsets.decode(new BytesRef(LineOffsets.encode(text)));
+		assertArrayEquals(new int[] {0, 6, 13, 14, 315}, lineStarts);
+		
+		assertEquals(0, LineOffsets.getLine(lineStarts, 0));
+		assertEquals(0, LineOffsets.getLine(lineStarts, 5));
+		assertEquals(1, LineOffsets.getLine(lineStarts, 6));
+		assertEquals(2, LineOffsets.getLine(lineStarts, 13));
+		assertEquals(3, LineOffsets.getLine(lineStarts, 200));
+		assertEquals(4, LineOffsets.getLine(lineStarts, 318));
+		
+		assertArrayEquals(new int[] {0}, LineOffsets.decode(new BytesRef(LineOffsets.encode("single line"))));
+		assertArrayEquals(new int[] {0, 1}, LineOffsets.decode(new BytesRef(LineOffsets.encode("\n"))));
+	}
+	
+}
@@ -0,0 +1,420 @@
+package io.onedev.server.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nullable;
+
+import org.apache.shiro.authz.Permission;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.onedev.server.entitymanager.ProjectManager;
+import io.onedev.server.entitymanager.RoleManager;
+import io.onedev.server.entitymanager.SettingManager;
+import io.onedev.server.entitymanager.UserManager;
+import io.onedev.server.event.entity.EntityPersisted;
+import io.onedev.server.event.entity.EntityRemoved;
+import io.onedev.server.model.Group;
+import io.onedev.server.model.GroupAuthorization;
+import io.onedev.server.model.Membership;
+import io.onedev.server.model.Project;
+import io.onedev.server.model.Role;
+import io.onedev.server.model.Setting;
+import io.onedev.server.model.User;
+import io.onedev.server.model.UserAuthorization;
+import io.onedev.server.model.support.administration.SecuritySetting;
+import io.onedev.server.model.support.role.CodePrivilege;
+import io.onedev.server.model.support.role.NoneIssueFields;
+import io.onedev.server.persistence.SessionManager;
+import io.onedev.server.persistence.TransactionManager;
+import io.onedev.server.security.permission.AccessProject;
+import io.onedev.server.security.permission.ManageProject;
+import io.onedev.server.security.permission.ReadCode;
+import io.onedev.server.security.permission.WriteCode;
+import io.onedev.server.util.facade.ProjectCache;
+
+public class DefaultPermissionManagerTest {
+
+	private static final Long USER_ID = 2L;
+
+	private static final List<Permission> PRIVILEGES = Lists.newArrayList(
+			new AccessProject(), new ReadCode(), new WriteCode(), new ManageProject());
+
+	private Map<Long, Role> roles;
+
+	private List<Project> projects;
+
+	private Project root;
+
+	private Project child;
+
+	private Project grandChild;
+
+	private Project other;
+
+	private Group developers;
+
+	private Group administrators;
+
+	private Collection<Membership> memberships;
+
+	private Collection<UserAuthorization> userAuthorizations;
+
+	private SecuritySetting securitySetting;
+
+	private DefaultPermissionManager manager;
+
+	@Before
+	public void before() throws Exception {
+		roles = new HashMap<>();
+		Role reader = newRole(1L, CodePrivilege.READ, false);
+		Role developer = newRole(2L, CodePrivilege.WRITE, false);
+		newRole(3L, CodePrivilege.WRITE, true);
+
+		root = newProject(1L, "root", null);
+		child = newProject(2L, "child", root);
+		grandChild = newProject(3L, "grandChild", child);
+		other = newProject(4L, "other", null);
+		projects = Lists.newArrayList(root, child, grandChild, other);
+		child.setDefaultRole(reader);
+
+		developers = newGroup(1L, false);
+		GroupAuthorization groupAuthorization = new GroupAuthorization();
+		groupAuthorization.setGroup(developers);
+		groupAuthorization.setProject(other);
+		groupAuthorization.setRole(developer);
+		developers.getAuthorizations().add(groupAuthorization);
+
+		administrators = newGroup(2L, true);
+
+		memberships = new ArrayList<>();
+		userAuthorizations = new ArrayList<>();
+
+		UserManager userManager = mock(UserManager.class);
+		when(userManager.load(USER_ID)).thenAnswer(invocation -> loadUser());
+
+		RoleManager roleManager = mock(RoleManager.class);
+		when(roleManager.load(anyLong())).thenAnswer(invocation -> roles.get(invocation.getArguments()[0]));
+
+		ProjectManager projectManager = mock(ProjectManager.class);
+		when(projectManager.cloneCache()).thenAnswer(invocation -> {
+			ProjectCache cache = new ProjectCache();
+			for (Project project: projects)
+				cache.put(project.getId(), project.getFacade());
+			return cache;
+		});
+		when(projectManager.getSubtreeIds(anyLong())).thenAnswer(invocation ->
+				projectManager.cloneCache().getSubtreeIds((Long) invocation.getArguments()[0]));
+		when(projectManager.getIds()).thenAnswer(invocation -> projectManager.cloneCache().keySet());
+
+		securitySetting = mock(SecuritySetting.class);
+		SettingManager settingManager = mock(SettingManager.class);
+		when(settingManager.getSecuritySetting()).thenReturn(securitySetting);
+
+		SessionManager sessionManager = mock(SessionManager.class);
+		when(sessionManager.call(any(Callable.class)))
+				.thenAnswer(invocation -> ((Callable<?>) invocation.getArguments()[0]).call());
+
+		// Run invalidation right away as there is no transaction to commit
+		TransactionManager transactionManager = mock(TransactionManager.class);
+		doAnswer(invocation -> {
+			((Runnable) invocation.getArguments()[0]).run();
+			return null;
+		}).when(transactionManager).runAfterCommit(any(Runnable.class));
+
+		manager = new DefaultPermissionManager(userManager, roleManager, projectManager,
+				settingManager, sessionManager, transactionManager);
+	}
+
+	private Role newRole(Long id, CodePrivilege codePrivilege, boolean manageProject) {
+		Role role = new Role();
+		role.setId(id);
+		role.setName("role" + id);
+		role.setCodePrivilege(codePrivilege);
+		role.setManageProject(manageProject);
+		// Default editable issue fields read field names from setting manager
+		role.setEditableIssueFields(new NoneIssueFields());
+		roles.put(id, role);
+		return role;
+	}
+
+	private Project newProject(Long id, String name, @Nullable Project parent) {
+		Project project = new Project();
+		project.setId(id);
+		project.setName(name);
+		project.setPath(parent != null? parent.getPath() + "/" + name: name);
+		project.setParent(parent);
+		return project;
+	}
+
+	private Group newGroup(Long id, boolean administrator) {
+		Group group = new Group();
+		group.setId(id);
+		group.setName("group" + id);
+		group.setAdministrator(administrator);
+		return group;
+	}
+
+	private Membership addMembership(Group group) {
+		Membership membership = new Membership();
+		membership.setUser(loadUser());
+		membership.setGroup(group);
+		memberships.add(membership);
+		return membership;
+	}
+
+	private UserAuthorization addUserAuthorization(Project project, Role role) {
+		UserAuthorization authorization = new UserAuthorization();
+		authorization.setUser(loadUser());
+		authorization.setProject(project);
+		authorization.setRole(role);
+		userAuthorizations.add(authorization);
+		return authorization;
+	}
+
+	// Groups of user are cached in user object, so load a new one each time as a new session does
+	private User loadUser() {
+		User user = new User();
+		user.setId(USER_ID);
+		user.setMemberships(memberships);
+		user.setProjectAuthorizations(userAuthorizations);
+		return user;
+	}
+
+	/*
+	 * Permission check of previous authorizing realm, which walks groups, authorizations
+	 * and default roles of the user on every check
+	 */
+	private boolean isPermittedByRealm(@Nullable User user, Project project, Permission privilege) {
+		boolean loggedIn = user != null;
+		if (user != null) {
+			List<Group> groups = new ArrayList<>(user.getGroups());
+			if (securitySetting.getDefaultLoginGroup() != null)
+				groups.add(securitySetting.getDefaultLoginGroup());
+			for (Group group: groups) {
+				if (group.isAdministrator())
+					return true;
+				for (GroupAuthorization authorization: group.getAuthorizations()) {
+					if (authorization.getProject().isSelfOrAncestorOf(project)
+							&& authorization.getRole().implies(privilege, true)) {
+						return true;
+					}
+				}
+			}
+			for (UserAuthorization authorization: user.getProjectAuthorizations()) {
+				if (authorization.getProject().isSelfOrAncestorOf(project)
+						&& authorization.getRole().implies(privilege, true)) {
+					return true;
+				}
+			}
+		}
+		if (loggedIn || securitySetting.isEnableAnonymousAccess()) {
+			for (Project current = project; current != null; current = current.getParent()) {
+				if (current.getDefaultRole() != null && current.getDefaultRole().implies(privilege, loggedIn))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private void assertSameAsRealm(@Nullable User user) {
+		Long userId = user != null? user.getId(): 0L;
+		for (Permission privilege: PRIVILEGES) {
+			assertTrue(manager.isIndexed(privilege));
+			Set<Long> expectedProjectIds = new HashSet<>();
+			for (Project project: projects) {
+				boolean expected = isPermittedByRealm(user, project, privilege);
+				assertEquals(expected, manager.isPermitted(userId, project.getId(), privilege));
+				if (expected)
+					expectedProjectIds.add(project.getId());
+			}
+			assertEquals(expectedProjectIds, new HashSet<>(manager.getPermittedProjectIds(userId, privilege)));
+		}
+	}
+
+	@Test
+	public void shouldApplyDefaultRoles() {
+		when(securitySetting.isEnableAnonymousAccess()).thenReturn(false);
+		assertSameAsRealm(null);
+		assertFalse(manager.isPermitted(0L, child.getId(), new AccessProject()));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, grandChild.getId(), new ReadCode()));
+		assertFalse(manager.isPermitted(USER_ID, root.getId(), new ReadCode()));
+
+		when(securitySetting.isEnableAnonymousAccess()).thenReturn(true);
+		manager.on(new EntityPersisted(new Setting(), false));
+		assertSameAsRealm(null);
+		assertTrue(manager.isPermitted(0L, grandChild.getId(), new ReadCode()));
+		assertFalse(manager.isPermitted(0L, grandChild.getId(), new WriteCode()));
+
+		// Anonymous users are granted less privileges by default roles
+		child.setDefaultRole(roles.get(3L));
+		manager.on(new EntityPersisted(child, false));
+		assertSameAsRealm(null);
+		assertFalse(manager.isPermitted(0L, child.getId(), new ManageProject()));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, child.getId(), new ManageProject()));
+	}
+
+	@Test
+	public void shouldInheritRolesInSubtree() {
+		addUserAuthorization(child, roles.get(2L));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, grandChild.getId(), new WriteCode()));
+		assertFalse(manager.isPermitted(USER_ID, root.getId(), new WriteCode()));
+		assertFalse(manager.isPermitted(USER_ID, other.getId(), new WriteCode()));
+	}
+
+	@Test
+	public void shouldHonorAdministratorGroups() {
+		addMembership(administrators);
+		assertTrue(manager.isAdministrator(USER_ID));
+		assertSameAsRealm(loadUser());
+		assertEquals(projects.size(), manager.getPermittedProjectIds(USER_ID, new ManageProject()).size());
+		assertFalse(manager.isAdministrator(0L));
+	}
+
+	@Test
+	public void shouldHonorDefaultLoginGroup() {
+		when(securitySetting.getDefaultLoginGroup()).thenReturn(developers);
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, other.getId(), new WriteCode()));
+		assertSameAsRealm(null);
+	}
+
+	@Test
+	public void shouldRebuildOnMembershipChange() {
+		assertSameAsRealm(loadUser());
+		Membership membership = addMembership(developers);
+
+		// Index is not rebuilt until membership is persisted
+		assertFalse(manager.isPermitted(USER_ID, other.getId(), new WriteCode()));
+		manager.on(new EntityPersisted(membership, true));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, other.getId(), new WriteCode()));
+
+		memberships.remove(membership);
+		manager.on(new EntityRemoved(membership));
+		assertSameAsRealm(loadUser());
+		assertFalse(manager.isPermitted(USER_ID, other.getId(), new WriteCode()));
+	}
+
+	@Test
+	public void shouldRebuildOnUserAuthorizationChange() {
+		assertSameAsRealm(loadUser());
+		UserAuthorization authorization = addUserAuthorization(root, roles.get(1L));
+		manager.on(new EntityPersisted(authorization, true));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, grandChild.getId(), new ReadCode()));
+
+		authorization.setRole(roles.get(2L));
+		manager.on(new EntityPersisted(authorization, false));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, grandChild.getId(), new WriteCode()));
+
+		userAuthorizations.remove(authorization);
+		manager.on(new EntityRemoved(authorization));
+		assertSameAsRealm(loadUser());
+		assertFalse(manager.isPermitted(USER_ID, root.getId(), new ReadCode()));
+	}
+
+	@Test
+	public void shouldRebuildOnGroupAuthorizationChange() {
+		addMembership(developers);
+		assertSameAsRealm(loadUser());
+
+		GroupAuthorization authorization = new GroupAuthorization();
+		authorization.setGroup(developers);
+		authorization.setProject(root);
+		authorization.setRole(roles.get(3L));
+		developers.getAuthorizations().add(authorization);
+		manager.on(new EntityPersisted(authorization, true));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, grandChild.getId(), new ManageProject()));
+
+		developers.getAuthorizations().remove(authorization);
+		manager.on(new EntityRemoved(authorization));
+		assertSameAsRealm(loadUser());
+		assertFalse(manager.isPermitted(USER_ID, grandChild.getId(), new ManageProject()));
+	}
+
+	@Test
+	public void shouldRebuildOnRoleChange() {
+		addMembership(developers);
+		addUserAuthorization(root, roles.get(1L));
+		when(securitySetting.isEnableAnonymousAccess()).thenReturn(true);
+		assertSameAsRealm(loadUser());
+		assertSameAsRealm(null);
+
+		roles.get(1L).setCodePrivilege(CodePrivilege.NONE);
+		manager.on(new EntityPersisted(roles.get(1L), false));
+		assertSameAsRealm(loadUser());
+		assertSameAsRealm(null);
+		assertFalse(manager.isPermitted(0L, child.getId(), new ReadCode()));
+
+		roles.get(2L).setManageProject(true);
+		manager.on(new EntityPersisted(roles.get(2L), false));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, other.getId(), new ManageProject()));
+
+		Role removed = roles.remove(1L);
+		userAuthorizations.clear();
+		child.setDefaultRole(null);
+		manager.on(new EntityRemoved(removed));
+		assertSameAsRealm(loadUser());
+		assertSameAsRealm(null);
+	}
+
+	@Test
+	public void shouldRebuildOnProjectChange() {
+		addUserAuthorization(root, roles.get(2L));
+		when(securitySetting.isEnableAnonymousAccess()).thenReturn(true);
+		assertSameAsRealm(loadUser());
+		assertSameAsRealm(null);
+
+		// Move project under another parent
+		other.setParent(root);
+		other.setPath("root/other");
+		manager.on(new EntityPersisted(other, false));
+		assertSameAsRealm(loadUser());
+		assertTrue(manager.isPermitted(USER_ID, other.getId(), new WriteCode()));
+
+		grandChild.setParent(null);
+		grandChild.setPath("grandChild");
+		manager.on(new EntityPersisted(grandChild, false));
+		assertSameAsRealm(loadUser());
+		assertSameAsRealm(null);
+		assertFalse(manager.isPermitted(0L, grandChild.getId(), new ReadCode()));
+
+		Project added = newProject(5L, "added", child);
+		projects.add(added);
+		manager.on(new EntityPersisted(added, true));
+		assertSameAsRealm(loadUser());
+		assertSameAsRealm(null);
+		assertTrue(manager.isPermitted(0L, added.getId(), new ReadCode()));
+
+		projects.remove(added);
+		manager.on(new EntityRemoved(added));
+		assertSameAsRealm(loadUser());
+		assertFalse(manager.getPermittedProjectIds(USER_ID, new AccessProject()).contains(added.getId()));
+	}
+
+}
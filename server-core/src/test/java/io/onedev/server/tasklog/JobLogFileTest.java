@@ -0,0 +1,94 @@
+package io.onedev.server.tasklog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.onedev.commons.utils.FileUtils;
+import io.onedev.server.buildspec.job.log.JobLogEntry;
+import io.onedev.server.buildspec.job.log.JobLogEntryEx;
+import io.onedev.server.buildspec.job.log.Message;
+import io.onedev.server.buildspec.job.log.Style;
+
+public class JobLogFileTest {
+
+	private JobLogEntryEx newEntry(int index) {
+		Style style = new Style(Style.FOREGROUND_COLOR_DEFAULT, Style.BACKGROUND_COLOR_DEFAULT, false);
+		if (index % 3 == 0)
+			style = new Style("31", "42", true);
+		return new JobLogEntryEx(new Date(index), Lists.newArrayList(
+				new Message(style, "message " + index),
+				new Message(style, "\u4e2d\u6587")));
+	}
+
+	@Test
+	public void test() {
+		File dir = FileUtils.createTempDir();
+		try {
+			JobLogFile logFile = new JobLogFile(dir);
+			assertFalse(logFile.exists());
+			assertEquals(0, logFile.size());
+			assertTrue(logFile.read(0, 10).isEmpty());
+
+			List<JobLogEntryEx> entries = new ArrayList<>();
+			for (int i=0; i<100; i++)
+				entries.add(newEntry(i));
+			logFile.append(entries.subList(0, 60));
+			logFile.append(entries.subList(60, 100));
+
+			assertEquals(100, logFile.size());
+
+			List<JobLogEntryEx> read = logFile.read(50, 5);
+			assertEquals(5, read.size());
+			for (int i=0; i<5; i++) {
+				assertEquals(entries.get(50+i).getDate(), read.get(i).getDate());
+				assertEquals(entries.get(50+i).getMessages(), read.get(i).getMessages());
+			}
+
+			assertEquals(10, logFile.read(90, 0).size());
+			assertEquals(3, logFile.read(97, 10).size());
+
+			try (JobLogFile.Reader reader = logFile.openReader(99)) {
+				assertEquals(entries.get(99).getMessages(), reader.read().getMessages());
+				assertNull(reader.read());
+			}
+		} finally {
+			FileUtils.deleteDir(dir);
+		}
+	}
+
+	@Test
+	public void testConvert() throws IOException {
+		File dir = FileUtils.createTempDir();
+		try {
+			File legacyFile = new File(dir, "build.log");
+			try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+				oos.writeObject(new JobLogEntry(new Date(1), "hello"));
+				oos.writeObject(newEntry(3));
+			}
+			JobLogFile logFile = new JobLogFile(dir);
+			logFile.convert(legacyFile);
+			assertFalse(legacyFile.exists());
+			assertEquals(2, logFile.size());
+			List<JobLogEntryEx> entries = logFile.read(0, 0);
+			assertEquals("hello", entries.get(0).getMessageText());
+			assertEquals(newEntry(3).getMessages(), entries.get(1).getMessages());
+		} finally {
+			FileUtils.deleteDir(dir);
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package io.onedev.server.tasklog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JobLogFrameTest {
+
+	@Test
+	public void test() {
+		JobLogFrame frame = new JobLogFrame(3, "token", "session", Arrays.asList("first", "", "中文"));
+		for (boolean compress: new boolean[] {false, true}) {
+			byte[] data = frame.encode(compress);
+			assertTrue(JobLogFrame.isFrame(data));
+			JobLogFrame decoded = JobLogFrame.decode(data);
+			assertEquals(3, decoded.getJobTokenHandle());
+			assertEquals("token", decoded.getJobToken());
+			assertEquals("session", decoded.getSessionId());
+			assertEquals(frame.getMessages(), decoded.getMessages());
+		}
+		
+		JobLogFrame decoded = JobLogFrame.decode(new JobLogFrame(3, null, null, Arrays.asList("line")).encode(true));
+		assertNull(decoded.getJobToken());
+		assertNull(decoded.getSessionId());
+		assertEquals(Arrays.asList("line"), decoded.getMessages());
+		
+		assertFalse(JobLogFrame.isFrame("token:session:line".getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	@Test
+	public void shouldRejectInvalidStringLength() {
+		byte[] data = new JobLogFrame(3, null, null, Arrays.asList("line")).encode(false);
+		
+		// Corrupt length of the line, which are the 4 bytes before its content
+		for (int length: new int[] {-1, Integer.MAX_VALUE, 5}) {
+			byte[] corrupted = data.clone();
+			int offset = corrupted.length - 8;
+			corrupted[offset] = (byte) (length >>> 24);
+			corrupted[offset+1] = (byte) (length >>> 16);
+			corrupted[offset+2] = (byte) (length >>> 8);
+			corrupted[offset+3] = (byte) length;
+			try {
+				JobLogFrame.decode(corrupted);
+				fail();
+			} catch (RuntimeException e) {
+			}
+		}
+	}
+	
+}
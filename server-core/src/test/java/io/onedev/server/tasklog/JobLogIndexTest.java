@@ -0,0 +1,65 @@
+package io.onedev.server.tasklog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.onedev.commons.utils.FileUtils;
+import io.onedev.server.buildspec.job.log.JobLogEntryEx;
+import io.onedev.server.buildspec.job.log.Message;
+import io.onedev.server.buildspec.job.log.Style;
+
+public class JobLogIndexTest {
+
+	private JobLogEntryEx newEntry(String text) {
+		Style style = new Style(Style.FOREGROUND_COLOR_DEFAULT, Style.BACKGROUND_COLOR_DEFAULT, false);
+		return new JobLogEntryEx(new Date(), Lists.newArrayList(new Message(style, text)));
+	}
+
+	@Test
+	public void testRegexWithShortAlternative() {
+		File dir = FileUtils.createTempDir();
+		try {
+			JobLogFile logFile = new JobLogFile(dir);
+			List<JobLogEntryEx> entries = new ArrayList<>();
+			entries.add(newEntry("ab"));
+			entries.add(newEntry("connection timeout"));
+			entries.add(newEntry("nothing interesting"));
+			logFile.append(entries);
+
+			JobLogIndex logIndex = new JobLogIndex(dir);
+			assertEquals(3, logIndex.update(logFile));
+			assertEquals(3, logIndex.getIndexedCount());
+
+			// Alternative "ab" is too short to be queried via the index, and entries 
+			// matching it would be missed if the index were used
+			assertNull(JobLogIndex.newRegexQuery("ab|timeout"));
+			assertNull(JobLogIndex.newRegexQuery("a.|timeout"));
+
+			Query query = JobLogIndex.newRegexQuery("abc|timeout");
+			assertNotNull(query);
+			BitSet candidates = logIndex.query(query);
+			assertEquals(1, candidates.cardinality());
+			assertEquals(1, candidates.nextSetBit(0));
+			
+			query = JobLogIndex.newRegexQuery("connection|interesting");
+			assertNotNull(query);
+			candidates = logIndex.query(query);
+			assertEquals(2, candidates.cardinality());
+		} finally {
+			FileUtils.deleteDir(dir);
+		}
+	}
+
+}
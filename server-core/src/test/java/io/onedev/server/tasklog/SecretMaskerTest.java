@@ -0,0 +1,32 @@
+package io.onedev.server.tasklog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SecretMaskerTest {
+
+	@Test
+	public void test() {
+		SecretMasker masker = new SecretMasker(Lists.newArrayList("secret", "cret", "abcdef", "b", "d", ""));
+		
+		String text = "nothing to mask";
+		assertSame(text, masker.mask(text));
+		
+		assertEquals("token: *****", masker.mask("token: secret"));
+		assertEquals("*****-*****", masker.mask("secret-secret"));
+		assertEquals("**********", masker.mask("secretsecret"));
+		assertEquals("x*****y", masker.mask("xabcdefy"));
+		assertEquals("a*****c*****", masker.mask("abcd"));
+		assertEquals("ex*****", masker.mask("excret"));
+		
+		masker = new SecretMasker(new ArrayList<>());
+		assertSame(text, masker.mask(text));
+	}
+
+}
@@ -0,0 +1,88 @@
+package io.onedev.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class BuildIndexTest {
+
+	private static final String COMMIT1 = "46c001b04cba0ca41588841f1ca32f50b582ee9b";
+
+	private static final String COMMIT2 = "0d1b6a4d1a52b7a0e07c28e0d5b0a4c9c0b7c2e1";
+
+	@Test
+	public void test() {
+		BuildIndex index = new BuildIndex();
+		index.put(1, 1, 1, ObjectId.fromString(COMMIT1));
+		index.put(2, 1, 2, ObjectId.fromString(COMMIT2));
+		index.put(3, 2, 1, ObjectId.fromString(COMMIT1));
+		index.put(4, 1, 3, ObjectId.fromString(COMMIT1));
+
+		assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), index.getNumbers(1));
+		assertEquals(new HashSet<>(Arrays.asList(1L, 3L)), index.getNumbers(1, Arrays.asList(COMMIT1)));
+		assertEquals(new HashSet<>(Arrays.asList(1L)), index.getNumbers(2, Arrays.asList(COMMIT1, COMMIT2)));
+		assertTrue(index.getNumbers(3).isEmpty());
+
+		index.put(4, 1, 3, ObjectId.fromString(COMMIT2));
+		assertEquals(new HashSet<>(Arrays.asList(2L, 3L)), index.getNumbers(1, Arrays.asList(COMMIT2)));
+
+		index.remove(1);
+		assertEquals(new HashSet<>(Arrays.asList(2L, 3L)), index.getNumbers(1));
+		assertTrue(index.getNumbers(1, Arrays.asList(COMMIT1)).isEmpty());
+
+		index.removeProject(1);
+		assertTrue(index.getNumbers(1).isEmpty());
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void testRandom() {
+		Random random = new Random(1);
+		BuildIndex index = new BuildIndex();
+		Map<Long, Object[]> builds = new HashMap<>();
+		String[] commits = new String[50];
+		for (int i=0; i<commits.length; i++) {
+			byte[] bytes = new byte[20];
+			random.nextBytes(bytes);
+			commits[i] = ObjectId.fromRaw(bytes).name();
+		}
+		for (int i=0; i<20000; i++) {
+			long id = random.nextInt(5000);
+			if (random.nextInt(4) == 0) {
+				index.remove(id);
+				builds.remove(id);
+			} else {
+				long projectId = random.nextInt(10);
+				long number = random.nextInt(1000);
+				String commit = commits[random.nextInt(commits.length)];
+				index.put(id, projectId, number, ObjectId.fromString(commit));
+				builds.put(id, new Object[] {projectId, number, commit});
+			}
+		}
+		assertEquals(builds.size(), index.size());
+		for (long projectId=0; projectId<10; projectId++) {
+			Collection<String> commitHashes = Arrays.asList(commits[0], commits[1]);
+			Collection<Long> numbers = new HashSet<>();
+			Collection<Long> filteredNumbers = new HashSet<>();
+			for (Object[] build: builds.values()) {
+				if (build[0].equals(projectId)) {
+					numbers.add((Long) build[1]);
+					if (commitHashes.contains(build[2]))
+						filteredNumbers.add((Long) build[1]);
+				}
+			}
+			assertEquals(numbers, index.getNumbers(projectId));
+			assertEquals(filteredNumbers, index.getNumbers(projectId, commitHashes));
+		}
+	}
+
+}
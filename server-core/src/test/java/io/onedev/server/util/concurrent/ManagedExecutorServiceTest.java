@@ -0,0 +1,141 @@
+package io.onedev.server.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManagedExecutorServiceTest {
+
+	private static final int MAX_THREADS = 8;
+
+	private ManagedExecutorService executor;
+	
+	private final CountDownLatch release = new CountDownLatch(1);
+	
+	@Before
+	public void before() {
+		executor = new ManagedExecutorService(MAX_THREADS);
+	}
+	
+	@After
+	public void after() throws InterruptedException {
+		release.countDown();
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+	
+	private void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Test
+	public void shouldNotStarveCategorizedTasksWithBlockingTasks() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(MAX_THREADS);
+		for (int i=0; i<MAX_THREADS; i++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					started.countDown();
+					await(release);
+				}
+				
+			});
+		}
+		
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		
+		CountDownLatch finished = new CountDownLatch(1);
+		executor.execute(new CategorizedRunnable(TaskCategory.WEBHOOK) {
+
+			@Override
+			public void run() {
+				finished.countDown();
+			}
+			
+		});
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void shouldRunUncategorizedTaskInSubmitterIfSaturated() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(MAX_THREADS);
+		for (int i=0; i<MAX_THREADS; i++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					started.countDown();
+					await(release);
+				}
+				
+			});
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(MAX_THREADS, executor.getRunningCount());
+		
+		AtomicReference<Thread> runner = new AtomicReference<>();
+		Thread submitter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						runner.set(Thread.currentThread());
+					}
+					
+				});
+			}
+			
+		});
+		submitter.start();
+		submitter.join(10000);
+		assertEquals(submitter, runner.get());
+	}
+	
+	@Test
+	public void shouldLimitConcurrencyOfCategory() throws InterruptedException {
+		int concurrency = TaskCategory.MAIL.getConcurrency();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(concurrency);
+		CountDownLatch finished = new CountDownLatch(concurrency*2);
+		for (int i=0; i<concurrency*2; i++) {
+			executor.execute(new CategorizedRunnable(TaskCategory.MAIL) {
+
+				@Override
+				public void run() {
+					int count = running.incrementAndGet();
+					maxRunning.accumulateAndGet(count, Math::max);
+					started.countDown();
+					await(release);
+					running.decrementAndGet();
+					finished.countDown();
+				}
+				
+			});
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(concurrency, executor.getQueueDepth(TaskCategory.MAIL));
+		
+		release.countDown();
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		assertEquals(concurrency, maxRunning.get());
+		assertEquals(0, executor.getQueueDepth(TaskCategory.MAIL));
+	}
+	
+}
@@ -0,0 +1,39 @@
+package io.onedev.server.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	@Test
+	public void test() {
+		TimerWheel<Long> wheel = new TimerWheel<>(100, 8, 1000);
+		wheel.schedule(1L, 1250);
+		wheel.schedule(2L, 1300);
+		wheel.schedule(3L, 3000); // more than one round ahead
+		wheel.schedule(4L, 500); // already overdue
+		assertTrue(wheel.advance(1050).contains(4L));
+		
+		assertTrue(wheel.advance(1200).isEmpty());
+		wheel.schedule(2L, 1500); // reschedule
+		assertEquals(Arrays.asList(1L), wheel.advance(1300));
+		assertTrue(wheel.advance(1400).isEmpty());
+		assertEquals(Arrays.asList(2L), wheel.advance(1500));
+		
+		wheel.schedule(5L, 1800);
+		wheel.cancel(5L);
+		assertFalse(wheel.isScheduled(5L));
+		assertTrue(wheel.advance(2000).isEmpty());
+		
+		assertTrue(wheel.isScheduled(3L));
+		assertEquals(new HashSet<>(Arrays.asList(3L)), new HashSet<>(wheel.advance(10000)));
+		assertTrue(wheel.isEmpty());
+	}
+	
+}
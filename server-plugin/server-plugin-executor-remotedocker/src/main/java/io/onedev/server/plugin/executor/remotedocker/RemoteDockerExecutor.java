@@ -100,7 +100,7 @@ public class RemoteDockerExecutor extends ServerDockerExecutor {
 				
 			}
 			
-		}, new HashMap<>(), parsedQeury, jobContext.getResourceRequirements(), jobLogger);
+		}, jobContext.getProjectId(), new HashMap<>(), parsedQeury, jobContext.getResourceRequirements(), jobLogger);
 		
 	}
 
@@ -137,7 +137,7 @@ public class RemoteDockerExecutor extends ServerDockerExecutor {
 					
 				}
 				
-			}, new HashMap<>(), parsedQeury, new HashMap<>(), jobLogger);
+			}, null, new HashMap<>(), parsedQeury, new HashMap<>(), jobLogger);
 		} finally {
 			logManager.deregisterLogger(jobToken);
 		}
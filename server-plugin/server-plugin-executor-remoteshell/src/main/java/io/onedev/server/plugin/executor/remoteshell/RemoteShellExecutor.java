@@ -86,7 +86,7 @@ public class RemoteShellExecutor extends ServerShellExecutor {
 				
 			}
 			
-		}, new HashMap<>(), parsedQeury, jobContext.getResourceRequirements(), jobLogger);
+		}, jobContext.getProjectId(), new HashMap<>(), parsedQeury, jobContext.getResourceRequirements(), jobLogger);
 		
 	}
 
@@ -114,7 +114,7 @@ public class RemoteShellExecutor extends ServerShellExecutor {
 					
 				}
 				
-			}, new HashMap<>(), parsedQeury, new HashMap<>(), jobLogger);
+			}, null, new HashMap<>(), parsedQeury, new HashMap<>(), jobLogger);
 		} finally {
 			logManager.deregisterLogger(jobToken);
 		}
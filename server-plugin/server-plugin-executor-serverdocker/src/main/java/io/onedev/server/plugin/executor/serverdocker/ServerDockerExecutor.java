@@ -431,7 +431,7 @@ public class ServerDockerExecutor extends JobExecutor implements Testable<TestDa
 					}					
 				}
 				
-			}, jobContext.getResourceRequirements(), jobLogger);
+			}, jobContext.getProjectId(), jobContext.getResourceRequirements(), jobLogger);
 		} finally {
 			cleanDirAsRoot(hostBuildHome, newDocker(), Bootstrap.isInDocker());
 			FileUtils.deleteDir(hostBuildHome);
@@ -596,7 +596,7 @@ public class ServerDockerExecutor extends JobExecutor implements Testable<TestDa
 				KubernetesHelper.testGitLfsAvailability(git, jobLogger);
 			}
 			
-		}, new HashMap<>(), jobLogger);
+		}, null, new HashMap<>(), jobLogger);
 		
 	}
 	
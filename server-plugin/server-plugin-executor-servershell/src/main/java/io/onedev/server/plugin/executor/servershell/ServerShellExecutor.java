@@ -243,7 +243,7 @@ public class ServerShellExecutor extends JobExecutor implements Testable<TestDat
 				}
 			}
 			
-		}, jobContext.getResourceRequirements(), jobLogger);
+		}, jobContext.getProjectId(), jobContext.getResourceRequirements(), jobLogger);
 	}
 
 	@Override
@@ -256,7 +256,7 @@ public class ServerShellExecutor extends JobExecutor implements Testable<TestDat
 				testCommands(git, testData.getCommands(), jobLogger);
 			}
 			
-		}, new HashMap<>(), jobLogger);
+		}, null, new HashMap<>(), jobLogger);
 		
 	}
 	
@@ -33,6 +33,10 @@ public class DefaultServerConfig implements ServerConfig {
 	
 	private static final String PROP_KEYSTOREPASSWORD = "keystore_password";
 	
+	private static final String PROP_EXECUTOR_MAX_THREADS = "executor_max_threads";
+	
+	private static final int DEFAULT_EXECUTOR_MAX_THREADS = 500;
+	
 	private int httpPort;
 	
 	private int httpsPort;
@@ -45,6 +49,8 @@ public class DefaultServerConfig implements ServerConfig {
 	
 	private String keystorePassword;
 	
+	private int executorMaxThreads;
+	
 	@Inject
 	public DefaultServerConfig(ServerProperties props) {
 		String httpPortStr = System.getenv(PROP_HTTPPORT);
@@ -115,6 +121,16 @@ public class DefaultServerConfig implements ServerConfig {
 			Preconditions.checkState(trustCertsDir.exists(), 
 					"Trust certs directory not exist: " + trustCertsDir.getAbsolutePath());
 		}
+		
+		String executorMaxThreadsStr = System.getenv(PROP_EXECUTOR_MAX_THREADS);
+		if (StringUtils.isBlank(executorMaxThreadsStr))
+			executorMaxThreadsStr = props.getProperty(PROP_EXECUTOR_MAX_THREADS);
+		if (StringUtils.isNotBlank(executorMaxThreadsStr))
+			executorMaxThreads = Integer.parseInt(executorMaxThreadsStr.trim());
+		else
+			executorMaxThreads = DEFAULT_EXECUTOR_MAX_THREADS;
+		if (executorMaxThreads <= 0)
+			throw new ExplicitException(PROP_EXECUTOR_MAX_THREADS + " should be a positive number");
 	}
 	
 	@Override
@@ -146,5 +162,10 @@ public class DefaultServerConfig implements ServerConfig {
     public int getSshPort() {
         return sshPort;
     }
+
+	@Override
+	public int getExecutorMaxThreads() {
+		return executorMaxThreads;
+	}
 	
 }